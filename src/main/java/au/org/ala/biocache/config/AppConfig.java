@@ -1,5 +1,8 @@
 package au.org.ala.biocache.config;
 
+import au.org.ala.biocache.dao.JournalPersistentQueueDAOImpl;
+import au.org.ala.biocache.dao.JsonPersistentQueueDAOImpl;
+import au.org.ala.biocache.dao.PersistentQueueDAO;
 import au.org.ala.biocache.index.IndexDAO;
 import au.org.ala.biocache.index.SolrIndexDAO;
 import au.org.ala.biocache.service.RestartDataService;
@@ -62,6 +65,10 @@ public class AppConfig {
     @Value("${dataquality.baseUrl:https://dataquality.ala.org.au/}")
     protected String dataQualityBaseUrl;
 
+    //Keep the offline download queue in a journal instead of a JSON file for each download (disabled by default)
+    @Value("${download.queue.journal.enabled:false}")
+    protected Boolean downloadQueueJournalEnabled;
+
 
     //Set RestartDataService.dir before classes using RestartDataService are instantiated.
     @Value("${restart.data.dir:/tmp}")
@@ -134,6 +141,17 @@ public class AppConfig {
 
     }
 
+    public @Bean(name = "persistentQueueDao")
+    PersistentQueueDAO persistentQueueDaoBean() {
+        if (downloadQueueJournalEnabled) {
+            logger.info("Initialising the journal download queue.");
+            return new JournalPersistentQueueDAOImpl();
+        } else {
+            logger.info("Initialising the JSON file download queue.");
+            return new JsonPersistentQueueDAOImpl();
+        }
+    }
+
     @Bean("dataQualityApiClient")
     public ApiClient dataQualityApiClient() {
         ApiClient apiClient = new ApiClient();
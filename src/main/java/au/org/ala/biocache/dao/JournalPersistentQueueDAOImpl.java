@@ -0,0 +1,621 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadRequestParams;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A queue that stores the Downloads in an append only journal in the supplied directory.
+ *
+ * Each download that is added or removed is appended to the journal. The journal is compacted, rewritten with
+ * only the queued downloads, when it is loaded and when download.queue.journal.compact removals have been appended.
+ *
+ * The downloads that have not started are indexed by type and by the number of records, so that the next download
+ * for a pool is found without scanning the queue, and all downloads are indexed by email and download params to
+ * find duplicates. Downloads that were stored as JSON files by {@link JsonPersistentQueueDAOImpl} are moved into
+ * the journal when it is loaded.
+ *
+ * Each entry is synced to the disk before the download is added to or removed from the queue, so the queue is kept
+ * when the service or the host stops. Used as the persistentQueueDao when download.queue.journal.enabled is true.
+ */
+public class JournalPersistentQueueDAOImpl implements PersistentQueueDAO {
+
+    /** log4 j logger */
+    private static final Logger logger = Logger.getLogger(JournalPersistentQueueDAOImpl.class);
+
+    @Value("${download.cache.dir:/data/cache/downloads}")
+    protected String cacheDirectory = "/data/cache/downloads";
+
+    @Value("${download.dir:/data/biocache-download}")
+    protected String biocacheDownloadDir;
+
+    /**
+     * The number of downloads removed from the queue before the journal is compacted.
+     */
+    @Value("${download.queue.journal.compact:1000}")
+    protected Integer journalCompactThreshold = 1000;
+
+    private static final String FILE_PREFIX = "offline";
+
+    private static final String JOURNAL_FILE = "queue.journal";
+
+    private static final String ADD = "add";
+    private static final String REMOVE = "remove";
+
+    /**
+     * Buckets of the number of records in a download, bucket b holds downloads with up to 2^b - 1 records.
+     */
+    private static final int RECORD_BUCKETS = 65;
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    /** The queued downloads by unique id */
+    private final ConcurrentMap<String, QueuedDownload> downloads = new ConcurrentHashMap<>();
+
+    /** The queued downloads in the order that they were added */
+    private final ConcurrentSkipListMap<Long, QueuedDownload> orderedDownloads = new ConcurrentSkipListMap<>();
+
+    /** The queued downloads by email and download params */
+    private final ConcurrentMap<String, QueuedDownload> downloadsByRequest = new ConcurrentHashMap<>();
+
+    /** The downloads that have not started, by type then by bucket of the number of records, in the order that they were added */
+    private final Map<DownloadDetailsDTO.DownloadType, TreeMap<Long, QueuedDownload>[]> pendingDownloads = new HashMap<>();
+
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    /** Guards pendingDownloads */
+    private final Object pendingLock = new Object();
+
+    /** Guards the journal and the changes to downloads and orderedDownloads, so that a compaction sees every append */
+    private final Object journalLock = new Object();
+
+    private FileOutputStream journalOut;
+    private Writer journal;
+    private int journalRemovals;
+
+    /**
+     * Start closed and wait until the {@link #init()} method completes to accept downloads.<br>
+     * Can also be closed by a call to the {@link #shutdown()} method.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean(true);
+
+    /**
+     * Ensures initialisation is only attempted once, to avoid clobbering the queue by a reinitialisation.
+     */
+    private final AtomicBoolean initialised = new AtomicBoolean(false);
+
+    /**
+     * A latch that is released once initialisation completes, to enable the off-thread
+     * initialisation to occur completely before servicing queries.
+     */
+    private final CountDownLatch initialisationLatch = new CountDownLatch(1);
+
+    /**
+     * An entry in the journal.
+     */
+    public static class JournalEntry {
+        private String action;
+        private String id;
+        private DownloadDetailsDTO download;
+
+        public JournalEntry() {
+        }
+
+        JournalEntry(String action, String id, DownloadDetailsDTO download) {
+            this.action = action;
+            this.id = id;
+            this.download = download;
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        public void setAction(String action) {
+            this.action = action;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public DownloadDetailsDTO getDownload() {
+            return download;
+        }
+
+        public void setDownload(DownloadDetailsDTO download) {
+            this.download = download;
+        }
+    }
+
+    /**
+     * A download in the queue and its position in the queue.
+     */
+    private static class QueuedDownload {
+        final long sequence;
+        final DownloadDetailsDTO download;
+        final String requestKey;
+        boolean pending = true;
+
+        QueuedDownload(long sequence, DownloadDetailsDTO download) {
+            this.sequence = sequence;
+            this.download = download;
+            this.requestKey = getRequestKey(download);
+        }
+    }
+
+    /**
+     * Call this method at the start of web service calls that require initialisation to be complete before continuing.
+     * This blocks until it is either interrupted or the initialisation thread from {@link #init()} is finished (successful or not).
+     */
+    private void afterInitialisation() {
+        try {
+            initialisationLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @PostConstruct
+    @Override
+    public void init() {
+        // Ensure the initialisation code is only called once
+        if (initialised.compareAndSet(false, true)) {
+            //init on a thread so as to not hold up other @PostConstructs that it may depend on
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        jsonMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+                        File file = new File(cacheDirectory);
+                        try {
+                            FileUtils.forceMkdir(file);
+                        } catch (IOException e) {
+                            logger.error("Unable to construct cache directory with correct permissions.", e);
+                        }
+
+                        // IMPORTANT: must set closed to false before calling refreshFromPersistent,
+                        // to avoid refresh adding downloads to queue when we are closed
+                        closed.set(false);
+                        refreshFromPersistent();
+                    } finally {
+                        initialisationLatch.countDown();
+                    }
+                }
+            }.start();
+        }
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#addDownloadToQueue(DownloadDetailsDTO)
+     */
+    @Override
+    public void addDownloadToQueue(DownloadDetailsDTO download) {
+        afterInitialisation();
+        if (closed.get()) {
+            logger.error("Download could not be added to the queue because the queue has been closed: " + download.toString());
+            return;
+        }
+
+        QueuedDownload queued = new QueuedDownload(nextSequence.incrementAndGet(), download);
+        // Avoid double addition by reserving the email and download params before the download is stored
+        if (downloadsByRequest.putIfAbsent(queued.requestKey, queued) != null) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Did not add download to queue as it was already in the queue: " + download.toString());
+            }
+            return;
+        }
+
+        synchronized (journalLock) {
+            try {
+                appendToJournal(new JournalEntry(ADD, download.getUniqueId(), download));
+            } catch (Exception e) {
+                downloadsByRequest.remove(queued.requestKey, queued);
+                logger.error("Unable to store download details to persistent storage: ", e);
+                logger.error("Download could not be added to the queue: " + download.toString());
+                return;
+            }
+            downloads.put(download.getUniqueId(), queued);
+            orderedDownloads.put(queued.sequence, queued);
+        }
+        synchronized (pendingLock) {
+            addPending(queued);
+        }
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#getNextDownload()
+     */
+    @Override
+    public DownloadDetailsDTO getNextDownload() {
+        return getNextDownload(null, null);
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#getNextDownload(Integer maxRecords, au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType type)
+     */
+    @Override
+    public DownloadDetailsDTO getNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType type) {
+        return getNextDownload(maxRecords, type, null);
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#getNextDownload(Integer maxRecords, au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType type, Comparator priority)
+     */
+    @Override
+    public DownloadDetailsDTO getNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType type, Comparator<DownloadDetailsDTO> priority) {
+        afterInitialisation();
+        QueuedDownload next = null;
+        synchronized (pendingLock) {
+            int maxBucket = maxRecords == null ? RECORD_BUCKETS - 1 : getBucket(maxRecords);
+            for (Map.Entry<DownloadDetailsDTO.DownloadType, TreeMap<Long, QueuedDownload>[]> entry : pendingDownloads.entrySet()) {
+                if (type != null && !type.equals(entry.getKey())) {
+                    continue;
+                }
+                TreeMap<Long, QueuedDownload>[] buckets = entry.getValue();
+                for (int bucket = 0; bucket <= maxBucket; bucket++) {
+                    if (buckets[bucket] == null) {
+                        continue;
+                    }
+                    // only the downloads in the last bucket can have more than maxRecords
+                    for (QueuedDownload queued : buckets[bucket].values()) {
+                        if (priority == null && next != null && queued.sequence > next.sequence) {
+                            break;
+                        }
+                        if ((maxRecords == null || queued.download.getTotalRecords() <= maxRecords) &&
+                                (next == null || isBefore(queued, next, priority))) {
+                            next = queued;
+                            if (priority == null) {
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+            if (next != null) {
+                removePending(next);
+            }
+        }
+
+        if (next == null) {
+            //if we reached here all of the downloads have started or there are no downloads on the list
+            return null;
+        }
+
+        //give a place for the download
+        DownloadDetailsDTO dd = next.download;
+        UUID emailUUID = UUID.nameUUIDFromBytes(dd.getEmail().getBytes(StandardCharsets.UTF_8));
+        long startTime = dd.getStartTime();
+        DownloadRequestParams requestParams = dd.getRequestParams();
+        String file = requestParams.getFile();
+        dd.setFileLocation(biocacheDownloadDir + File.separator + emailUUID + File.separator + startTime + File.separator + file + ".zip");
+        return dd;
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#getTotalDownloads()
+     */
+    @Override
+    public int getTotalDownloads() {
+        afterInitialisation();
+        return downloads.size();
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#removeDownloadFromQueue(au.org.ala.biocache.dto.DownloadDetailsDTO)
+     */
+    @Override
+    public void removeDownloadFromQueue(DownloadDetailsDTO download) {
+        afterInitialisation();
+        logger.debug("Removing the download from the queue");
+        try {
+            QueuedDownload queued;
+            synchronized (journalLock) {
+                queued = downloads.remove(download.getUniqueId());
+                if (queued != null) {
+                    orderedDownloads.remove(queued.sequence);
+                    appendToJournal(new JournalEntry(REMOVE, download.getUniqueId(), null));
+                    journalRemovals++;
+                    if (journalRemovals >= journalCompactThreshold) {
+                        compactJournal();
+                    }
+                }
+            }
+            if (queued != null) {
+                downloadsByRequest.remove(queued.requestKey, queued);
+                synchronized (pendingLock) {
+                    removePending(queued);
+                }
+            }
+            FileUtils.deleteQuietly(getCheckpointDirectory(download));
+        } catch (IOException e) {
+            logger.error("Unable to remove download details from persistent storage: " + download.toString(), e);
+        } finally {
+            download.interrupt();
+        }
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#getCheckpointDirectory(au.org.ala.biocache.dto.DownloadDetailsDTO)
+     */
+    @Override
+    public File getCheckpointDirectory(DownloadDetailsDTO download) {
+        return new File(cacheDirectory + File.separator + FILE_PREFIX + download.getStartTime() + ".checkpoint");
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#getAllDownloads()
+     */
+    @Override
+    public List<DownloadDetailsDTO> getAllDownloads() {
+        afterInitialisation();
+        List<DownloadDetailsDTO> result = new ArrayList<>(orderedDownloads.size());
+        for (QueuedDownload queued : orderedDownloads.values()) {
+            result.add(queued.download);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#refreshFromPersistent()
+     */
+    @Override
+    public void refreshFromPersistent() {
+        if (closed.get()) {
+            // Add a stack trace to the error message to enable debugging of when refresh is called while we are closed
+            logger.error("Could not refresh from persistent storage because the queue has been closed", new Throwable());
+            return;
+        }
+
+        synchronized (journalLock) {
+            synchronized (pendingLock) {
+                downloads.clear();
+                orderedDownloads.clear();
+                downloadsByRequest.clear();
+                pendingDownloads.clear();
+
+                Map<String, DownloadDetailsDTO> loaded = new LinkedHashMap<>();
+                List<File> legacyFiles = loadLegacyFiles(loaded);
+                loadJournal(loaded);
+
+                for (DownloadDetailsDTO dd : loaded.values()) {
+                    // Ensure that previously partially downloaded files get their downloads
+                    // reattempted by making them available for download again and removing
+                    // any partial files that already exist for it
+                    String previousFileLocation = dd.getFileLocation();
+                    dd.setFileLocation(null);
+                    if (previousFileLocation != null) {
+                        FileUtils.deleteQuietly(new File(previousFileLocation));
+                    }
+                    QueuedDownload queued = new QueuedDownload(nextSequence.incrementAndGet(), dd);
+                    downloads.put(dd.getUniqueId(), queued);
+                    orderedDownloads.put(queued.sequence, queued);
+                    downloadsByRequest.putIfAbsent(queued.requestKey, queued);
+                    addPending(queued);
+                }
+
+                try {
+                    compactJournal();
+                    // the legacy downloads are in the journal
+                    for (File f : legacyFiles) {
+                        FileUtils.deleteQuietly(f);
+                    }
+                } catch (IOException e) {
+                    logger.error("Unable to compact the download queue journal", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#isInQueue(au.org.ala.biocache.dto.DownloadDetailsDTO dd)
+     */
+    @Override
+    public DownloadDetailsDTO isInQueue(DownloadDetailsDTO dd) {
+        afterInitialisation();
+        QueuedDownload queued = downloadsByRequest.get(getRequestKey(dd));
+        return queued != null ? queued.download : null;
+    }
+
+    @Override
+    public void shutdown() {
+        closed.set(true);
+    }
+
+    /**
+     * Identifies the downloads with the same email and download params, ignoring case.
+     */
+    private static String getRequestKey(DownloadDetailsDTO dd) {
+        String email = dd.getEmail() != null ? dd.getEmail().toLowerCase(Locale.ROOT) : "";
+        String params = dd.getDownloadParams() != null ? dd.getDownloadParams().toLowerCase(Locale.ROOT) : "";
+        return email + "\n" + params;
+    }
+
+    private static boolean isBefore(QueuedDownload queued, QueuedDownload other, Comparator<DownloadDetailsDTO> priority) {
+        int order = priority != null ? priority.compare(queued.download, other.download) : 0;
+        return order < 0 || (order == 0 && queued.sequence < other.sequence);
+    }
+
+    private static int getBucket(long records) {
+        return records <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(records);
+    }
+
+    /**
+     * Must be called while holding the pendingLock.
+     */
+    private void addPending(QueuedDownload queued) {
+        TreeMap<Long, QueuedDownload>[] buckets = pendingDownloads.get(queued.download.getDownloadType());
+        if (buckets == null) {
+            buckets = new TreeMap[RECORD_BUCKETS];
+            pendingDownloads.put(queued.download.getDownloadType(), buckets);
+        }
+        int bucket = getBucket(queued.download.getTotalRecords());
+        if (buckets[bucket] == null) {
+            buckets[bucket] = new TreeMap<>();
+        }
+        buckets[bucket].put(queued.sequence, queued);
+        queued.pending = true;
+    }
+
+    /**
+     * Must be called while holding the pendingLock.
+     */
+    private void removePending(QueuedDownload queued) {
+        if (queued.pending) {
+            queued.pending = false;
+            TreeMap<Long, QueuedDownload>[] buckets = pendingDownloads.get(queued.download.getDownloadType());
+            for (int bucket = 0; buckets != null && bucket < RECORD_BUCKETS; bucket++) {
+                if (buckets[bucket] != null && buckets[bucket].remove(queued.sequence) != null) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the downloads stored as a JSON file each, ordering by the least recently modified.
+     *
+     * @return the files that were loaded
+     */
+    private List<File> loadLegacyFiles(Map<String, DownloadDetailsDTO> loaded) {
+        List<File> legacyFiles = new ArrayList<>();
+        File[] files = new File(cacheDirectory).listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File o1, File o2) {
+                    return Long.compare(o1.lastModified(), o2.lastModified());
+                }
+            });
+            for (File f : files) {
+                if (f.isFile() && f.getName().startsWith(FILE_PREFIX) && f.getName().endsWith(".json")) {
+                    try {
+                        DownloadDetailsDTO dd = jsonMapper.readValue(f, DownloadDetailsDTO.class);
+                        loaded.put(dd.getUniqueId(), dd);
+                        legacyFiles.add(f);
+                    } catch (Exception e) {
+                        logger.error("Unable to load cached download " + f.getAbsolutePath(), e);
+                    }
+                }
+            }
+        }
+        return legacyFiles;
+    }
+
+    /**
+     * Replay the journal.
+     */
+    private void loadJournal(Map<String, DownloadDetailsDTO> loaded) {
+        File file = new File(cacheDirectory, JOURNAL_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    JournalEntry entry = jsonMapper.readValue(line, JournalEntry.class);
+                    if (ADD.equals(entry.getAction()) && entry.getDownload() != null) {
+                        loaded.put(entry.getId(), entry.getDownload());
+                    } else if (REMOVE.equals(entry.getAction())) {
+                        loaded.remove(entry.getId());
+                    }
+                } catch (IOException e) {
+                    // the last entry is incomplete when the service stopped while it was appended
+                    logger.warn("Unable to read line " + lineNumber + " of the download queue journal " + file.getAbsolutePath(), e);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Unable to read the download queue journal " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Must be called while holding the journalLock.
+     */
+    private void appendToJournal(JournalEntry entry) throws IOException {
+        if (journal == null) {
+            journalOut = new FileOutputStream(new File(cacheDirectory, JOURNAL_FILE), true);
+            journal = new BufferedWriter(new OutputStreamWriter(journalOut, StandardCharsets.UTF_8));
+        }
+        journal.write(jsonMapper.writeValueAsString(entry));
+        journal.write('\n');
+        journal.flush();
+        // the entry is on the disk before the queue changes
+        journalOut.getFD().sync();
+    }
+
+    /**
+     * Rewrite the journal with only the queued downloads. Must be called while holding the journalLock.
+     */
+    private void compactJournal() throws IOException {
+        File file = new File(cacheDirectory, JOURNAL_FILE);
+        File tmp = new File(cacheDirectory, JOURNAL_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            for (QueuedDownload queued : orderedDownloads.values()) {
+                writer.write(jsonMapper.writeValueAsString(new JournalEntry(ADD, queued.download.getUniqueId(), queued.download)));
+                writer.write('\n');
+            }
+            writer.flush();
+            // the compacted journal is on the disk before it replaces the journal
+            out.getFD().sync();
+        }
+        if (journal != null) {
+            journal.close();
+            journal = null;
+            journalOut = null;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journalRemovals = 0;
+    }
+}
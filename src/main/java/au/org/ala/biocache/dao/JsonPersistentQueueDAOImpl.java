@@ -21,7 +21,6 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import java.io.File;
@@ -34,10 +33,12 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A queue that stores the Downloads as JSON files in the supplied directory
+ *
+ * Used as the persistentQueueDao unless download.queue.journal.enabled is true, when it is replaced by
+ * {@link JournalPersistentQueueDAOImpl}, which loads the JSON files left by this queue.
  * 
  * @author Natasha Carter (natasha.carter@csiro.au)
  */
-@Component("persistentQueueDao")
 public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
 	
     /** log4 j logger */
@@ -189,21 +190,37 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
      */
     @Override
     public DownloadDetailsDTO getNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType type) {
+        return getNextDownload(maxRecords, type, null);
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#getNextDownload(Integer maxRecords, au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType type, Comparator priority)
+     */
+    @Override
+    public DownloadDetailsDTO getNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType type, Comparator<DownloadDetailsDTO> priority) {
         afterInitialisation();
         synchronized (listLock) {
+            DownloadDetailsDTO next = null;
             for (DownloadDetailsDTO dd : offlineDownloadList) {
                 if (dd.getFileLocation() == null &&
                         (maxRecords == null || dd.getTotalRecords() <= maxRecords) &&
-                        (type == null || dd.getDownloadType().equals(type))) {
-                    //give a place for the downlaod
-                    UUID emailUUID = UUID.nameUUIDFromBytes(dd.getEmail().getBytes(StandardCharsets.UTF_8));
-                    long startTime = dd.getStartTime();
-                    DownloadRequestParams requestParams = dd.getRequestParams();
-                    String file = requestParams.getFile();
-                    dd.setFileLocation(biocacheDownloadDir + File.separator + emailUUID + File.separator + startTime + File.separator + file + ".zip");
-                    return dd;
+                        (type == null || dd.getDownloadType().equals(type)) &&
+                        (next == null || priority.compare(dd, next) < 0)) {
+                    next = dd;
+                    if (priority == null) {
+                        break;
+                    }
                 }
             }
+            if (next != null) {
+                //give a place for the downlaod
+                UUID emailUUID = UUID.nameUUIDFromBytes(next.getEmail().getBytes(StandardCharsets.UTF_8));
+                long startTime = next.getStartTime();
+                DownloadRequestParams requestParams = next.getRequestParams();
+                String file = requestParams.getFile();
+                next.setFileLocation(biocacheDownloadDir + File.separator + emailUUID + File.separator + startTime + File.separator + file + ".zip");
+                return next;
+            }
         }
 
         //if we reached here all of the downloads have started or there are no downloads on the list
@@ -236,15 +253,24 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
                     logger.info("Deleting " + f.getAbsolutePath() + " " + f.exists());
                 }
                 FileUtils.deleteQuietly(f);
+                FileUtils.deleteQuietly(getCheckpointDirectory(download));
             }
             finally {
                 offlineDownloadList.remove(download);
-                download.getInterrupt().set(true);
+                download.interrupt();
             }
         }
         
     }
     
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#getCheckpointDirectory(au.org.ala.biocache.dto.DownloadDetailsDTO)
+     */
+    @Override
+    public File getCheckpointDirectory(DownloadDetailsDTO download) {
+        return new File(cacheDirectory + File.separator + FILE_PREFIX + download.getStartTime() + ".checkpoint");
+    }
+
     /**
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#getAllDownloads()
      */
@@ -311,7 +337,7 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
         afterInitialisation();
         synchronized (listLock) {
             for (DownloadDetailsDTO d : offlineDownloadList) {
-                if (d.getEmail().equalsIgnoreCase(d.getEmail()) &&
+                if (d.getEmail() != null && d.getEmail().equalsIgnoreCase(dd.getEmail()) &&
                         d.getDownloadParams().equalsIgnoreCase(dd.getDownloadParams())) {
                     return d;
                 }
@@ -1,5 +1,7 @@
 package au.org.ala.biocache.dao;
 
+import java.io.File;
+import java.util.Comparator;
 import java.util.List;
 
 import au.org.ala.biocache.dto.DownloadDetailsDTO;
@@ -38,6 +40,21 @@ public interface PersistentQueueDAO {
      */
     DownloadDetailsDTO getNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType type);
 
+    /**
+     * Limited by the optional maxRecords and type, return the first offline download from the queue in the order of
+     * the priority, and in the order in which they were requested for downloads of equal priority. Leaving it on the
+     * queue until a remove is called.<br>
+     * A non-null returned download will contain a non-null {@link DownloadDetailsDTO#getFileLocation()}.
+     *
+     * @param maxRecords An {@link Integer} specifying the maximum records in a download
+     *                   to have it selected, or null to ignore the number of records in a download
+     * @param type A {@link DownloadDetailsDTO.DownloadType} to specify a particular type of download, or null to ignore
+     * @param priority A {@link Comparator} that orders the downloads that run first, or null to order the downloads
+     *                 in the order in which they were requested
+     * @return A {@link DownloadDetailsDTO} or null if no downloads matched the criteria.
+     */
+    DownloadDetailsDTO getNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType type, Comparator<DownloadDetailsDTO> priority);
+
     /**
      * Gets the total number of downloads that are on the queue
      * @return The number of downloads that are currently in the queue
@@ -69,6 +86,15 @@ public interface PersistentQueueDAO {
      */
     DownloadDetailsDTO isInQueue(DownloadDetailsDTO dd);
     
+    /**
+     * Gets the directory used to checkpoint the progress of a download, so that the download can resume
+     * after a restart. The directory is deleted when the download is removed from the queue.
+     *
+     * @param download The download
+     * @return The checkpoint directory of the download
+     */
+    File getCheckpointDirectory(DownloadDetailsDTO download);
+
     /**
      * Initialises the queue before use, to allow it to setup in-memory caches and start paused downloads.
      */
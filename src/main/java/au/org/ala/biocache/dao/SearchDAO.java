@@ -212,6 +212,17 @@ public interface SearchDAO {
      */
     FacetField getFacetPointsShort(SpatialSearchRequestParams searchParams, String pointType) throws Exception;
 
+    /**
+     * Get the points of each of a list of filter queries, such as the fqs of legend items, with one query.
+     *
+     * @param searchParams the query
+     * @param pointType    the point field
+     * @param fqs          the filter queries
+     * @return the points of each filter query, in the order of the filter queries
+     * @throws Exception
+     */
+    List<FacetField> getFacetPointsShort(SpatialSearchRequestParams searchParams, String pointType, List<String> fqs) throws Exception;
+
     /**
      * Retrieve a list of occurrence uid's for a given search
      *
@@ -24,9 +24,11 @@ import au.org.ala.biocache.service.*;
 import au.org.ala.biocache.stream.OptionalZipOutputStream;
 import au.org.ala.biocache.util.*;
 import au.org.ala.biocache.util.thread.EndemicCallable;
+import au.org.ala.biocache.util.thread.SplitCompletion;
 import au.org.ala.biocache.vocab.ErrorCode;
 import au.org.ala.biocache.writer.*;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.googlecode.ehcache.annotations.Cacheable;
 import org.apache.commons.io.output.ByteArrayOutputStream;
@@ -283,10 +285,57 @@ public class SearchDAOImpl implements SearchDAO {
     protected Long writerTimeoutWaitMillis = 60000L;
 
     /**
-     * The time (ms) to wait between checking if interrupts have occurred or all of the download tasks have completed.
+     * The number of record encoders shared by the split queries of a CSV or TSV index download.
+     * When greater than 0 the split queries encode records into byte chunks and the single writer thread
+     * only appends finished chunks to the output. When 0 each record is passed to the writer thread to be encoded.
      */
-    @Value("${solr.downloadquery.busywaitsleep:100}")
-    protected Long downloadCheckBusyWaitSleep = 100L;
+    @Value("${download.pipeline.encoders:0}")
+    protected Integer pipelineEncoders = 0;
+
+    /**
+     * The size (bytes) at which an encoded record chunk is passed to the writer thread when download.pipeline.encoders is greater than 0.
+     */
+    @Value("${download.pipeline.chunk.bytes:262144}")
+    protected Integer pipelineChunkBytes = 262144;
+
+    /**
+     * The number of records that the split queries of an index download are planned to page through.
+     * Splits by month that are larger are refined by year, lft ranges and id. When 0 there is one split for each month.
+     */
+    @Value("${download.split.target.rows:0}")
+    protected Long downloadSplitTargetRows = 0L;
+
+    /**
+     * The maximum number of split queries planned for an index download.
+     */
+    @Value("${download.split.max:256}")
+    protected Integer downloadSplitMax = 256;
+
+    /**
+     * The number of tasks that each index download submits to run its split queries. Each task takes the largest remaining
+     * split until there are none left.
+     */
+    @Value("${download.split.workers:12}")
+    protected Integer downloadSplitWorkers = 12;
+
+    /**
+     * The minimum time in milliseconds between saves of the checkpoint of an offline index download.
+     */
+    @Value("${download.checkpoint.interval:60000}")
+    protected Long downloadCheckpointInterval = 60000L;
+
+    /**
+     * The number of pages of a cassandra download that are read ahead of the page being written. When 0 each page is
+     * read and written in turn.
+     */
+    @Value("${download.cassandra.readahead:2}")
+    protected Integer cassandraReadAhead = 2;
+
+    /**
+     * Max number of threads shared by all cassandra downloads to read pages ahead.
+     */
+    @Value("${download.cassandra.readahead.threads:8}")
+    protected Integer cassandraReadAheadThreads = 8;
 
     /**
      * thread pool for multipart endemic queries
@@ -298,6 +347,11 @@ public class SearchDAOImpl implements SearchDAO {
      */
     private volatile ExecutorService solrOnlineExecutor = null;
 
+    /**
+     * thread pool for reading the pages of cassandra downloads ahead of the page being written
+     */
+    private volatile ExecutorService cassandraReadAheadExecutor = null;
+
     /**
      * should we check download limits
      */
@@ -354,6 +408,26 @@ public class SearchDAOImpl implements SearchDAO {
     @Value("${layers.service.url:https://spatial.ala.org.au/ws}")
     protected String layersServiceUrl;
 
+    /**
+     * Maximum number of analysis layer values cached by layer and rounded coordinate for downloads
+     */
+    @Value("${layers.sampling.cache.size:200000}")
+    protected long layerSamplingCacheSize = 200000;
+
+    /**
+     * Decimal places that coordinates are rounded to when sampling and caching analysis layer values
+     */
+    @Value("${layers.sampling.cache.precision:5}")
+    protected int layerSamplingPrecision = 5;
+
+    /**
+     * Maximum number of idle layers service clients kept for sampling
+     */
+    @Value("${layers.sampling.pool.size:8}")
+    protected int layerSamplingPoolSize = 8;
+
+    private volatile LayerSampler layerSampler;
+
     @Value("${solr.collection:biocache1}")
     protected String solrCollection;
 
@@ -383,6 +457,13 @@ public class SearchDAOImpl implements SearchDAO {
 
     @PreDestroy
     public void destroy() throws Exception {
+        // stop reading ahead before the Cassandra connection is closed
+        synchronized (this) {
+            if (cassandraReadAheadExecutor != null) {
+                cassandraReadAheadExecutor.shutdownNow();
+            }
+        }
+
         // close SOLR connection
         solrClient.close();
 
@@ -500,6 +581,25 @@ public class SearchDAOImpl implements SearchDAO {
         return nextExecutor;
     }
 
+    /**
+     * @return An instance of ExecutorService used to read the pages of cassandra downloads ahead of the page being written.
+     */
+    private ExecutorService getCassandraReadAheadExecutor() {
+        ExecutorService nextExecutor = cassandraReadAheadExecutor;
+        if (nextExecutor == null) {
+            synchronized (this) {
+                nextExecutor = cassandraReadAheadExecutor;
+                if (nextExecutor == null) {
+                    nextExecutor = cassandraReadAheadExecutor = Executors.newFixedThreadPool(
+                            Math.max(1, cassandraReadAheadThreads),
+                            new ThreadFactoryBuilder().setNameFormat("biocache-cassandra-readahead-%d")
+                                    .setDaemon(true).build());
+                }
+            }
+        }
+        return nextExecutor;
+    }
+
     /**
      * @return An instance of ExecutorService used to concurrently execute multiple solr queries for online downloads.
      */
@@ -1138,15 +1238,17 @@ public class SearchDAOImpl implements SearchDAO {
                 }
             }
 
-            //get the month facets to add them to the download fields get the assertion facets.
-            List<Count> splitByFacet = null;
+            //get the month facets to plan the split queries and get the assertion facets to add them to the download fields.
+            Map<String, Long> splitByFacet = new LinkedHashMap<String, Long>();
 
             for (FacetField facet : facetQuery.getFacetFields()) {
                 if (facet.getName().equals("assertions") && facet.getValueCount() > 0) {
                     qasb.append(getQAFromFacet(facet));
                 }
                 if (facet.getName().equals("month") && facet.getValueCount() > 0) {
-                    splitByFacet = facet.getValues();
+                    for (Count count : facet.getValues()) {
+                        splitByFacet.put(count.getName(), count.getCount());
+                    }
                 }
             }
 
@@ -1216,6 +1318,18 @@ public class SearchDAOImpl implements SearchDAO {
             // Doing this via this variable
             final AtomicBoolean interruptFound = dd != null ? dd.getInterrupt() : new AtomicBoolean(false);
 
+            // When enabled, records are encoded into chunks by the split query threads instead of by the writer thread
+            final RecordChunkPipeline pipeline = pipelineEncoders > 0 && RecordChunkPipeline.supports(downloadParams.getFileType()) ?
+                    new RecordChunkPipeline(rw, out, header, downloadParams.getFileType(), downloadParams.getSep(), downloadParams.getEsc(),
+                            pipelineEncoders, pipelineChunkBytes, resultsQueueLength, interruptFound, writerTimeoutWaitMillis) : null;
+
+            // Live throughput metrics, reported with the download status
+            final DownloadMetricsDTO metrics = dd != null ? dd.getMetrics() : new DownloadMetricsDTO();
+            metrics.setQueueCapacity(resultsQueueLength);
+            if (pipeline != null) {
+                pipeline.setMetrics(metrics);
+            }
+
             // Create a fixed length blocking queue for buffering results before they are written
             // This also creates a push-back effect to throttle the results generating threads
             // when it fills and offers to it are delayed until the writer consumes elements from the queue
@@ -1234,10 +1348,18 @@ public class SearchDAOImpl implements SearchDAO {
                             finalise();
                             return;
                         }
-                        while (!queue.offer(nextLine, writerTimeoutWaitMillis, TimeUnit.MILLISECONDS)) {
-                            if (Thread.currentThread().isInterrupted() || interruptFound.get() || finalised.get()) {
-                                finalise();
-                                break;
+                        if (!queue.offer(nextLine)) {
+                            // Time spent waiting here is time that the writer is the bottleneck
+                            long stallStart = System.nanoTime();
+                            try {
+                                while (!queue.offer(nextLine, writerTimeoutWaitMillis, TimeUnit.MILLISECONDS)) {
+                                    if (Thread.currentThread().isInterrupted() || interruptFound.get() || finalised.get()) {
+                                        finalise();
+                                        break;
+                                    }
+                                }
+                            } finally {
+                                metrics.addWriterStallNanos(System.nanoTime() - stallStart);
                             }
                         }
                     } catch (InterruptedException e) {
@@ -1292,28 +1414,35 @@ public class SearchDAOImpl implements SearchDAO {
             Runnable writerRunnable = new Runnable() {
                 @Override
                 public void run() {
+                    long counter = 0;
                     try {
-                        long counter = 0;
                         while (true) {
-                            counter = counter + 1;
-
                             if (Thread.currentThread().isInterrupted() || interruptFound.get()) {
                                 break;
                             }
 
-                            String[] take = queue.take();
+                            String[] take = queue.poll();
+                            if (take == null) {
+                                // Time spent waiting here is time that the queries are the bottleneck
+                                long idleStart = System.nanoTime();
+                                take = queue.take();
+                                metrics.addWriterIdleNanos(System.nanoTime() - idleStart);
+                            }
                             // Sentinel object equality check to see if we are done
                             if (take == sentinel || Thread.currentThread().isInterrupted() || interruptFound.get()) {
                                 break;
                             }
                             // Otherwise write to the wrapped record writer
                             rw.write(take);
+                            counter = counter + 1;
 
-                            //test for errors. This can contain a flush so only test occasionally
-                            if (counter % resultsQueueLength == 0 && rw.hasError()) {
-                                throw RecordWriterException.newRecordWriterException(dd, downloadParams, true, rw);
+                            //test for errors and update metrics. This can contain a flush so only test occasionally
+                            if (counter % resultsQueueLength == 0) {
+                                updateWriterMetrics(metrics, counter, queue.size(), out);
+                                if (rw.hasError()) {
+                                    throw RecordWriterException.newRecordWriterException(dd, downloadParams, true, rw);
+                                }
                             }
-
                         }
                     } catch (RecordWriterException e) {
                         //no trace information is available to print for these errors
@@ -1327,11 +1456,34 @@ public class SearchDAOImpl implements SearchDAO {
                         interruptFound.set(true);
                         logger.error("Download writer failed.", e);
                     } finally {
-                        rw.finalise();
+                        try {
+                            rw.finalise();
+                        } finally {
+                            updateWriterMetrics(metrics, counter, queue.size(), out);
+                        }
                     }
                 }
             };
-            Thread writerThread = new Thread(writerRunnable);
+
+            // Completion of all of the split queries is signalled here. It is released early when the
+            // download is interrupted so that the remaining queries can be cancelled without polling.
+            final SplitCompletion splitsComplete = new SplitCompletion();
+            splitsComplete.attach(dd);
+
+            final Runnable writer = pipeline != null ? pipeline : writerRunnable;
+            Thread writerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writer.run();
+                    } finally {
+                        // A writer failure interrupts the download
+                        if (interruptFound.get()) {
+                            splitsComplete.release();
+                        }
+                    }
+                }
+            });
 
             try {
                 rw.initialise();
@@ -1340,27 +1492,34 @@ public class SearchDAOImpl implements SearchDAO {
                     dd.setHeaderMap(((ShapeFileRecordWriter) rw).getHeaderMappings());
                 }
 
-                //for each month create a separate query that pages through 500 records per page
-                List<SolrQuery> queries = new ArrayList<SolrQuery>();
-                if (splitByFacet != null) {
-                    for (Count facet : splitByFacet) {
-                        if (facet.getCount() > 0) {
-                            SolrQuery splitByFacetQuery;
-                            //do not add remainderQuery here
-                            if (facet.getName() != null) {
-                                splitByFacetQuery = solrQuery.getCopy().addFilterQuery(facet.getFacetField().getName() + ":" + facet.getName());
-                                splitByFacetQuery.setFacet(false);
-                                queries.add(splitByFacetQuery);
-                            }
-
-                        }
+                // offline downloads keep their progress in a checkpoint so that they can resume after a restart
+                final DownloadCheckpoint checkpoint = dd.getCheckpointDirectory() != null ?
+                        DownloadCheckpoint.open(new File(dd.getCheckpointDirectory()),
+                                getCheckpointKey(solrQuery, downloadParams.getFormattedFq(), dd.getSensitiveFq(), includeSensitive, header),
+                                downloadCheckpointInterval) : null;
+
+                //plan the split queries from the month facet, each split pages through download.batch.size records per page.
+                //a resumed download uses the same splits as before
+                List<List<String>> plan = checkpoint != null ? checkpoint.getPlan() : null;
+                if (plan == null) {
+                    DownloadSplitPlanner planner = new DownloadSplitPlanner(getDownloadSplitCounts(solrQuery, downloadParams.getFormattedFq()),
+                            downloadSplitTargetRows, downloadSplitMax);
+                    plan = new ArrayList<List<String>>();
+                    for (DownloadSplitPlanner.Split split : planner.plan("month", splitByFacet, dd.getTotalRecords())) {
+                        plan.add(split.getFilterQueries());
                     }
-                    if (splitByFacet.size() > 0) {
-                        SolrQuery remainderQuery = solrQuery.getCopy().addFilterQuery("-" + splitByFacet.get(0).getFacetField().getName() + ":[* TO *]");
-                        queries.add(0, remainderQuery);
+                    if (checkpoint != null) {
+                        checkpoint.setPlan(plan);
                     }
-                } else {
-                    queries.add(0, solrQuery);
+                }
+                final List<SolrQuery> queries = new ArrayList<SolrQuery>();
+                for (List<String> splitFqs : plan) {
+                    SolrQuery splitQuery = solrQuery.getCopy();
+                    for (String fq : splitFqs) {
+                        splitQuery.addFilterQuery(fq);
+                    }
+                    splitQuery.setFacet(false);
+                    queries.add(splitQuery);
                 }
 
                 //split into sensitive and non-sensitive queries when
@@ -1374,14 +1533,40 @@ public class SearchDAOImpl implements SearchDAO {
                 final AtomicInteger resultsCount = new AtomicInteger(0);
                 final boolean threadCheckLimit = checkLimit;
                 final ArrayList<String> miscFields = new ArrayList<String>(0);
+                if (checkpoint != null) {
+                    checkpoint.setSplits(queries.size());
+                    miscFields.addAll(checkpoint.getMiscFields());
+                }
 
-                List<Callable<Integer>> solrCallables = new ArrayList<>(queries.size());
-                // execute each query, writing the results to stream
-                for (final SolrQuery splitByFacetQuery : queries) {
+                // The splits are taken, largest first, by a limited number of workers, so a worker that finishes
+                // early takes the next remaining split instead of waiting behind the largest split
+                final Queue<Integer> pendingSplits = new ConcurrentLinkedQueue<Integer>();
+                for (int i = 0; i < queries.size(); i++) {
+                    pendingSplits.add(i);
+                }
+                int workers = Math.min(queries.size(), Math.max(1, downloadSplitWorkers));
+                List<Callable<Integer>> solrCallables = new ArrayList<>(workers);
+                for (int i = 0; i < workers; i++) {
                     // define a thread
                     Callable<Integer> solrCallable = new Callable<Integer>() {
                         @Override
                         public Integer call() throws Exception {
+                            try {
+                                int records = 0;
+                                Integer splitIndex;
+                                while (!interruptFound.get() && (splitIndex = pendingSplits.poll()) != null) {
+                                    records += runSplit(splitIndex);
+                                }
+                                return records;
+                            } finally {
+                                splitsComplete.taskComplete();
+                            }
+                        }
+
+                        private Integer runSplit(int splitIndex) throws Exception {
+                            final SolrQuery splitByFacetQuery = queries.get(splitIndex);
+                            final String splitLabel = splitByFacetQuery.getFilterQueries() != null && splitByFacetQuery.getFilterQueries().length > 0 ?
+                                    StringUtils.join(splitByFacetQuery.getFilterQueries(), " AND ") : "*:*";
                             int startIndex = 0;
                             // Randomise the wakeup time so they don't all wakeup on a periodic cycle
                             long localThrottle = throttle + Math.round(Math.random() * throttle);
@@ -1394,78 +1579,127 @@ public class SearchDAOImpl implements SearchDAO {
                                 fq = org.apache.commons.lang3.ArrayUtils.addAll(fq, splitByFacetQuery.getFilterQueries());
                             }
 
+                            // sensitive splits are identified before the filter queries are changed
+                            boolean sensitiveSplit = sensitiveQ.contains(splitByFacetQuery);
                             splitByFacetQuery.setFilterQueries(fq);
 
-                            QueryResponse qr = runSolrQueryWithCursorMark(splitByFacetQuery, downloadBatchSize, null);
-                            AtomicInteger recordsForThread = new AtomicInteger(0);
-                            if (logger.isDebugEnabled()) {
-                                logger.debug(splitByFacetQuery.getQuery() + " - results: " + qr.getResults().size());
+                            // the records of a checkpointed split are spooled until the split is complete
+                            DownloadCheckpoint.SplitState saved = null;
+                            RecordSpool spool = null;
+                            ConcurrentMap<String, AtomicInteger> splitStats = uidStats;
+                            int spooledRecords = 0;
+                            if (checkpoint != null) {
+                                saved = checkpoint.getSplit(splitIndex);
+                                if (saved.getRecords() > 0) {
+                                    resultsCount.addAndGet(saved.getRecords());
+                                    dd.updateCounts(saved.getRecords());
+                                }
+                                if (saved.isComplete()) {
+                                    return writeSpool(splitIndex);
+                                }
+                                spool = checkpoint.openSpool(splitIndex);
+                                splitStats = checkpoint.getUidStats(splitIndex);
+                                spooledRecords = saved.getRecords();
                             }
 
-                            while (qr != null && !qr.getResults().isEmpty() && !interruptFound.get()) {
+                            try {
+                                QueryResponse qr = runSplitQueryWithCursorMark(splitByFacetQuery, saved != null ? saved.getCursorMark() : null, splitLabel, metrics);
+                                AtomicInteger recordsForThread = new AtomicInteger(0);
                                 if (logger.isDebugEnabled()) {
-                                    logger.debug("Start index: " + startIndex + ", " + splitByFacetQuery.getQuery());
-                                }
-                                int count = 0;
-                                if (sensitiveQ.contains(splitByFacetQuery)) {
-                                    count = processQueryResults(uidStats, sensitiveFields, qaFields, concurrentWrapper, qr, dd, threadCheckLimit, resultsCount, maxDownloadSize, analysisFields, speciesListFields, miscFields, true);
-                                } else {
-                                    // write non-sensitive values into sensitive fields when not authorised for their sensitive values
-                                    count = processQueryResults(uidStats, notSensitiveFields, qaFields, concurrentWrapper, qr, dd, threadCheckLimit, resultsCount, maxDownloadSize, analysisFields, speciesListFields, miscFields, false);
+                                    logger.debug(splitByFacetQuery.getQuery() + " - results: " + qr.getResults().size());
                                 }
-                                recordsForThread.addAndGet(count);
-                                // we have already set the Filter query the first time the query was constructed
-                                // rerun with the same params but different startIndex
-                                if (!threadCheckLimit || resultsCount.get() < maxDownloadSize) {
-                                    if (!threadCheckLimit) {
-                                        // throttle the download by sleeping
-                                        Thread.sleep(localThrottle);
+
+                                while (qr != null && !qr.getResults().isEmpty() && !interruptFound.get()) {
+                                    if (logger.isDebugEnabled()) {
+                                        logger.debug("Start index: " + startIndex + ", " + splitByFacetQuery.getQuery());
                                     }
-                                    qr = runSolrQueryWithCursorMark(splitByFacetQuery, downloadBatchSize, qr.getNextCursorMark());
-                                } else {
-                                    qr = null;
+                                    int count = 0;
+                                    RecordWriter pageWriter = spool != null ? spool : pipeline != null ? pipeline.borrowEncoder() : concurrentWrapper;
+                                    try {
+                                        if (sensitiveSplit) {
+                                            count = processQueryResults(splitStats, sensitiveFields, qaFields, pageWriter, qr, dd, threadCheckLimit, resultsCount, maxDownloadSize, analysisFields, speciesListFields, miscFields, true);
+                                        } else {
+                                            // write non-sensitive values into sensitive fields when not authorised for their sensitive values
+                                            count = processQueryResults(splitStats, notSensitiveFields, qaFields, pageWriter, qr, dd, threadCheckLimit, resultsCount, maxDownloadSize, analysisFields, speciesListFields, miscFields, false);
+                                        }
+                                    } finally {
+                                        if (pipeline != null && pageWriter != spool) {
+                                            pipeline.releaseEncoder((RecordChunkEncoder) pageWriter);
+                                        }
+                                    }
+                                    recordsForThread.addAndGet(count);
+                                    if (spool != null) {
+                                        spool.flush();
+                                        spooledRecords += count;
+                                        checkpoint.page(splitIndex, qr.getNextCursorMark(), spool, spooledRecords, splitStats, miscFields);
+                                    }
+                                    // we have already set the Filter query the first time the query was constructed
+                                    // rerun with the same params but different startIndex
+                                    if (!threadCheckLimit || resultsCount.get() < maxDownloadSize) {
+                                        if (!threadCheckLimit) {
+                                            // throttle the download by sleeping
+                                            Thread.sleep(localThrottle);
+                                        }
+                                        qr = runSplitQueryWithCursorMark(splitByFacetQuery, qr.getNextCursorMark(), splitLabel, metrics);
+                                    } else {
+                                        qr = null;
+                                    }
+                                }
+
+                                if (spool == null) {
+                                    return recordsForThread.get();
+                                }
+                                spool.close();
+                                if (interruptFound.get()) {
+                                    return 0;
+                                }
+                                checkpoint.complete(splitIndex);
+                                return writeSpool(splitIndex);
+                            } finally {
+                                if (spool != null) {
+                                    spool.close();
                                 }
                             }
-                            return recordsForThread.get();
+                        }
+
+                        /**
+                         * Write the records and counts of a complete split from its spool to the download.
+                         */
+                        private Integer writeSpool(int splitIndex) throws Exception {
+                            RecordWriter spoolWriter = pipeline != null ? pipeline.borrowEncoder() : concurrentWrapper;
+                            long records;
+                            try {
+                                records = checkpoint.replay(splitIndex, spoolWriter, interruptFound);
+                            } finally {
+                                if (pipeline != null) {
+                                    pipeline.releaseEncoder((RecordChunkEncoder) spoolWriter);
+                                }
+                            }
+                            addCounts(uidStats, checkpoint.getUidStats(splitIndex));
+                            return (int) records;
                         }
                     };
                     solrCallables.add(solrCallable);
                 }
 
+                splitsComplete.start(solrCallables.size());
                 List<Future<Integer>> futures = new ArrayList<>(solrCallables.size());
                 for (Callable<Integer> nextCallable : solrCallables) {
                     futures.add(nextExecutor.submit(nextCallable));
                 }
 
-                // Busy wait because we need to be able to respond to an interrupt on any callable
-                // and propagate it to all of the others for this particular query
-                // Because the executor service is shared to prevent too many concurrent threads being run,
-                // this requires a busy wait loop on the main thread to monitor state
-                boolean waitAgain = false;
-                do {
-                    waitAgain = false;
+                // Wait for the last split to signal completion. The latch is released early by an interrupt
+                // on this download, which is then propagated to all of the other splits for this particular query
+                long remainingTime = downloadMaxTime - (System.currentTimeMillis() - start);
+                if (!splitsComplete.await(remainingTime)) {
+                    logger.error("Download max time was exceeded: downloadMaxTime=" + downloadMaxTime + " duration=" + (System.currentTimeMillis() - start));
+                    interruptFound.set(true);
+                }
+                if (interruptFound.get()) {
                     for (Future<Integer> future : futures) {
-                        if (!future.isDone()) {
-                            // Wait again even if an interrupt flag is set, as it may have been set partway through the iteration
-                            // The calls to future.cancel will occur next time if the interrupt is setup partway through an iteration
-                            waitAgain = true;
-                            // If one thread finds an interrupt it is propagated to others using the interruptFound AtomicBoolean
-                            if (interruptFound.get()) {
-                                future.cancel(true);
-                            }
-                        }
-                    }
-                    // Don't trigger the timeout interrupt if we don't have to wait again as we are already done at this point
-                    if (waitAgain && (System.currentTimeMillis() - start) > downloadMaxTime) {
-                        logger.error("Download max time was exceeded: downloadMaxTime=" + downloadMaxTime + " duration=" + (System.currentTimeMillis() - start));
-                        interruptFound.set(true);
-                        break;
-                    }
-
-                    if (waitAgain) {
-                        Thread.sleep(downloadCheckBusyWaitSleep);
+                        future.cancel(true);
                     }
-                } while (waitAgain);
+                }
 
                 AtomicInteger totalDownload = new AtomicInteger(0);
                 for (Future<Integer> future : futures) {
@@ -1499,20 +1733,17 @@ public class SearchDAOImpl implements SearchDAO {
                     // This is a soft shutdown, and hence we wait below for this stage to complete in normal circumstances
                     // Note, this blocks for writerTimeoutWaitMillis trying to legitimately add the sentinel to the end of the queue
                     // We force the sentinel to be added in the hard shutdown phase below
-                    concurrentWrapper.finalise();
+                    if (pipeline != null) {
+                        pipeline.finish();
+                    } else {
+                        concurrentWrapper.finalise();
+                    }
                 } finally {
                     try {
-                        // Track the current time right now so we can abort after downloadMaxCompletionTime milliseconds in this phase
-                        final long completionStartTime = System.currentTimeMillis();
-                        // Busy wait check for finalised to be called in the RecordWriter or something is interrupted
+                        // Wait up to downloadMaxCompletionTime milliseconds for the writer to reach the sentinel and finalise
                         // By this stage, there are at maximum download.internal.queue.size items remaining (default 1000)
-                        while (writerThread.isAlive()
-                                && !writerThread.isInterrupted()
-                                && !interruptFound.get()
-                                && !Thread.currentThread().isInterrupted()
-                                && !rw.finalised()
-                                && !((System.currentTimeMillis() - completionStartTime) > downloadMaxCompletionTime)) {
-                            Thread.sleep(downloadCheckBusyWaitSleep);
+                        if (!interruptFound.get() && !Thread.currentThread().isInterrupted()) {
+                            writerThread.join(downloadMaxCompletionTime);
                         }
                     } finally {
                         try {
@@ -1524,8 +1755,12 @@ public class SearchDAOImpl implements SearchDAO {
                                 // Add the sentinel or clear the queue and try again until it gets onto the queue
                                 // We are in hard shutdown mode, so only priority is that the queue either
                                 // gets the sentinel or the thread is interrupted to clean up resources
-                                while (!queue.offer(sentinel)) {
-                                    queue.clear();
+                                if (pipeline != null) {
+                                    pipeline.abort();
+                                } else {
+                                    while (!queue.offer(sentinel)) {
+                                        queue.clear();
+                                    }
                                 }
                             } finally {
                                 try {
@@ -1537,7 +1772,10 @@ public class SearchDAOImpl implements SearchDAO {
                                         // In normal circumstances it is called via the sentinel or the interrupt
                                         // This will not block if finalise has been called previously in the current three implementations
                                         rw.finalise();
-                                    } finally {    
+                                    } finally {
+                                        splitsComplete.detach(dd);
+                                        metrics.finished();
+
                                         if (rw != null && rw.hasError()) {
                                             throw RecordWriterException.newRecordWriterException(dd, downloadParams, true, rw);
                                         } else {
@@ -1557,21 +1795,145 @@ public class SearchDAOImpl implements SearchDAO {
         return uidStats;
     }
 
+    /**
+     * Identifies the query and output columns of an index download, so that a changed download does not resume
+     * from an old checkpoint.
+     */
+    private String getCheckpointKey(SolrQuery solrQuery, String[] formattedFq, String sensitiveFq, boolean includeSensitive,
+                                    String[] header) {
+        return solrQuery.toString() +
+                "|fq=" + (formattedFq != null ? StringUtils.join(formattedFq, "|") : "") +
+                "|sensitiveFq=" + sensitiveFq +
+                "|includeSensitive=" + includeSensitive +
+                "|header=" + StringUtils.join(header, ",");
+    }
+
+    /**
+     * Counts the records of an index download for the DownloadSplitPlanner.
+     *
+     * @param solrQuery   the download query
+     * @param formattedFq the filter queries of the download
+     */
+    private DownloadSplitPlanner.SplitCounts getDownloadSplitCounts(final SolrQuery solrQuery, final String[] formattedFq) {
+        return new DownloadSplitPlanner.SplitCounts() {
+            @Override
+            public Map<String, Long> facet(String field, List<String> fqs) throws Exception {
+                SolrQuery query = countQuery();
+                query.addFacetField(field);
+                query.setFacetLimit(-1);
+                query.setFacetMinCount(1);
+                query.setFacetSort("index");
+                QueryResponse qr = runSolrQuery(query, filterQueries(fqs), 0, 0, "score", "asc");
+
+                Map<String, Long> counts = new LinkedHashMap<String, Long>();
+                FacetField facet = qr.getFacetField(field);
+                if (facet != null && facet.getValues() != null) {
+                    for (Count count : facet.getValues()) {
+                        counts.put(count.getName(), count.getCount());
+                    }
+                }
+                return counts;
+            }
+
+            @Override
+            public long[] count(List<String> queries, List<String> fqs) throws Exception {
+                SolrQuery query = countQuery();
+                query.setFacet(true);
+                for (String facetQuery : queries) {
+                    query.addFacetQuery(facetQuery);
+                }
+                QueryResponse qr = runSolrQuery(query, filterQueries(fqs), 0, 0, "score", "asc");
+
+                long[] counts = new long[queries.size()];
+                for (int i = 0; i < counts.length; i++) {
+                    Integer count = qr.getFacetQuery() != null ? qr.getFacetQuery().get(queries.get(i)) : null;
+                    counts[i] = count != null ? count : 0;
+                }
+                return counts;
+            }
+
+            @Override
+            public long[] range(String field, List<String> fqs) throws Exception {
+                SolrQuery query = countQuery();
+                query.setGetFieldStatistics(field);
+                QueryResponse qr = runSolrQuery(query, filterQueries(fqs), 0, 0, "score", "asc");
+
+                FieldStatsInfo stats = qr.getFieldStatsInfo() != null ? qr.getFieldStatsInfo().get(field) : null;
+                if (stats == null || stats.getCount() == null || stats.getCount() == 0
+                        || !(stats.getMin() instanceof Number) || !(stats.getMax() instanceof Number)) {
+                    return null;
+                }
+                return new long[]{((Number) stats.getMin()).longValue(), ((Number) stats.getMax()).longValue()};
+            }
+
+            private SolrQuery countQuery() {
+                SolrQuery query = solrQuery.getCopy();
+                query.setFacet(false);
+                return query;
+            }
+
+            private String[] filterQueries(List<String> fqs) {
+                String[] fq = formattedFq != null ? formattedFq : new String[0];
+                return org.apache.commons.lang3.ArrayUtils.addAll(fq, fqs.toArray(new String[0]));
+            }
+        };
+    }
+
+    /**
+     * Run the next page of a download split, recording the Solr latency for the split.
+     */
+    private QueryResponse runSplitQueryWithCursorMark(SolrQuery splitQuery, String cursorMark, String splitLabel,
+                                                      DownloadMetricsDTO metrics) throws SolrServerException {
+        long queryStart = System.currentTimeMillis();
+        QueryResponse qr = runSolrQueryWithCursorMark(splitQuery, downloadBatchSize, cursorMark);
+        metrics.addSplitQuery(splitLabel, System.currentTimeMillis() - queryStart,
+                qr != null && qr.getResults() != null ? qr.getResults().size() : 0);
+        return qr;
+    }
+
+    /**
+     * Update the metrics of a download from the single writer thread.
+     */
+    private void updateWriterMetrics(DownloadMetricsDTO metrics, long rowsWritten, int queueDepth, OutputStream out) {
+        metrics.setRowsWritten(rowsWritten);
+        metrics.setQueueDepth(queueDepth);
+        if (out instanceof OptionalZipOutputStream) {
+            metrics.setBytesWritten(((OptionalZipOutputStream) out).getBytesWritten());
+        }
+    }
+
+    private LayerSampler getLayerSampler() {
+        LayerSampler sampler = layerSampler;
+        if (sampler == null) {
+            synchronized (this) {
+                sampler = layerSampler;
+                if (sampler == null) {
+                    sampler = layerSampler = new LayerSampler(LayerSampler.pooledLayersStores(layerSamplingPoolSize),
+                            layerSamplingCacheSize, layerSamplingPrecision);
+                }
+            }
+        }
+        return sampler;
+    }
+
     private List<String[]> intersectResults(String layersServiceUrl, String[] analysisLayers, SolrDocumentList results) {
         List<String[]> intersection = new ArrayList<String[]>();
 
         if (analysisLayers.length > 0 && StringUtils.isNotEmpty(layersServiceUrl)) {
             try {
                 double[][] points = new double[results.size()][2];
+                boolean[] valid = new boolean[results.size()];
                 int invalid = 0;
                 int i = 0;
                 for (SolrDocument sd : results) {
                     if (sd.containsKey("sensitive_longitude") && sd.containsKey("sensitive_latitude")) {
                         points[i][0] = (double) sd.getFirstValue("sensitive_longitude");
                         points[i][1] = (double) sd.getFirstValue("sensitive_latitude");
+                        valid[i] = true;
                     } else if (sd.containsKey("longitude") && sd.containsKey("latitude")) {
                         points[i][0] = (double) sd.getFirstValue("longitude");
                         points[i][1] = (double) sd.getFirstValue("latitude");
+                        valid[i] = true;
                     } else {
                         points[i][0] = 0;
                         points[i][1] = 0;
@@ -1581,12 +1943,7 @@ public class SearchDAOImpl implements SearchDAO {
                 }
 
                 if (invalid < results.size()) {
-                    LayersStore ls = new LayersStore(layersServiceUrl);
-                    Reader reader = ls.sample(analysisLayers, points, null);
-
-                    CSVReader csv = new CSVReader(reader);
-                    intersection = csv.readAll();
-                    csv.close();
+                    intersection = getLayerSampler().sample(layersServiceUrl, analysisLayers, points, valid);
                 }
             } catch (IOException e) {
                 logger.error("Failed to intersect analysis layers", e);
@@ -1596,6 +1953,30 @@ public class SearchDAOImpl implements SearchDAO {
         return intersection;
     }
 
+    /**
+     * Get the species list KVP lookups for the selected species list fields. The fields of each list are consecutive.
+     */
+    private ListsService.KvpColumns getKvpColumns(String[] speciesListFields) {
+        List<ListsService.KvpIndex> indexes = new ArrayList<>();
+        List<Integer> starts = new ArrayList<>();
+        String drDot = ".";
+        for (int i = 0; i < speciesListFields.length; i++) {
+            if (!speciesListFields[i].startsWith(drDot)) {
+                String dr = speciesListFields[i].split("\\.", 2)[0];
+                drDot = dr + ".";
+                indexes.add(listsService.getKvpIndex(dr, listsService.getKvp(dr)));
+                starts.add(i);
+            }
+        }
+        starts.add(speciesListFields.length);
+
+        int[] startArray = new int[starts.size()];
+        for (int i = 0; i < startArray.length; i++) {
+            startArray[i] = starts.get(i);
+        }
+        return new ListsService.KvpColumns(indexes.toArray(new ListsService.KvpIndex[0]), startArray);
+    }
+
     private int processQueryResults(ConcurrentMap<String, AtomicInteger> uidStats, String[] fields, String[] qaFields,
                                     RecordWriter rw, QueryResponse qr, DownloadDetailsDTO dd, boolean checkLimit,
                                     AtomicInteger resultsCount, long maxDownloadSize, String[] analysisLayers,
@@ -1604,6 +1985,8 @@ public class SearchDAOImpl implements SearchDAO {
         //handle analysis layer intersections
         List<String[]> intersection = intersectResults(dd.getRequestParams().getLayersServiceUrl(), analysisLayers, qr.getResults());
 
+        ListsService.KvpColumns kvpColumns = getKvpColumns(speciesListFields);
+
         int count = 0;
         int record = 0;
         for (SolrDocument sd : qr.getResults()) {
@@ -1655,22 +2038,7 @@ public class SearchDAOImpl implements SearchDAO {
                     if (StringUtils.isNumeric(lftString)) {
                         long lft = Long.parseLong(lftString);
                         long rgt = Long.parseLong(rgtString);
-                        Kvp lftrgt = new Kvp(lft, rgt);
-
-                        String drDot = ".";
-                        String dr = "";
-                        int fieldIdx = 0;
-                        for (int i = 0; i < speciesListFields.length; i++) {
-                            if (speciesListFields[i].startsWith(drDot)) {
-                                fieldIdx++;
-                            } else {
-                                dr = speciesListFields[i].split("\\.", 2)[0];
-                                drDot = dr + ".";
-                                fieldIdx = 0;
-                            }
-
-                            values[analysisLayers.length + fields.length + i] = listsService.getKvpValue(fieldIdx, listsService.getKvp(dr), lftrgt);
-                        }
+                        kvpColumns.getValues(lft, rgt, values, analysisLayers.length + fields.length);
                     }
                 }
 
@@ -2026,10 +2394,10 @@ public class SearchDAOImpl implements SearchDAO {
      * @return
      * @throws Exception
      */
-    private int downloadRecords(DownloadRequestParams downloadParams, RecordWriterError writer,
+    private int downloadRecords(final DownloadRequestParams downloadParams, final RecordWriterError writer,
                                 Map<String, Integer> downloadLimit, ConcurrentMap<String, AtomicInteger> uidStats,
-                                String[] fields, String[] qaFields, int resultsCount, String dataResource, boolean includeSensitive,
-                                DownloadDetailsDTO dd, boolean limit, String[] analysisLayers, String[] speciesListFields) throws Exception {
+                                String[] fields, final String[] qaFields, int resultsCount, String dataResource, final boolean includeSensitive,
+                                final DownloadDetailsDTO dd, boolean limit, String[] analysisLayers, String[] speciesListFields) throws Exception {
         if (logger.isInfoEnabled()) {
             logger.info("download query: " + downloadParams.getQ());
         }
@@ -2084,8 +2452,12 @@ public class SearchDAOImpl implements SearchDAO {
             notSensitiveFields = fields;
         }
 
+        final boolean includeMisc = dd.getRequestParams() != null ? dd.getRequestParams().getIncludeMisc() : false;
+        // misc fields found in a page change the columns of the following pages, so pages are not read ahead when included
+        ExecutorService readAheadExecutor = cassandraReadAhead > 0 && !includeMisc ? getCassandraReadAheadExecutor() : null;
+
         for (SolrQuery q : queries) {
-            int startIndex = 0;
+            final boolean sensitive = sensitiveQ.contains(q);
 
             String[] fq = downloadParams.getFormattedFq();
             if (q.getFilterQueries() != null && q.getFilterQueries().length > 0) {
@@ -2094,110 +2466,119 @@ public class SearchDAOImpl implements SearchDAO {
                 }
                 fq = org.apache.commons.lang3.ArrayUtils.addAll(fq, q.getFilterQueries());
             }
+            q.setFilterQueries(fq);
 
-            QueryResponse qr = runSolrQuery(q, fq, pageSize, startIndex, "", "");
-            List<String> uuids = new ArrayList<String>();
+            QueryResponse qr = runSolrQueryWithCursorMark(q, pageSize, null);
+            String cursorMark = CursorMarkParams.CURSOR_MARK_START;
 
-            List<String[]> intersectionAll = intersectResults(dd.getRequestParams().getLayersServiceUrl(), analysisLayers, qr.getResults());
+            ListsService.KvpColumns kvpColumns = getKvpColumns(speciesListFields);
 
-            while (qr.getResults().size() > 0 && (!limit || resultsCount < MAX_DOWNLOAD_SIZE) &&
-                    shouldDownload(dataResource, downloadLimit, false)) {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Start index: " + startIndex);
-                }
-
-                Map<String, String[]> dataToInsert = new HashMap<String, String[]>();
-
-                //cycle through the results adding them to the list that will be sent to cassandra
-                int row = 0;
-                for (SolrDocument sd : qr.getResults()) {
-                    if (sd.getFieldValue("data_resource_uid") != null) {
-                        String druid = sd.getFieldValue("data_resource_uid").toString();
-                        if (shouldDownload(druid, downloadLimit, true) && (!limit || resultsCount < MAX_DOWNLOAD_SIZE)) {
-                            resultsCount++;
-                            String uuid = sd.getFieldValue("id").toString();
-                            uuids.add(uuid);
-
-                            //include analysis layer intersections
-                            String[] extra = null;
-                            if (intersectionAll.size() > row + 1) {
-                                extra = (String[]) ArrayUtils.subarray(intersectionAll.get(row + 1), 2, intersectionAll.get(row + 1).length);
-                                dataToInsert.put(uuid, extra);
-                            }
-
-                            // add species list fields
-                            if (sd.containsKey("lft") && sd.containsKey("rgt") && speciesListFields.length > 0) {
-                                String lftString = String.valueOf(sd.getFieldValue("lft"));
-                                String rgtString = String.valueOf(sd.getFieldValue("rgt"));
-                                if (StringUtils.isNumeric(lftString)) {
-                                    long lft = Long.parseLong(lftString);
-                                    long rgt = Long.parseLong(rgtString);
-                                    Kvp lftrgt = new Kvp(lft, rgt);
-
-                                    int extraOffset = 0;
-
-                                    // expand 'extra' array for speciesListField values
-                                    if (extra == null) {
-                                        extra = new String[speciesListFields.length];
-                                    } else {
-                                        extraOffset = extra.length;
+            // the records of the next pages are read from cassandra while the current page is written
+            ReadAheadPageWriter pageWriter = new ReadAheadPageWriter(writer, readAheadExecutor, cassandraReadAhead);
+            try {
+                while (qr != null && qr.getResults().size() > 0 && (!limit || resultsCount < MAX_DOWNLOAD_SIZE) &&
+                        shouldDownload(dataResource, downloadLimit, false)) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Cursor mark: " + cursorMark);
+                    }
 
-                                        String[] tmp = new String[extra.length + speciesListFields.length];
-                                        System.arraycopy(extra, 0, tmp, 0, extra.length);
-                                        extra = tmp;
-                                    }
+                    final List<String> uuids = new ArrayList<String>();
+                    final Map<String, String[]> dataToInsert = new HashMap<String, String[]>();
+
+                    List<String[]> intersectionAll = intersectResults(dd.getRequestParams().getLayersServiceUrl(), analysisLayers, qr.getResults());
+
+                    //cycle through the results adding them to the list that will be sent to cassandra
+                    int row = 0;
+                    for (SolrDocument sd : qr.getResults()) {
+                        if (sd.getFieldValue("data_resource_uid") != null) {
+                            String druid = sd.getFieldValue("data_resource_uid").toString();
+                            if (shouldDownload(druid, downloadLimit, true) && (!limit || resultsCount < MAX_DOWNLOAD_SIZE)) {
+                                resultsCount++;
+                                String uuid = sd.getFieldValue("id").toString();
+                                uuids.add(uuid);
+
+                                //include analysis layer intersections
+                                String[] extra = null;
+                                if (intersectionAll.size() > row + 1) {
+                                    extra = (String[]) ArrayUtils.subarray(intersectionAll.get(row + 1), 2, intersectionAll.get(row + 1).length);
                                     dataToInsert.put(uuid, extra);
+                                }
 
-                                    // add species list fields
-                                    if (speciesListFields.length > 0) {
-                                        String drDot = ".";
-                                        String dr = "";
-                                        int fieldIdx = 0;
-                                        for (int i = 0; i < speciesListFields.length; i++) {
-                                            if (speciesListFields[i].startsWith(drDot)) {
-                                                fieldIdx++;
-                                            } else {
-                                                dr = speciesListFields[i].split("\\.", 2)[0];
-                                                drDot = dr + ".";
-                                                fieldIdx = 0;
-                                            }
-
-                                            extra[extraOffset + i] = listsService.getKvpValue(fieldIdx, listsService.getKvp(dr), lftrgt);
+                                // add species list fields
+                                if (sd.containsKey("lft") && sd.containsKey("rgt") && speciesListFields.length > 0) {
+                                    String lftString = String.valueOf(sd.getFieldValue("lft"));
+                                    String rgtString = String.valueOf(sd.getFieldValue("rgt"));
+                                    if (StringUtils.isNumeric(lftString)) {
+                                        long lft = Long.parseLong(lftString);
+                                        long rgt = Long.parseLong(rgtString);
+                                        int extraOffset = 0;
+
+                                        // expand 'extra' array for speciesListField values
+                                        if (extra == null) {
+                                            extra = new String[speciesListFields.length];
+                                        } else {
+                                            extraOffset = extra.length;
+
+                                            String[] tmp = new String[extra.length + speciesListFields.length];
+                                            System.arraycopy(extra, 0, tmp, 0, extra.length);
+                                            extra = tmp;
                                         }
+                                        dataToInsert.put(uuid, extra);
+
+                                        // add species list fields
+                                        kvpColumns.getValues(lft, rgt, extra, extraOffset);
                                     }
                                 }
-                            }
 
-                            //increment the counters....
-                            incrementCount(uidStats, sd.getFieldValue("institution_uid"));
-                            incrementCount(uidStats, sd.getFieldValue("collection_uid"));
-                            incrementCount(uidStats, sd.getFieldValue("data_provider_uid"));
-                            incrementCount(uidStats, druid);
+                                //increment the counters....
+                                incrementCount(uidStats, sd.getFieldValue("institution_uid"));
+                                incrementCount(uidStats, sd.getFieldValue("collection_uid"));
+                                incrementCount(uidStats, sd.getFieldValue("data_provider_uid"));
+                                incrementCount(uidStats, druid);
+                            }
                         }
+                        row++;
                     }
-                    row++;
-                }
 
-                String[] newMiscFields;
-                if (sensitiveQ.contains(q)) {
-                    newMiscFields = au.org.ala.biocache.Store.writeToWriter(writer, uuids.toArray(new String[]{}), sensitiveFields, qaFields, true, (dd.getRequestParams() != null ? dd.getRequestParams().getIncludeMisc() : false), dd.getMiscFields(), dataToInsert);
-                } else {
-                    newMiscFields = au.org.ala.biocache.Store.writeToWriter(writer, uuids.toArray(new String[]{}), notSensitiveFields, qaFields, includeSensitive, (dd.getRequestParams() != null ? dd.getRequestParams().getIncludeMisc() : false), dd.getMiscFields(), dataToInsert);
-                }
+                    final int pageResults = qr.getResults().size();
+                    pageWriter.add(new ReadAheadPageWriter.Page() {
+                        @Override
+                        public String[] read(RecordWriter recordWriter) throws Exception {
+                            if (sensitive) {
+                                return au.org.ala.biocache.Store.writeToWriter(recordWriter, uuids.toArray(new String[]{}), sensitiveFields, qaFields, true, includeMisc, dd.getMiscFields(), dataToInsert);
+                            } else {
+                                return au.org.ala.biocache.Store.writeToWriter(recordWriter, uuids.toArray(new String[]{}), notSensitiveFields, qaFields, includeSensitive, includeMisc, dd.getMiscFields(), dataToInsert);
+                            }
+                        }
 
-                //test for errors
-                if (writer.hasError()) {
-                    throw RecordWriterException.newRecordWriterException(dd, downloadParams, false, writer);
-                }
+                        @Override
+                        public void written(String[] newMiscFields) throws Exception {
+                            //test for errors
+                            if (writer.hasError()) {
+                                throw RecordWriterException.newRecordWriterException(dd, downloadParams, false, writer);
+                            }
+
+                            dd.setMiscFields(newMiscFields);
+                            dd.updateCounts(pageResults);
+                        }
+                    });
 
-                dd.setMiscFields(newMiscFields);
-                startIndex += pageSize;
-                uuids.clear();
-                dd.updateCounts(qr.getResults().size());
-                if (!limit || resultsCount < MAX_DOWNLOAD_SIZE) {
-                    //we have already set the Filter query the first time the query was constructed rerun with he same params but different cursor
-                    qr = runSolrQuery(q, null, pageSize, startIndex, "", "");
+                    if (!limit || resultsCount < MAX_DOWNLOAD_SIZE) {
+                        //the next page starts from the cursor mark, the cursor mark does not change after the last page
+                        String nextCursorMark = qr.getNextCursorMark();
+                        if (nextCursorMark == null || nextCursorMark.equals(cursorMark)) {
+                            qr = null;
+                        } else {
+                            cursorMark = nextCursorMark;
+                            qr = runSolrQueryWithCursorMark(q, pageSize, cursorMark);
+                        }
+                    } else {
+                        qr = null;
+                    }
                 }
+                pageWriter.finish();
+            } finally {
+                pageWriter.cancel();
             }
         }
         return resultsCount;
@@ -2277,6 +2658,15 @@ public class SearchDAOImpl implements SearchDAO {
         }
     }
 
+    private static void addCounts(ConcurrentMap<String, AtomicInteger> values, Map<String, AtomicInteger> counts) {
+        for (Map.Entry<String, AtomicInteger> entry : counts.entrySet()) {
+            AtomicInteger putIfAbsent = values.putIfAbsent(entry.getKey(), new AtomicInteger(entry.getValue().get()));
+            if (putIfAbsent != null) {
+                putIfAbsent.addAndGet(entry.getValue().get());
+            }
+        }
+    }
+
     private static void incrementCount(ConcurrentMap<String, AtomicInteger> values, Object uid) {
         if (uid != null) {
             String nextKey = uid.toString();
@@ -2325,26 +2715,17 @@ public class SearchDAOImpl implements SearchDAO {
                 List<FacetField.Count> facetEntries = facet.getValues();
                 if (facet.getName().contains(pointType.getLabel()) && (facetEntries != null) && (facetEntries.size() > 0)) {
 
+                    float[] coords = new float[2];
                     for (FacetField.Count fcount : facetEntries) {
                         if (StringUtils.isNotEmpty(fcount.getName()) && fcount.getCount() > 0) {
-                            OccurrencePoint point = new OccurrencePoint(pointType);
-                            point.setCount(fcount.getCount());
-                            String[] pointsDelimited = StringUtils.split(fcount.getName(), ',');
-                            List<Float> coords = new ArrayList<Float>();
-
-                            for (String coord : pointsDelimited) {
-                                try {
-                                    Float decimalCoord = Float.parseFloat(coord);
-                                    coords.add(decimalCoord);
-                                } catch (NumberFormatException numberFormatException) {
-                                    logger.warn("Error parsing Float for Lat/Long: " + numberFormatException.getMessage(), numberFormatException);
-                                }
-                            }
-
-                            if (!coords.isEmpty()) {
-                                Collections.reverse(coords); // must be long, lat order
-                                point.setCoordinates(coords);
+                            // long, lat order
+                            if (PointParser.parseLatLng(fcount.getName(), coords, 0)) {
+                                OccurrencePoint point = new OccurrencePoint(pointType);
+                                point.setCount(fcount.getCount());
+                                point.setCoordinates(Arrays.asList(coords[0], coords[1]));
                                 points.add(point);
+                            } else {
+                                logger.warn("Error parsing Lat/Long: " + fcount.getName());
                             }
                         }
                     }
@@ -2382,6 +2763,84 @@ public class SearchDAOImpl implements SearchDAO {
         return null;
     }
 
+    /**
+     * @see au.org.ala.biocache.dao.SearchDAO#getFacetPointsShort(au.org.ala.biocache.dto.SpatialSearchRequestParams, String, List)
+     */
+    @Override
+    public List<FacetField> getFacetPointsShort(SpatialSearchRequestParams searchParams, String pointType, List<String> fqs) throws Exception {
+        queryFormatUtils.formatSearchQuery(searchParams);
+        if (logger.isInfoEnabled()) {
+            logger.info("search query: " + searchParams.getFormattedQuery());
+        }
+        SolrQuery solrQuery = new SolrQuery();
+        solrQuery.setRequestHandler("standard");
+        solrQuery.setQuery(searchParams.getFormattedQuery());
+        solrQuery.setRows(0);
+
+        //format the fqs as each fq is formatted when it is added to the search params
+        List<String> formattedFqs = new ArrayList<String>(fqs.size());
+        for (String fq : fqs) {
+            //null search params so that a qid in the fq cannot add fqs to the query that is already formatted
+            formattedFqs.add(queryFormatUtils.formatQueryTerm(fq, null)[1]);
+        }
+        solrQuery.add("json.facet", new ObjectMapper().writeValueAsString(getFacetPointsJson(pointType, formattedFqs, searchParams.getFlimit())));
+
+        QueryResponse qr = runSolrQuery(solrQuery, searchParams.getFormattedFq(), 0, 0, "", "");
+        return parseFacetPoints((NamedList) qr.getResponse().get("facets"), pointType, fqs.size());
+    }
+
+    /**
+     * A JSON query facet for each fq with the points nested, so all fqs are faceted in one pass.
+     *
+     * @param pointType    the field of the points
+     * @param formattedFqs the formatted fqs
+     * @param limit        the maximum number of points of each fq, -1 for all points
+     * @return the json.facet, the facet of each fq is named fqN
+     */
+    static Map<String, Object> getFacetPointsJson(String pointType, List<String> formattedFqs, Integer limit) {
+        Map<String, Object> facets = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < formattedFqs.size(); i++) {
+            Map<String, Object> points = new LinkedHashMap<String, Object>();
+            points.put("type", "terms");
+            points.put("field", pointType);
+            points.put("limit", limit);
+            points.put("mincount", 1);
+            points.put("sort", "index");
+
+            //a nested query cannot be only negative, an fq that is formatted to nothing matches all records
+            String fq = formattedFqs.get(i);
+            Map<String, Object> facet = new LinkedHashMap<String, Object>();
+            facet.put("type", "query");
+            facet.put("q", StringUtils.isEmpty(fq) ? "*:*" : fq.startsWith("-") ? "*:* " + fq : fq);
+            facet.put("facet", Collections.singletonMap("points", points));
+            facets.put("fq" + i, facet);
+        }
+        return facets;
+    }
+
+    /**
+     * @param response  the facets of a response to the {@link #getFacetPointsJson} json.facet
+     * @param pointType the field of the points
+     * @param size      the number of fqs
+     * @return the points of each fq, in the order of the fqs
+     */
+    static List<FacetField> parseFacetPoints(NamedList response, String pointType, int size) {
+        List<FacetField> result = new ArrayList<FacetField>(size);
+        for (int i = 0; i < size; i++) {
+            FacetField facetField = new FacetField(pointType);
+            NamedList facet = response != null ? (NamedList) response.get("fq" + i) : null;
+            NamedList points = facet != null ? (NamedList) facet.get("points") : null;
+            List<NamedList> buckets = points != null ? (List<NamedList>) points.get("buckets") : null;
+            if (buckets != null) {
+                for (NamedList bucket : buckets) {
+                    facetField.add(String.valueOf(bucket.get("val")), ((Number) bucket.get("count")).longValue());
+                }
+            }
+            result.add(facetField);
+        }
+        return result;
+    }
+
     /**
      * @see au.org.ala.biocache.dao.SearchDAO#getOccurrences(au.org.ala.biocache.dto.SpatialSearchRequestParams, au.org.ala.biocache.dto.PointType, String)
      */
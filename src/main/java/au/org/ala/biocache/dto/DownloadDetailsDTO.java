@@ -19,8 +19,10 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -51,7 +53,11 @@ public class DownloadDetailsDTO {
      */
     private String sensitiveFq = null;
     private AtomicBoolean interrupt = new AtomicBoolean(false);
+    private final List<Runnable> interruptListeners = new CopyOnWriteArrayList<>();
     private String processingThreadName = null;
+    private Integer compressionLevel = null;
+    private String checkpointDirectory = null;
+    private DownloadMetricsDTO metrics = new DownloadMetricsDTO();
 
     /**
      * Default constructor necessary for Jackson to create an object from the JSON. 
@@ -284,6 +290,35 @@ public class DownloadDetailsDTO {
         return interrupt;
     }
 
+    /**
+     * Sets the interrupt flag and notifies the listeners waiting on this download.
+     */
+    public void interrupt() {
+        interrupt.set(true);
+        for (Runnable listener : interruptListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * @param listener called when {@link #interrupt()} is called
+     */
+    public void addInterruptListener(Runnable listener) {
+        interruptListeners.add(listener);
+    }
+
+    public void removeInterruptListener(Runnable listener) {
+        interruptListeners.remove(listener);
+    }
+
+    /**
+     * @return live throughput metrics for this download
+     */
+    @JsonIgnore
+    public DownloadMetricsDTO getMetrics() {
+        return metrics;
+    }
+
     public String getProcessingThreadName() {
         return processingThreadName;
     }
@@ -292,8 +327,34 @@ public class DownloadDetailsDTO {
         this.processingThreadName = processingThreadName;
     }
 
+    /**
+     * @return the zip compression level of the pool processing this download, or null for the service default
+     */
+    @JsonIgnore
+    public Integer getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(Integer compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @return the path of the directory where the progress of this download is checkpointed, or null when it is not
+     * checkpointed
+     */
+    @JsonIgnore
+    public String getCheckpointDirectory() {
+        return checkpointDirectory;
+    }
+
+    public void setCheckpointDirectory(String checkpointDirectory) {
+        this.checkpointDirectory = checkpointDirectory;
+    }
+
     public void resetCounts() {
         recordsDownloaded.set(0);
+        metrics.reset();
         lastUpdate = new Date();
     }
 
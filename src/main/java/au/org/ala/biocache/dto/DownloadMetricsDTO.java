@@ -0,0 +1,201 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dto;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live progress and throughput of a running download, reported with the download status.
+ *
+ * Writer stall time is the time the query threads spent waiting for space on the results queue,
+ * i.e. time lost because the writer is the bottleneck. Writer idle time is the time the writer
+ * spent waiting for results, i.e. time lost because the queries are the bottleneck.
+ */
+public class DownloadMetricsDTO {
+
+    private volatile long startTime = System.currentTimeMillis();
+    private volatile long endTime = 0;
+
+    private final AtomicLong rowsWritten = new AtomicLong(0);
+    private final AtomicLong bytesWritten = new AtomicLong(0);
+    private final AtomicLong writerStallNanos = new AtomicLong(0);
+    private final AtomicLong writerIdleNanos = new AtomicLong(0);
+
+    private volatile int queueDepth = 0;
+    private volatile int queueCapacity = 0;
+
+    private final Map<String, SplitMetrics> splits = new ConcurrentHashMap<>();
+
+    /**
+     * Clear all values and restart the clock.
+     */
+    public void reset() {
+        startTime = System.currentTimeMillis();
+        endTime = 0;
+        rowsWritten.set(0);
+        bytesWritten.set(0);
+        writerStallNanos.set(0);
+        writerIdleNanos.set(0);
+        queueDepth = 0;
+        queueCapacity = 0;
+        splits.clear();
+    }
+
+    /**
+     * Stop the clock used for the rates.
+     */
+    public void finished() {
+        endTime = System.currentTimeMillis();
+    }
+
+    public void setRowsWritten(long rows) {
+        rowsWritten.set(rows);
+    }
+
+    public void addRowsWritten(long rows) {
+        rowsWritten.addAndGet(rows);
+    }
+
+    public void setBytesWritten(long bytes) {
+        bytesWritten.set(bytes);
+    }
+
+    public void addBytesWritten(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    public void addWriterStallNanos(long nanos) {
+        writerStallNanos.addAndGet(nanos);
+    }
+
+    public void addWriterIdleNanos(long nanos) {
+        writerIdleNanos.addAndGet(nanos);
+    }
+
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Record a completed Solr query for a split of the download.
+     *
+     * @param split   label of the split, usually its filter query
+     * @param millis  duration of the Solr query
+     * @param records number of records returned
+     */
+    public void addSplitQuery(String split, long millis, long records) {
+        SplitMetrics sm = splits.get(split);
+        if (sm == null) {
+            SplitMetrics newSm = new SplitMetrics();
+            sm = splits.putIfAbsent(split, newSm);
+            if (sm == null) {
+                sm = newSm;
+            }
+        }
+        sm.add(millis, records);
+    }
+
+    public long getElapsedMillis() {
+        return (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getRowsPerSecond() {
+        return perSecond(rowsWritten.get());
+    }
+
+    public long getBytesPerSecond() {
+        return perSecond(bytesWritten.get());
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getWriterStallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(writerStallNanos.get());
+    }
+
+    public long getWriterIdleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(writerIdleNanos.get());
+    }
+
+    public Map<String, SplitMetrics> getSplits() {
+        return splits;
+    }
+
+    private long perSecond(long value) {
+        long elapsed = getElapsedMillis();
+        return elapsed <= 0 ? 0 : value * 1000 / elapsed;
+    }
+
+    /**
+     * Solr query latency for one split of a download.
+     */
+    public static class SplitMetrics {
+        private final AtomicLong queries = new AtomicLong(0);
+        private final AtomicLong records = new AtomicLong(0);
+        private final AtomicLong totalMillis = new AtomicLong(0);
+        private volatile long maxMillis = 0;
+
+        void add(long millis, long recordCount) {
+            queries.incrementAndGet();
+            records.addAndGet(recordCount);
+            totalMillis.addAndGet(millis);
+            if (millis > maxMillis) {
+                maxMillis = millis;
+            }
+        }
+
+        public long getQueries() {
+            return queries.get();
+        }
+
+        public long getRecords() {
+            return records.get();
+        }
+
+        public long getTotalMillis() {
+            return totalMillis.get();
+        }
+
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+
+        public long getAverageMillis() {
+            long q = queries.get();
+            return q == 0 ? 0 : totalMillis.get() / q;
+        }
+    }
+}
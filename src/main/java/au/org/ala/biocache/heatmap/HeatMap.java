@@ -23,6 +23,9 @@ import java.awt.image.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
 
@@ -31,6 +34,9 @@ import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
  * 
  * Code based on http://www.itstud.chalmers.se/~liesen/heatmap/
  *
+ * The base images, colour ramp and legend font are loaded once and shared by all heatmaps. A heatmap copies the
+ * base images before drawing on them.
+ *
  * @author ajay
  */
 public class HeatMap {
@@ -40,14 +46,42 @@ public class HeatMap {
     private int radius = 8;
     private int numColours = 10;
 
+    //max number of intensity buffers kept for reuse
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final Font LEGEND_FONT = new Font("SanSerif", Font.PLAIN, 11);
+    private static final RenderingHints LEGEND_HINTS = new RenderingHints(
+            RenderingHints.KEY_TEXT_ANTIALIASING,
+            RenderingHints.VALUE_TEXT_ANTIALIAS_GASP
+    );
+
+    private static final BufferedImage colorImage = createEvenlyDistributedGradientImage(new Dimension(
+            512, 20), new Color(255, 0, 0), new Color(255, 30, 0),
+            new Color(255, 60, 0), new Color(255, 90, 0),
+            new Color(255, 120, 0), new Color(255, 150, 0),
+            new Color(255, 180, 0), new Color(255, 210, 0),
+            new Color(255, 230, 0), new Color(255, 255, 0),
+            Color.WHITE);
+
+    //first row of the colour image, indexed by twice the intensity
+    private static final int[] colorRamp = colorImage.getRGB(0, 0, colorImage.getWidth(), 1, null, 0, colorImage.getWidth());
+
+    private static final LookupTable colorTable = createColorLookupTable(colorImage, .5f);
+    private static final LookupOp colorOp = new LookupOp(colorTable, null);
+
+    private static BufferedImage baseBackgroundImage;
+    private static BufferedImage baseLegendImage;
+
+    private static final BlockingQueue<int[]> intensityBuffers = new ArrayBlockingQueue<int[]>(MAX_POOLED_BUFFERS);
+
+    private final int width;
+    private final int height;
+
+    //a copy of the base background image, made when the output is drawn
     private BufferedImage backgroundImage;
     private BufferedImage legendImage;
     private BufferedImage monochromeImage;
     private BufferedImage heatmapImage;
-    private BufferedImage colorImage;
-
-    private LookupTable colorTable;
-    private LookupOp colorOp;
 
     /* bounding box coordinates for the image in decimal degrees. Default to BBOX for Australia */
     private double minX = 110.911; //112.911; //112.911;
@@ -62,35 +96,64 @@ public class HeatMap {
 //    }
 
     public HeatMap() throws Exception {
-        InputStream bkImageInput = HeatMap.class.getResourceAsStream("/images/heatmap_background.png");
-        InputStream legendImageInput = HeatMap.class.getResourceAsStream( "/images/heatmap_legend.png");
-
-//        backgroundImage = ImageIO.read(new File(baseDir.getAbsolutePath() + "/base/heatmap_background.png"));
-//        legendImage = ImageIO.read(new File(baseDir.getAbsolutePath() + "/base/heatmap_legend.png"));
-//        dotImage = ImageIO.read(new File(baseDir.getAbsolutePath() + "/base/bullet_blue.png"));
-        backgroundImage = ImageIO.read(bkImageInput);
-        legendImage = ImageIO.read(legendImageInput);
-//        dotImage = ImageIO.read(dotImageFile);
-
-        int width = backgroundImage.getWidth();
-        int height = backgroundImage.getHeight();
-
-        colorImage = createEvenlyDistributedGradientImage(new Dimension(
-                512, 20), new Color(255, 0, 0), new Color(255, 30, 0),
-                new Color(255, 60, 0), new Color(255, 90, 0),
-                new Color(255, 120, 0), new Color(255, 150, 0),
-                new Color(255, 180, 0), new Color(255, 210, 0),
-                new Color(255, 230, 0), new Color(255, 255, 0),
-                Color.WHITE);
-
-        colorTable = createColorLookupTable(colorImage, .5f);
-        colorOp = new LookupOp(colorTable, null);
-
-        monochromeImage = createCompatibleTranslucentImage(width, height);
-
-        Graphics g = monochromeImage.getGraphics();
-        g.setColor(Color.WHITE);
-        g.fillRect(0, 0, width, height);
+        loadBaseImages();
+
+        width = baseBackgroundImage.getWidth();
+        height = baseBackgroundImage.getHeight();
+        legendImage = copyImage(baseLegendImage);
+    }
+
+    /**
+     * Decode the base background and legend images once.
+     */
+    private static synchronized void loadBaseImages() throws IOException {
+        if (baseBackgroundImage == null) {
+            InputStream bkImageInput = HeatMap.class.getResourceAsStream("/images/heatmap_background.png");
+            InputStream legendImageInput = HeatMap.class.getResourceAsStream("/images/heatmap_legend.png");
+            try {
+                baseLegendImage = ImageIO.read(legendImageInput);
+                baseBackgroundImage = ImageIO.read(bkImageInput);
+            } finally {
+                bkImageInput.close();
+                legendImageInput.close();
+            }
+        }
+    }
+
+    private static BufferedImage copyImage(BufferedImage image) {
+        ColorModel cm = image.getColorModel();
+        return new BufferedImage(cm, image.copyData(null), cm.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * @return an intensity buffer of the given size with all values 0
+     */
+    private static int[] acquireIntensityBuffer(int size) {
+        int[] buffer = intensityBuffers.poll();
+        if (buffer == null || buffer.length != size) {
+            return new int[size];
+        }
+        Arrays.fill(buffer, 0);
+        return buffer;
+    }
+
+    private static void releaseIntensityBuffer(int[] buffer) {
+        intensityBuffers.offer(buffer);
+    }
+
+    /**
+     * @return the monochrome image, created white when nothing has been drawn on it
+     */
+    private BufferedImage getMonochromeImage() {
+        if (monochromeImage == null) {
+            monochromeImage = createCompatibleTranslucentImage(width, height);
+
+            Graphics g = monochromeImage.getGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.dispose();
+        }
+        return monochromeImage;
     }
 
     /**
@@ -176,8 +239,8 @@ public class HeatMap {
      */
     private BufferedImage doColorize() {
 
-        //System.out.println("doColorize()");
-        int[] image_bytes = colorImage.getRGB(0, 0, colorImage.getWidth(), colorImage.getHeight(), null, 0, colorImage.getWidth());
+        BufferedImage monochromeImage = getMonochromeImage();
+        int[] image_bytes = colorRamp;
 
         int[] image_bytes2 = monochromeImage.getRGB(0, 0, monochromeImage.getWidth(), monochromeImage.getHeight(), null, 0, monochromeImage.getWidth());
 
@@ -199,31 +262,27 @@ public class HeatMap {
         return biColorized;
     }
 
-    private static Image makeColorTransparent(BufferedImage im, final Color color) {
-        ImageFilter filter = new RGBImageFilter() {
-
-            // the color we are looking for... Alpha bits are set to opaque
-            public int markerRGB = color.getRGB() | 0xFF000000;
-
-            public final int filterRGB(int x, int y, int rgb) {
-                if ((rgb | 0xFF000000) == markerRGB) {
-                    // Mark the alpha bits as zero - transparent
-                    return 0x00FFFFFF & rgb;
-                    //return (rgb) | (rgb << 8) | (rgb << 16) | 0xff000000;
-                } else {
-                    // nothing to do
-                    return rgb;
-                }
+    /**
+     * Make the pixels of a colour transparent, in place.
+     */
+    private static BufferedImage makeColorTransparent(BufferedImage im, final Color color) {
+        // the color we are looking for... Alpha bits are set to opaque
+        int markerRGB = color.getRGB() | 0xFF000000;
+
+        int[] rgbs = im.getRGB(0, 0, im.getWidth(), im.getHeight(), null, 0, im.getWidth());
+        for (int i = 0; i < rgbs.length; i++) {
+            if ((rgbs[i] | 0xFF000000) == markerRGB) {
+                // Mark the alpha bits as zero - transparent
+                rgbs[i] = 0x00FFFFFF & rgbs[i];
             }
-        };
-
-        ImageProducer ip = new FilteredImageSource(im.getSource(), filter);
-        return Toolkit.getDefaultToolkit().createImage(ip);
+        }
+        im.setRGB(0, 0, im.getWidth(), im.getHeight(), rgbs, 0, im.getWidth());
+        return im;
     }
 
     private void addDotImage(Point p, Color pointColor) {
         //int circleRadius = dotImage.getWidth() / 2;
-        Graphics2D g = (Graphics2D) monochromeImage.getGraphics();
+        Graphics2D g = (Graphics2D) getMonochromeImage().getGraphics();
         float radius = 10f;
 
         Shape circle = new Ellipse2D.Float(p.x - (radius / 2), p.y - (radius / 2), radius, radius);
@@ -231,6 +290,7 @@ public class HeatMap {
         g.draw(circle);
         g.setPaint(pointColor);
         g.fill(circle);
+        g.dispose();
     }
 
     /**
@@ -249,29 +309,30 @@ public class HeatMap {
 
             //System.out.println("normalised: " + x + ", " + y);
             // ...and the map into our image size...
-            x = (x * backgroundImage.getWidth());
-            y = ((1 - y) * backgroundImage.getHeight());
+            x = (x * width);
+            y = ((1 - y) * height);
 
             //System.out.println("pixeled: " + x + ", " + y);
-            return new Point(new Double(x).intValue(), new Double(y).intValue());
+            return new Point((int) x, (int) y);
         } catch (Exception e) {
             logger.error("Exception with translating " + e.getMessage(), e);
         }
         return null;
     }
 
-    private void generateLogScaleCircle(int dPoints[][]) {
+    /**
+     * Draw the intensities on the monochrome image.
+     *
+     * @param dPoints intensity of each pixel, by row. The values are replaced by the pixel colours.
+     */
+    private void generateLogScaleCircle(int dPoints[]) {
         try {
 
             int maxValue = 0;
-            int width = monochromeImage.getWidth();
-            int height = monochromeImage.getHeight();
 
-            for (int mi = 0; mi < width; mi++) {
-                for (int mj = 0; mj < height; mj++) {
-                    if (maxValue < dPoints[mi][mj]) {
-                        maxValue = dPoints[mi][mj];
-                    }
+            for (int i = 0; i < dPoints.length; i++) {
+                if (maxValue < dPoints[i]) {
+                    maxValue = dPoints[i];
                 }
             }
 
@@ -282,22 +343,21 @@ public class HeatMap {
                 // we are doing "1" here to make sure nothing is 0
                 int roundFactor = 1;
 
-                for (int mi = 0; mi < width; mi++) {
-                    for (int mj = 0; mj < height; mj++) {
-                        int rgba = (int) (255 - Math.log(dPoints[mi][mj]) * 255 / Math.log((double) maxValue));
-                        if (rgba < 255 && rgba > 255 - (255 / numColours) - roundFactor) {
-                            rgba = 255 - (255 / numColours) - roundFactor;
-                        }
-                        //rgba <<= 8;
-                        //
-                        //rgba = (((short)rgba) & 0x000000ff) << 24;
-                        rgba = (rgba) | (rgba << 8) | (rgba << 16) | 0xff000000;
-                        //System.out.println("rgba: " + Integer.toHexString(rgba));
+                double logMaxValue = Math.log((double) maxValue);
 
-                        monochromeImage.setRGB(mi, mj, rgba);
+                for (int i = 0; i < dPoints.length; i++) {
+                    int rgba = (int) (255 - Math.log(dPoints[i]) * 255 / logMaxValue);
+                    if (rgba < 255 && rgba > 255 - (255 / numColours) - roundFactor) {
+                        rgba = 255 - (255 / numColours) - roundFactor;
                     }
+                    //rgba <<= 8;
+                    //
+                    //rgba = (((short)rgba) & 0x000000ff) << 24;
+                    dPoints[i] = (rgba) | (rgba << 8) | (rgba << 16) | 0xff000000;
                 }
 
+                getMonochromeImage().setRGB(0, 0, width, height, dPoints, 0, width);
+
                 generateLegend(maxValue);
             }
         } catch (Exception e) {
@@ -312,12 +372,10 @@ public class HeatMap {
      */
     public void generateClasses(double[] points) {
 
-        int width = backgroundImage.getWidth();
-        int height = backgroundImage.getHeight();
         //System.out.println("bounding box: " + minX + "," + minY + "," + maxX + "," + maxY);
         //System.out.println("Adding " + (v.length / 2) + " points to base image...");
         //System.out.println("Adding to base image...");
-        int dPoints[][] = new int[width][height];
+        int dPoints[] = acquireIntensityBuffer(width * height);
         for (int i = 0; i < points.length; i += 2) {
             double cx = points[i];
             double cy = points[i + 1];
@@ -329,18 +387,22 @@ public class HeatMap {
             for (int ci = (int) (p.x - radius); ci <= (p.x + radius); ci++) {
                 for (int cj = (int) (p.y - radius); cj <= (p.y + radius); cj++) {
                     if (ci >= 0 && ci < width && cj >= 0 && cj < height) {
-                        double d = Math.pow((p.x - ci), 2) + Math.pow((p.y - cj), 2);
+                        double d = (p.x - ci) * (p.x - ci) + (p.y - cj) * (p.y - cj);
                         if ((int) d <= pradius) {
                             // applying gradient to this circle so outer influence is low
                             // and at the peak it's maximum
-                            dPoints[ci][cj] += numColours - ((d * numColours) / pradius);
+                            dPoints[cj * width + ci] += numColours - ((d * numColours) / pradius);
                         }
                     }
                 }
             }
         }
 
-        generateLogScaleCircle(dPoints);
+        try {
+            generateLogScaleCircle(dPoints);
+        } finally {
+            releaseIntensityBuffer(dPoints);
+        }
     }
 
     public void generatePoints(double[] points, Color pointColour, String label) {
@@ -386,14 +448,8 @@ public class HeatMap {
 
         cg.setColor(Color.BLACK);
         //1.2em/1.6em Arial, Helvetica, sans-serif
-        Font font = new Font("SanSerif", Font.PLAIN, 11);
-        cg.setFont(font);
-
-        RenderingHints rh = new RenderingHints(
-                RenderingHints.KEY_TEXT_ANTIALIASING,
-                RenderingHints.VALUE_TEXT_ANTIALIAS_GASP
-        );
-        cg.setRenderingHints(rh);
+        cg.setFont(LEGEND_FONT);
+        cg.setRenderingHints(LEGEND_HINTS);
 
         cg.drawString(label, left, height + padding + (keyHeight / 2));
 
@@ -415,14 +471,8 @@ public class HeatMap {
         Graphics2D cg = (Graphics2D) legendImage.getGraphics();
         cg.setColor(Color.BLACK);
         //1.2em/1.6em Arial, Helvetica, sans-serif
-        Font font = new Font("SanSerif", Font.PLAIN, 11);
-        cg.setFont(font);
-
-        RenderingHints rh = new RenderingHints(
-                RenderingHints.KEY_TEXT_ANTIALIASING,
-                RenderingHints.VALUE_TEXT_ANTIALIAS_GASP
-                );
-        cg.setRenderingHints(rh);
+        cg.setFont(LEGEND_FONT);
+        cg.setRenderingHints(LEGEND_HINTS);
 
         int padding = 10; // 10px padding around the image
         int keyHeight = 30; // 30px key height
@@ -474,11 +524,13 @@ public class HeatMap {
             if (colorize) {
                 heatmapImage = doColorize();
             } else {
-                heatmapImage = monochromeImage;
+                heatmapImage = getMonochromeImage();
             }
 
+            backgroundImage = copyImage(baseBackgroundImage);
             Graphics2D g = (Graphics2D) backgroundImage.getGraphics();
             g.drawImage(makeColorTransparent(heatmapImage, Color.WHITE), 0, 0, null);
+            g.dispose();
 
             File hmOut = new File(outputFilePath);
             ImageIO.write(backgroundImage, "png", hmOut);
@@ -26,8 +26,10 @@ import au.org.ala.biocache.dto.IndexFieldDTO;
 import au.org.ala.biocache.dto.QualityFilterDTO;
 import au.org.ala.biocache.stream.OptionalZipOutputStream;
 import au.org.ala.biocache.util.AlaFileUtils;
+import au.org.ala.biocache.util.SharedDownloadExecutions;
 import au.org.ala.biocache.util.thread.DownloadControlThread;
 import au.org.ala.biocache.util.thread.DownloadCreator;
+import au.org.ala.biocache.util.thread.DownloadScheduler;
 import au.org.ala.biocache.writer.RecordWriterException;
 import au.org.ala.doi.CreateDoiResponse;
 import com.google.common.annotations.VisibleForTesting;
@@ -99,6 +101,10 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
     private static final String MY_DOWNLOADS_URL = "[myDownloadsUrl]";
     private static final String HUB_NAME = "[hubName]";
 
+    /** Params of a download request that do not change the records of the download */
+    private static final Set<String> SHARED_DOWNLOAD_IGNORED_PARAMS = new HashSet<String>(Arrays.asList(
+            "email", "reason", "file", "reasonTypeId", "sourceTypeId", "emailNotify", "formattedQuery"));
+
     protected static final Logger logger = Logger.getLogger(DownloadService.class);
     /**
      * Download threads for matching subsets of offline downloads.
@@ -239,6 +245,30 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
     @Value("${download.offline.parallelquery.maxthreads:30}")
     protected Integer maxOfflineParallelQueryDownloadThreads = 30;
 
+    /** Number of threads compressing zipped downloads in parallel. When 0 each download is compressed by its writer thread */
+    @Value("${download.compression.threads:0}")
+    protected Integer compressionThreads = 0;
+
+    /** Default zip compression level, -1 to 9, for downloads from pools without a compressionLevel */
+    @Value("${download.compression.level:-1}")
+    protected Integer compressionLevel = -1;
+
+    /** Checkpoint offline index downloads so that they resume from their progress after a restart */
+    @Value("${download.checkpoint.enabled:false}")
+    protected Boolean checkpointEnabled = false;
+
+    /** Run identical offline index downloads once, writing the records into each download */
+    @Value("${download.shared.enabled:false}")
+    protected Boolean sharedDownloadsEnabled = false;
+
+    /** Run the queued downloads of the requesters with the lowest estimated cost of running downloads first */
+    @Value("${download.scheduler.fairshare:true}")
+    protected Boolean schedulerFairShare = true;
+
+    /** Run the downloads of busy pools on idle pools of the same type */
+    @Value("${download.scheduler.lend:true}")
+    protected Boolean schedulerLendCapacity = true;
+
     /** restrict the size of files in a zip */
     @Value("${zip.file.size.mb.max:4000}")
     public Integer maxMB;
@@ -340,6 +370,11 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
     private final Queue<DownloadControlThread> runningDownloadControlRunnables = new LinkedBlockingQueue<>();
 
     private volatile ExecutorService offlineParallelQueryExecutor;
+    private volatile ExecutorService compressionExecutor;
+
+    private volatile SharedDownloadExecutions sharedDownloads;
+
+    private volatile DownloadScheduler downloadScheduler;
 
     @PostConstruct
     public void init() throws ParseException {
@@ -357,6 +392,8 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                         ExecutorService nextParallelExecutor = getOfflineThreadPoolExecutor();
                         // Create the implementation for the threads running in the DownloadControlThread
                         DownloadCreator nextDownloadCreator = getNewDownloadCreator();
+                        // Shared by the DownloadControlThreads to choose their next download
+                        downloadScheduler = new DownloadScheduler(persistentQueueDAO, schedulerFairShare, schedulerLendCapacity);
                         // Create executors based on the concurrent.downloads.json property
                         try {
                             JSONParser jp = new JSONParser();
@@ -370,6 +407,7 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                                 Long pollDelayMs = jo.containsKey("pollDelay") ? (Long) jo.get("pollDelay") : null;
                                 Long executionDelayMs = jo.containsKey("executionDelay") ? (Long) jo.get("executionDelay") : null;
                                 Integer threadPriority = jo.containsKey("threadPriority") ? ((Long) jo.get("threadPriority")).intValue() : Thread.NORM_PRIORITY;
+                                Integer poolCompressionLevel = jo.containsKey("compressionLevel") ? ((Long) jo.get("compressionLevel")).intValue() : null;
                                 DownloadType dt = null;
                                 if (type != null) {
                                     dt = "index".equals(type) ? DownloadType.RECORDS_INDEX : DownloadType.RECORDS_DB;
@@ -381,7 +419,7 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                                 nextThreadName += (dt == null ? "alltypes" : dt.name()) + "-";
                                 nextThreadName += "poolsize-" + threads;
 
-                                DownloadControlThread nextRunnable = new DownloadControlThread(nextThreadName, maxRecords, dt, threads, pollDelayMs, executionDelayMs, threadPriority, currentDownloads, nextDownloadCreator, persistentQueueDAO, nextParallelExecutor);
+                                DownloadControlThread nextRunnable = new DownloadControlThread(nextThreadName, maxRecords, dt, threads, pollDelayMs, executionDelayMs, threadPriority, poolCompressionLevel, currentDownloads, nextDownloadCreator, persistentQueueDAO, nextParallelExecutor, downloadScheduler);
                                 Thread nextThread = new Thread(nextRunnable);
                                 nextThread.setName(nextThreadName);
                                 // Control threads need to wakeup regularly to check for new downloads
@@ -404,10 +442,12 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                                     0L,
                                     0L,
                                     Thread.NORM_PRIORITY,
+                                    null,
                                     currentDownloads,
                                     nextDownloadCreator,
                                     persistentQueueDAO,
-                                    nextParallelExecutor
+                                    nextParallelExecutor,
+                                    downloadScheduler
                             );
                             Thread nextThread = new Thread(nextRunnable);
                             String nextThreadName = "biocache-download-control-";
@@ -460,6 +500,75 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
         return nextExecutor;
     }
 
+    /**
+     * @return An instance of ExecutorService used to compress zipped downloads in parallel, or null when disabled or
+     * after the context is closed.
+     */
+    private ExecutorService getCompressionExecutor() {
+        if (compressionThreads == null || compressionThreads <= 0) {
+            return null;
+        }
+        ExecutorService nextExecutor = compressionExecutor;
+        if(nextExecutor == null){
+            synchronized(this) {
+                nextExecutor = compressionExecutor;
+                if(nextExecutor == null && !closed.get()) {
+                    nextExecutor = compressionExecutor = Executors.newFixedThreadPool(
+                                                                compressionThreads,
+                                                                new ThreadFactoryBuilder().setNameFormat("biocache-download-compression-%d")
+                                                                .setDaemon(true).build());
+                }
+            }
+        }
+        return nextExecutor;
+    }
+
+    private SharedDownloadExecutions getSharedDownloads() {
+        SharedDownloadExecutions nextSharedDownloads = sharedDownloads;
+        if (nextSharedDownloads == null) {
+            synchronized (this) {
+                nextSharedDownloads = sharedDownloads;
+                if (nextSharedDownloads == null) {
+                    nextSharedDownloads = sharedDownloads = new SharedDownloadExecutions();
+                }
+            }
+        }
+        return nextSharedDownloads;
+    }
+
+    /**
+     * Identifies the offline index downloads that have the same records, ignoring the params of the requester
+     * such as the email, reason and file name.
+     *
+     * @return the key, or null when the records of the download are not shared
+     */
+    String getSharedDownloadKey(DownloadDetailsDTO dd, DownloadRequestParams requestParams, boolean includeSensitive,
+                                boolean fromIndex, boolean limit, boolean zip) {
+        if (!sharedDownloadsEnabled || !fromIndex || limit || !zip || dd.getFileLocation() == null
+                || "shp".equals(requestParams.getFileType())) {
+            return null;
+        }
+
+        List<String> params = new ArrayList<String>();
+        for (String param : requestParams.getEncodedParams().split("&")) {
+            String name = param.substring(0, Math.max(0, param.indexOf('=')));
+            if (!SHARED_DOWNLOAD_IGNORED_PARAMS.contains(name)) {
+                params.add(param);
+            }
+        }
+        // the order of the filter queries does not change the records
+        Collections.sort(params);
+
+        return StringUtils.join(params, "&") +
+                "|sep=" + requestParams.getSep() +
+                "|esc=" + requestParams.getEsc() +
+                "|layersServiceUrl=" + requestParams.getLayersServiceUrl() +
+                "|customHeader=" + requestParams.getCustomHeader() +
+                "|includeSensitive=" + includeSensitive +
+                "|sensitiveFq=" + dd.getSensitiveFq() +
+                "|indexVersion=" + searchDAO.getIndexVersion(false);
+    }
+
     private int getMaxOfflineParallelDownloadThreads() {
         return maxOfflineParallelQueryDownloadThreads;
     }
@@ -514,6 +623,13 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                         }
                     }
                 }
+
+                // Stop the compression threads, downloads that are still writing fail on the next block
+                synchronized(this) {
+                    if(compressionExecutor != null) {
+                        compressionExecutor.shutdownNow();
+                    }
+                }
             }
         }
     }
@@ -535,6 +651,17 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
         return dd;
     }
 
+    /**
+     * Adds a download to the offline queue, waking the download threads that are waiting for a download.
+     *
+     * @param dd
+     */
+    public void queueDownload(DownloadDetailsDTO dd) {
+        afterInitialisation();
+        persistentQueueDAO.addDownloadToQueue(dd);
+        downloadScheduler.signal();
+    }
+
     /**
      * Removes a completed download from active list.
      *
@@ -606,10 +733,11 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
         // Use a zip output stream to include the data and citation together in
         // the download.
         // Note: When producing a shp the output will stream a csv followed by a zip.
+        int level = dd.getCompressionLevel() != null ? dd.getCompressionLevel() : compressionLevel;
         try(OptionalZipOutputStream sp = new OptionalZipOutputStream(
-                zip ? OptionalZipOutputStream.Type.zipped : OptionalZipOutputStream.Type.unzipped, new CloseShieldOutputStream(out), maxMB);) {
+                zip ? OptionalZipOutputStream.Type.zipped : OptionalZipOutputStream.Type.unzipped, new CloseShieldOutputStream(out), maxMB,
+                level, getCompressionExecutor(), compressionThreads);) {
             String suffix = requestParams.getFileType().equals("shp") ? "csv" : requestParams.getFileType();
-            sp.putNextEntry(filename + "." + suffix);
             // put the facets
             if ("all".equals(requestParams.getQa())) {
                 requestParams.setFacets(new String[] { "assertions", "data_resource_uid" });
@@ -618,13 +746,27 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
             }
             
             final ConcurrentMap<String, AtomicInteger> uidStats;
-            if (fromIndex) {
-                uidStats = searchDAO.writeResultsFromIndexToStream(requestParams, sp, includeSensitive, dd, limit, parallelExecutor);
+            String sharedKey = getSharedDownloadKey(dd, requestParams, includeSensitive, fromIndex, limit, zip);
+            if (sharedKey != null) {
+                // identical downloads that are running at the same time share one query
+                final DownloadRequestParams sharedParams = requestParams;
+                final ExecutorService sharedExecutor = parallelExecutor;
+                uidStats = getSharedDownloads().write(sharedKey, dd, sp, filename + "." + suffix, new SharedDownloadExecutions.Records() {
+                    @Override
+                    public ConcurrentMap<String, AtomicInteger> write(OptionalZipOutputStream out, DownloadDetailsDTO runningDownload) throws Exception {
+                        return searchDAO.writeResultsFromIndexToStream(sharedParams, out, includeSensitive, runningDownload, false, sharedExecutor);
+                    }
+                });
             } else {
-                uidStats = searchDAO.writeResultsToStream(requestParams, sp, 100, includeSensitive, dd, limit);
-            }
+                sp.putNextEntry(filename + "." + suffix);
+                if (fromIndex) {
+                    uidStats = searchDAO.writeResultsFromIndexToStream(requestParams, sp, includeSensitive, dd, limit, parallelExecutor);
+                } else {
+                    uidStats = searchDAO.writeResultsToStream(requestParams, sp, 100, includeSensitive, dd, limit);
+                }
 
-            sp.closeEntry();
+                sp.closeEntry();
+            }
 
             // add the readme for the Shape file header mappings if necessary
             if (dd.getHeaderMap() != null) {
@@ -1380,6 +1522,10 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                             if(mintDoi) {
                                 doiResponseList = new ArrayList<>();
                             }
+                            // the checkpoint is kept until the download is removed from the queue
+                            if (checkpointEnabled && currentDownload.getDownloadType() == DownloadType.RECORDS_INDEX) {
+                                currentDownload.setCheckpointDirectory(persistentQueueDAO.getCheckpointDirectory(currentDownload).getPath());
+                            }
                             writeQueryToStream(currentDownload, currentDownload.getRequestParams(),
                                     currentDownload.getIpAddress(), new CloseShieldOutputStream(fos), currentDownload.getIncludeSensitive(),
                                     currentDownload.getDownloadType() == DownloadType.RECORDS_INDEX, false, true, parallelExecutor, doiResponseList);
@@ -34,6 +34,8 @@ import javax.validation.constraints.NotNull;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 
 /**
@@ -56,6 +58,9 @@ public class ListsService {
     @Value("${list.tool.url:https://lists.ala.org.au}")
     private String speciesListUrl;
 
+    // interval index over the KVP data of each species list, replaced whenever getKvp loads the list
+    private final ConcurrentMap<String, KvpIndex> kvpIndexes = new ConcurrentHashMap<>();
+
     private Map<String, Map<String, Set<String>>> data = RestartDataService.get(this, "data", new TypeReference<HashMap<String, Map<String, Set<String>>>>(){}, HashMap.class);
 
     @PostConstruct
@@ -190,10 +195,33 @@ public class ListsService {
 
         if (list.size() > 0) {
             list.sort(Kvp.KvpComparator);
+            kvpIndexes.put(dataResourceUid, new KvpIndex(list));
             return list;
         } else {
+            kvpIndexes.remove(dataResourceUid);
+            return null;
+        }
+    }
+
+    /**
+     * Get the interval index over species list KVP data.
+     * <p>
+     * The index is built when getKvp loads the list and is rebuilt if kvps is not the list it was built from.
+     *
+     * @param dataResourceUid species list data resource uid
+     * @param kvps            KVP data returned by getKvp(dr)
+     * @return index for finding the list item of a taxon, or null when the list has no KVP data
+     */
+    public KvpIndex getKvpIndex(String dataResourceUid, List<Kvp> kvps) {
+        if (kvps == null || kvps.isEmpty()) {
             return null;
         }
+        KvpIndex index = kvpIndexes.get(dataResourceUid);
+        if (index == null || index.kvps != kvps) {
+            index = new KvpIndex(kvps);
+            kvpIndexes.put(dataResourceUid, index);
+        }
+        return index;
     }
 
     public List<String> getTypes() {
@@ -312,6 +340,122 @@ public class ListsService {
         }
     }
 
+    /**
+     * Interval index over the lft rgt values of species list items.
+     * <p>
+     * Items are sorted by lft, then by rgt descending, with a max tree over rgt. The item for a taxon is the last item,
+     * in this order, that contains the taxon lft rgt, which is found in O(log n) without scanning.
+     * This is the same item as {@link #find(List, Kvp)}.
+     */
+    public static class KvpIndex {
+        private final List<Kvp> kvps;
+        private final List<Kvp> sorted;
+        private final long[] lft;
+        private final long[] rgt;
+        private final long[] maxRgt;
+        private final int leaves;
+
+        public KvpIndex(List<Kvp> kvps) {
+            this.kvps = kvps;
+            List<Kvp> sortedKvps = new ArrayList<>(kvps);
+            sortedKvps.sort(Kvp.KvpComparator);
+            this.sorted = sortedKvps;
+
+            int size = sortedKvps.size();
+            lft = new long[size];
+            rgt = new long[size];
+            for (int i = 0; i < size; i++) {
+                lft[i] = sortedKvps.get(i).lft;
+                rgt[i] = sortedKvps.get(i).rgt;
+            }
+
+            int n = 1;
+            while (n < size) {
+                n <<= 1;
+            }
+            leaves = n;
+            maxRgt = new long[2 * n];
+            Arrays.fill(maxRgt, Long.MIN_VALUE);
+            System.arraycopy(rgt, 0, maxRgt, n, size);
+            for (int i = n - 1; i > 0; i--) {
+                maxRgt[i] = Math.max(maxRgt[2 * i], maxRgt[2 * i + 1]);
+            }
+        }
+
+        /**
+         * @return the list item that contains the lft rgt values, or null
+         */
+        public Kvp find(long taxonLft, long taxonRgt) {
+            // items before position are ordered at or before the taxon so have lft <= taxonLft
+            int low = 0;
+            int high = lft.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (lft[mid] < taxonLft || (lft[mid] == taxonLft && rgt[mid] >= taxonRgt)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            int idx = lastCovering(1, 0, leaves - 1, low - 1, taxonRgt);
+            return idx >= 0 ? sorted.get(idx) : null;
+        }
+
+        /**
+         * @return the last index <= last in the subtree of node with rgt >= taxonRgt, or -1
+         */
+        private int lastCovering(int node, int nodeLow, int nodeHigh, int last, long taxonRgt) {
+            if (nodeLow > last || maxRgt[node] < taxonRgt) {
+                return -1;
+            }
+            if (nodeLow == nodeHigh) {
+                return nodeLow;
+            }
+            int mid = (nodeLow + nodeHigh) >>> 1;
+            int idx = lastCovering(2 * node + 1, mid + 1, nodeHigh, last, taxonRgt);
+            if (idx < 0) {
+                idx = lastCovering(2 * node, nodeLow, mid, last, taxonRgt);
+            }
+            return idx;
+        }
+    }
+
+    /**
+     * The selected species list fields of a download with the KvpIndex of each list, so that all of the fields of
+     * a record are found with one lookup for each list.
+     */
+    public static class KvpColumns {
+        private final KvpIndex[] indexes;
+        private final int[] starts;
+
+        /**
+         * @param indexes the index of each list, null for a list without KVP data
+         * @param starts  the position of the first field of each list, followed by the number of fields
+         */
+        public KvpColumns(KvpIndex[] indexes, int[] starts) {
+            this.indexes = indexes;
+            this.starts = starts;
+        }
+
+        /**
+         * Set the species list field values for a taxon.
+         *
+         * @param lft    taxon lft
+         * @param rgt    taxon rgt
+         * @param values the record values
+         * @param offset position of the first species list field in values
+         */
+        public void getValues(long lft, long rgt, String[] values, int offset) {
+            for (int list = 0; list < indexes.length; list++) {
+                Kvp kvp = indexes[list] != null ? indexes[list].find(lft, rgt) : null;
+                for (int i = starts[list]; i < starts[list + 1]; i++) {
+                    int idx = i - starts[list];
+                    values[offset + i] = kvp != null && kvp.values != null && idx < kvp.values.size() ? kvp.values.get(idx) : "";
+                }
+            }
+        }
+    }
+
     public static class SpeciesListSearchDTO {
         public int listCount;
         public String sort;
@@ -0,0 +1,171 @@
+package au.org.ala.biocache.stream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * A buffered Writer that encodes UTF-8 directly into its byte buffer and counts the bytes encoded.
+ *
+ * Strings are encoded without intermediate char[] or byte[] copies. Unpaired surrogates are replaced with '?',
+ * the same as {@link String#getBytes(java.nio.charset.Charset)}.
+ *
+ * Not thread safe, each instance must only be used by one thread at a time.
+ */
+public class CountingUtf8Writer extends Writer {
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int position;
+    private long bytesWritten;
+
+    // a high surrogate waiting for the low surrogate in the next char
+    private char highSurrogate;
+    private boolean closed;
+
+    public CountingUtf8Writer(OutputStream out) {
+        this(out, 8192);
+    }
+
+    public CountingUtf8Writer(OutputStream out, int bufferSize) {
+        this.out = out;
+        // the largest character is 4 bytes
+        this.buffer = new byte[Math.max(bufferSize, 4)];
+    }
+
+    /**
+     * @return the number of bytes encoded, including bytes that are still buffered
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        encode((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            char c = cbuf[i];
+            if (c < 0x80 && highSurrogate == 0) {
+                if (position == buffer.length) {
+                    flushBuffer();
+                }
+                buffer[position++] = (byte) c;
+                bytesWritten++;
+            } else {
+                encode(c);
+            }
+        }
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        write(str, 0, str.length());
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80 && highSurrogate == 0) {
+                if (position == buffer.length) {
+                    flushBuffer();
+                }
+                buffer[position++] = (byte) c;
+                bytesWritten++;
+            } else {
+                encode(c);
+            }
+        }
+    }
+
+    private void encode(char c) throws IOException {
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                ensureCapacity(4);
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                bytesWritten += 4;
+                return;
+            }
+            replacement();
+        }
+
+        if (c < 0x80) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) c;
+            bytesWritten++;
+        } else if (c < 0x800) {
+            ensureCapacity(2);
+            buffer[position++] = (byte) (0xC0 | (c >> 6));
+            buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            bytesWritten += 2;
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            replacement();
+        } else {
+            ensureCapacity(3);
+            buffer[position++] = (byte) (0xE0 | (c >> 12));
+            buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            bytesWritten += 3;
+        }
+    }
+
+    private void replacement() throws IOException {
+        ensureCapacity(1);
+        buffer[position++] = (byte) '?';
+        bytesWritten++;
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (position + length > buffer.length) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    /**
+     * Writes the buffered bytes and flushes the OutputStream. A trailing high surrogate remains pending.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                replacement();
+            }
+            flushBuffer();
+        } finally {
+            closed = true;
+            out.close();
+        }
+    }
+}
@@ -5,10 +5,14 @@ import au.org.ala.biocache.writer.RecordWriterError;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
 import java.util.zip.ZipOutputStream;
 
 /**
  * An OutputStream that will write ZipOutputStream entries or file name separated unzipped output.
+ *
+ * When an ExecutorService is provided the zipped output is compressed in parallel by a {@link ParallelZipOutputStream}.
  */
 public class OptionalZipOutputStream extends OutputStream {
 
@@ -21,10 +25,13 @@ public class OptionalZipOutputStream extends OutputStream {
     private Type type;
     private OutputStream out;
     private ZipOutputStream zop;
+    private ParallelZipOutputStream pzop;
+    private OutputStream zipOut;
     private String currentEntry;
     private long currentEntryLength;
     private int splitCount;
     private Integer maxMB;
+    private long bytesWritten;
 
     /**
      * Determine when a file has reached the maxMB.
@@ -48,7 +55,7 @@ public class OptionalZipOutputStream extends OutputStream {
 
                 splitCount++;
                 String[] parts = currentEntry.split("\\.(?=[^\\.]+$)");
-                zop.putNextEntry(new java.util.zip.ZipEntry(parts[0] + "_part" + splitCount + "." + parts[1]));
+                putZipEntry(parts[0] + "_part" + splitCount + "." + parts[1]);
                 isNewFile = true;
             }
         }
@@ -56,12 +63,41 @@ public class OptionalZipOutputStream extends OutputStream {
     }
 
     public OptionalZipOutputStream(Type type, OutputStream out, Integer maxZipFileMB) {
+        this(type, out, maxZipFileMB, Deflater.DEFAULT_COMPRESSION, null, 0);
+    }
+
+    /**
+     * @param type                 zipped or unzipped
+     * @param out                  the underlying output
+     * @param maxZipFileMB         the uncompressed size at which a zip entry is split into a new _partN entry
+     * @param compressionLevel     the deflate compression level, -1 for the default
+     * @param compressionExecutor  when not null, the ExecutorService used to compress blocks in parallel
+     * @param compressionThreads   the number of threads of compressionExecutor
+     */
+    public OptionalZipOutputStream(Type type, OutputStream out, Integer maxZipFileMB, int compressionLevel,
+                                   ExecutorService compressionExecutor, int compressionThreads) {
         this.type = type;
         this.out = out;
         this.maxMB = maxZipFileMB;
 
         if (type == Type.zipped) {
-            zop = new ZipOutputStream(out);
+            if (compressionExecutor != null) {
+                // entries are split at maxZipFileMB, so Zip64 entries are only needed when that may exceed 4GB
+                boolean zip64 = maxZipFileMB == null || maxZipFileMB * 1024L * 1024L >= 0xFFFFFFFFL;
+                zipOut = pzop = new ParallelZipOutputStream(out, compressionExecutor, compressionLevel, compressionThreads,
+                        ParallelZipOutputStream.DEFAULT_BLOCK_SIZE, zip64);
+            } else {
+                zipOut = zop = new ZipOutputStream(out);
+                zop.setLevel(compressionLevel);
+            }
+        }
+    }
+
+    private void putZipEntry(String name) throws IOException {
+        if (pzop != null) {
+            pzop.putNextEntry(name);
+        } else {
+            zop.putNextEntry(new java.util.zip.ZipEntry(name));
         }
     }
 
@@ -71,7 +107,7 @@ public class OptionalZipOutputStream extends OutputStream {
         splitCount = 1;
 
         if (type == Type.zipped) {
-            zop.putNextEntry(new java.util.zip.ZipEntry(name));
+            putZipEntry(name);
         } else {
             out.write(UNZIPPED_ENTRY_SEPARATOR.getBytes(StandardCharsets.UTF_8));
             out.write((name + "\n").getBytes(StandardCharsets.UTF_8));
@@ -80,7 +116,11 @@ public class OptionalZipOutputStream extends OutputStream {
 
     public void closeEntry() throws IOException {
         if (type == Type.zipped) {
-            zop.closeEntry();
+            if (pzop != null) {
+                pzop.closeEntry();
+            } else {
+                zop.closeEntry();
+            }
         } else {
             out.write("\n".getBytes(StandardCharsets.UTF_8));
         }
@@ -88,8 +128,9 @@ public class OptionalZipOutputStream extends OutputStream {
 
     @Override
     public void write(int b) throws IOException {
+        bytesWritten++;
         if (type == Type.zipped) {
-            zop.write(b);
+            zipOut.write(b);
         } else {
             out.write(b);
         }
@@ -97,17 +138,23 @@ public class OptionalZipOutputStream extends OutputStream {
 
     @Override
     public void write(byte [] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte [] b, int off, int len) throws IOException {
+        bytesWritten += len;
         if (type == Type.zipped) {
-            zop.write(b);
+            zipOut.write(b, off, len);
         } else {
-            out.write(b);
+            out.write(b, off, len);
         }
     }
 
     @Override
     public void close() throws IOException {
         if (type == Type.zipped) {
-            zop.close();
+            zipOut.close();
         } else {
             out.close();
         }
@@ -116,7 +163,7 @@ public class OptionalZipOutputStream extends OutputStream {
     @Override
     public void flush() throws IOException {
         if (type == Type.zipped) {
-            zop.flush();
+            zipOut.flush();
         } else {
             out.flush();
         }
@@ -130,4 +177,11 @@ public class OptionalZipOutputStream extends OutputStream {
         return currentEntry;
     }
 
+    /**
+     * @return the number of uncompressed bytes written to all entries
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
 }
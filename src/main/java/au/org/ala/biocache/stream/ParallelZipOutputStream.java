@@ -0,0 +1,587 @@
+package au.org.ala.biocache.stream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * A zip writer that deflates the data of each entry in independent blocks on an ExecutorService, in the same way as pigz.
+ *
+ * Each block is compressed with the last 32KB of the previous block as its dictionary and ends with a sync flush,
+ * so the concatenated blocks form a single deflate stream. Only the last block of an entry is finished.
+ * The CRC of each block is calculated on the worker and combined into the CRC of the entry.
+ *
+ * Entries are written with a data descriptor. When entries may exceed 4GB the local header of each entry has a Zip64
+ * extra field and the data descriptor has 8 byte sizes, otherwise an entry that exceeds 4GB fails. Zip64 records are
+ * used in the central directory when sizes or offsets require them.
+ */
+public class ParallelZipOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final long LOCSIG = 0x04034b50L;
+    private static final long EXTSIG = 0x08074b50L;
+    private static final long CENSIG = 0x02014b50L;
+    private static final long ENDSIG = 0x06054b50L;
+    private static final long ZIP64_ENDSIG = 0x06064b50L;
+    private static final long ZIP64_LOCSIG = 0x07064b50L;
+    private static final long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGICCOUNT = 0xFFFF;
+    private static final int ZIP64_EXTID = 0x0001;
+
+    // data descriptor follows the data, names are UTF-8
+    private static final int FLAG = 0x0008 | 0x0800;
+    private static final int DEFLATED = 8;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int level;
+    private final int blockSize;
+    private final int maxPendingBlocks;
+    private final boolean zip64;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final Deque<Future<DeflatedBlock>> pending = new ArrayDeque<>();
+
+    // The idle deflaters of the blocks of this stream, ended when the stream is closed. Guarded by itself.
+    private final Deque<Deflater> deflaters = new ArrayDeque<>();
+    private boolean deflatersEnded;
+
+    private Entry current;
+    private byte[] block;
+    private int blockLength;
+    private byte[] previousBlock;
+    private int previousLength;
+    private long written;
+    private boolean closed;
+
+    /**
+     * @param out         the output for the zip file
+     * @param executor    the ExecutorService that compresses the blocks
+     * @param level       the deflate compression level, -1 for the default
+     * @param parallelism the number of threads expected to be compressing, used to limit the blocks held in memory
+     */
+    public ParallelZipOutputStream(OutputStream out, ExecutorService executor, int level, int parallelism) {
+        this(out, executor, level, parallelism, DEFAULT_BLOCK_SIZE, false);
+    }
+
+    /**
+     * @param out         the output for the zip file
+     * @param executor    the ExecutorService that compresses the blocks
+     * @param level       the deflate compression level, -1 for the default
+     * @param parallelism the number of threads expected to be compressing, used to limit the blocks held in memory
+     * @param blockSize   the uncompressed size of each block
+     * @param zip64       true when entries may exceed 4GB
+     */
+    public ParallelZipOutputStream(OutputStream out, ExecutorService executor, int level, int parallelism, int blockSize,
+                                   boolean zip64) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.out = out;
+        this.executor = executor;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxPendingBlocks = Math.max(2, parallelism * 2);
+        this.zip64 = zip64;
+    }
+
+    /**
+     * Begin a new entry, closing the current entry.
+     *
+     * @param name entry name
+     * @throws IOException
+     */
+    public void putNextEntry(String name) throws IOException {
+        ensureOpen();
+        if (current != null) {
+            closeEntry();
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xFFFF) {
+            throw new ZipException("Entry name too long: " + name);
+        }
+
+        current = new Entry(nameBytes, written, dosTime());
+        entries.add(current);
+
+        writeInt(LOCSIG);
+        writeShort(zip64 ? 45 : 20);
+        writeShort(FLAG);
+        writeShort(DEFLATED);
+        writeInt(current.dosTime);
+        // crc and sizes are in the data descriptor
+        writeInt(0);
+        if (zip64) {
+            writeInt(ZIP64_MAGICVAL);
+            writeInt(ZIP64_MAGICVAL);
+        } else {
+            writeInt(0);
+            writeInt(0);
+        }
+        writeShort(nameBytes.length);
+        writeShort(zip64 ? 20 : 0);
+        writeBytes(nameBytes, 0, nameBytes.length);
+        if (zip64) {
+            writeShort(ZIP64_EXTID);
+            writeShort(16);
+            writeLong(0);
+            writeLong(0);
+        }
+    }
+
+    /**
+     * Compress the remaining data and write the data descriptor of the current entry.
+     *
+     * @throws IOException
+     */
+    public void closeEntry() throws IOException {
+        ensureOpen();
+        if (current == null) {
+            return;
+        }
+        submitBlock(true);
+        while (!pending.isEmpty()) {
+            writeBlock(pending.removeFirst());
+        }
+
+        writeInt(EXTSIG);
+        writeInt(current.crc);
+        if (zip64) {
+            writeLong(current.csize);
+            writeLong(current.size);
+        } else if (current.csize >= ZIP64_MAGICVAL || current.size >= ZIP64_MAGICVAL) {
+            throw new ZipException("Entry too large without Zip64: " + new String(current.name, StandardCharsets.UTF_8));
+        } else {
+            writeInt(current.csize);
+            writeInt(current.size);
+        }
+
+        current = null;
+        previousBlock = null;
+        previousLength = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (current == null) {
+            throw new ZipException("no current ZIP entry");
+        }
+        if (block == null) {
+            block = new byte[blockSize];
+            blockLength = 0;
+        }
+        block[blockLength++] = (byte) b;
+        if (blockLength == blockSize) {
+            submitBlock(false);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (current == null) {
+            throw new ZipException("no current ZIP entry");
+        }
+        while (len > 0) {
+            if (block == null) {
+                block = new byte[blockSize];
+                blockLength = 0;
+            }
+            int n = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == blockSize) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Flushes the compressed blocks that have been written. Partially filled blocks are not compressed early.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            closeEntry();
+            writeCentralDirectory();
+            out.flush();
+        } finally {
+            closed = true;
+            for (Future<DeflatedBlock> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            endDeflaters();
+            out.close();
+        }
+    }
+
+    private Deflater borrowDeflater() {
+        synchronized (deflaters) {
+            Deflater deflater = deflaters.pollFirst();
+            if (deflater != null) {
+                return deflater;
+            }
+        }
+        return new Deflater(level, true);
+    }
+
+    /**
+     * Keep a deflater for the next block, or end it when the stream is closed.
+     */
+    private void returnDeflater(Deflater deflater) {
+        synchronized (deflaters) {
+            if (!deflatersEnded) {
+                deflaters.addFirst(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    /**
+     * End the idle deflaters, releasing their native memory. The deflaters of the blocks that are still being
+     * compressed are ended when they are returned.
+     */
+    private void endDeflaters() {
+        synchronized (deflaters) {
+            deflatersEnded = true;
+            for (Deflater deflater : deflaters) {
+                deflater.end();
+            }
+            deflaters.clear();
+        }
+    }
+
+    /**
+     * @return the number of deflaters kept for the next blocks
+     */
+    int getIdleDeflaters() {
+        synchronized (deflaters) {
+            return deflaters.size();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void submitBlock(final boolean last) throws IOException {
+        final byte[] input = block != null ? block : new byte[0];
+        final int inputLength = blockLength;
+        final byte[] dictionary = previousBlock;
+        final int dictionaryLength = previousLength;
+
+        try {
+            pending.add(executor.submit(new Callable<DeflatedBlock>() {
+                @Override
+                public DeflatedBlock call() {
+                    Deflater deflater = borrowDeflater();
+                    try {
+                        return deflate(deflater, input, inputLength, dictionary, dictionaryLength, last);
+                    } finally {
+                        returnDeflater(deflater);
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Compression stopped for " + new String(current.name, StandardCharsets.UTF_8), e);
+        }
+
+        previousBlock = input;
+        previousLength = inputLength;
+        block = null;
+        blockLength = 0;
+
+        // Write the completed blocks in order, waiting when too many blocks are held in memory
+        while (!pending.isEmpty() && (pending.size() > maxPendingBlocks || pending.peekFirst().isDone())) {
+            writeBlock(pending.removeFirst());
+        }
+    }
+
+    private void writeBlock(Future<DeflatedBlock> future) throws IOException {
+        DeflatedBlock deflated;
+        try {
+            deflated = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing " + new String(current.name, StandardCharsets.UTF_8));
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress " + new String(current.name, StandardCharsets.UTF_8), e.getCause());
+        }
+        writeBytes(deflated.data, 0, deflated.length);
+        current.crc = crc32Combine(current.crc, deflated.crc, deflated.inputLength);
+        current.size += deflated.inputLength;
+        current.csize += deflated.length;
+    }
+
+    static DeflatedBlock deflate(Deflater deflater, byte[] input, int length, byte[] dictionary, int dictionaryLength, boolean last) {
+        deflater.reset();
+        if (dictionary != null && dictionaryLength > 0) {
+            int n = Math.min(DICTIONARY_SIZE, dictionaryLength);
+            deflater.setDictionary(dictionary, dictionaryLength - n, n);
+        }
+        deflater.setInput(input, 0, length);
+
+        byte[] output = new byte[Math.max(64, length / 2)];
+        int outputLength = 0;
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (outputLength == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+            }
+        } else {
+            // A sync flush is complete when it does not fill the available output
+            while (true) {
+                if (outputLength == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                outputLength += deflater.deflate(output, outputLength, output.length - outputLength, Deflater.SYNC_FLUSH);
+                if (outputLength < output.length) {
+                    break;
+                }
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(input, 0, length);
+        return new DeflatedBlock(output, outputLength, crc.getValue(), length);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long cdStart = written;
+        for (Entry e : entries) {
+            boolean zip64 = e.size >= ZIP64_MAGICVAL || e.csize >= ZIP64_MAGICVAL || e.offset >= ZIP64_MAGICVAL;
+            int extraLength = 0;
+            if (zip64) {
+                extraLength = 4 + (e.size >= ZIP64_MAGICVAL ? 8 : 0) + (e.csize >= ZIP64_MAGICVAL ? 8 : 0)
+                        + (e.offset >= ZIP64_MAGICVAL ? 8 : 0);
+            }
+            int version = zip64 || this.zip64 ? 45 : 20;
+
+            writeInt(CENSIG);
+            writeShort(version);
+            writeShort(version);
+            writeShort(FLAG);
+            writeShort(DEFLATED);
+            writeInt(e.dosTime);
+            writeInt(e.crc);
+            writeInt(Math.min(e.csize, ZIP64_MAGICVAL));
+            writeInt(Math.min(e.size, ZIP64_MAGICVAL));
+            writeShort(e.name.length);
+            writeShort(extraLength);
+            // comment length, disk number, internal and external attributes
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt(Math.min(e.offset, ZIP64_MAGICVAL));
+            writeBytes(e.name, 0, e.name.length);
+            if (zip64) {
+                writeShort(ZIP64_EXTID);
+                writeShort(extraLength - 4);
+                if (e.size >= ZIP64_MAGICVAL) {
+                    writeLong(e.size);
+                }
+                if (e.csize >= ZIP64_MAGICVAL) {
+                    writeLong(e.csize);
+                }
+                if (e.offset >= ZIP64_MAGICVAL) {
+                    writeLong(e.offset);
+                }
+            }
+        }
+        long cdLength = written - cdStart;
+        int count = entries.size();
+
+        if (count >= ZIP64_MAGICCOUNT || cdStart >= ZIP64_MAGICVAL || cdLength >= ZIP64_MAGICVAL) {
+            long zip64End = written;
+            writeInt(ZIP64_ENDSIG);
+            writeLong(44);
+            writeShort(45);
+            writeShort(45);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(cdLength);
+            writeLong(cdStart);
+
+            writeInt(ZIP64_LOCSIG);
+            writeInt(0);
+            writeLong(zip64End);
+            writeInt(1);
+        }
+
+        writeInt(ENDSIG);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, ZIP64_MAGICCOUNT));
+        writeShort(Math.min(count, ZIP64_MAGICCOUNT));
+        writeInt(Math.min(cdLength, ZIP64_MAGICVAL));
+        writeInt(Math.min(cdStart, ZIP64_MAGICVAL));
+        writeShort(0);
+    }
+
+    private void writeShort(int v) throws IOException {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+        written += 2;
+    }
+
+    private void writeInt(long v) throws IOException {
+        out.write((int) (v & 0xff));
+        out.write((int) ((v >>> 8) & 0xff));
+        out.write((int) ((v >>> 16) & 0xff));
+        out.write((int) ((v >>> 24) & 0xff));
+        written += 4;
+    }
+
+    private void writeLong(long v) throws IOException {
+        writeInt(v & 0xFFFFFFFFL);
+        writeInt(v >>> 32);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private static long dosTime() {
+        LocalDateTime now = LocalDateTime.now();
+        if (now.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (now.getYear() - 1980) << 25) | (now.getMonthValue() << 21) | (now.getDayOfMonth() << 16)
+                | (now.getHour() << 11) | (now.getMinute() << 5) | (now.getSecond() >> 1);
+    }
+
+    /**
+     * Combine the CRC-32 of two sequential blocks of data, as zlib crc32_combine.
+     *
+     * @param crc1 CRC-32 of the first block
+     * @param crc2 CRC-32 of the second block
+     * @param len2 length of the second block
+     * @return CRC-32 of the two blocks together
+     */
+    static long crc32Combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // operator for one zero bit in odd
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // operators for two and four zero bits
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // apply len2 zeros to crc1, the first square puts the operator for one zero byte in even
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec) {
+        long sum = 0;
+        int i = 0;
+        while (vec != 0) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+            vec >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+
+    private static class Entry {
+        final byte[] name;
+        final long offset;
+        final long dosTime;
+        long crc;
+        long size;
+        long csize;
+
+        Entry(byte[] name, long offset, long dosTime) {
+            this.name = name;
+            this.offset = offset;
+            this.dosTime = dosTime;
+        }
+    }
+
+    static class DeflatedBlock {
+        final byte[] data;
+        final int length;
+        final long crc;
+        final int inputLength;
+
+        DeflatedBlock(byte[] data, int length, long crc, int inputLength) {
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+            this.inputLength = inputLength;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.operation.DefaultCoordinateOperationFactory;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CRSAuthorityFactory;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.CoordinateOperation;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The transforms between a WMS SRS and EPSG:4326, the coordinates in SOLR.
+ * <br>
+ * The coordinate reference systems and operations are looked up once for each SRS and reused by all requests.
+ * Arrays of coordinates are transformed with one call, calculated directly for EPSG:4326 and EPSG:3857.
+ */
+public class CoordinateTransforms {
+
+    private static final ConcurrentMap<String, CoordinateTransforms> transforms = new ConcurrentHashMap<String, CoordinateTransforms>();
+
+    //radius of the sphere of EPSG:3857
+    private static final double SPHERE_RADIUS = 6378137.0;
+
+    private enum Projection {EPSG_4326, EPSG_3857, OTHER}
+
+    private final String srs;
+    private final CoordinateOperation transformTo4326;
+    private final CoordinateOperation transformFrom4326;
+    private final Projection projection;
+
+    private CoordinateTransforms(String srs) throws FactoryException {
+        CRSAuthorityFactory factory = CRS.getAuthorityFactory(true);
+        CoordinateReferenceSystem sourceCRS = factory.createCoordinateReferenceSystem(srs);
+        CoordinateReferenceSystem targetCRS = factory.createCoordinateReferenceSystem("EPSG:4326");
+        DefaultCoordinateOperationFactory operationFactory = new DefaultCoordinateOperationFactory();
+        this.srs = srs;
+        this.transformTo4326 = operationFactory.createOperation(sourceCRS, targetCRS);
+        this.transformFrom4326 = operationFactory.createOperation(targetCRS, sourceCRS);
+
+        String code = srs.trim().toUpperCase(Locale.ROOT);
+        if ("EPSG:4326".equals(code)) {
+            projection = Projection.EPSG_4326;
+        } else if ("EPSG:3857".equals(code)) {
+            projection = Projection.EPSG_3857;
+        } else {
+            projection = Projection.OTHER;
+        }
+    }
+
+    /**
+     * @param srs the SRS code, e.g. EPSG:3857
+     * @return the transforms between the SRS and EPSG:4326
+     * @throws FactoryException when the SRS is not known
+     */
+    public static CoordinateTransforms get(String srs) throws FactoryException {
+        CoordinateTransforms t = transforms.get(srs);
+        if (t == null) {
+            t = new CoordinateTransforms(srs);
+            CoordinateTransforms previous = transforms.putIfAbsent(srs, t);
+            if (previous != null) {
+                t = previous;
+            }
+        }
+        return t;
+    }
+
+    public String getSrs() {
+        return srs;
+    }
+
+    /**
+     * @return operation from the SRS to EPSG:4326
+     */
+    public CoordinateOperation getTransformTo4326() {
+        return transformTo4326;
+    }
+
+    /**
+     * @return operation from EPSG:4326 to the SRS
+     */
+    public CoordinateOperation getTransformFrom4326() {
+        return transformFrom4326;
+    }
+
+    /**
+     * Transform EPSG:4326 coordinates to the SRS.
+     * <br>
+     * A coordinate that cannot be transformed is set to NaN.
+     *
+     * @param source    longitude,latitude of each point
+     * @param target    the transformed coordinates of each point, a different array to the source
+     * @param numPoints number of points to transform
+     */
+    public void transformFrom4326(double[] source, double[] target, int numPoints) {
+        switch (projection) {
+            case EPSG_4326:
+                System.arraycopy(source, 0, target, 0, numPoints * 2);
+                break;
+            case EPSG_3857:
+                for (int i = 0; i < numPoints * 2; i += 2) {
+                    target[i] = SPHERE_RADIUS * Math.toRadians(source[i]);
+                    target[i + 1] = SPHERE_RADIUS * Math.log(Math.tan(Math.PI / 4 + Math.toRadians(source[i + 1]) / 2));
+                }
+                break;
+            default:
+                MathTransform mathTransform = transformFrom4326.getMathTransform();
+                try {
+                    mathTransform.transform(source, 0, target, 0, numPoints);
+                } catch (TransformException e) {
+                    //the coordinates that failed are not known, transform them one at a time
+                    for (int i = 0; i < numPoints * 2; i += 2) {
+                        try {
+                            mathTransform.transform(source, i, target, i, 1);
+                        } catch (TransformException pe) {
+                            target[i] = Double.NaN;
+                            target[i + 1] = Double.NaN;
+                        }
+                    }
+                }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package au.org.ala.biocache.util;
+
+import au.org.ala.biocache.RecordWriter;
+import au.org.ala.biocache.writer.RecordSpool;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The progress of an offline index download, kept in a directory so that the download can resume after a restart.
+ *
+ * The records of each split query are kept in a {@link RecordSpool} until the split is complete, then written to
+ * the download. The checkpoint records the cursorMark of each split, the length of its spool and the counts of its
+ * records. A resumed download writes the spools of the complete splits again and continues the other splits from
+ * their cursorMark.
+ *
+ * The spools are forced to disk before the checkpoint is saved. The checkpoint is only used when the key of the
+ * download, the query and the output columns, has not changed and every spool has the length that was saved.
+ */
+public class DownloadCheckpoint {
+
+    private static final Logger logger = Logger.getLogger(DownloadCheckpoint.class);
+
+    private static final String CHECKPOINT_FILE = "checkpoint.json";
+
+    private final File directory;
+    private final long intervalMillis;
+    private final ObjectMapper jsonMapper;
+    private final State state;
+    private final boolean resumed;
+    private final Map<Integer, RecordSpool> spools = new HashMap<>();
+    private long lastSave;
+
+    /**
+     * The saved progress of a download.
+     */
+    public static class State {
+        private String key;
+        private List<List<String>> plan;
+        private List<SplitState> splits = new ArrayList<>();
+        private List<String> miscFields = new ArrayList<>();
+
+        public String getKey() {
+            return key;
+        }
+
+        public void setKey(String key) {
+            this.key = key;
+        }
+
+        public List<List<String>> getPlan() {
+            return plan;
+        }
+
+        public void setPlan(List<List<String>> plan) {
+            this.plan = plan;
+        }
+
+        public List<SplitState> getSplits() {
+            return splits;
+        }
+
+        public void setSplits(List<SplitState> splits) {
+            this.splits = splits;
+        }
+
+        public List<String> getMiscFields() {
+            return miscFields;
+        }
+
+        public void setMiscFields(List<String> miscFields) {
+            this.miscFields = miscFields;
+        }
+    }
+
+    /**
+     * The saved progress of a split query.
+     */
+    public static class SplitState {
+        private String cursorMark;
+        private long spoolLength;
+        private int records;
+        private boolean complete;
+        private Map<String, Integer> uidStats = new HashMap<>();
+
+        public String getCursorMark() {
+            return cursorMark;
+        }
+
+        public void setCursorMark(String cursorMark) {
+            this.cursorMark = cursorMark;
+        }
+
+        public long getSpoolLength() {
+            return spoolLength;
+        }
+
+        public void setSpoolLength(long spoolLength) {
+            this.spoolLength = spoolLength;
+        }
+
+        public int getRecords() {
+            return records;
+        }
+
+        public void setRecords(int records) {
+            this.records = records;
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public void setComplete(boolean complete) {
+            this.complete = complete;
+        }
+
+        public Map<String, Integer> getUidStats() {
+            return uidStats;
+        }
+
+        public void setUidStats(Map<String, Integer> uidStats) {
+            this.uidStats = uidStats;
+        }
+    }
+
+    private DownloadCheckpoint(File directory, long intervalMillis, ObjectMapper jsonMapper, State state, boolean resumed) {
+        this.directory = directory;
+        this.intervalMillis = intervalMillis;
+        this.jsonMapper = jsonMapper;
+        this.state = state;
+        this.resumed = resumed;
+        this.lastSave = System.currentTimeMillis();
+    }
+
+    /**
+     * Open the checkpoint of a download, discarding a checkpoint saved for a different key.
+     *
+     * @param directory      the directory for the checkpoint and spools of this download
+     * @param key            identifies the query and output columns of the download
+     * @param intervalMillis the minimum time between saves of the checkpoint when a page is added
+     * @return the checkpoint
+     * @throws IOException
+     */
+    public static DownloadCheckpoint open(File directory, String key, long intervalMillis) throws IOException {
+        ObjectMapper jsonMapper = new ObjectMapper();
+        jsonMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        File file = new File(directory, CHECKPOINT_FILE);
+        if (file.exists()) {
+            try {
+                State state = jsonMapper.readValue(file, State.class);
+                if (!key.equals(state.getKey()) || state.getPlan() == null) {
+                    logger.warn("Discarding the checkpoint of a changed download " + directory);
+                } else if (!hasSpools(directory, state)) {
+                    logger.warn("Discarding a checkpoint with incomplete spools " + directory);
+                } else {
+                    if (logger.isInfoEnabled()) {
+                        logger.info("Resuming download from checkpoint " + directory);
+                    }
+                    return new DownloadCheckpoint(directory, intervalMillis, jsonMapper, state, true);
+                }
+            } catch (IOException e) {
+                logger.warn("Discarding an unreadable checkpoint " + file, e);
+            }
+        }
+
+        // start again
+        FileUtils.deleteQuietly(directory);
+        FileUtils.forceMkdir(directory);
+        State state = new State();
+        state.setKey(key);
+        return new DownloadCheckpoint(directory, intervalMillis, jsonMapper, state, false);
+    }
+
+    /**
+     * @return true when every spool is at least as long as its saved length
+     */
+    private static boolean hasSpools(File directory, State state) {
+        for (int i = 0; i < state.getSplits().size(); i++) {
+            if (spoolFile(directory, i).length() < state.getSplits().get(i).getSpoolLength()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true when the download continues from a saved checkpoint
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return the filter queries of each planned split, or null when the splits have not been planned
+     */
+    public synchronized List<List<String>> getPlan() {
+        return state.getPlan();
+    }
+
+    /**
+     * Save the planned splits, before they are split into sensitive and non-sensitive queries.
+     */
+    public synchronized void setPlan(List<List<String>> plan) throws IOException {
+        state.setPlan(plan);
+        save();
+    }
+
+    /**
+     * Set the number of split queries. The progress of all of the splits is discarded when the number has changed.
+     */
+    public synchronized void setSplits(int splits) throws IOException {
+        if (state.getSplits().size() != splits) {
+            state.getSplits().clear();
+            for (int i = 0; i < splits; i++) {
+                state.getSplits().add(new SplitState());
+            }
+            save();
+        }
+    }
+
+    /**
+     * @return the misc fields found before the checkpoint
+     */
+    public synchronized List<String> getMiscFields() {
+        return new ArrayList<>(state.getMiscFields());
+    }
+
+    /**
+     * @return a copy of the saved progress of a split
+     */
+    public synchronized SplitState getSplit(int index) {
+        SplitState split = state.getSplits().get(index);
+        SplitState copy = new SplitState();
+        copy.setCursorMark(split.getCursorMark());
+        copy.setSpoolLength(split.getSpoolLength());
+        copy.setRecords(split.getRecords());
+        copy.setComplete(split.isComplete());
+        copy.setUidStats(new HashMap<>(split.getUidStats()));
+        return copy;
+    }
+
+    /**
+     * Open the spool of a split, discarding the records after the checkpoint.
+     */
+    public synchronized RecordSpool openSpool(int index) throws IOException {
+        RecordSpool spool = RecordSpool.open(spoolFile(directory, index), getSplit(index).getSpoolLength());
+        spools.put(index, spool);
+        return spool;
+    }
+
+    /**
+     * Write the records of a split to a writer.
+     *
+     * @return the number of records written
+     */
+    public long replay(int index, RecordWriter writer, AtomicBoolean interrupt) throws IOException {
+        return RecordSpool.replay(spoolFile(directory, index), getSplit(index).getSpoolLength(), writer, interrupt);
+    }
+
+    /**
+     * Record the progress of a split after a page has been flushed to its spool. The checkpoint is saved when
+     * the interval has elapsed since it was last saved.
+     *
+     * @param index      the split
+     * @param cursorMark the cursorMark of the next page
+     * @param spool      the flushed spool of the split
+     * @param records    the number of records in the spool
+     * @param uidStats   the counts of the records in the spool
+     * @param miscFields the misc fields of the download
+     */
+    public synchronized void page(int index, String cursorMark, RecordSpool spool, int records,
+                                  Map<String, AtomicInteger> uidStats, List<String> miscFields) throws IOException {
+        SplitState split = state.getSplits().get(index);
+        split.setCursorMark(cursorMark);
+        split.setSpoolLength(spool.length());
+        split.setRecords(records);
+        Map<String, Integer> stats = new HashMap<>();
+        for (Map.Entry<String, AtomicInteger> entry : uidStats.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().get());
+        }
+        split.setUidStats(stats);
+        synchronized (miscFields) {
+            state.setMiscFields(new ArrayList<>(miscFields));
+        }
+
+        if (System.currentTimeMillis() - lastSave >= intervalMillis) {
+            save();
+        }
+    }
+
+    /**
+     * Record that all of the records of a split are in its spool, and save the checkpoint.
+     */
+    public synchronized void complete(int index) throws IOException {
+        state.getSplits().get(index).setComplete(true);
+        save();
+    }
+
+    /**
+     * @return the saved counts of a split
+     */
+    public ConcurrentMap<String, AtomicInteger> getUidStats(int index) {
+        ConcurrentMap<String, AtomicInteger> uidStats = new ConcurrentHashMap<>();
+        for (Map.Entry<String, Integer> entry : getSplit(index).getUidStats().entrySet()) {
+            uidStats.put(entry.getKey(), new AtomicInteger(entry.getValue()));
+        }
+        return uidStats;
+    }
+
+    /**
+     * Save the checkpoint, replacing the previous checkpoint in one step.
+     */
+    public synchronized void save() throws IOException {
+        // the saved spool lengths must be on disk before the checkpoint
+        for (RecordSpool spool : spools.values()) {
+            spool.sync();
+        }
+        File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+        jsonMapper.writeValue(tmp, state);
+        Files.move(tmp.toPath(), new File(directory, CHECKPOINT_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastSave = System.currentTimeMillis();
+    }
+
+    private static File spoolFile(File directory, int index) {
+        return new File(directory, "split" + index + ".spool");
+    }
+}
@@ -0,0 +1,340 @@
+package au.org.ala.biocache.util;
+
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.util.ClientUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Plans the split queries of an index download so that each split pages through a similar number of records.
+ *
+ * Splits start from the facet counts of the download query (the month facet). Consecutive facet values are grouped
+ * until a split reaches the target number of rows. Splits that are still larger than the target are refined by
+ * the year facet, then by ranges of lft and finally by the leading character of the id. Each refinement covers all
+ * of the records of the split it replaces, including records without a value for the field. The last split of each
+ * refinement is the complement of the others and is kept even when it had no records, so that records indexed, or
+ * given new values, after the download was planned are still in exactly one split.
+ *
+ * Splits are returned largest first so that the largest splits are started first.
+ */
+public class DownloadSplitPlanner {
+
+    private static final Logger logger = Logger.getLogger(DownloadSplitPlanner.class);
+
+    public static final String YEAR = "year";
+    public static final String LFT = "lft";
+    public static final String ID = "id";
+
+    /**
+     * The number of lft ranges counted for each target sized split that is refined.
+     */
+    private static final int RANGES_PER_SPLIT = 4;
+    private static final int MAX_RANGES = 64;
+
+    /**
+     * The leading characters of UUID ids.
+     */
+    private static final String ID_PREFIXES = "0123456789abcdef";
+
+    /**
+     * Counts the records of a download.
+     */
+    public interface SplitCounts {
+        /**
+         * @param field the field to facet
+         * @param fqs   the filter queries of the split
+         * @return the number of records for each value of the field, in index order. The number of records
+         * without a value may be under the null key.
+         * @throws Exception
+         */
+        Map<String, Long> facet(String field, List<String> fqs) throws Exception;
+
+        /**
+         * @param queries the queries to count
+         * @param fqs     the filter queries of the split
+         * @return the number of records of the split that match each query
+         * @throws Exception
+         */
+        long[] count(List<String> queries, List<String> fqs) throws Exception;
+
+        /**
+         * @param field a numeric field
+         * @param fqs   the filter queries of the split
+         * @return the minimum and maximum value of the field, or null when no records have a value
+         * @throws Exception
+         */
+        long[] range(String field, List<String> fqs) throws Exception;
+    }
+
+    /**
+     * The filter queries of a split and the number of records it had when it was planned.
+     */
+    public static class Split {
+        private final List<String> filterQueries;
+        private final long count;
+        private final int level;
+
+        Split(List<String> filterQueries, long count, int level) {
+            this.filterQueries = filterQueries;
+            this.count = count;
+            this.level = level;
+        }
+
+        public List<String> getFilterQueries() {
+            return filterQueries;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return (filterQueries.isEmpty() ? "*:*" : filterQueries.toString()) + " (" + count + ")";
+        }
+    }
+
+    private static final Comparator<Split> LARGEST_FIRST = new Comparator<Split>() {
+        @Override
+        public int compare(Split o1, Split o2) {
+            return Long.compare(o2.count, o1.count);
+        }
+    };
+
+    private final SplitCounts counts;
+    private final long targetRows;
+    private final int maxSplits;
+
+    /**
+     * @param counts     counts the records of the download
+     * @param targetRows the number of records in each split, 0 for one split for each facet value
+     * @param maxSplits  the maximum number of splits
+     */
+    public DownloadSplitPlanner(SplitCounts counts, long targetRows, int maxSplits) {
+        this.counts = counts;
+        this.targetRows = targetRows;
+        this.maxSplits = Math.max(1, maxSplits);
+    }
+
+    /**
+     * Plan the splits of a download.
+     *
+     * @param field       the facet field of the facet counts
+     * @param facetCounts the number of records for each value of the field, the records without a value may be under
+     *                    the null key. When empty the download is planned from a single split.
+     * @param total       the number of records in the download
+     * @return the splits, largest first
+     * @throws Exception
+     */
+    public List<Split> plan(String field, Map<String, Long> facetCounts, long total) throws Exception {
+        List<Split> splits;
+        if (facetCounts == null || facetCounts.isEmpty()) {
+            splits = new ArrayList<>();
+            splits.add(new Split(Collections.<String>emptyList(), total, 0));
+        } else {
+            splits = facetSplits(new Split(Collections.<String>emptyList(), total, -1), field, facetCounts);
+        }
+
+        if (targetRows > 0) {
+            splits = refine(splits);
+        }
+        Collections.sort(splits, LARGEST_FIRST);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Download planned as " + splits.size() + " splits: " + splits);
+        }
+        return splits;
+    }
+
+    /**
+     * Replace the largest splits with smaller splits until all splits are no larger than the target, the splits
+     * cannot be refined further or the maximum number of splits is reached.
+     */
+    private List<Split> refine(List<Split> splits) throws Exception {
+        List<Split> planned = new ArrayList<>();
+        PriorityQueue<Split> pending = new PriorityQueue<>(Math.max(1, splits.size()), LARGEST_FIRST);
+        pending.addAll(splits);
+
+        while (!pending.isEmpty()) {
+            Split split = pending.poll();
+            if (split.count <= targetRows || split.level > 2) {
+                planned.add(split);
+                continue;
+            }
+
+            List<Split> children;
+            if (split.level == 0) {
+                children = facetSplits(split, YEAR, counts.facet(YEAR, split.filterQueries));
+            } else if (split.level == 1) {
+                children = rangeSplits(split, LFT);
+            } else {
+                children = prefixSplits(split, ID);
+            }
+
+            if (planned.size() + pending.size() + children.size() > maxSplits) {
+                planned.add(split);
+                planned.addAll(pending);
+                break;
+            }
+            pending.addAll(children);
+        }
+        return planned;
+    }
+
+    /**
+     * Split by groups of consecutive facet values and the records with any other value or without a value.
+     */
+    List<Split> facetSplits(Split parent, String field, Map<String, Long> facetCounts) {
+        List<String> queries = new ArrayList<>();
+        List<Long> queryCounts = new ArrayList<>();
+        long sum = 0;
+        Long missing = null;
+        for (Map.Entry<String, Long> entry : facetCounts.entrySet()) {
+            if (entry.getKey() == null) {
+                missing = entry.getValue();
+            } else if (entry.getValue() > 0) {
+                queries.add(field + ":" + ClientUtils.escapeQueryChars(entry.getKey()));
+                queryCounts.add(entry.getValue());
+                sum += entry.getValue();
+            }
+        }
+
+        List<Split> children = group(parent, queries, queryCounts);
+        addRemainder(parent, children, complement(queries), missing != null ? missing : parent.count - sum);
+        return children;
+    }
+
+    /**
+     * Split by ranges of a numeric field and the records without a value.
+     */
+    List<Split> rangeSplits(Split parent, String field) throws Exception {
+        long[] minMax = counts.range(field, parent.filterQueries);
+        List<Split> children = new ArrayList<>();
+        long sum = 0;
+        if (minMax != null && minMax[1] > minMax[0]) {
+            long min = minMax[0];
+            long max = minMax[1];
+            int ranges = (int) Math.min(MAX_RANGES, Math.max(2, RANGES_PER_SPLIT * ((parent.count + targetRows - 1) / targetRows)));
+            long width = Math.max(1, (max - min + ranges) / ranges);
+
+            // the first and last ranges are open so that all values are included
+            List<String> bounds = new ArrayList<>();
+            bounds.add("*");
+            for (long lower = min + width; lower <= max; lower += width) {
+                bounds.add(String.valueOf(lower));
+            }
+            bounds.add("*");
+
+            List<String> queries = new ArrayList<>();
+            for (int i = 0; i + 1 < bounds.size(); i++) {
+                queries.add(rangeQuery(field, bounds.get(i), bounds.get(i + 1)));
+            }
+            long[] rangeCounts = counts.count(queries, parent.filterQueries);
+
+            // merge consecutive ranges into a single range
+            int first = 0;
+            long count = 0;
+            for (int i = 0; i < rangeCounts.length; i++) {
+                if (i > first && count + rangeCounts[i] > targetRows) {
+                    children.add(child(parent, rangeQuery(field, bounds.get(first), bounds.get(i)), count));
+                    first = i;
+                    count = 0;
+                }
+                count += rangeCounts[i];
+                sum += rangeCounts[i];
+            }
+            children.add(child(parent, rangeQuery(field, bounds.get(first), bounds.get(rangeCounts.length)), count));
+        } else {
+            // a single value or no values
+            String query = field + ":[* TO *]";
+            sum = counts.count(Collections.singletonList(query), parent.filterQueries)[0];
+            children.add(child(parent, query, sum));
+        }
+
+        addRemainder(parent, children, "-" + field + ":[* TO *]", parent.count - sum);
+        return children;
+    }
+
+    /**
+     * Split by groups of the leading character of a field and the records with any other leading character.
+     */
+    List<Split> prefixSplits(Split parent, String field) throws Exception {
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < ID_PREFIXES.length(); i++) {
+            queries.add(field + ":" + ID_PREFIXES.charAt(i) + "*");
+        }
+
+        long[] prefixCounts = counts.count(queries, parent.filterQueries);
+        List<Long> queryCounts = new ArrayList<>();
+        long sum = 0;
+        for (long count : prefixCounts) {
+            queryCounts.add(count);
+            sum += count;
+        }
+
+        List<Split> children = group(parent, queries, queryCounts);
+        addRemainder(parent, children, complement(queries), parent.count - sum);
+        return children;
+    }
+
+    /**
+     * Group consecutive queries until a group reaches the target number of rows. Queries without records are kept
+     * in a group, so that the groups and the complement of the queries cover all records.
+     */
+    private List<Split> group(Split parent, List<String> queries, List<Long> queryCounts) {
+        List<Split> children = new ArrayList<>();
+        StringBuilder query = new StringBuilder();
+        long count = 0;
+        for (int i = 0; i < queries.size(); i++) {
+            if (query.length() > 0 && queryCounts.get(i) > 0 && (targetRows <= 0 || count + queryCounts.get(i) > targetRows)) {
+                children.add(child(parent, query.toString(), count));
+                query.setLength(0);
+                count = 0;
+            }
+            query.append(query.length() > 0 ? " OR " : "").append(queries.get(i));
+            count += queryCounts.get(i);
+        }
+        if (query.length() > 0) {
+            children.add(child(parent, query.toString(), count));
+        }
+        return children;
+    }
+
+    /**
+     * Add the split of the records that are not in the other splits. It is added even when the counts of the other
+     * splits add up to the parent, the records may have changed since they were counted.
+     */
+    private void addRemainder(Split parent, List<Split> children, String query, long count) {
+        children.add(child(parent, query, Math.max(0, count)));
+    }
+
+    /**
+     * @return a query for the records that match none of the queries
+     */
+    private static String complement(List<String> queries) {
+        if (queries.isEmpty()) {
+            return "*:*";
+        }
+        StringBuilder query = new StringBuilder("-(");
+        for (int i = 0; i < queries.size(); i++) {
+            query.append(i > 0 ? " OR " : "").append(queries.get(i));
+        }
+        return query.append(')').toString();
+    }
+
+    private Split child(Split parent, String query, long count) {
+        List<String> fqs = new ArrayList<>(parent.filterQueries.size() + 1);
+        fqs.addAll(parent.filterQueries);
+        fqs.add(query);
+        return new Split(fqs, count, parent.level + 1);
+    }
+
+    private static String rangeQuery(String field, String lower, String upper) {
+        return field + ":[" + lower + " TO " + upper + ("*".equals(upper) ? "]" : "}");
+    }
+}
@@ -0,0 +1,54 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+/**
+ * ETags of the cached map images and tiles, which are built from a hash of the request and the index version so that
+ * every node returns the same ETag for an image until the index changes.
+ */
+public class ETagUtils {
+
+    private ETagUtils() {
+    }
+
+    /**
+     * @param hash the hash of the request and the index version
+     * @return the strong ETag of the response
+     */
+    public static String getETag(String hash) {
+        return "\"" + hash + "\"";
+    }
+
+    /**
+     * @param ifNoneMatch the If-None-Match request header
+     * @param eTag        the ETag of the response
+     * @return true when the header includes the ETag
+     */
+    public static boolean matches(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String match : ifNoneMatch.split(",")) {
+            match = match.trim();
+            if (match.startsWith("W/")) {
+                match = match.substring(2);
+            }
+            if (match.equals(eTag) || match.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
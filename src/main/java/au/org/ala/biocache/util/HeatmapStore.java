@@ -0,0 +1,135 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A cache of the static heatmap and legend images in heatmap.output.dir.
+ * <br>
+ * The images are kept in an {@link LruFileCache} of heatmap.cache.size.max bytes, and are all deleted when the
+ * index version changes.
+ */
+@Component("heatmapStore")
+public class HeatmapStore {
+
+    private static final Logger logger = Logger.getLogger(HeatmapStore.class);
+
+    @Value("${heatmap.output.dir:/data/output/heatmap}")
+    String directory;
+
+    //max size of the files in bytes
+    @Value("${heatmap.cache.size.max:1073741824}")
+    long maxSize;
+
+    private LruFileCache cache;
+    private Long indexVersion;
+
+    @PostConstruct
+    public void init() {
+        File dir = new File(directory);
+        cache = new LruFileCache(dir, 0, maxSize);
+        if (!dir.exists() && !dir.mkdirs()) {
+            logger.error("Unable to create the heatmap directory " + directory);
+            return;
+        }
+
+        int images = cache.load();
+
+        logger.info("Heatmap cache has " + images + " images, " + cache.getSize() + " bytes");
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Delete all images when the index version changes.
+     *
+     * @param indexVersion the current index version, or null when unknown
+     */
+    public synchronized void setIndexVersion(Long indexVersion) {
+        if (indexVersion == null) {
+            return;
+        }
+        if (!indexVersion.equals(this.indexVersion)) {
+            if (this.indexVersion != null) {
+                logger.debug("Index version changed, deleting the heatmap images");
+                empty();
+            }
+            this.indexVersion = indexVersion;
+        }
+    }
+
+    /**
+     * @param name the file name of the image
+     * @return the image file, or null when the image is not cached
+     */
+    public File get(String name) {
+        return cache.contains(name) ? cache.getFile(name) : null;
+    }
+
+    /**
+     * @param name the file name of the image
+     * @return a new temporary file to write the image to before it is added with put
+     */
+    public File createTempFile(String name) throws IOException {
+        return cache.createTempFile(name);
+    }
+
+    /**
+     * Move a written image into the cache, evicting the least recently used images when the cache is full.
+     *
+     * @param name the file name of the image
+     * @param tmp  the image, written to a file from createTempFile
+     * @return true when the image was added
+     */
+    public boolean put(String name, File tmp) {
+        return cache.put(name, tmp);
+    }
+
+    /**
+     * Remove an image that could not be read.
+     *
+     * @param name the file name of the image
+     */
+    public void remove(String name) {
+        cache.remove(name);
+    }
+
+    /**
+     * Delete all cached images.
+     */
+    public void empty() {
+        cache.empty();
+    }
+
+    /**
+     * @return the size in bytes of the cached images
+     */
+    public long getSize() {
+        return cache.getSize();
+    }
+}
@@ -0,0 +1,323 @@
+package au.org.ala.biocache.util;
+
+import au.com.bytecode.opencsv.CSVReader;
+import org.apache.log4j.Logger;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Samples analysis layers for the records of a download page.
+ *
+ * Values are cached by layer and coordinate rounded to a fixed number of decimal places, so records that share
+ * a rounded coordinate, on this page or on any earlier page or download, are only sampled once. Coordinates
+ * are sampled at their rounded position so a cached value does not depend on which record was sampled first.
+ *
+ * The sample response is read one row at a time.
+ */
+public class LayerSampler {
+
+    private static final Logger logger = Logger.getLogger(LayerSampler.class);
+
+    private static final int SEGMENTS = 16;
+
+    /**
+     * Samples layers at a batch of points.
+     */
+    public interface SampleSource {
+        /**
+         * @param layersServiceUrl the layers service to sample
+         * @param layers           the layers to sample
+         * @param points           longitude, latitude pairs
+         * @return CSV with a header row, then one row for each point of longitude, latitude and the layer values
+         * @throws IOException
+         */
+        Reader sample(String layersServiceUrl, String[] layers, double[][] points) throws IOException;
+    }
+
+    private final SampleSource source;
+    private final double scale;
+    private final List<Map<SampleKey, String>> segments = new ArrayList<>(SEGMENTS);
+
+    /**
+     * @param source       where samples that are not cached are retrieved
+     * @param maxCacheSize the maximum number of layer values that are cached, 0 to disable the cache
+     * @param precision    the number of decimal places coordinates are rounded to
+     */
+    public LayerSampler(SampleSource source, long maxCacheSize, int precision) {
+        this.source = source;
+        this.scale = Math.pow(10, precision);
+
+        final long segmentSize = maxCacheSize / SEGMENTS;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments.add(new LinkedHashMap<SampleKey, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<SampleKey, String> eldest) {
+                    return size() > segmentSize;
+                }
+            });
+        }
+    }
+
+    /**
+     * A SampleSource that reuses a pool of LayersStore clients for each layers service.
+     * A client is returned to the pool when the Reader of its response is closed.
+     *
+     * @param poolSize the maximum number of idle clients kept for each layers service
+     */
+    public static SampleSource pooledLayersStores(final int poolSize) {
+        return new SampleSource() {
+            private final ConcurrentMap<String, BlockingQueue<LayersStore>> pools = new ConcurrentHashMap<>();
+
+            @Override
+            public Reader sample(String layersServiceUrl, String[] layers, double[][] points) throws IOException {
+                BlockingQueue<LayersStore> pool = pools.get(layersServiceUrl);
+                if (pool == null) {
+                    BlockingQueue<LayersStore> newPool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+                    pool = pools.putIfAbsent(layersServiceUrl, newPool);
+                    if (pool == null) {
+                        pool = newPool;
+                    }
+                }
+                LayersStore ls = pool.poll();
+                if (ls == null) {
+                    ls = new LayersStore(layersServiceUrl);
+                }
+                Reader reader = null;
+                try {
+                    reader = ls.sample(layers, points, null);
+                } finally {
+                    if (reader == null) {
+                        pool.offer(ls);
+                    }
+                }
+                return releaseOnClose(reader, pool, ls);
+            }
+        };
+    }
+
+    /**
+     * @return a Reader that offers the item to the pool when it is first closed
+     */
+    static <T> Reader releaseOnClose(Reader reader, final Queue<T> pool, final T item) {
+        return new FilterReader(reader) {
+            private boolean released;
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!released) {
+                        released = true;
+                        pool.offer(item);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Sample the layers at each point.
+     *
+     * @param layersServiceUrl the layers service to sample
+     * @param layers           the layers to sample
+     * @param points           longitude, latitude pairs
+     * @param valid            false for points without a coordinate, these have empty values
+     * @return a header row followed by one row for each point of longitude, latitude and the layer values
+     * @throws IOException
+     */
+    public List<String[]> sample(String layersServiceUrl, String[] layers, double[][] points, boolean[] valid) throws IOException {
+        String[][] values = new String[points.length][];
+
+        // the cells to sample, in order, and the layers that are missing for at least one cell
+        Map<SampleKey, Integer> cells = new LinkedHashMap<>();
+        boolean[] missingLayers = new boolean[layers.length];
+
+        for (int i = 0; i < points.length; i++) {
+            values[i] = new String[layers.length];
+            if (!valid[i]) {
+                continue;
+            }
+            long x = Math.round(points[i][0] * scale);
+            long y = Math.round(points[i][1] * scale);
+            boolean missing = false;
+            for (int j = 0; j < layers.length; j++) {
+                values[i][j] = get(new SampleKey(layersServiceUrl, layers[j], x, y));
+                if (values[i][j] == null) {
+                    missingLayers[j] = true;
+                    missing = true;
+                }
+            }
+            if (missing) {
+                SampleKey cell = new SampleKey(layersServiceUrl, null, x, y);
+                if (!cells.containsKey(cell)) {
+                    cells.put(cell, cells.size());
+                }
+            }
+        }
+
+        if (!cells.isEmpty()) {
+            Map<SampleKey, String[]> sampled = sampleCells(layersServiceUrl, layers, missingLayers, cells);
+            int[] sampledIndex = new int[layers.length];
+            for (int j = 0, k = 0; j < layers.length; j++) {
+                sampledIndex[j] = missingLayers[j] ? k++ : -1;
+            }
+            for (int i = 0; i < points.length; i++) {
+                if (!valid[i]) {
+                    continue;
+                }
+                String[] cellValues = null;
+                for (int j = 0; j < layers.length; j++) {
+                    if (values[i][j] == null && sampledIndex[j] >= 0) {
+                        if (cellValues == null) {
+                            cellValues = sampled.get(new SampleKey(layersServiceUrl, null,
+                                    Math.round(points[i][0] * scale), Math.round(points[i][1] * scale)));
+                        }
+                        if (cellValues != null) {
+                            values[i][j] = cellValues[sampledIndex[j]];
+                        }
+                    }
+                }
+            }
+        }
+
+        List<String[]> intersection = new ArrayList<>(points.length + 1);
+        String[] header = new String[layers.length + 2];
+        header[0] = "longitude";
+        header[1] = "latitude";
+        System.arraycopy(layers, 0, header, 2, layers.length);
+        intersection.add(header);
+        for (int i = 0; i < points.length; i++) {
+            String[] row = new String[layers.length + 2];
+            row[0] = valid[i] ? String.valueOf(points[i][0]) : "";
+            row[1] = valid[i] ? String.valueOf(points[i][1]) : "";
+            for (int j = 0; j < layers.length; j++) {
+                row[j + 2] = values[i][j] != null ? values[i][j] : "";
+            }
+            intersection.add(row);
+        }
+        return intersection;
+    }
+
+    /**
+     * Sample the missing layers at the rounded coordinates of the cells, adding the values to the cache.
+     */
+    private Map<SampleKey, String[]> sampleCells(String layersServiceUrl, String[] layers, boolean[] missingLayers,
+                                                 Map<SampleKey, Integer> cells) throws IOException {
+        List<String> toSample = new ArrayList<>();
+        for (int j = 0; j < layers.length; j++) {
+            if (missingLayers[j]) {
+                toSample.add(layers[j]);
+            }
+        }
+        String[] sampleLayers = toSample.toArray(new String[0]);
+
+        List<SampleKey> cellList = new ArrayList<>(cells.keySet());
+        double[][] cellPoints = new double[cellList.size()][2];
+        for (int i = 0; i < cellList.size(); i++) {
+            cellPoints[i][0] = cellList.get(i).x / scale;
+            cellPoints[i][1] = cellList.get(i).y / scale;
+        }
+
+        Map<SampleKey, String[]> sampled = new HashMap<>();
+        Reader reader = source.sample(layersServiceUrl, sampleLayers, cellPoints);
+        if (reader == null) {
+            return sampled;
+        }
+        try (CSVReader csv = new CSVReader(reader)) {
+            // header
+            String[] row = csv.readNext();
+            int r = 0;
+            while (row != null && r < cellList.size() && (row = csv.readNext()) != null) {
+                SampleKey cell = cellList.get(r++);
+                String[] cellValues = new String[sampleLayers.length];
+                for (int k = 0; k < sampleLayers.length; k++) {
+                    //+2 offset for longitude,latitude columns
+                    cellValues[k] = row.length > k + 2 ? row[k + 2] : "";
+                    put(new SampleKey(layersServiceUrl, sampleLayers[k], cell.x, cell.y), cellValues[k]);
+                }
+                sampled.put(cell, cellValues);
+            }
+            if (r < cellList.size()) {
+                logger.warn("Layer sampling returned " + r + " of " + cellList.size() + " points from " + layersServiceUrl);
+            }
+        }
+        return sampled;
+    }
+
+    private String get(SampleKey key) {
+        Map<SampleKey, String> segment = segment(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    private void put(SampleKey key, String value) {
+        Map<SampleKey, String> segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    private Map<SampleKey, String> segment(SampleKey key) {
+        return segments.get((key.hashCode() & 0x7fffffff) % SEGMENTS);
+    }
+
+    /**
+     * @return the number of cached layer values
+     */
+    public long size() {
+        long size = 0;
+        for (Map<SampleKey, String> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private static class SampleKey {
+        final String layersServiceUrl;
+        final String layer;
+        final long x;
+        final long y;
+
+        SampleKey(String layersServiceUrl, String layer, long x, long y) {
+            this.layersServiceUrl = layersServiceUrl;
+            this.layer = layer;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof SampleKey)) return false;
+            SampleKey that = (SampleKey) o;
+            return x == that.x && y == that.y
+                    && (layer == null ? that.layer == null : layer.equals(that.layer))
+                    && (layersServiceUrl == null ? that.layersServiceUrl == null : layersServiceUrl.equals(that.layersServiceUrl));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = layersServiceUrl != null ? layersServiceUrl.hashCode() : 0;
+            result = 31 * result + (layer != null ? layer.hashCode() : 0);
+            result = 31 * result + (int) (x ^ (x >>> 32));
+            result = 31 * result + (int) (y ^ (y >>> 32));
+            return result;
+        }
+    }
+}
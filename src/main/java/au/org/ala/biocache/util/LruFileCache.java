@@ -0,0 +1,252 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Files in a local directory, evicted in least recently used order to keep their total size below a max.
+ * <br>
+ * Each file is written to a temporary file and moved into place, so a partially written file is never read.
+ * The files found by {@link #load()} are added in the order in which they were last modified, and the temporary
+ * files left by an earlier run are deleted.
+ */
+public class LruFileCache {
+
+    private static final Logger logger = Logger.getLogger(LruFileCache.class);
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File directory;
+
+    //number of leading characters of a file name that name its subdirectory, 0 for no subdirectories
+    private final int prefixLength;
+
+    //max size of the files in bytes
+    private final long maxSize;
+
+    //size in bytes of each file by name, in least recently used order
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long size;
+
+    /**
+     * @param directory    the directory of the files
+     * @param prefixLength the number of leading characters of a file name that name the subdirectory of the file,
+     *                     or 0 to keep the files in the directory
+     * @param maxSize      the max size of the files in bytes
+     */
+    public LruFileCache(File directory, int prefixLength, long maxSize) {
+        this.directory = directory;
+        this.prefixLength = prefixLength;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Add the files that are in the directory, deleting the incomplete files.
+     *
+     * @return the number of files added
+     */
+    public int load() {
+        List<File> existing = new ArrayList<File>();
+        List<File> dirs = new ArrayList<File>();
+        if (prefixLength > 0) {
+            File[] subdirs = directory.listFiles();
+            if (subdirs != null) {
+                for (File subdir : subdirs) {
+                    if (subdir.isDirectory()) {
+                        dirs.add(subdir);
+                    }
+                }
+            }
+        } else {
+            dirs.add(directory);
+        }
+        for (File dir : dirs) {
+            File[] children = dir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (!child.isFile()) {
+                        continue;
+                    }
+                    if (child.getName().endsWith(TMP_SUFFIX)) {
+                        //incomplete file
+                        FileUtils.deleteQuietly(child);
+                    } else {
+                        existing.add(child);
+                    }
+                }
+            }
+        }
+        Collections.sort(existing, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(o1.lastModified(), o2.lastModified());
+            }
+        });
+
+        synchronized (files) {
+            for (File file : existing) {
+                Long previous = files.put(file.getName(), file.length());
+                size += file.length() - (previous == null ? 0 : previous);
+            }
+            evict(null);
+        }
+        return existing.size();
+    }
+
+    /**
+     * @param name the file name
+     * @return the location of the file, whether or not it is cached
+     */
+    public File getFile(String name) {
+        if (prefixLength > 0) {
+            return new File(new File(directory, name.substring(0, prefixLength)), name);
+        }
+        return new File(directory, name);
+    }
+
+    /**
+     * @param name the file name
+     * @return true when the file is cached, which makes it the most recently used file
+     */
+    public boolean contains(String name) {
+        synchronized (files) {
+            return files.get(name) != null;
+        }
+    }
+
+    /**
+     * @param name the file name
+     * @return a new temporary file to write the file to before it is added with {@link #put(String, File)}
+     */
+    public File createTempFile(String name) throws IOException {
+        File dir = getFile(name).getParentFile();
+        if (!dir.exists()) {
+            FileUtils.forceMkdir(dir);
+        }
+        return File.createTempFile(name + ".", TMP_SUFFIX, dir);
+    }
+
+    /**
+     * Move a written file into the cache, evicting the least recently used files when the cache is full. A file
+     * larger than the max is kept until the next file is added.
+     *
+     * @param name the file name
+     * @param tmp  the file, written to a file from {@link #createTempFile(String)}
+     * @return true when the file was added
+     */
+    public boolean put(String name, File tmp) {
+        long length = tmp.length();
+        try {
+            Files.move(tmp.toPath(), getFile(name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to cache " + name + " in " + directory + ", " + e.getMessage());
+            FileUtils.deleteQuietly(tmp);
+            return false;
+        }
+        synchronized (files) {
+            Long previous = files.put(name, length);
+            size += length - (previous == null ? 0 : previous);
+            evict(name);
+        }
+        return true;
+    }
+
+    /**
+     * Write a file into the cache, evicting the least recently used files when the cache is full.
+     *
+     * @param name  the file name
+     * @param bytes the content of the file
+     * @return true when the file was added
+     */
+    public boolean put(String name, byte[] bytes) {
+        File tmp = null;
+        try {
+            tmp = createTempFile(name);
+            Files.write(tmp.toPath(), bytes);
+        } catch (IOException e) {
+            logger.warn("Unable to cache " + name + " in " + directory + ", " + e.getMessage());
+            FileUtils.deleteQuietly(tmp);
+            return false;
+        }
+        return put(name, tmp);
+    }
+
+    /**
+     * Remove a file, e.g. a file that could not be read.
+     *
+     * @param name the file name
+     */
+    public void remove(String name) {
+        synchronized (files) {
+            Long previous = files.remove(name);
+            if (previous != null) {
+                size -= previous;
+            }
+        }
+        FileUtils.deleteQuietly(getFile(name));
+    }
+
+    /**
+     * Evict the least recently used files, other than the file that is being added.
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            it.remove();
+            size -= eldest.getValue();
+            FileUtils.deleteQuietly(getFile(eldest.getKey()));
+        }
+    }
+
+    /**
+     * Delete all cached files.
+     */
+    public void empty() {
+        synchronized (files) {
+            for (String name : files.keySet()) {
+                FileUtils.deleteQuietly(getFile(name));
+            }
+            files.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * @return the size in bytes of the cached files
+     */
+    public long getSize() {
+        synchronized (files) {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+/**
+ * Parse the "latitude,longitude" values of point facets into primitive arrays.
+ * <br>
+ * Plain decimals are parsed in place without creating substrings or boxed numbers, and give the same result as
+ * Float.parseFloat and Double.parseDouble. Other values, such as those with an exponent or more than 15 significant
+ * digits, are parsed with Float.parseFloat and Double.parseDouble.
+ */
+public class PointParser {
+
+    //significant digits that are always exact in a double
+    private static final int MAX_DIGITS = 15;
+
+    //powers of ten that are exact in a double
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private PointParser() {
+    }
+
+    /**
+     * Parse a point facet value.
+     *
+     * @param value  the point as latitude,longitude
+     * @param points set to longitude,latitude at the offset, or NaN when the value is not a point
+     * @param offset the index of the longitude in the points
+     * @return true when the value is a point
+     */
+    public static boolean parseLatLng(String value, float[] points, int offset) {
+        int p = value == null ? -1 : value.indexOf(',');
+        if (p < 0) {
+            points[offset] = Float.NaN;
+            points[offset + 1] = Float.NaN;
+            return false;
+        }
+        points[offset] = parseFloat(value, p + 1, value.length());
+        points[offset + 1] = parseFloat(value, 0, p);
+        return !Float.isNaN(points[offset]) && !Float.isNaN(points[offset + 1]);
+    }
+
+    /**
+     * @return the float value of the characters from start to end, or NaN when they are not a number
+     */
+    public static float parseFloat(String s, int start, int end) {
+        if (start >= end) {
+            return Float.NaN;
+        }
+        double d = parseDecimal(s, start, end);
+
+        //a double exactly halfway between two floats may round to a different float than the decimal does
+        if (!Double.isNaN(d) && (Double.doubleToRawLongBits(d) & 0x1fffffffL) != 0x10000000L) {
+            return (float) d;
+        }
+        try {
+            return Float.parseFloat(s.substring(start, end));
+        } catch (NumberFormatException e) {
+            return Float.NaN;
+        }
+    }
+
+    /**
+     * @return the double value of the characters from start to end, or NaN when they are not a number
+     */
+    public static double parseDouble(String s, int start, int end) {
+        if (start >= end) {
+            return Double.NaN;
+        }
+        double d = parseDecimal(s, start, end);
+        if (!Double.isNaN(d)) {
+            return d;
+        }
+        try {
+            return Double.parseDouble(s.substring(start, end));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Parse a plain decimal that fits in a double exactly, such that the division by a power of ten is the only
+     * rounding.
+     *
+     * @return the value, or NaN when it must be parsed another way
+     */
+    private static double parseDecimal(String s, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        boolean number = false;
+        for (; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                number = true;
+                if (mantissa > 0 || c != '0') {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                }
+                if (point) {
+                    scale++;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                return Double.NaN;
+            }
+        }
+
+        if (!number || digits > MAX_DIGITS || scale >= POWERS_OF_TEN.length) {
+            return Double.NaN;
+        }
+        double d = scale == 0 ? mantissa : mantissa / POWERS_OF_TEN[scale];
+        return negative ? -d : d;
+    }
+}
@@ -0,0 +1,131 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A WMS point rasterised once, with antialiasing, then stamped into the pixels of a TYPE_INT_ARGB image with
+ * source over alpha blending.
+ * <br>
+ * A stamped point looks the same as a point drawn with Graphics2D fillOval, and drawOval for the outline, at the
+ * same position, without the cost of rasterising each point.
+ */
+public class PointSprite {
+
+    //the sprites are small, clear the cache instead of evicting when there are too many colours
+    private static final int MAX_SPRITES = 1000;
+    private static final ConcurrentHashMap<String, PointSprite> sprites = new ConcurrentHashMap<String, PointSprite>();
+
+    //space around the oval for the outline
+    private static final int BORDER = 2;
+
+    private final int size;
+    private final int[] pixels;
+
+    private PointSprite(int pointWidth, int colour, Color outline) {
+        size = pointWidth + BORDER * 2;
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = (Graphics2D) img.getGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setPaint(new Color(colour, true));
+        g.fillOval(BORDER, BORDER, pointWidth, pointWidth);
+        if (outline != null) {
+            g.setPaint(outline);
+            g.drawOval(BORDER, BORDER, pointWidth, pointWidth);
+        }
+        g.dispose();
+        pixels = img.getRGB(0, 0, size, size, null, 0, size);
+    }
+
+    /**
+     * @param pointWidth width of the oval in pixels
+     * @param colour     ARGB colour of the oval
+     * @param outline    colour of the outline, or null for no outline
+     * @return the sprite
+     */
+    public static PointSprite get(int pointWidth, int colour, Color outline) {
+        String key = pointWidth + "," + colour + "," + (outline == null ? "" : outline.getRGB());
+        PointSprite sprite = sprites.get(key);
+        if (sprite == null) {
+            if (sprites.size() >= MAX_SPRITES) {
+                sprites.clear();
+            }
+            sprite = new PointSprite(pointWidth, colour, outline);
+            sprites.put(key, sprite);
+        }
+        return sprite;
+    }
+
+    /**
+     * @param img a TYPE_INT_ARGB image
+     * @return the pixels of the image, to stamp sprites into
+     */
+    public static int[] getPixels(BufferedImage img) {
+        return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Stamp the sprite where Graphics2D would draw the oval.
+     *
+     * @param pixels the pixels of a TYPE_INT_ARGB image
+     * @param width  the width of the image
+     * @param height the height of the image
+     * @param x      the x of the oval, as given to fillOval
+     * @param y      the y of the oval, as given to fillOval
+     */
+    public void stamp(int[] pixels, int width, int height, int x, int y) {
+        int left = x - BORDER;
+        int top = y - BORDER;
+        int startX = Math.max(0, -left);
+        int endX = Math.min(size, width - left);
+        int startY = Math.max(0, -top);
+        int endY = Math.min(size, height - top);
+        for (int sy = startY; sy < endY; sy++) {
+            int s = sy * size;
+            int d = (top + sy) * width + left;
+            for (int sx = startX; sx < endX; sx++) {
+                int src = this.pixels[s + sx];
+                int sa = src >>> 24;
+                if (sa == 255) {
+                    pixels[d + sx] = src;
+                } else if (sa > 0) {
+                    pixels[d + sx] = blend(src, sa, pixels[d + sx]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Source over blending of non premultiplied ARGB.
+     */
+    private static int blend(int src, int sa, int dst) {
+        int da = dst >>> 24;
+        //destination alpha remaining after the source is drawn
+        int dr = (da * (255 - sa) + 127) / 255;
+        int oa = sa + dr;
+        if (oa == 0) {
+            return 0;
+        }
+        int half = oa / 2;
+        int r = (((src >> 16) & 0xff) * sa + ((dst >> 16) & 0xff) * dr + half) / oa;
+        int g = (((src >> 8) & 0xff) * sa + ((dst >> 8) & 0xff) * dr + half) / oa;
+        int b = ((src & 0xff) * sa + (dst & 0xff) * dr + half) / oa;
+        return (oa << 24) | (r << 16) | (g << 8) | b;
+    }
+}
@@ -0,0 +1,361 @@
+package au.org.ala.biocache.util;
+
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.stream.OptionalZipOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs identical downloads once, sharing their records between all of the downloads.
+ *
+ * The first download with a key runs the query, writing the records straight into its own output. Downloads with
+ * the same key that start before the first record is written attach to the query and the records are written into
+ * their outputs as well, under their own entry names, including the _partN entries. Nothing is spooled, so a
+ * download that no other download attaches to is written exactly as an unshared download. Downloads that start
+ * after the first record is written run their own query.
+ *
+ * When the query fails or the first download is cancelled before any record is written, each of the attached
+ * downloads runs the query again, sharing it with the other attached downloads. After a record is written, the
+ * attached downloads fail with the query.
+ */
+public class SharedDownloadExecutions {
+
+    private static final Logger logger = Logger.getLogger(SharedDownloadExecutions.class);
+
+    /**
+     * Writes the records of a download.
+     */
+    public interface Records {
+        /**
+         * @param out the output for the records, with an open entry
+         * @param dd  the download that runs the query
+         * @return the counts of the records
+         * @throws Exception
+         */
+        ConcurrentMap<String, AtomicInteger> write(OptionalZipOutputStream out, DownloadDetailsDTO dd) throws Exception;
+    }
+
+    private final ConcurrentMap<String, Execution> executions = new ConcurrentHashMap<>();
+
+    /**
+     * Write the records of a download, sharing the query with identical downloads.
+     *
+     * @param key     identifies the records of the download
+     * @param dd      the download
+     * @param out     the output of the download
+     * @param entry   the name of the entry for the records, e.g. data.csv
+     * @param records writes the records when this download runs the query
+     * @return the counts of the records, or null when the download was cancelled
+     * @throws Exception the failure of the query when this download ran it, or when records were written before it failed
+     */
+    public ConcurrentMap<String, AtomicInteger> write(String key, DownloadDetailsDTO dd, OptionalZipOutputStream out,
+                                                      String entry, Records records) throws Exception {
+        out.putNextEntry(entry);
+        try {
+            while (true) {
+                Execution execution = new Execution(key, dd);
+                Execution existing = executions.putIfAbsent(key, execution);
+                if (existing == null) {
+                    return execution.run(records, out);
+                }
+
+                Target target = new Target(out);
+                if (!existing.attach(target)) {
+                    if (existing.isComplete()) {
+                        // finished and removed, start a new query
+                        continue;
+                    }
+                    // the records are already being written, run the query without sharing it
+                    return records.write(out, dd);
+                }
+                if (logger.isInfoEnabled()) {
+                    logger.info("Download " + dd.getUniqueId() + " is sharing the records of download " + existing.dd.getUniqueId());
+                }
+
+                if (!existing.await(dd)) {
+                    target.close();
+                    return null;
+                }
+                if (target.error != null) {
+                    throw target.error;
+                }
+                if (existing.error != null) {
+                    if (!existing.isStarted()) {
+                        // nothing was written to this download, run the query again
+                        continue;
+                    }
+                    throw existing.error;
+                }
+                dd.setTotalRecords(existing.dd.getTotalRecords());
+                dd.updateCounts((int) (existing.dd.getRecordsDownloaded().get() - dd.getRecordsDownloaded().get()));
+                dd.setMiscFields(existing.dd.getMiscFields());
+                ConcurrentMap<String, AtomicInteger> uidStats = new ConcurrentHashMap<>();
+                for (Map.Entry<String, Integer> count : existing.uidStats.entrySet()) {
+                    uidStats.put(count.getKey(), new AtomicInteger(count.getValue()));
+                }
+                return uidStats;
+            }
+        } finally {
+            out.closeEntry();
+        }
+    }
+
+    /**
+     * @return the number of queries that are running
+     */
+    public int getRunning() {
+        return executions.size();
+    }
+
+    /**
+     * The output of a download attached to a query.
+     */
+    private static class Target {
+        final OptionalZipOutputStream out;
+        IOException error;
+        boolean closed;
+
+        Target(OptionalZipOutputStream out) {
+            this.out = out;
+        }
+
+        synchronized void write(byte[] b, int off, int len) {
+            if (!closed) {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        synchronized void isNewFile(long length) {
+            if (!closed) {
+                try {
+                    out.isNewFile(null, length);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        synchronized void flush() {
+            if (!closed) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        /**
+         * Stop writing to the output, a failure of this output does not fail the query.
+         */
+        private void fail(IOException e) {
+            error = e;
+            closed = true;
+        }
+
+        /**
+         * Stop writing to the output, waiting for a write in progress.
+         */
+        synchronized void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * A query shared by the downloads attached to it.
+     */
+    private class Execution {
+        final String key;
+        final DownloadDetailsDTO dd;
+        final CountDownLatch finished = new CountDownLatch(1);
+        final List<Target> targets = new ArrayList<>();
+        Map<String, Integer> uidStats;
+        Exception error;
+        boolean started;
+        boolean complete;
+
+        Execution(String key, DownloadDetailsDTO dd) {
+            this.key = key;
+            this.dd = dd;
+        }
+
+        /**
+         * @return false when the query has written records or is complete
+         */
+        synchronized boolean attach(Target target) {
+            if (started || complete) {
+                return false;
+            }
+            targets.add(target);
+            return true;
+        }
+
+        synchronized boolean isStarted() {
+            return started;
+        }
+
+        synchronized boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Stop attaching downloads when the first record is written.
+         */
+        synchronized Target[] start() {
+            started = true;
+            return targets.toArray(new Target[0]);
+        }
+
+        /**
+         * Run the query on the calling thread, writing the records to the output of this download and of the
+         * downloads attached to it.
+         */
+        ConcurrentMap<String, AtomicInteger> run(Records records, OptionalZipOutputStream out) throws Exception {
+            try {
+                ConcurrentMap<String, AtomicInteger> counts = records.write(new SharedOutputStream(this, out), dd);
+
+                if (dd.getInterrupt().get()) {
+                    throw new InterruptedException("The download that ran the query was cancelled");
+                }
+                uidStats = new HashMap<>();
+                if (counts != null) {
+                    for (Map.Entry<String, AtomicInteger> count : counts.entrySet()) {
+                        uidStats.put(count.getKey(), count.getValue().get());
+                    }
+                }
+                return counts;
+            } catch (Exception e) {
+                error = e;
+                if (dd.getInterrupt().get()) {
+                    return null;
+                }
+                throw e;
+            } finally {
+                executions.remove(key, this);
+                synchronized (this) {
+                    complete = true;
+                }
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Wait for the query to finish.
+         *
+         * @return false when the waiting download was cancelled
+         */
+        boolean await(DownloadDetailsDTO waiting) throws InterruptedException {
+            while (!finished.await(1, TimeUnit.SECONDS)) {
+                if (waiting.getInterrupt().get()) {
+                    return false;
+                }
+                // report the progress of the query
+                waiting.setTotalRecords(dd.getTotalRecords());
+                waiting.updateCounts((int) (dd.getRecordsDownloaded().get() - waiting.getRecordsDownloaded().get()));
+            }
+            return !waiting.getInterrupt().get();
+        }
+    }
+
+    /**
+     * Writes the records of a query to the output of the download running it and to the outputs of the downloads
+     * attached to it. The attached outputs start a new _partN entry at the same record as the running output.
+     */
+    private static class SharedOutputStream extends OptionalZipOutputStream {
+        private final Execution execution;
+        private final OptionalZipOutputStream out;
+        private volatile Target[] targets;
+
+        SharedOutputStream(Execution execution, OptionalZipOutputStream out) {
+            super(Type.unzipped, NullOutputStream.NULL_OUTPUT_STREAM, null);
+            this.execution = execution;
+            this.out = out;
+        }
+
+        private Target[] getTargets() {
+            Target[] nextTargets = targets;
+            if (nextTargets == null) {
+                nextTargets = targets = execution.start();
+            }
+            return nextTargets;
+        }
+
+        @Override
+        public boolean isNewFile(Object writer, long length) throws IOException {
+            Target[] nextTargets = getTargets();
+            // flushes the writer into all of the outputs before a new entry is started
+            boolean isNewFile = out.isNewFile(writer, length);
+            for (Target target : nextTargets) {
+                target.isNewFile(length);
+            }
+            return isNewFile;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Target[] nextTargets = getTargets();
+            out.write(b, off, len);
+            for (Target target : nextTargets) {
+                target.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+            for (Target target : getTargets()) {
+                target.flush();
+            }
+        }
+
+        @Override
+        public void putNextEntry(String name) {
+            throw new UnsupportedOperationException("The records are written to the open entry");
+        }
+
+        @Override
+        public void closeEntry() {
+            throw new UnsupportedOperationException("The records are written to the open entry");
+        }
+
+        @Override
+        public void close() {
+            // the outputs are closed by their downloads
+        }
+
+        @Override
+        public Type getType() {
+            return out.getType();
+        }
+
+        @Override
+        public String getCurrentEntry() {
+            return out.getCurrentEntry();
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return out.getBytesWritten();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encode a Mapbox Vector Tile (version 2.1) with one layer of points.
+ * <br>
+ * The keys and values of the point attributes are added to the tables of the layer once and referenced by index.
+ * The tile is written as protobuf directly, https://github.com/mapbox/vector-tile-spec/tree/master/2.1
+ */
+public class VectorTileEncoder {
+
+    //protobuf wire types
+    private static final int VARINT = 0;
+    private static final int LENGTH_DELIMITED = 2;
+
+    //field numbers of the Tile, Layer, Feature and Value messages
+    private static final int TILE_LAYERS = 3;
+    private static final int LAYER_NAME = 1;
+    private static final int LAYER_FEATURES = 2;
+    private static final int LAYER_KEYS = 3;
+    private static final int LAYER_VALUES = 4;
+    private static final int LAYER_EXTENT = 5;
+    private static final int LAYER_VERSION = 15;
+    private static final int FEATURE_TAGS = 2;
+    private static final int FEATURE_TYPE = 3;
+    private static final int FEATURE_GEOMETRY = 4;
+    private static final int VALUE_STRING = 1;
+    private static final int VALUE_INT = 4;
+
+    private static final int GEOMETRY_POINT = 1;
+    //MoveTo command with a count of 1
+    private static final int MOVE_TO_ONE = (1 << 3) | 1;
+
+    private final String name;
+    private final int extent;
+
+    private final List<String> keys = new ArrayList<String>();
+    private final Map<String, Integer> keyIndex = new HashMap<String, Integer>();
+    private final List<byte[]> values = new ArrayList<byte[]>();
+    private final Map<Object, Integer> valueIndex = new HashMap<Object, Integer>();
+
+    private final ByteArrayOutputStream features = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream feature = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream packed = new ByteArrayOutputStream();
+    private int featureCount;
+
+    /**
+     * @param name   name of the layer
+     * @param extent the width and height of the tile in tile coordinates
+     */
+    public VectorTileEncoder(String name, int extent) {
+        this.name = name;
+        this.extent = extent;
+    }
+
+    public int getExtent() {
+        return extent;
+    }
+
+    public int getFeatureCount() {
+        return featureCount;
+    }
+
+    /**
+     * @return the index of an attribute key
+     */
+    public int key(String key) {
+        Integer index = keyIndex.get(key);
+        if (index == null) {
+            index = keys.size();
+            keys.add(key);
+            keyIndex.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * @return the index of a string attribute value
+     */
+    public int value(String value) {
+        Integer index = valueIndex.get(value);
+        if (index == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeString(out, VALUE_STRING, value);
+            index = addValue(value, out);
+        }
+        return index;
+    }
+
+    /**
+     * @return the index of an integer attribute value
+     */
+    public int value(long value) {
+        Long key = value;
+        Integer index = valueIndex.get(key);
+        if (index == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeTag(out, VALUE_INT, VARINT);
+            writeVarint(out, value);
+            index = addValue(key, out);
+        }
+        return index;
+    }
+
+    private int addValue(Object value, ByteArrayOutputStream encoded) {
+        int index = values.size();
+        values.add(encoded.toByteArray());
+        valueIndex.put(value, index);
+        return index;
+    }
+
+    /**
+     * Add a point feature.
+     *
+     * @param x    x in tile coordinates, from the left
+     * @param y    y in tile coordinates, from the top
+     * @param tags pairs of key and value indexes of the attributes
+     */
+    public void addPoint(int x, int y, int... tags) {
+        feature.reset();
+
+        if (tags.length > 0) {
+            packed.reset();
+            for (int tag : tags) {
+                writeVarint(packed, tag);
+            }
+            writeBytes(feature, FEATURE_TAGS, packed);
+        }
+
+        writeTag(feature, FEATURE_TYPE, VARINT);
+        writeVarint(feature, GEOMETRY_POINT);
+
+        packed.reset();
+        writeVarint(packed, MOVE_TO_ONE);
+        writeVarint(packed, zigZag(x) & 0xffffffffL);
+        writeVarint(packed, zigZag(y) & 0xffffffffL);
+        writeBytes(feature, FEATURE_GEOMETRY, packed);
+
+        writeBytes(features, LAYER_FEATURES, feature);
+        featureCount++;
+    }
+
+    /**
+     * @return the encoded tile
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream layer = new ByteArrayOutputStream(features.size() + 1024);
+        writeTag(layer, LAYER_VERSION, VARINT);
+        writeVarint(layer, 2);
+        writeString(layer, LAYER_NAME, name);
+        layer.write(features.toByteArray(), 0, features.size());
+        for (String key : keys) {
+            writeString(layer, LAYER_KEYS, key);
+        }
+        for (byte[] value : values) {
+            writeTag(layer, LAYER_VALUES, LENGTH_DELIMITED);
+            writeVarint(layer, value.length);
+            layer.write(value, 0, value.length);
+        }
+        writeTag(layer, LAYER_EXTENT, VARINT);
+        writeVarint(layer, extent);
+
+        ByteArrayOutputStream tile = new ByteArrayOutputStream(layer.size() + 8);
+        writeBytes(tile, TILE_LAYERS, layer);
+        return tile.toByteArray();
+    }
+
+    private static int zigZag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+        writeVarint(out, (field << 3) | wireType);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, int field, ByteArrayOutputStream bytes) {
+        writeTag(out, field, LENGTH_DELIMITED);
+        writeVarint(out, bytes.size());
+        out.write(bytes.toByteArray(), 0, bytes.size());
+    }
+
+    private static void writeString(ByteArrayOutputStream out, int field, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeTag(out, field, LENGTH_DELIMITED);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+}
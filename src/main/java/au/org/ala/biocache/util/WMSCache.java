@@ -19,20 +19,33 @@ import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Map.Entry;
+import java.io.File;
+import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A cache of points and colours for WMS.
  *
  * Cache size defaults can overridden in biocache-config.properties or directly at runtime.
  *
- * Management of the cache size not exact.
+ * The size of each tile is the size in bytes of its arrays. The cache is split into segments by key, each
+ * segment holds up to its share of the max size. A tile larger than the share of its segment, but no larger than
+ * the max size, is cached by evicting the tiles of its segment and then of the other segments until the cache is
+ * no larger than the max size. Tiles are evicted when they are put, using W-TinyLFU:
+ * a new tile enters a small LRU window, then competes with the least recently used tile of the main cache,
+ * which is kept if it has been requested more often. Tiles requested again in the main cache are protected
+ * from eviction until they are the least recently used of the protected tiles.
+ *
+ * The points of cached tiles are packed into {@link WMSTileColumns}, stored on the heap, in direct memory or in
+ * memory mapped files, and are evicted by dropping the reference to the tile. The size of a tile includes the
+ * columns stored outside the heap.
+ *
+ * Gets do not lock, the requests for cached tiles are buffered and applied to the eviction order by
+ * the next put or by the get that fills the buffer.
  *
  * @author Adam
  */
@@ -44,54 +57,36 @@ public class WMSCache {
 
     @Value("${wms.cache.size.max:104857600}")
     long maxCacheSize;
-    //min size of cached params in bytes
+    //min size of cached params in bytes, no longer used as tiles are evicted as they are added
     @Value("${wms.cache.size.min:52428800}")
     long minCacheSize;
     //max age of any one object in the cache in ms
     @Value("${wms.cache.age.max:3600000}")
     long maxAge;
-    //in memory store of params
-    ConcurrentHashMap<String, WMSTile> cache = new ConcurrentHashMap<String, WMSTile>();
-    //cache size management
-    final Object counterLock = new Object();
-    long cacheSize;
-    CountDownLatch counter;
-    //thread for cache size limitation
-    final Thread cacheCleaner;
-    //lock on get operation
-    final Object getLock = new Object();
-    //cache size before cleaner is triggered
-    long triggerCleanSize = minCacheSize + (maxCacheSize - minCacheSize) / 2;
-
-    {
-        counter = new CountDownLatch(1);
-
-        cacheCleaner = new Thread() {
+    //where the points of cached tiles are stored, heap, direct or mapped
+    @Value("${wms.cache.storage:heap}")
+    String storage = "heap";
+    //directory of the mapped files, or empty for the default temporary directory
+    @Value("${wms.cache.storage.dir:}")
+    String storageDirectory;
+
+    private static final int SEGMENTS = 16;
+    //number of buffered requests for cached tiles before a get applies them to the eviction order
+    private static final int READ_BUFFER_DRAIN = 32;
+    private static final int READ_BUFFER_MAX = 128;
 
-            @Override
-            public void run() {
-                try {
-                    while (true) {
-                        counter.await();
+    //in memory store of params
+    final ConcurrentHashMap<String, Node> cache = new ConcurrentHashMap<String, Node>();
+    final Segment[] segments = new Segment[SEGMENTS];
 
-                        synchronized (counterLock) {
-                            cacheSize = minCacheSize;
-                            counter = new CountDownLatch(1);
-                        }
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
 
-                        cleanCache();
-                    }
-                } catch (InterruptedException e) {
-                } catch (Exception e) {
-                    logger.error("wms cache cleaner stopping unexpectedly", e);
-                }
-            }
-        };
-        cacheCleaner.start();
-
-        logger.info("maxCacheSize > " + maxCacheSize);
-        logger.info("minCacheSize > " + minCacheSize);
-        logger.info("maxAge > " + maxAge);
+    {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
     }
 
     /**
@@ -101,35 +96,84 @@ public class WMSCache {
      * @param colourMode to store as String
      * @param pointType resolution of data to store as PointType
      * @param wco data to store as WMSTile
-     * @return true when successfully added to the cache.  WMSCache must be 
-     * enabled, not full.  wco must be not too large and not cause the cache
-     * to exceed max size when added.
+     * @return true when successfully added to the cache.  WMSCache must be
+     * enabled.  wco must be not too large for the cache.  Adding wco may evict
+     * other tiles, or be evicted itself in favour of tiles that are used more often.
      */
     public boolean put(String q, String colourMode, PointType pointType, WMSTile wco) {
-        if (isFull() || !isEnabled()) {
+        if (!isEnabled()) {
             return false;
         }
 
         wco.updateSize();
 
-        synchronized (counterLock) {
-            if (cacheSize + wco.getSize() > maxCacheSize) {
-                return false;
+        if (wco.getSize() > maxCacheSize) {
+            return false;
+        }
+
+        String key = getKey(q, colourMode, pointType);
+        int hash = spread(key.hashCode());
+        Segment segment = segmentFor(hash);
+        long maxWeight = maxCacheSize / SEGMENTS;
+
+        Node node = new Node(key, hash, wco, wco.getSize());
+        segment.lock.lock();
+        try {
+            segment.drainReadBuffer();
+            Node previous = cache.put(key, node);
+            if (previous != null) {
+                segment.unlink(previous);
             }
-            cache.put(getKey(q, colourMode, pointType), wco);
-            cacheSize += wco.getSize();
-            logger.debug("new cache size: " + cacheSize);
-            updateTriggerCleanSize();
-            if (cacheSize > triggerCleanSize) {
-                counter.countDown();
+            if (node.weight > maxWeight) {
+                // make room in this segment first, the new tile would lose to the tiles of the segment
+                segment.evict(Math.max(0, maxCacheSize - node.weight - (getSize() - segment.weight)));
+                segment.add(node);
+            } else {
+                segment.add(node);
+                segment.evict(maxWeight);
             }
+        } finally {
+            segment.lock.unlock();
         }
 
+        if (getSize() > maxCacheSize) {
+            evictOtherSegments(segment, maxWeight);
+        }
+        logger.debug("new cache size: " + getSize());
+
         wco.setCached(true);
 
         return true;
     }
 
+    /**
+     * Evict tiles from the segments other than the segment of a tile that was put until the cache is no larger
+     * than the max size. Segments holding a tile larger than their share are reduced to their share first.
+     *
+     * @param put       the segment of the tile that was put
+     * @param maxWeight the share of each segment
+     */
+    private void evictOtherSegments(Segment put, long maxWeight) {
+        for (boolean overShare : new boolean[]{true, false}) {
+            for (Segment segment : segments) {
+                long excess = getSize() - maxCacheSize;
+                if (excess <= 0) {
+                    return;
+                }
+                if (segment == put || (overShare && segment.weight <= maxWeight)) {
+                    continue;
+                }
+                segment.lock.lock();
+                try {
+                    segment.drainReadBuffer();
+                    segment.evict(overShare ? maxWeight : Math.max(0, segment.weight - excess));
+                } finally {
+                    segment.lock.unlock();
+                }
+            }
+        }
+    }
+
     /**
      * cache key built from query, colourmode and point type.
      *
@@ -155,30 +199,34 @@ public class WMSCache {
      */
     public WMSTile get(String query, String colourmode, PointType pointType) {
         String key = getKey(query, colourmode, pointType);
-        WMSTile obj = null;
-        synchronized (getLock) {
-            obj = cache.get(key);
+        long now = System.currentTimeMillis();
+        Node node = cache.get(key);
 
-            if (obj != null && obj.getCreated() + maxAge < System.currentTimeMillis()) {
-                cache.remove(key);
-                obj = null;
+        while (node == null || node.tile.getCreated() + maxAge < now) {
+            if (node != null) {
+                remove(node);
             }
-
-            if (obj == null) {
-                obj = new WMSTile();
-                cache.put(key, obj);
+            // a tile that is not cached yet, for the requests of the same tile to wait on while it is filled
+            Node placeholder = new Node(key, spread(key.hashCode()), new WMSTile(), 0);
+            node = cache.putIfAbsent(key, placeholder);
+            if (node == null) {
+                node = placeholder;
             }
         }
 
-        if (obj != null) {
-            obj.lastUse = System.currentTimeMillis();
+        if (node.tile.getCached()) {
+            hits.increment();
+        } else {
+            misses.increment();
         }
+        node.tile.lastUse = now;
+        segmentFor(node.hash).recordRead(node);
 
-        return obj;
+        return node.tile;
     }
 
     /**
-     * Get a WMSTile without returning an empty, lockable WMSTile. 
+     * Get a WMSTile without returning an empty, lockable WMSTile.
      *
      * @param query
      * @param colourmode
@@ -186,46 +234,8 @@ public class WMSCache {
      * @return null if no tile found
      */
     public WMSTile getTest(String query, String colourmode, PointType pointType) {
-        synchronized (getLock) {
-            return cache.get(getKey(query, colourmode, pointType));
-        }
-    }
-
-    /**
-     * empty the cache to <= minCacheSize
-     */
-    void cleanCache() {
-        updateTriggerCleanSize();
-                
-        List<Entry<String, WMSTile>> entries = new ArrayList<>(cache.entrySet());
-
-        //sort ascending by last use time
-        Collections.sort(entries, new Comparator<Entry<String, WMSTile>>() {
-
-            @Override
-            public int compare(Entry<String, WMSTile> o1, Entry<String, WMSTile> o2) {
-                long c = o1.getValue().lastUse - o2.getValue().lastUse;
-                return (c < 0) ? -1 : ((c > 0) ? 1 : 0);
-            }
-        });
-
-        long size = 0;
-        int numberRemoved = 0;
-        for (int i = 0; i < entries.size(); i++) {
-            if (size + entries.get(i).getValue().getSize() > minCacheSize) {
-                String key = entries.get(i).getKey();
-                cache.remove(key);
-                numberRemoved++;
-            } else {
-                size += entries.get(i).getValue().getSize();
-            }
-        }
-
-        synchronized (counterLock) {
-            cacheSize -= (minCacheSize - size);
-            size = cacheSize;
-        }
-        logger.debug("removed " + numberRemoved + " cached wms points, new cache size " + size);
+        Node node = cache.get(getKey(query, colourmode, pointType));
+        return node != null ? node.tile : null;
     }
 
     /**
@@ -241,10 +251,18 @@ public class WMSCache {
      * empty the WMSCache
      */
     public void empty() {
-        synchronized (counterLock) {
-            cacheSize = 0;
-            counter = new CountDownLatch(1);
+        for (Segment segment : segments) {
+            segment.lock.lock();
+        }
+        try {
             cache.clear();
+            for (Segment segment : segments) {
+                segment.clear();
+            }
+        } finally {
+            for (Segment segment : segments) {
+                segment.lock.unlock();
+            }
         }
     }
 
@@ -256,23 +274,37 @@ public class WMSCache {
      * @param pointType resolution of data to store as PointType
      */
     public void remove(String q, String colourMode, PointType pointType) {
-        cache.remove(getKey(q, colourMode, pointType));
+        Node node = cache.get(getKey(q, colourMode, pointType));
+        if (node != null) {
+            remove(node);
+        }
+    }
+
+    private void remove(Node node) {
+        Segment segment = segmentFor(node.hash);
+        segment.lock.lock();
+        try {
+            if (cache.remove(node.key, node)) {
+                segment.unlink(node);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
     }
 
     /**
      * Test if cache is full.
      *
-     * Note: all put requests into the cache will fail should it be full.
+     * Tiles are evicted as they are added, so the cache is only full when the tiles are too large for it.
      *
      * @return
      */
     public boolean isFull() {
-        return cacheSize >= maxCacheSize;
+        return getSize() >= maxCacheSize;
     }
 
     public void setMaxCacheSize(long sizeInBytes) {
         maxCacheSize = sizeInBytes;
-        updateTriggerCleanSize();
     }
 
     public long getMaxCacheSize() {
@@ -281,15 +313,44 @@ public class WMSCache {
 
     public void setMinCacheSize(long sizeInBytes) {
         minCacheSize = sizeInBytes;
-        updateTriggerCleanSize();
     }
 
     public long getMinCacheSize() {
         return minCacheSize;
     }
 
+    /**
+     * @return the size in bytes of the cached tiles
+     */
     long getSize() {
-        return cacheSize;
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.weight;
+        }
+        return size;
+    }
+
+    /**
+     * @return where the points of cached tiles are stored, HEAP when wms.cache.storage is not valid
+     */
+    public WMSTileColumns.Storage getStorage() {
+        try {
+            return WMSTileColumns.Storage.valueOf(storage.trim().toUpperCase(Locale.ROOT));
+        } catch (Exception e) {
+            logger.warn("Invalid wms.cache.storage: " + storage + ", using heap");
+            return WMSTileColumns.Storage.HEAP;
+        }
+    }
+
+    public void setStorage(String storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * @return directory of the mapped files, or null for the default temporary directory
+     */
+    public File getStorageDirectory() {
+        return storageDirectory == null || storageDirectory.trim().isEmpty() ? null : new File(storageDirectory.trim());
     }
 
     public long getMaxCacheAge() {
@@ -300,13 +361,326 @@ public class WMSCache {
         maxAge = maxCacheAge;
     }
 
+    /**
+     * @return the number of gets that returned a cached tile
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of gets that returned a tile that is not cached
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
 
     /**
-     * cache cleaner is triggered when the size of the cache is
-     * half way between the min and max size.
+     * @return the number of tiles evicted to keep the cache below the max size
      */
-    void updateTriggerCleanSize() {
-        triggerCleanSize = minCacheSize + (maxCacheSize - minCacheSize) / 2;
-        logger.debug("triggerCleanSize=" + triggerCleanSize + " minCacheSize=" + minCacheSize + " maxCacheSize=" + maxCacheSize);
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> 16) & (SEGMENTS - 1)];
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xed5ad4bb;
+        hash ^= hash >>> 11;
+        hash *= 0xac4c1b51;
+        hash ^= hash >>> 15;
+        return hash;
+    }
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    /**
+     * A cached tile, linked into the eviction order of its segment.
+     */
+    static final class Node {
+        final String key;
+        final int hash;
+        final WMSTile tile;
+        final long weight;
+        //the queue of the node, or -1 when it is not linked
+        int queue = -1;
+        Node prev;
+        Node next;
+
+        Node(String key, int hash, WMSTile tile, long weight) {
+            this.key = key;
+            this.hash = hash;
+            this.tile = tile;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A doubly linked list of nodes in order of use, least recently used first.
+     */
+    static final class AccessOrder {
+        final Node head = new Node(null, 0, null, 0);
+
+        AccessOrder() {
+            head.prev = head.next = head;
+        }
+
+        void addLast(Node node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+        }
+
+        void unlink(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = node.next = null;
+        }
+
+        void moveToLast(Node node) {
+            unlink(node);
+            addLast(node);
+        }
+
+        Node first() {
+            return head.next == head ? null : head.next;
+        }
+
+        Node last() {
+            return head.prev == head ? null : head.prev;
+        }
+
+        void clear() {
+            head.prev = head.next = head;
+        }
+    }
+
+    /**
+     * The eviction order and frequencies of the tiles in one segment of the cache. Guarded by its lock.
+     */
+    final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final AccessOrder window = new AccessOrder();
+        final AccessOrder probation = new AccessOrder();
+        final AccessOrder protectedOrder = new AccessOrder();
+        FrequencySketch sketch = new FrequencySketch(16);
+        final ConcurrentLinkedQueue<Node> readBuffer = new ConcurrentLinkedQueue<Node>();
+        final AtomicInteger readBufferSize = new AtomicInteger();
+        volatile long weight;
+        long windowWeight;
+        long protectedWeight;
+        int size;
+
+        void recordRead(Node node) {
+            if (readBufferSize.incrementAndGet() > READ_BUFFER_MAX) {
+                // drop the read rather than wait, the frequencies are only estimates
+                readBufferSize.decrementAndGet();
+            } else {
+                readBuffer.offer(node);
+            }
+            if (readBufferSize.get() >= READ_BUFFER_DRAIN && lock.tryLock()) {
+                try {
+                    drainReadBuffer();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        void drainReadBuffer() {
+            Node node;
+            while ((node = readBuffer.poll()) != null) {
+                readBufferSize.decrementAndGet();
+                sketch.increment(node.hash);
+                onAccess(node);
+            }
+        }
+
+        private void onAccess(Node node) {
+            if (node.queue == WINDOW) {
+                window.moveToLast(node);
+            } else if (node.queue == PROBATION) {
+                probation.unlink(node);
+                node.queue = PROTECTED;
+                protectedOrder.addLast(node);
+                protectedWeight += node.weight;
+                // demote the least recently used protected tiles
+                long maxProtected = (maxCacheSize / SEGMENTS - maxCacheSize / SEGMENTS / 100) * 80 / 100;
+                Node demote;
+                while (protectedWeight > maxProtected && (demote = protectedOrder.first()) != node) {
+                    protectedOrder.unlink(demote);
+                    protectedWeight -= demote.weight;
+                    demote.queue = PROBATION;
+                    probation.addLast(demote);
+                }
+            } else if (node.queue == PROTECTED) {
+                protectedOrder.moveToLast(node);
+            }
+        }
+
+        void add(Node node) {
+            sketch.increment(node.hash);
+            node.queue = WINDOW;
+            window.addLast(node);
+            windowWeight += node.weight;
+            weight += node.weight;
+            size++;
+            if (size > sketch.table.length) {
+                growSketch();
+            }
+        }
+
+        /**
+         * Double the sketch, keeping the frequencies of the cached tiles.
+         */
+        private void growSketch() {
+            FrequencySketch larger = new FrequencySketch(sketch.table.length * 2);
+            for (AccessOrder order : new AccessOrder[]{window, probation, protectedOrder}) {
+                for (Node node = order.head.next; node != order.head; node = node.next) {
+                    for (int i = sketch.frequency(node.hash); i > 0; i--) {
+                        larger.increment(node.hash);
+                    }
+                }
+            }
+            sketch = larger;
+        }
+
+        void unlink(Node node) {
+            if (node.queue == WINDOW) {
+                window.unlink(node);
+                windowWeight -= node.weight;
+            } else if (node.queue == PROBATION) {
+                probation.unlink(node);
+            } else if (node.queue == PROTECTED) {
+                protectedOrder.unlink(node);
+                protectedWeight -= node.weight;
+            } else {
+                return;
+            }
+            node.queue = -1;
+            weight -= node.weight;
+            size--;
+        }
+
+        /**
+         * Move the tiles that overflow the window to the main cache, then evict the tiles that lose to
+         * the tiles from the window, until the segment is no larger than maxWeight.
+         */
+        void evict(long maxWeight) {
+            long maxWindow = Math.max(1, maxWeight / 100);
+            Node candidate = null;
+            while (windowWeight > maxWindow) {
+                Node node = window.first();
+                window.unlink(node);
+                windowWeight -= node.weight;
+                node.queue = PROBATION;
+                probation.addLast(node);
+                if (candidate == null) {
+                    candidate = node;
+                }
+            }
+
+            while (weight > maxWeight) {
+                Node victim = probation.first();
+                if (victim == null) {
+                    victim = protectedOrder.first() != null ? protectedOrder.first() : window.first();
+                } else if (candidate != null) {
+                    Node nextCandidate = candidate.next == probation.head ? null : candidate.next;
+                    if (candidate == victim) {
+                        candidate = nextCandidate;
+                    } else if (sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+                        // the candidate from the window is not used more often than the victim
+                        victim = candidate;
+                        candidate = nextCandidate;
+                    }
+                }
+                unlink(victim);
+                cache.remove(victim.key, victim);
+                evictions.increment();
+            }
+        }
+
+        void clear() {
+            window.clear();
+            probation.clear();
+            protectedOrder.clear();
+            readBuffer.clear();
+            readBufferSize.set(0);
+            weight = windowWeight = protectedWeight = 0;
+            size = 0;
+        }
+    }
+
+    /**
+     * Estimates how often each tile is requested, using a count-min sketch of 4 bit counters. The counters are
+     * halved when the number of increments reaches 10 times the table length, so that the frequencies of old
+     * requests decay.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        final long[] table;
+        final int sampleSize;
+        int increments;
+
+        /**
+         * @param length the number of counters divided by 16, a power of 2 at least the number of tiles
+         */
+        FrequencySketch(int length) {
+            table = new long[length];
+            sampleSize = 10 * length;
+        }
+
+        int frequency(int hash) {
+            int start = (hash & 3) << 2;
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), start + i);
+            }
+            if (added && ++increments >= sampleSize) {
+                reset();
+            }
+        }
+
+        private boolean incrementAt(int i, int j) {
+            int offset = j << 2;
+            long mask = 0xfL << offset;
+            if ((table[i] & mask) != mask) {
+                table[i] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            increments /= 2;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & (table.length - 1);
+        }
     }
 }
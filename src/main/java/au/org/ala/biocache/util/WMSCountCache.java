@@ -0,0 +1,138 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A cache of the occurrence and point counts of WMS layer queries.
+ * <br>
+ * The tiles of a newly viewed layer request the same counts at the same time, so a count is loaded once and
+ * the other requests wait for it. The counts are for one index version and are all removed when the index
+ * version changes. Counts are evicted in least recently used order above wms.counts.cache.size entries and
+ * reloaded after wms.counts.cache.age.max ms.
+ */
+@Component("wmsCountCache")
+public class WMSCountCache {
+
+    @Value("${wms.counts.cache.size:10000}")
+    int maxSize = 10000;
+
+    //max age of a count in ms, or 0 for no max age
+    @Value("${wms.counts.cache.age.max:3600000}")
+    long maxAge = 3600000;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private Long indexVersion;
+
+    private static class Entry {
+        final FutureTask<Integer> task;
+        final long created = System.currentTimeMillis();
+
+        Entry(Callable<Integer> loader) {
+            task = new FutureTask<Integer>(loader);
+        }
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Get a count, loading it when it is not cached. Concurrent requests for the same count wait for one load.
+     *
+     * @param query        the query of the count
+     * @param indexVersion the index version, or null when unknown
+     * @param loader       loads the count
+     * @return the count, or null when the loader returns null. A null count is not cached.
+     * @throws Exception the exception of the loader. A failed load is not cached.
+     */
+    public Integer get(String query, Long indexVersion, Callable<Integer> loader) throws Exception {
+        Entry entry;
+        boolean load = false;
+        synchronized (entries) {
+            if (indexVersion != null && !indexVersion.equals(this.indexVersion)) {
+                entries.clear();
+                this.indexVersion = indexVersion;
+            }
+
+            entry = entries.get(query);
+            if (entry == null || (maxAge > 0 && System.currentTimeMillis() - entry.created > maxAge)) {
+                entry = new Entry(loader);
+                entries.put(query, entry);
+                load = true;
+
+                Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+                while (entries.size() > maxSize && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+        }
+
+        if (load) {
+            entry.task.run();
+        }
+
+        try {
+            Integer count = entry.task.get();
+            if (count == null) {
+                remove(query, entry);
+            }
+            return count;
+        } catch (ExecutionException e) {
+            remove(query, entry);
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void remove(String query, Entry entry) {
+        synchronized (entries) {
+            if (entries.get(query) == entry) {
+                entries.remove(query);
+            }
+        }
+    }
+
+    /**
+     * Remove all counts.
+     */
+    public void empty() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
@@ -14,12 +14,17 @@
  ***************************************************************************/
 package au.org.ala.biocache.util;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Represents a WMS tile.
  *
+ * The points of a tile are built as lists of arrays, one for each colour, then packed into
+ * {@link WMSTileColumns} with {@link #pack(WMSTileColumns.Storage, File)} before the tile is cached.
+ *
  * @author Adam
  */
 public class WMSTile {
@@ -30,6 +35,7 @@ public class WMSTile {
     List<int[]> counts;
     List<Integer> colours; //colours of the separate facets
     double[] bbox;
+    WMSTileColumns columns; //points, counts and colours once packed
     long lastUse;
     long created;
     long size;
@@ -68,16 +74,22 @@ public class WMSTile {
         this.colourmode = colourmode;
     }
 
+    /**
+     * @return the points of each colour, copied from the columns when the tile is packed
+     */
     public List<float[]> getPoints() {
-        return points;
+        return points == null && columns != null ? columns.toPoints() : points;
     }
 
     public void setPoints(List<float[]> points) {
         this.points = points;
     }
 
+    /**
+     * @return the colours, copied from the columns when the tile is packed
+     */
     public List<Integer> getColours() {
-        return colours;
+        return colours == null && columns != null ? columns.toColours() : colours;
     }
 
     public void setColours(List<Integer> colours) {
@@ -107,10 +119,58 @@ public class WMSTile {
     public void clearObjects() {
         points = null;
         colours = null;
+        columns = null;
+    }
+
+    /**
+     * Pack the points, counts and colours into columns and release the lists.
+     *
+     * @param storage   where to store the columns
+     * @param directory directory for the temporary file of MAPPED storage, or null for the default temporary directory
+     * @throws IOException when the temporary file of MAPPED storage cannot be created, the tile is unchanged
+     */
+    public void pack(WMSTileColumns.Storage storage, File directory) throws IOException {
+        if (points != null) {
+            columns = WMSTileColumns.pack(points, counts, colours, storage, directory);
+            points = null;
+            counts = null;
+            colours = null;
+            updateSize();
+        }
+    }
+
+    /**
+     * @return the packed points, or the points packed on the heap when the tile is not packed, or null when the tile
+     * has no points
+     */
+    public WMSTileColumns getColumns() {
+        if (columns == null && points != null) {
+            try {
+                return WMSTileColumns.pack(points, counts, colours, WMSTileColumns.Storage.HEAP, null);
+            } catch (IOException e) {
+                // not thrown for heap storage
+                throw new IllegalStateException(e);
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * @return true when the tile has points, packed or not
+     */
+    public boolean hasPoints() {
+        return points != null || columns != null;
+    }
+
+    public void setColumns(WMSTileColumns columns) {
+        this.columns = columns;
     }
 
+    /**
+     * @return the counts of each colour, copied from the columns when the tile is packed
+     */
     public List<int[]> getCounts() {
-        return counts;
+        return counts == null && columns != null ? columns.toCounts() : counts;
     }
 
     public void setCounts(List<int[]> counts) {
@@ -125,33 +185,60 @@ public class WMSTile {
         return cached;
     }
 
+    /**
+     * Update the size in bytes of this tile from its arrays, including the columns stored outside the heap.
+     */
     public void updateSize() {
-        int numPoints = 0;
-        for (float[] d : points) {
-            if (d != null) {
-                numPoints += d.length;
+        long s = align(OBJECT_HEADER + 7 * REFERENCE + 3 * 8 + 1);
+        s += sizeOf(query) + sizeOf(colourmode);
+        s += sizeOfList(points);
+        if (points != null) {
+            for (float[] d : points) {
+                s += d == null ? 0 : arraySize(d.length, 4);
             }
         }
-        size = sizeOf(numPoints, counts != null);
+        s += sizeOfList(counts);
+        if (counts != null) {
+            for (int[] c : counts) {
+                s += c == null ? 0 : arraySize(c.length, 4);
+            }
+        }
+        // each colour is a boxed Integer
+        s += sizeOfList(colours);
+        s += colours == null ? 0 : colours.size() * align(OBJECT_HEADER + 4);
+        s += bbox == null ? 0 : arraySize(bbox.length, 8);
+        s += columns == null ? 0 : columns.getHeapSize() + columns.getOffHeapSize();
+        size = s;
     }
 
     /**
-     * get approximate size in bytes for a WMSTile.
-     *
-     * @param numberOfPoints
-     * @param hasCounts true if points counts are to be stored.
-     * @return
+     * Sizes in bytes of objects with compressed references, as used by 64 bit JVMs with heaps up to 32GB.
      */
-    public static long sizeOf(int numberOfPoints, boolean hasCounts) {
-        int s = numberOfPoints * (4 + (hasCounts ? 2 : 0));
+    static final int OBJECT_HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
 
-        //bbox, lastuse, created, size, cached
-        s += 4 * 4 + 8 + 8 + 8 + 4;
+    static long align(long size) {
+        return (size + 7) & ~7L;
+    }
 
-        //query, colourmode and colours
-        s += 250 + 15 + 4 * 4;
+    /**
+     * @param length      the number of elements
+     * @param elementSize the size of each element in bytes
+     * @return the size in bytes of an array
+     */
+    static long arraySize(int length, int elementSize) {
+        return align(ARRAY_HEADER + (long) length * elementSize);
+    }
+
+    private static long sizeOf(String value) {
+        // the String and its char[]
+        return value == null ? 0 : align(OBJECT_HEADER + REFERENCE + 4) + arraySize(value.length(), 2);
+    }
 
-        return s;
+    private static long sizeOfList(List<?> list) {
+        // the ArrayList and its Object[]
+        return list == null ? 0 : align(OBJECT_HEADER + REFERENCE + 2 * 4) + arraySize(list.size(), REFERENCE);
     }
 
     public void setLastUse(long lastUse) {
@@ -0,0 +1,423 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The points of a WMS tile packed into contiguous columns.
+ * <br>
+ * The longitude and latitude of every point of every colour group are stored in one float column, the count of each
+ * point in one int column, and the start of each group in an offsets array. The columns are stored on the heap, in
+ * direct memory, or in a memory mapped temporary file, so that a cached tile with millions of points is a few objects
+ * instead of an array per group and a boxed Integer per colour.
+ * <br>
+ * The columns are read only, and the direct and mapped memory is released when the columns are garbage collected.
+ * <br>
+ * The points of each group are sorted into the cells of a grid over the extent of the group, row by row, so the
+ * points that may be inside a bbox are found with one range of points for each row of cells that the bbox covers.
+ * Points with NaN coordinates are stored after the grid.
+ */
+public class WMSTileColumns {
+
+    public enum Storage {
+        /** float[] and int[] columns on the heap */
+        HEAP,
+        /** columns in direct memory, outside the heap */
+        DIRECT,
+        /** columns in a memory mapped temporary file that is deleted once mapped */
+        MAPPED
+    }
+
+    private final Storage storage;
+    //longitude,latitude of each point
+    private final FloatBuffer coordinates;
+    //count of each point, or null when the counts are not stored
+    private final IntBuffer counts;
+    //index of the first point of each group, and the number of points at the end
+    private final int[] offsets;
+    //colour of each group
+    private final int[] colours;
+    //grid of the points of each group, null when a group is small enough to scan
+    private final GridIndex[] grids;
+
+    //the average number of points in a cell of a grid
+    private static final int POINTS_PER_CELL = 32;
+    //the maximum number of rows and columns of a grid
+    private static final int MAX_GRID_SIZE = 256;
+
+    private WMSTileColumns(Storage storage, FloatBuffer coordinates, IntBuffer counts, int[] offsets, int[] colours,
+                           GridIndex[] grids) {
+        this.storage = storage;
+        this.coordinates = coordinates;
+        this.counts = counts;
+        this.offsets = offsets;
+        this.colours = colours;
+        this.grids = grids;
+    }
+
+    /**
+     * A grid over the extent of the points of a group, with the points sorted by cell in rows.
+     */
+    static final class GridIndex {
+        final int size;
+        final double minLng;
+        final double minLat;
+        final double cellWidth;
+        final double cellHeight;
+        //index of the first point of each cell relative to the start of the group, and the number of points in cells
+        final int[] cellStarts;
+
+        /**
+         * @param ps    the points of the group
+         * @param n     the number of points
+         * @param order set to the index of each sorted point in the points
+         */
+        private GridIndex(float[] ps, int n, int[] order) {
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                float lng = ps[i * 2];
+                float lat = ps[i * 2 + 1];
+                if (!Float.isNaN(lng) && !Float.isNaN(lat)) {
+                    minX = Math.min(minX, lng);
+                    maxX = Math.max(maxX, lng);
+                    minY = Math.min(minY, lat);
+                    maxY = Math.max(maxY, lat);
+                }
+            }
+
+            size = (int) Math.max(1, Math.min(MAX_GRID_SIZE, Math.ceil(Math.sqrt(n / (double) POINTS_PER_CELL))));
+            minLng = minX;
+            minLat = minY;
+            cellWidth = maxX > minX ? (maxX - minX) / size : 1;
+            cellHeight = maxY > minY ? (maxY - minY) / size : 1;
+
+            //counting sort of the points by cell, the last cell holds the NaN points
+            int cells = size * size;
+            int[] cell = new int[n];
+            cellStarts = new int[cells + 2];
+            for (int i = 0; i < n; i++) {
+                float lng = ps[i * 2];
+                float lat = ps[i * 2 + 1];
+                if (Float.isNaN(lng) || Float.isNaN(lat)) {
+                    cell[i] = cells;
+                } else {
+                    cell[i] = row(lat) * size + column(lng);
+                }
+                cellStarts[cell[i] + 1]++;
+            }
+            for (int i = 0; i < cells + 1; i++) {
+                cellStarts[i + 1] += cellStarts[i];
+            }
+            int[] next = cellStarts.clone();
+            for (int i = 0; i < n; i++) {
+                order[next[cell[i]]++] = i;
+            }
+        }
+
+        int column(double lng) {
+            return (int) Math.max(0, Math.min(size - 1, Math.floor((lng - minLng) / cellWidth)));
+        }
+
+        int row(double lat) {
+            return (int) Math.max(0, Math.min(size - 1, Math.floor((lat - minLat) / cellHeight)));
+        }
+
+        long getHeapSize() {
+            return WMSTile.align(WMSTile.OBJECT_HEADER + 4 + 4 * 8 + WMSTile.REFERENCE)
+                    + WMSTile.arraySize(cellStarts.length, 4);
+        }
+    }
+
+    /**
+     * Pack the points of a tile into columns.
+     *
+     * @param points    points of each group stored as longitude,latitude. A null group has no points.
+     * @param counts    counts of each point of each group, or null
+     * @param colours   colour of each group
+     * @param storage   where to store the columns
+     * @param directory directory for the temporary file of MAPPED storage, or null for the default temporary directory
+     * @return the columns
+     * @throws IOException when the temporary file of MAPPED storage cannot be created
+     */
+    public static WMSTileColumns pack(List<float[]> points, List<int[]> counts, List<Integer> colours,
+                                      Storage storage, File directory) throws IOException {
+        int groups = points.size();
+        int[] offsets = new int[groups + 1];
+        for (int i = 0; i < groups; i++) {
+            float[] ps = points.get(i);
+            offsets[i + 1] = offsets[i] + (ps == null ? 0 : ps.length / 2);
+        }
+        int total = offsets[groups];
+
+        long bytes = (long) total * 2 * 4 + (counts != null ? (long) total * 4 : 0);
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many points to pack: " + total);
+        }
+
+        FloatBuffer coordinates;
+        IntBuffer countColumn = null;
+        if (storage == Storage.HEAP) {
+            coordinates = FloatBuffer.allocate(total * 2);
+            if (counts != null) {
+                countColumn = IntBuffer.allocate(total);
+            }
+        } else {
+            ByteBuffer buffer = storage == Storage.DIRECT ? ByteBuffer.allocateDirect((int) bytes) : map(directory, bytes);
+            buffer.order(ByteOrder.nativeOrder());
+            buffer.limit(total * 2 * 4);
+            coordinates = buffer.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+            if (counts != null) {
+                buffer.limit((int) bytes).position(total * 2 * 4);
+                countColumn = buffer.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+        }
+
+        GridIndex[] grids = new GridIndex[groups];
+        for (int i = 0; i < groups; i++) {
+            float[] ps = points.get(i);
+            int n = offsets[i + 1] - offsets[i];
+            int[] cs = countColumn != null && i < counts.size() ? counts.get(i) : null;
+            int[] order = null;
+            GridIndex grid = null;
+            if (n > POINTS_PER_CELL) {
+                order = new int[n];
+                grid = new GridIndex(ps, n, order);
+            }
+            for (int j = 0; j < n; j++) {
+                int k = order == null ? j : order[j];
+                coordinates.put(ps[k * 2]);
+                coordinates.put(ps[k * 2 + 1]);
+                if (cs != null && k < cs.length) {
+                    countColumn.put(offsets[i] + j, cs[k]);
+                }
+            }
+            grids[i] = grid;
+        }
+        coordinates.clear();
+
+        int[] colourColumn = new int[colours == null ? 0 : colours.size()];
+        for (int i = 0; i < colourColumn.length; i++) {
+            Integer colour = colours.get(i);
+            colourColumn[i] = colour == null ? 0 : colour;
+        }
+
+        return new WMSTileColumns(storage, coordinates, countColumn, offsets, colourColumn, grids);
+    }
+
+    private static ByteBuffer map(File directory, long bytes) throws IOException {
+        File file = File.createTempFile("wmstile", ".bin", directory);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            //the mapping remains valid after the channel is closed and the file is deleted
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * The same points with other colours, sharing the point and count columns.
+     *
+     * @param colours colour of each group
+     * @return the columns
+     */
+    public WMSTileColumns withColours(int[] colours) {
+        return new WMSTileColumns(storage, coordinates, counts, offsets, colours, grids);
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public int getGroupCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return index of the first point of a group
+     */
+    public int getStart(int group) {
+        return offsets[group];
+    }
+
+    /**
+     * @return index after the last point of a group
+     */
+    public int getEnd(int group) {
+        return offsets[group + 1];
+    }
+
+    public int getPointCount(int group) {
+        return offsets[group + 1] - offsets[group];
+    }
+
+    public float getLongitude(int point) {
+        return coordinates.get(point * 2);
+    }
+
+    public float getLatitude(int point) {
+        return coordinates.get(point * 2 + 1);
+    }
+
+    /**
+     * Find the points of a group that may be inside a bbox, from the cells of the grid that the bbox covers.
+     * The points in the ranges that are outside the bbox must still be excluded.
+     *
+     * @return the start and end of each range of points, as pairs
+     */
+    public int[] getRanges(int group, double minLng, double minLat, double maxLng, double maxLat) {
+        GridIndex grid = grids[group];
+        int start = offsets[group];
+        if (grid == null) {
+            return getPointCount(group) == 0 ? new int[0] : new int[]{start, offsets[group + 1]};
+        }
+        if (grid.cellStarts[grid.size * grid.size] == 0
+                || maxLng < grid.minLng || maxLat < grid.minLat
+                || minLng > grid.minLng + grid.cellWidth * grid.size
+                || minLat > grid.minLat + grid.cellHeight * grid.size) {
+            return new int[0];
+        }
+
+        int column0 = grid.column(minLng);
+        int column1 = grid.column(maxLng);
+        int row0 = grid.row(minLat);
+        int row1 = grid.row(maxLat);
+        if (column0 == 0 && column1 == grid.size - 1) {
+            //whole rows are one range
+            return new int[]{start + grid.cellStarts[row0 * grid.size], start + grid.cellStarts[(row1 + 1) * grid.size]};
+        }
+        int[] ranges = new int[(row1 - row0 + 1) * 2];
+        for (int row = row0; row <= row1; row++) {
+            ranges[(row - row0) * 2] = start + grid.cellStarts[row * grid.size + column0];
+            ranges[(row - row0) * 2 + 1] = start + grid.cellStarts[row * grid.size + column1 + 1];
+        }
+        return ranges;
+    }
+
+    public boolean hasCounts() {
+        return counts != null;
+    }
+
+    public int getCount(int point) {
+        return counts.get(point);
+    }
+
+    public int getColour(int group) {
+        return colours[group];
+    }
+
+    /**
+     * @return a copy of the points of a group stored as longitude,latitude
+     */
+    public float[] getPoints(int group) {
+        float[] ps = new float[getPointCount(group) * 2];
+        for (int i = 0; i < ps.length; i++) {
+            ps[i] = coordinates.get(offsets[group] * 2 + i);
+        }
+        return ps;
+    }
+
+    /**
+     * @return a copy of the counts of the points of a group, or null when the counts are not stored
+     */
+    public int[] getCounts(int group) {
+        if (counts == null) {
+            return null;
+        }
+        int[] cs = new int[getPointCount(group)];
+        for (int i = 0; i < cs.length; i++) {
+            cs[i] = counts.get(offsets[group] + i);
+        }
+        return cs;
+    }
+
+    /**
+     * @return a copy of the points of each group, as stored by {@link WMSTile#getPoints()}
+     */
+    public List<float[]> toPoints() {
+        List<float[]> points = new ArrayList<float[]>(getGroupCount());
+        for (int i = 0; i < getGroupCount(); i++) {
+            points.add(getPoints(i));
+        }
+        return points;
+    }
+
+    /**
+     * @return a copy of the counts of each group, as stored by {@link WMSTile#getCounts()}, or null
+     */
+    public List<int[]> toCounts() {
+        if (counts == null) {
+            return null;
+        }
+        List<int[]> cs = new ArrayList<int[]>(getGroupCount());
+        for (int i = 0; i < getGroupCount(); i++) {
+            cs.add(getCounts(i));
+        }
+        return cs;
+    }
+
+    /**
+     * @return a copy of the colours, as stored by {@link WMSTile#getColours()}
+     */
+    public List<Integer> toColours() {
+        List<Integer> cs = new ArrayList<Integer>(colours.length);
+        for (int colour : colours) {
+            cs.add(colour);
+        }
+        return cs;
+    }
+
+    /**
+     * @return the size in bytes of the columns on the heap
+     */
+    public long getHeapSize() {
+        long s = WMSTile.align(WMSTile.OBJECT_HEADER + 6 * WMSTile.REFERENCE);
+        s += WMSTile.arraySize(offsets.length, 4) + WMSTile.arraySize(colours.length, 4);
+        s += WMSTile.arraySize(grids.length, WMSTile.REFERENCE);
+        for (GridIndex grid : grids) {
+            s += grid == null ? 0 : grid.getHeapSize();
+        }
+        //the buffer objects
+        s += (counts == null ? 1 : 2) * WMSTile.align(WMSTile.OBJECT_HEADER + 4 * 4 + 8 + 2 * WMSTile.REFERENCE);
+        if (storage == Storage.HEAP) {
+            s += WMSTile.arraySize(coordinates.capacity(), 4);
+            s += counts == null ? 0 : WMSTile.arraySize(counts.capacity(), 4);
+        }
+        return s;
+    }
+
+    /**
+     * @return the size in bytes of the columns in direct or mapped memory
+     */
+    public long getOffHeapSize() {
+        if (storage == Storage.HEAP) {
+            return 0;
+        }
+        return coordinates.capacity() * 4L + (counts == null ? 0 : counts.capacity() * 4L);
+    }
+}
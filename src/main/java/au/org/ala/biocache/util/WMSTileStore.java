@@ -0,0 +1,156 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A cache of encoded WMS tile images on local disk.
+ * <br>
+ * Each tile is stored in a file named by the SHA-256 hash of its key, which is built from the query, the style,
+ * the bbox and the index version. The same hash is the ETag of the tile, so every node returns the same ETag for
+ * a tile until the index changes.
+ * <br>
+ * The files are kept in an {@link LruFileCache} of wms.tilecache.size.max bytes, in subdirectories named by the
+ * first two characters of the hash.
+ */
+@Component("wmsTileStore")
+public class WMSTileStore {
+
+    private static final Logger logger = Logger.getLogger(WMSTileStore.class);
+
+    private static final String EXTENSION = ".png";
+
+    @Value("${wms.tilecache.enabled:false}")
+    boolean enabled;
+
+    @Value("${wms.tilecache.dir:/data/cache/wms}")
+    String directory;
+
+    //max size of the files in bytes
+    @Value("${wms.tilecache.size.max:1073741824}")
+    long maxSize;
+
+    private LruFileCache cache;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+
+        File dir = new File(directory);
+        if (!dir.exists() && !dir.mkdirs()) {
+            logger.error("Unable to create the WMS tile cache directory " + directory + ", the tile cache is disabled");
+            enabled = false;
+            return;
+        }
+
+        cache = new LruFileCache(dir, 2, maxSize);
+        int tiles = cache.load();
+
+        logger.info("WMS tile cache has " + tiles + " tiles, " + cache.getSize() + " bytes");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param key the query, style, bbox and index version of a tile
+     * @return the hash of the key, used as the file name and the ETag of the tile
+     */
+    public static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            //SHA-256 is supported by every JVM
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param hash the hash of the tile key
+     * @return the encoded tile, or null when the tile is not cached
+     */
+    public byte[] get(String hash) {
+        if (!enabled || !cache.contains(hash + EXTENSION)) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(cache.getFile(hash + EXTENSION).toPath());
+        } catch (IOException e) {
+            logger.warn("Unable to read cached WMS tile " + hash + ", " + e.getMessage());
+            cache.remove(hash + EXTENSION);
+            return null;
+        }
+    }
+
+    /**
+     * Cache an encoded tile, evicting the least recently used tiles when the cache is full.
+     *
+     * @param hash  the hash of the tile key
+     * @param bytes the encoded tile
+     */
+    public void put(String hash, byte[] bytes) {
+        if (!enabled || bytes.length > maxSize) {
+            return;
+        }
+        cache.put(hash + EXTENSION, bytes);
+    }
+
+    /**
+     * Delete all cached tiles.
+     */
+    public void empty() {
+        if (cache != null) {
+            cache.empty();
+        }
+    }
+
+    /**
+     * @return the size in bytes of the cached tiles
+     */
+    public long getSize() {
+        return cache == null ? 0 : cache.getSize();
+    }
+}
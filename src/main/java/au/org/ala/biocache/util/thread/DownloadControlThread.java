@@ -1,12 +1,14 @@
 package au.org.ala.biocache.util.thread;
 
 import java.util.Queue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
@@ -27,6 +29,7 @@ public class DownloadControlThread implements Runnable {
     private final long pollDelay;
     private final long executionDelay;
     private final int threadPriority;
+    private final Integer compressionLevel;
     
     private final DownloadServiceExecutor downloadServiceExecutor;
     private final AtomicBoolean shutdownFlag = new AtomicBoolean(false);
@@ -34,6 +37,8 @@ public class DownloadControlThread implements Runnable {
     private final DownloadCreator downloadCreator;
     private final PersistentQueueDAO persistentQueueDAO;
     private final ExecutorService parallelQueryExecutor;
+    private final DownloadScheduler downloadScheduler;
+    private final DownloadScheduler.Pool pool;
     
     public DownloadControlThread(String name,
                                 Integer maxRecords,
@@ -46,6 +51,44 @@ public class DownloadControlThread implements Runnable {
                                 DownloadCreator downloadCreator, 
                                 PersistentQueueDAO persistentQueueDAO,
                                 ExecutorService parallelQueryExecutor) {
+        this(name, maxRecords, downloadType, concurrencyLevel, pollDelayMs, executionDelayMs, threadPriority, null,
+                currentDownloads, downloadCreator, persistentQueueDAO, parallelQueryExecutor);
+    }
+
+    public DownloadControlThread(String name,
+                                Integer maxRecords,
+                                DownloadType downloadType, 
+                                int concurrencyLevel, 
+                                Long pollDelayMs, 
+                                Long executionDelayMs, 
+                                Integer threadPriority, 
+                                Integer compressionLevel, 
+                                Queue<DownloadDetailsDTO> currentDownloads, 
+                                DownloadCreator downloadCreator, 
+                                PersistentQueueDAO persistentQueueDAO,
+                                ExecutorService parallelQueryExecutor) {
+        this(name, maxRecords, downloadType, concurrencyLevel, pollDelayMs, executionDelayMs, threadPriority, compressionLevel,
+                currentDownloads, downloadCreator, persistentQueueDAO, parallelQueryExecutor, new DownloadScheduler(persistentQueueDAO));
+    }
+
+    /**
+     * @param compressionLevel The zip compression level, -1 to 9, for downloads run by this thread, or null to use the service default
+     * @param downloadScheduler The scheduler shared by all of the threads, that chooses the next download for this thread
+     *                          and wakes it when downloads are added to the queue
+     */
+    public DownloadControlThread(String name,
+                                Integer maxRecords,
+                                DownloadType downloadType, 
+                                int concurrencyLevel, 
+                                Long pollDelayMs, 
+                                Long executionDelayMs, 
+                                Integer threadPriority, 
+                                Integer compressionLevel, 
+                                Queue<DownloadDetailsDTO> currentDownloads, 
+                                DownloadCreator downloadCreator, 
+                                PersistentQueueDAO persistentQueueDAO,
+                                ExecutorService parallelQueryExecutor,
+                                DownloadScheduler downloadScheduler) {
         this.name = name;
         this.maxRecords = maxRecords;
         this.downloadType = downloadType;
@@ -53,12 +96,15 @@ public class DownloadControlThread implements Runnable {
         this.pollDelay = pollDelayMs != null && pollDelayMs >= 0L ? pollDelayMs : 10L;
         this.executionDelay = executionDelayMs != null && executionDelayMs >= 0L ? executionDelayMs : 0L;
         this.threadPriority = threadPriority != null && threadPriority >= Thread.MIN_PRIORITY && threadPriority <= Thread.MAX_PRIORITY ? threadPriority : Thread.NORM_PRIORITY;
+        this.compressionLevel = compressionLevel != null && compressionLevel >= Deflater.DEFAULT_COMPRESSION && compressionLevel <= Deflater.BEST_COMPRESSION ? compressionLevel : null;
         this.currentDownloads = currentDownloads;
         this.downloadCreator = downloadCreator;
         this.persistentQueueDAO = persistentQueueDAO;
         // Create a dedicated ExecutorService for this thread
         this.downloadServiceExecutor = createExecutor();
         this.parallelQueryExecutor = parallelQueryExecutor;
+        this.downloadScheduler = downloadScheduler;
+        this.pool = downloadScheduler.register(this.name, this.maxRecords, this.downloadType, this.concurrencyLevel);
     }
 
     protected DownloadServiceExecutor createExecutor() {
@@ -76,8 +122,6 @@ public class DownloadControlThread implements Runnable {
                 if(shutdownFlag.get() || Thread.currentThread().isInterrupted()) {
                     break;
                 }
-                // We need this in addition to the reserveCapacity delay to minimise the busy-wait activity when there is capacity regularly available
-                Thread.sleep(pollDelay);
                 if(!downloadServiceExecutor.reserveCapacity(pollDelay, TimeUnit.MILLISECONDS)) {
                     // If we couldn't reserve capacity within this period, go back around and try again after checking the interrupt status
                     continue;
@@ -88,14 +132,19 @@ public class DownloadControlThread implements Runnable {
                     downloadServiceExecutor.returnCapacity();
                     break;
                 }
-                currentDownload = persistentQueueDAO.getNextDownload(maxRecords, downloadType);
+                // Read before checking the queue, so that a download added after the check wakes this thread
+                long schedulerVersion = downloadScheduler.getVersion();
+                currentDownload = downloadScheduler.next(pool);
                 if (currentDownload != null) {
                     // The submitted download will return the capacity when it finishes
                     currentDownload.setProcessingThreadName(this.name);
+                    currentDownload.setCompressionLevel(compressionLevel);
                     downloadServiceExecutor.submitDownload(currentDownload, parallelQueryExecutor);
                 } else {
                     // We need to return the capacity we reserved because we don't need to use it
                     downloadServiceExecutor.returnCapacity();
+                    // Wait until a download is added or finishes, checking the queue at least every pollDelay
+                    downloadScheduler.await(schedulerVersion, pollDelay, TimeUnit.MILLISECONDS);
                 }
             }
         } catch (InterruptedException | RejectedExecutionException e) {
@@ -163,8 +212,18 @@ public class DownloadControlThread implements Runnable {
          *                              {@link DownloadCreator#createCallable(DownloadDetailsDTO, long, Semaphore, ExecutorService)} 
          * @throws RejectedExecutionException If the download could not be submitted for asynchronous execution
          */
-        public void submitDownload(DownloadDetailsDTO nextDownload, ExecutorService parallelQueryExecutor) throws RejectedExecutionException {
-            executor.submit(downloadCreator.createCallable(nextDownload, executionDelay, mySemaphore, parallelQueryExecutor));
+        public void submitDownload(final DownloadDetailsDTO nextDownload, ExecutorService parallelQueryExecutor) throws RejectedExecutionException {
+            final Callable<DownloadDetailsDTO> download = downloadCreator.createCallable(nextDownload, executionDelay, mySemaphore, parallelQueryExecutor);
+            executor.submit(new Callable<DownloadDetailsDTO>() {
+                @Override
+                public DownloadDetailsDTO call() throws Exception {
+                    try {
+                        return download.call();
+                    } finally {
+                        downloadScheduler.finished(nextDownload);
+                    }
+                }
+            });
         }
     
         /**
@@ -0,0 +1,296 @@
+/**************************************************************************
+ *  Copyright (C) 2016 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util.thread;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import au.org.ala.biocache.dao.PersistentQueueDAO;
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
+
+/**
+ * Chooses the next download for each of the {@link DownloadControlThread} pools.
+ * <br>
+ * Each download has an estimated cost of its number of records, times its number of fields, times one plus the
+ * number of layers it intersects. With fair share, a pool runs the queued download of the requester with the lowest
+ * cost of running downloads first, so one requester with many large downloads does not hold up the downloads
+ * of other requesters. Downloads of the same requester run in the order they were requested.
+ * <br>
+ * With lending, a pool that has no downloads of its own runs the downloads of a busy pool of the same type,
+ * keeping one thread free for its own downloads.
+ * <br>
+ * The pools wait for {@link #signal()}, called when a download is added to the queue or finishes,
+ * instead of polling the queue.
+ */
+public class DownloadScheduler {
+
+    private static final Logger logger = Logger.getLogger(DownloadScheduler.class);
+
+    /** Contextual and environmental layer fields, e.g. cl22 and el874 */
+    private static final Pattern LAYER_FIELD = Pattern.compile("(cl|el)[0-9]+");
+
+    private final PersistentQueueDAO persistentQueueDAO;
+    private final boolean fairShare;
+    private final boolean lendCapacity;
+
+    private final List<Pool> pools = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, Running> runningDownloads = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> runningCosts = new ConcurrentHashMap<>();
+
+    private final Object signalLock = new Object();
+    private long version;
+
+    private final Comparator<DownloadDetailsDTO> fairShareOrder = new Comparator<DownloadDetailsDTO>() {
+        @Override
+        public int compare(DownloadDetailsDTO o1, DownloadDetailsDTO o2) {
+            return Long.compare(getRunningCost(getOwner(o1)), getRunningCost(getOwner(o2)));
+        }
+    };
+
+    public DownloadScheduler(PersistentQueueDAO persistentQueueDAO) {
+        this(persistentQueueDAO, true, true);
+    }
+
+    /**
+     * @param persistentQueueDAO The queue of downloads
+     * @param fairShare          True to run the downloads of the requesters with the lowest cost of running downloads first
+     * @param lendCapacity       True to run the downloads of busy pools on idle pools
+     */
+    public DownloadScheduler(PersistentQueueDAO persistentQueueDAO, boolean fairShare, boolean lendCapacity) {
+        this.persistentQueueDAO = persistentQueueDAO;
+        this.fairShare = fairShare;
+        this.lendCapacity = lendCapacity;
+    }
+
+    /**
+     * A pool of threads that runs downloads limited by the number of records and type.
+     */
+    public static class Pool {
+        private final String name;
+        private final Integer maxRecords;
+        private final DownloadType downloadType;
+        private final int concurrencyLevel;
+        private final AtomicInteger running = new AtomicInteger();
+
+        Pool(String name, Integer maxRecords, DownloadType downloadType, int concurrencyLevel) {
+            this.name = name;
+            this.maxRecords = maxRecords;
+            this.downloadType = downloadType;
+            this.concurrencyLevel = concurrencyLevel;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The number of downloads running on this pool, including the downloads of other pools
+         */
+        public int getRunning() {
+            return running.get();
+        }
+
+        boolean isBusy() {
+            return running.get() >= concurrencyLevel;
+        }
+    }
+
+    private static class Running {
+        final Pool pool;
+        final String owner;
+        final long cost;
+
+        Running(Pool pool, String owner, long cost) {
+            this.pool = pool;
+            this.owner = owner;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * Register a pool of threads that runs downloads.
+     *
+     * @param name             The name of the pool
+     * @param maxRecords       The maximum records in a download run by the pool, or null for any number of records
+     * @param downloadType     The type of download run by the pool, or null for any type
+     * @param concurrencyLevel The number of downloads the pool runs at the same time
+     * @return The pool
+     */
+    public Pool register(String name, Integer maxRecords, DownloadType downloadType, int concurrencyLevel) {
+        Pool pool = new Pool(name, maxRecords, downloadType, concurrencyLevel);
+        pools.add(pool);
+        return pool;
+    }
+
+    /**
+     * Take the next download for a pool from the queue. The pool must have reserved the capacity to run the download,
+     * and must call {@link #finished(DownloadDetailsDTO)} when the download finishes.
+     *
+     * @param pool The pool that runs the download
+     * @return The download, or null when there are no downloads for the pool
+     */
+    public DownloadDetailsDTO next(Pool pool) {
+        Comparator<DownloadDetailsDTO> priority = fairShare ? fairShareOrder : null;
+        DownloadDetailsDTO next = persistentQueueDAO.getNextDownload(pool.maxRecords, pool.downloadType, priority);
+        if (next == null && lendCapacity && pool.running.get() + 1 < pool.concurrencyLevel) {
+            for (Pool busy : pools) {
+                if (busy != pool && busy.isBusy() &&
+                        (pool.downloadType == null || busy.downloadType == null || pool.downloadType == busy.downloadType)) {
+                    DownloadType type = pool.downloadType != null ? pool.downloadType : busy.downloadType;
+                    next = persistentQueueDAO.getNextDownload(busy.maxRecords, type, priority);
+                    if (next != null) {
+                        if (logger.isInfoEnabled()) {
+                            logger.info("Download " + next.getUniqueId() + " of the busy pool " + busy.name + " is running on the pool " + pool.name);
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+        if (next != null) {
+            started(next, pool);
+        }
+        return next;
+    }
+
+    private void started(DownloadDetailsDTO dd, Pool pool) {
+        String owner = getOwner(dd);
+        long cost = getCost(dd);
+        Running previous = runningDownloads.put(dd.getUniqueId(), new Running(pool, owner, cost));
+        if (previous != null) {
+            release(previous);
+        }
+        pool.running.incrementAndGet();
+        AtomicLong runningCost = runningCosts.get(owner);
+        if (runningCost == null) {
+            AtomicLong newCost = new AtomicLong();
+            runningCost = runningCosts.putIfAbsent(owner, newCost);
+            if (runningCost == null) {
+                runningCost = newCost;
+            }
+        }
+        runningCost.addAndGet(cost);
+    }
+
+    /**
+     * Called when a download taken by {@link #next(Pool)} finishes, successfully or not.
+     *
+     * @param dd The download
+     */
+    public void finished(DownloadDetailsDTO dd) {
+        Running running = runningDownloads.remove(dd.getUniqueId());
+        if (running != null) {
+            release(running);
+        }
+        signal();
+    }
+
+    private void release(Running running) {
+        running.pool.running.decrementAndGet();
+        AtomicLong runningCost = runningCosts.get(running.owner);
+        if (runningCost != null && runningCost.addAndGet(-running.cost) <= 0) {
+            runningCosts.remove(running.owner, runningCost);
+        }
+    }
+
+    /**
+     * Wake the pools that are waiting for downloads.
+     */
+    public void signal() {
+        synchronized (signalLock) {
+            version++;
+            signalLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return The number of calls to {@link #signal()}, to pass to {@link #await(long, long, TimeUnit)}
+     */
+    public long getVersion() {
+        synchronized (signalLock) {
+            return version;
+        }
+    }
+
+    /**
+     * Wait until {@link #signal()} is called after the version was read, or the timeout elapses.
+     *
+     * @param version The result of {@link #getVersion()} before the queue was last checked
+     * @param timeout The maximum time to wait
+     * @param unit    The timeout units
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public void await(long version, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (signalLock) {
+            long remaining;
+            while (this.version == version && (remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+                signalLock.wait(remaining);
+            }
+        }
+    }
+
+    /**
+     * @param owner The requester, from {@link #getOwner(DownloadDetailsDTO)}
+     * @return The estimated cost of the running downloads of the requester
+     */
+    public long getRunningCost(String owner) {
+        AtomicLong runningCost = runningCosts.get(owner);
+        return runningCost != null ? runningCost.get() : 0;
+    }
+
+    /**
+     * @return The requester of a download, the downloads do not record an API key so this is the email
+     */
+    public static String getOwner(DownloadDetailsDTO dd) {
+        return dd.getEmail() != null ? dd.getEmail().toLowerCase(Locale.ROOT) : "";
+    }
+
+    /**
+     * @return The estimated cost of a download, the number of records times the number of fields times one plus
+     * the number of layers
+     */
+    public static long getCost(DownloadDetailsDTO dd) {
+        int fields = 0;
+        int layers = 0;
+        if (dd.getRequestParams() != null) {
+            for (String list : new String[]{dd.getRequestParams().getFields(), dd.getRequestParams().getExtra()}) {
+                if (list != null) {
+                    for (String field : list.split(",")) {
+                        field = field.trim();
+                        if (!field.isEmpty()) {
+                            fields++;
+                            if (LAYER_FIELD.matcher(field).matches()) {
+                                layers++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return Math.max(dd.getTotalRecords(), 1) * Math.max(fields, 1) * (1 + layers);
+    }
+}
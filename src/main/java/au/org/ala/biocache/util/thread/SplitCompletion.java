@@ -0,0 +1,83 @@
+/**************************************************************************
+ *  Copyright (C) 2016 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util.thread;
+
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Signals the completion of the split query tasks of an index download.
+ * <br>
+ * The download thread waits until the last task has completed. It is released early when the download is
+ * interrupted, so the remaining tasks can be cancelled without polling.
+ */
+public class SplitCompletion {
+
+    private final CountDownLatch complete = new CountDownLatch(1);
+    private final AtomicInteger remaining = new AtomicInteger(0);
+
+    private final Runnable release = new Runnable() {
+        @Override
+        public void run() {
+            complete.countDown();
+        }
+    };
+
+    /**
+     * Release the waiting thread when the download is interrupted. Must be followed by {@link #detach(DownloadDetailsDTO)}.
+     */
+    public void attach(DownloadDetailsDTO dd) {
+        dd.addInterruptListener(release);
+    }
+
+    public void detach(DownloadDetailsDTO dd) {
+        dd.removeInterruptListener(release);
+    }
+
+    /**
+     * @param tasks the number of tasks that will call {@link #taskComplete()}
+     */
+    public void start(int tasks) {
+        remaining.set(tasks);
+        if (tasks == 0) {
+            complete.countDown();
+        }
+    }
+
+    public void taskComplete() {
+        if (remaining.decrementAndGet() == 0) {
+            complete.countDown();
+        }
+    }
+
+    /**
+     * Release the waiting thread early, e.g. when the writer has failed.
+     */
+    public void release() {
+        complete.countDown();
+    }
+
+    /**
+     * @param millis max time to wait
+     * @return true when all tasks completed or the download was interrupted, false when the time elapsed
+     * @throws InterruptedException
+     */
+    public boolean await(long millis) throws InterruptedException {
+        return complete.await(Math.max(0, millis), TimeUnit.MILLISECONDS);
+    }
+}
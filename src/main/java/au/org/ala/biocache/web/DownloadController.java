@@ -17,6 +17,7 @@ package au.org.ala.biocache.web;
 import au.org.ala.biocache.dao.PersistentQueueDAO;
 import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadMetricsDTO;
 import au.org.ala.biocache.dto.DownloadRequestParams;
 import au.org.ala.biocache.dto.IndexFieldDTO;
 import au.org.ala.biocache.service.AuthService;
@@ -97,6 +98,8 @@ public class DownloadController extends AbstractSecureController {
                         return value == null;
                     }
                 });
+                // the checkpoint is internal to the download
+                config.setExcludes(new String[]{"checkpointDirectory"});
 
                 JSONArray ja = JSONArray.fromObject(persistentQueueDAO.getAllDownloads(), config);
                 for (Object jo : ja) {
@@ -288,7 +291,7 @@ public class DownloadController extends AbstractSecureController {
             status.put("message", downloadService.downloadOfflineMsg);
             status.put("error", "Requested to many records (" + dd.getTotalRecords() + "). The maximum is (" + downloadService.dowloadOfflineMaxSize + ")");
         } else {
-            persistentQueueDAO.addDownloadToQueue(dd);
+            downloadService.queueDownload(dd);
             status.put("status", "inQueue");
             status.put("queueSize", persistentQueueDAO.getTotalDownloads());
             status.put("statusUrl", downloadService.webservicesRoot + "/occurrences/offline/status/" + dd.getUniqueId());
@@ -316,6 +319,7 @@ public class DownloadController extends AbstractSecureController {
             } else {
                 status.put("status", "running");
                 status.put("records", dd.getRecordsDownloaded());
+                status.put("metrics", getMetrics(dd));
             }
             status.put("id", id);
             status.put("totalRecords", dd.getTotalRecords());
@@ -335,6 +339,40 @@ public class DownloadController extends AbstractSecureController {
         return allStatus;
     }
 
+    /**
+     * The throughput of a running download, for the status of the download.
+     *
+     * @param dd the download
+     * @return rows and bytes per second, the depth of the results queue, the time the queries were stalled by the
+     * writer and the latency of the split queries
+     */
+    private Map<String, Object> getMetrics(DownloadDetailsDTO dd) {
+        DownloadMetricsDTO metrics = dd.getMetrics();
+
+        long splitQueries = 0;
+        long splitTotalMillis = 0;
+        long splitMaxMillis = 0;
+        for (DownloadMetricsDTO.SplitMetrics split : metrics.getSplits().values()) {
+            splitQueries += split.getQueries();
+            splitTotalMillis += split.getTotalMillis();
+            splitMaxMillis = Math.max(splitMaxMillis, split.getMaxMillis());
+        }
+
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("elapsedMillis", metrics.getElapsedMillis());
+        status.put("rowsPerSecond", metrics.getRowsPerSecond());
+        status.put("bytesPerSecond", metrics.getBytesPerSecond());
+        status.put("queueDepth", metrics.getQueueDepth());
+        status.put("queueCapacity", metrics.getQueueCapacity());
+        status.put("writerStallMillis", metrics.getWriterStallMillis());
+        status.put("writerIdleMillis", metrics.getWriterIdleMillis());
+        status.put("splits", metrics.getSplits().size());
+        status.put("splitQueries", splitQueries);
+        status.put("splitAverageMillis", splitQueries == 0 ? 0 : splitTotalMillis / splitQueries);
+        status.put("splitMaxMillis", splitMaxMillis);
+        return status;
+    }
+
     private void setStatusIfEmpty(String id, Map<String, Object> status) throws UnsupportedEncodingException {
         //is it finished?
         if (!status.containsKey("status")) {
@@ -384,6 +422,7 @@ public class DownloadController extends AbstractSecureController {
                 } else {
                     status.put("status", "running");
                     status.put("records", dd.getRecordsDownloaded());
+                    status.put("metrics", getMetrics(dd));
                 }
                 status.put("totalRecords", dd.getTotalRecords());
                 status.put("statusUrl", downloadService.webservicesRoot + "/occurrences/offline/status/" + id);
@@ -20,12 +20,17 @@ import au.org.ala.biocache.dto.PointType;
 import au.org.ala.biocache.dto.SpatialSearchRequestParams;
 import au.org.ala.biocache.heatmap.HeatMap;
 import au.org.ala.biocache.util.ColorUtil;
+import au.org.ala.biocache.util.ETagUtils;
+import au.org.ala.biocache.util.HeatmapStore;
+import au.org.ala.biocache.util.PointParser;
 import au.org.ala.biocache.util.QueryFormatUtils;
 import au.org.ala.biocache.util.SearchUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.response.FacetField;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -71,8 +76,8 @@ public class MapController implements ServletConfigAware {
     /** Logger initialisation */
     private final static Logger logger = Logger.getLogger(MapController.class);
 
-    @Value("${heatmap.output.dir:/data/output/heatmap}")
-    protected String heatmapOutputDir;
+    @Inject
+    protected HeatmapStore heatmapStore;
 
     @Inject
     protected SearchDAO searchDAO;
@@ -198,10 +203,11 @@ public class MapController implements ServletConfigAware {
 
         requestParams.setFq(newFilterQuery);
 
-        List<OccurrencePoint> points = searchDAO.getFacetPoints(requestParams, pointType);
-        logger.debug("Points search for " + pointType.getLabel() + " - found: " + points.size());
+        requestParams.setFlimit(-1);
+        float[] points = readPoints(searchDAO.getFacetPointsShort(requestParams, pointType.getLabel()));
+        logger.debug("Points search for " + pointType.getLabel() + " - found: " + points.length / 2);
 
-        if (points.size() == 0) {
+        if (points.length == 0) {
             displayBlankImage(width, height, false, response);
             return;
         }
@@ -219,10 +225,9 @@ public class MapController implements ServletConfigAware {
 
         Color oColour = Color.decode(outlineColour);
 
-        for (i = 0; i < points.size(); i++) {
-            OccurrencePoint pt = points.get(i);
-            float lng = pt.getCoordinates().get(0).floatValue();
-            float lat = pt.getCoordinates().get(1).floatValue();
+        for (i = 0; i < points.length; i += 2) {
+            float lng = points[i];
+            float lat = points[i + 1];
 
             x = (int) ((convertLngToPixel(lng) - pbbox[0]) * width_mult);
             y = (int) ((convertLatToPixel(lat) - pbbox[3]) * height_mult);
@@ -469,14 +474,6 @@ public class MapController implements ServletConfigAware {
             HttpServletRequest request,
             HttpServletResponse response) throws Exception {
 
-        File outputDir = new File(heatmapOutputDir);
-        if(!outputDir.exists()){
-            FileUtils.forceMkdir(outputDir);
-        }
-
-        //output heatmap path
-        String outputHMFile = getOutputFile(request);
-
         String[] facetValues = null;
         String[] facetColours = null;
         if( StringUtils.trimToNull(colourByFqCSV) != null && StringUtils.trimToNull(coloursCSV) != null){
@@ -486,41 +483,80 @@ public class MapController implements ServletConfigAware {
                 throw new IllegalArgumentException(String.format("Mismatch in facet values and colours. Values: %d, Colours: %d", facetValues.length, facetColours.length));
             }
         }
-               
-        //Does file exist on disk?
-        File f = new File(outputDir + "/" + outputHMFile);
 
-        if (!f.isFile() || !f.exists() || forceRefresh) {
+        Long indexVersion = searchDAO.getIndexVersion(false);
+        heatmapStore.setIndexVersion(indexVersion);
+
+        //output heatmap path
+        String outputHMFile = getOutputFile(request, indexVersion);
+        String eTag = getETag(outputHMFile, indexVersion);
+
+        response.setContentType("image/png");
+        response.setHeader("Cache-Control", mapCacheControlHeaderPublicOrPrivate + ", max-age=" + mapCacheControlHeaderMaxAge);
+        response.setHeader("ETag", eTag);
+        if (!forceRefresh && ETagUtils.matches(request.getHeader("If-None-Match"), eTag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        //Does file exist on disk? If so, send it back to user
+        if (forceRefresh || !writeCachedImage(response, outputHMFile)) {
             logger.debug("Regenerating heatmap image");
             //If not, generate
-            generateStaticHeatmapImages(requestParams,  false, forcePointsDisplay, pointHeatMapThreshold, pointColour, facetValues, facetColours, opacity, request);
+            generateStaticHeatmapImages(requestParams,  false, forcePointsDisplay, pointHeatMapThreshold, pointColour, facetValues, facetColours, opacity, outputHMFile);
+            if (!writeCachedImage(response, outputHMFile)) {
+                logger.error("Unable to write image " + outputHMFile);
+            }
         } else {
             logger.debug("Heatmap file already exists on disk, sending file back to user");
         }
+    }
 
-        response.setContentType("image/png");
-        response.setHeader("Cache-Control", mapCacheControlHeaderPublicOrPrivate + ", max-age=" + mapCacheControlHeaderMaxAge);
-        response.setHeader("ETag", mapETag.get());
-        try {
-            //read file off disk and send back to user
-            File file = new File(outputDir + "/" + outputHMFile);
-            BufferedImage img = ImageIO.read(file);
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            ImageIO.write(img, "png", outputStream);
+    /**
+     * Stream a cached image file to the response.
+     *
+     * @param response
+     * @param name file name of the image
+     * @return false when the image is not cached
+     */
+    private boolean writeCachedImage(HttpServletResponse response, String name) {
+        File file = heatmapStore.get(name);
+        if (file == null) {
+            return false;
+        }
+        try (FileInputStream in = new FileInputStream(file)) {
+            response.setContentLength((int) in.getChannel().size());
             ServletOutputStream outStream = response.getOutputStream();
-            outStream.write(outputStream.toByteArray());
+            IOUtils.copy(in, outStream);
             outStream.flush();
-            outStream.close();
-
-        } catch (Exception e) {
+        } catch (FileNotFoundException e) {
+            //evicted
+            return false;
+        } catch (IOException e) {
             logger.error("Unable to write image.", e);
         }
+        return true;
     }
 
-    private String getQueryHash(HttpServletRequest request) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+    /**
+     * @param name file name of the image
+     * @param indexVersion
+     * @return the ETag of the image, the same on every node until the index changes
+     */
+    private String getETag(String name, Long indexVersion) {
+        if (indexVersion == null) {
+            return mapETag.get();
+        }
+        return ETagUtils.getETag(name.substring(0, name.length() - ".png".length()));
+    }
+
+    private String getQueryHash(HttpServletRequest request, Long indexVersion) throws NoSuchAlgorithmException, UnsupportedEncodingException {
         MessageDigest md = MessageDigest.getInstance("MD5");
         //replace forceRefresh if it is first or not
         String qs = request.getQueryString().replaceAll("&(?i)forceRefresh=true", "").replaceAll("(?i)forceRefresh=true&", "");
+        if (indexVersion != null) {
+            qs += "\n" + indexVersion;
+        }
         md.update(qs.getBytes("UTF-8"));
         byte[] digest = md.digest();
         StringBuffer sb = new StringBuffer();
@@ -542,50 +578,41 @@ public class MapController implements ServletConfigAware {
             HttpServletRequest request,
            HttpServletResponse response) throws Exception {
 
-        File baseDir = new File(heatmapOutputDir);
+        Long indexVersion = searchDAO.getIndexVersion(false);
+        heatmapStore.setIndexVersion(indexVersion);
 
-        String outputHMFile = getOutputFile(request);
+        String outputHMFile = getOutputFile(request, indexVersion);
+        String legendFile = "legend_" + outputHMFile;
+        String eTag = getETag(legendFile, indexVersion);
 
-        //Does file exist on disk?
-        File f = new File(baseDir + "/" + "legend_" + outputHMFile);
-        
-        if (!f.isFile() || !f.exists() || forceRefresh) {
+        response.setContentType("image/png");
+        response.setHeader("Cache-Control", mapCacheControlHeaderPublicOrPrivate + ", max-age=" + mapCacheControlHeaderMaxAge);
+        response.setHeader("ETag", eTag);
+        if (!forceRefresh && ETagUtils.matches(request.getHeader("If-None-Match"), eTag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        //Does file exist on disk? If so, send it back to user
+        if (forceRefresh || !writeCachedImage(response, legendFile)) {
             //If not, generate
             logger.debug("regenerating heatmap legend");
-            generateStaticHeatmapImages(requestParams, true, false,  pointHeatMapThreshold, "0000ff", null, null, 1.0f, request);
+            generateStaticHeatmapImages(requestParams, true, false,  pointHeatMapThreshold, "0000ff", null, null, 1.0f, outputHMFile);
+            //only send the image back if it actually exists - a legend won't exist if we create the map based on points
+            writeCachedImage(response, legendFile);
         } else {
             logger.debug("legend file already exists on disk, sending file back to user");
         }
-
-        response.setContentType("image/png");
-        response.setHeader("Cache-Control", mapCacheControlHeaderPublicOrPrivate + ", max-age=" + mapCacheControlHeaderMaxAge);
-        response.setHeader("ETag", mapETag.get());
-        //read file off disk and send back to user
-        try {
-            File file = new File(baseDir + "/" + "legend_" + outputHMFile);
-            //only send the image back if it actually exists - a legend won't exist if we create the map based on points
-            if(file.exists()){
-                BufferedImage img = ImageIO.read(file);
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                ImageIO.write(img, "png", outputStream);
-                ServletOutputStream outStream = response.getOutputStream();
-                outStream.write(outputStream.toByteArray());
-                outStream.flush();
-                outStream.close();
-            }
-
-        } catch (Exception e) {
-            logger.error("Unable to write image.", e);
-        }
     }
 
-    private String getOutputFile(HttpServletRequest request) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-        return getQueryHash(request) + "_hm.png";
+    private String getOutputFile(HttpServletRequest request, Long indexVersion) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        return getQueryHash(request, indexVersion) + "_hm.png";
     }
 
     /**
      * Generate heatmap image (and associated legend if applicable)
      * @param requestParams
+     * @param outputHMFile file name of the heatmap image in the heatmap store. The legend is "legend_" + outputHMFile.
      */
     public void generateStaticHeatmapImages(
             SpatialSearchRequestParams requestParams, 
@@ -596,11 +623,7 @@ public class MapController implements ServletConfigAware {
             String[] colourByFq,
             String[] colours,
             Float opacity,
-            HttpServletRequest request) throws Exception {
-        
-        File baseDir = new File(heatmapOutputDir);
-        logger.debug("Heatmap output directory is " + heatmapOutputDir);
-        String outputHMFile = getOutputFile(request);
+            String outputHMFile) throws Exception {
 
         PointType pointType = PointType.POINT_001;
 
@@ -633,18 +656,44 @@ public class MapController implements ServletConfigAware {
                 Color pointColor = ColorUtil.getColor(defaultPointColour, opacity);
                 hm.generatePoints(points, pointColor, heatmapLegendOccurrenceLabel);
             }
-            hm.drawOutput(baseDir + "/" + outputHMFile, false);
-            hm.drawLegend(baseDir + "/legend_" + outputHMFile);
+            storeImage(hm, outputHMFile, false, false);
+            storeImage(hm, "legend_" + outputHMFile, true, false);
         } else {
             hm.generateClasses(points); //this will create legend
             if (generateLegend){
-                hm.drawLegend(baseDir + "/legend_" + outputHMFile);
+                storeImage(hm, "legend_" + outputHMFile, true, true);
             } else {
-                hm.drawOutput(baseDir + "/" + outputHMFile, true);
+                storeImage(hm, outputHMFile, false, true);
             }
         }
     }
 
+    /**
+     * Write the heatmap or legend image to a temporary file and add it to the heatmap store.
+     *
+     * @param hm
+     * @param name file name of the image
+     * @param legend true to write the legend, false to write the heatmap
+     * @param colorize
+     */
+    private void storeImage(HeatMap hm, String name, boolean legend, boolean colorize) throws IOException {
+        File tmp = heatmapStore.createTempFile(name);
+        try {
+            if (legend) {
+                hm.drawLegend(tmp.getPath());
+            } else {
+                hm.drawOutput(tmp.getPath(), colorize);
+            }
+            //an image that could not be written is empty
+            if (tmp.length() > 0) {
+                heatmapStore.put(name, tmp);
+            }
+        } finally {
+            //the temporary file remains when it was not moved into the store
+            FileUtils.deleteQuietly(tmp);
+        }
+    }
+
     /**
      * Returns an array of points in the format [lat1,long1,lat2,long2,.....]
      *
@@ -657,30 +706,28 @@ public class MapController implements ServletConfigAware {
         double[] points = new double[0];
         try {
             requestParams.setQ(requestParams.getQ());
-            List<OccurrencePoint> occ_points = searchDAO.getFacetPoints(requestParams, pointType);
+            requestParams.setFlimit(-1);
+            FacetField facet = searchDAO.getFacetPointsShort(requestParams, pointType.getLabel());
+            float[] occ_points = readPoints(facet);
             if(logger.isDebugEnabled()){
-                logger.debug("Points search for " + pointType.getLabel() + " - found: " + occ_points.size());
+                logger.debug("Points search for " + pointType.getLabel() + " - found: " + occ_points.length / 2);
             }
 
             int totalItems = 0;
-            for (int i = 0; i < occ_points.size(); i++) {
-                OccurrencePoint pt = occ_points.get(i);
-                totalItems = (int) (totalItems + pt.getCount());
+            if (facet != null && facet.getValues() != null) {
+                for (FacetField.Count count : facet.getValues()) {
+                    if (StringUtils.isNotEmpty(count.getName())) {
+                        totalItems = (int) (totalItems + count.getCount());
+                    }
+                }
             }
 
             logger.debug("total number of occurrence points is " + totalItems);
 
             points = new double[totalItems * 2];
 
-            int j = 0;
-            for (int i = 0; i < occ_points.size(); i++) {
-                OccurrencePoint pt = occ_points.get(i);
-                pt.getCount();
-                double lng = pt.getCoordinates().get(0).doubleValue();
-                double lat = pt.getCoordinates().get(1).doubleValue();
-                points[j] = lng;
-                points[j + 1] = lat;
-                j = j + 2;
+            for (int i = 0; i < occ_points.length; i++) {
+                points[i] = occ_points[i];
             }
         } catch (Exception e) {
             logger.error("An error occurred getting heatmap points", e);
@@ -688,6 +735,26 @@ public class MapController implements ServletConfigAware {
         return points;
     }
 
+    /**
+     * Read the points of a point facet, without the missing and invalid points.
+     *
+     * @param facet the point facet
+     * @return the points as longitude,latitude
+     */
+    private float[] readPoints(FacetField facet) {
+        if (facet == null || facet.getValues() == null) {
+            return new float[0];
+        }
+        float[] points = new float[facet.getValueCount() * 2];
+        int n = 0;
+        for (FacetField.Count count : facet.getValues()) {
+            if (count.getCount() > 0 && PointParser.parseLatLng(count.getName(), points, n)) {
+                n += 2;
+            }
+        }
+        return n == points.length ? points : Arrays.copyOf(points, n);
+    }
+
     public void setSearchDAO(SearchDAO searchDAO) {
         this.searchDAO = searchDAO;
     }
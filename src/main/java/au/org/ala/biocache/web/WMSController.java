@@ -22,7 +22,6 @@ import au.org.ala.biocache.model.Qid;
 import au.org.ala.biocache.util.*;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.commons.collections.map.LRUMap;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.response.FacetField;
@@ -30,11 +29,8 @@ import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.geotools.geometry.GeneralDirectPosition;
 import org.geotools.referencing.CRS;
-import org.geotools.referencing.operation.DefaultCoordinateOperationFactory;
 import org.opengis.geometry.DirectPosition;
 import org.opengis.geometry.MismatchedDimensionException;
-import org.opengis.referencing.crs.CRSAuthorityFactory;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.CoordinateOperation;
 import org.opengis.referencing.operation.TransformException;
 import org.springframework.beans.factory.annotation.Value;
@@ -51,6 +47,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
@@ -59,6 +56,7 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -126,6 +124,8 @@ public class WMSController extends AbstractSecureController{
     protected QidCacheDAO qidCacheDAO;
     @Inject
     protected WMSCache wmsCache;
+    @Inject
+    protected WMSTileStore wmsTileStore;
 
     /**
      * Load a smaller 256x256 png than java.image produces
@@ -173,6 +173,15 @@ public class WMSController extends AbstractSecureController{
     @Value("${wms.cache.maxLayerPoints:100000}")
     private int wmsCacheMaxLayerPoints;
 
+    /**
+     * Vector tiles have one layer of points, with coordinates from 0 to the extent. Their bbox is calculated
+     * as for a WMS tile of MVT_TILE_SIZE pixels.
+     */
+    private static final String MVT_LAYER = "occurrences";
+    private static final int MVT_EXTENT = 4096;
+    private static final int MVT_TILE_SIZE = 256;
+    private static final int MVT_MAX_ZOOM = 24;
+
     /**
      * Occurrence count where < uses pivot and > uses facet for retrieving points. Can be fine tuned with
      * multiple queries and comparing DEBUG *
@@ -180,6 +189,13 @@ public class WMSController extends AbstractSecureController{
     @Value("${wms.facetPivotCutoff:2000}")
     private int wmsFacetPivotCutoff;
 
+    /**
+     * Retrieve the points of all colours with one query when the points are not retrieved with a pivot.
+     * When false, the points of each colour are retrieved with a separate query.
+     */
+    @Value("${wms.facetSingleQuery:true}")
+    private boolean wmsFacetSingleQuery;
+
     /**
      * The public or private value to use in the Cache-Control HTTP header for WMS tiles. Defaults to public
      */
@@ -195,8 +211,8 @@ public class WMSController extends AbstractSecureController{
     private final AtomicReference<String> wmsETag = new AtomicReference<String>(UUID.randomUUID().toString());
 
     //Stores query hashes + occurrence counts, and, query hashes + pointType + point counts
-    private LRUMap countsCache = new LRUMap(10000);
-    private final Object countLock = new Object();
+    @Inject
+    protected WMSCountCache wmsCountCache;
 
     @Inject
     protected WMSOSGridController wmsosGridController;
@@ -938,10 +954,7 @@ public class WMSController extends AbstractSecureController{
         double[] tilebbox = new double[4];
         int size = vars.size + (vars.highlight != null ? HIGHLIGHT_RADIUS * 2 + (int) (vars.size * 0.2) : 0) + 5;  //bounding box buffer
 
-        CRSAuthorityFactory factory = CRS.getAuthorityFactory(true);
-        CoordinateReferenceSystem sourceCRS = factory.createCoordinateReferenceSystem(srs);
-        CoordinateReferenceSystem targetCRS = factory.createCoordinateReferenceSystem("EPSG:4326");
-        CoordinateOperation transformTo4326 = new DefaultCoordinateOperationFactory().createOperation(sourceCRS, targetCRS);
+        CoordinateOperation transformTo4326 = CoordinateTransforms.get(srs).getTransformTo4326();
 
         double resolution;
 
@@ -1329,8 +1342,12 @@ public class WMSController extends AbstractSecureController{
                               @RequestParam(value = "apiKey") String apiKey) throws Exception {
         if (isValidKey(apiKey)) {
             wmsCache.empty();
+            wmsTileStore.empty();
+            wmsCountCache.empty();
             response.setStatus(200);
             regenerateWMSETag();
+            //tile ETags include the index version
+            searchDAO.getIndexVersion(true);
         } else {
             response.setStatus(401);
         }
@@ -1409,7 +1426,6 @@ public class WMSController extends AbstractSecureController{
         }
 
         response.setHeader("Cache-Control", wmsCacheControlHeaderPublicOrPrivate + ", max-age=" + wmsCacheControlHeaderMaxAge);
-        response.setHeader("ETag", wmsETag.get());
         response.setContentType("image/png"); //only png images generated
 
         WmsEnv vars = new WmsEnv(env, styles);
@@ -1422,11 +1438,8 @@ public class WMSController extends AbstractSecureController{
         int steppedSize = (int) (Math.ceil(vars.size / 20.0) * 20);
         int size = steppedSize + (vars.highlight != null ? HIGHLIGHT_RADIUS * 2 + (int) (steppedSize * 0.2) : 0) + 5;  //bounding box buffer
 
-        CRSAuthorityFactory factory = CRS.getAuthorityFactory(true);
-        CoordinateReferenceSystem sourceCRS = factory.createCoordinateReferenceSystem(srs);
-        CoordinateReferenceSystem targetCRS = factory.createCoordinateReferenceSystem("EPSG:4326");
-        CoordinateOperation transformTo4326 = new DefaultCoordinateOperationFactory().createOperation(sourceCRS, targetCRS);
-        CoordinateOperation transformFrom4326 = new DefaultCoordinateOperationFactory().createOperation(targetCRS, sourceCRS);
+        CoordinateTransforms transforms = CoordinateTransforms.get(srs);
+        CoordinateOperation transformTo4326 = transforms.getTransformTo4326();
 
         double resolution;
 
@@ -1462,6 +1475,28 @@ public class WMSController extends AbstractSecureController{
             q = requestParams.getQ();
         }
 
+        //the tile is identified by the query, style, bbox and index version on all nodes
+        String tileHash = null;
+        Long indexVersion = searchDAO.getIndexVersion(false);
+        if (indexVersion != null) {
+            tileHash = WMSTileStore.hash(getTileKey(requestParams, env, srs, styles, bboxString, width, height,
+                    outlinePoints, outlineColour, hq, gridDivisionCount, indexVersion));
+            String eTag = ETagUtils.getETag(tileHash);
+            response.setHeader("ETag", eTag);
+            if (ETagUtils.matches(request.getHeader("If-None-Match"), eTag)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return null;
+            }
+
+            byte[] cachedTile = wmsTileStore.get(tileHash);
+            if (cachedTile != null) {
+                writeImage(response, cachedTile);
+                return null;
+            }
+        } else {
+            response.setHeader("ETag", wmsETag.get());
+        }
+
         //bounding box test (requestParams must be 'qid:' + number only)
         if (q.startsWith("qid:") && StringUtils.isEmpty(requestParams.getWkt()) &&
                 (requestParams.getFq().length == 0 ||
@@ -1492,25 +1527,262 @@ public class WMSController extends AbstractSecureController{
             }
         }
 
-        ImgObj imgObj = wco.getPoints() == null ? null :
+        ImgObj imgObj = !wco.hasPoints() ? null :
                 wmsCached(wco, requestParams, vars, pointType, pbbox, bbox, mbbox, width, height, width_mult,
                         height_mult, pointWidth, originalFqs, hq, boundingBoxFqs, outlinePoints, outlineColour,
-                        response, tilebbox, gridDivisionCount, transformFrom4326);
+                        response, tilebbox, gridDivisionCount, transforms);
 
+        byte[] tile;
         if (imgObj != null && imgObj.g != null) {
             imgObj.g.dispose();
-            try (ServletOutputStream outStream = response.getOutputStream();){
-                ImageIO.write(imgObj.img, "png", outStream);
-                outStream.flush();
-            } catch (Exception e) {
-                logger.debug("Unable to write image", e);
-            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ImageIO.write(imgObj.img, "png", bytes);
+            tile = bytes.toByteArray();
         } else {
-            displayBlankImage(response);
+            tile = blankImageBytes;
+        }
+
+        if (tileHash != null && "on".equalsIgnoreCase(cache)) {
+            wmsTileStore.put(tileHash, tile);
         }
+        writeImage(response, tile);
         return null;
     }
 
+    /**
+     * Occurrence points of a z/x/y tile in EPSG:3857 as a Mapbox Vector Tile, for clients that style the points.
+     * <br>
+     * The points come from the same queries and WMSCache as the WMS tiles. Only the colour mode of ENV changes the
+     * tile, so tiles are shared by all styles. Each point has the attributes count, when the layer is not coloured,
+     * colour, as rrggbb, and value, the legend item of the colour mode.
+     */
+    @RequestMapping(value = {"/webportal/wms/mvt/{z}/{x}/{y}", "/ogc/wms/mvt/{z}/{x}/{y}", "/mapping/wms/mvt/{z}/{x}/{y}"}, method = RequestMethod.GET)
+    public void generateVectorTile(
+            SpatialSearchRequestParams requestParams,
+            @PathVariable("z") Integer z,
+            @PathVariable("x") Integer x,
+            @PathVariable("y") Integer y,
+            @RequestParam(value = "ENV", required = false, defaultValue = "") String env,
+            @RequestParam(value = "CACHE", required = false, defaultValue = "default") String cache,
+            HttpServletRequest request,
+            HttpServletResponse response)
+            throws Exception {
+
+        //correct cache value
+        if ("default".equals(cache)) cache = wmsCacheEnabled ? "on" : "off";
+
+        int tiles = 1 << Math.min(Math.max(z, 0), MVT_MAX_ZOOM);
+        if (z < 0 || z > MVT_MAX_ZOOM || x < 0 || x >= tiles || y < 0 || y >= tiles) {
+            response.sendError(400, "Invalid tile " + z + "/" + x + "/" + y);
+            return;
+        }
+
+        //tile extents in EPSG:3857
+        double origin = Math.PI * 6378137;
+        double tileSize = 2 * origin / tiles;
+        double minX = -origin + x * tileSize;
+        double maxY = origin - y * tileSize;
+        String bboxString = minX + "," + (maxY - tileSize) + "," + (minX + tileSize) + "," + maxY;
+
+        response.setHeader("Cache-Control", wmsCacheControlHeaderPublicOrPrivate + ", max-age=" + wmsCacheControlHeaderMaxAge);
+        response.setContentType("application/vnd.mapbox-vector-tile");
+
+        //only the colour mode changes the points
+        WmsEnv vars = new WmsEnv(env, "");
+        String colourMode = vars.colourMode.equals("grid") ? "-1" : vars.colourMode;
+        vars.colourMode = colourMode;
+
+        double[] mbbox = new double[4];
+        double[] bbox = new double[4];
+        double[] pbbox = new double[4];
+        double[] tilebbox = new double[4];
+
+        CoordinateTransforms transforms = CoordinateTransforms.get("EPSG:3857");
+        double resolution = getBBoxesSRS(transforms.getTransformTo4326(), bboxString, MVT_TILE_SIZE, MVT_TILE_SIZE,
+                0, false, mbbox, bbox, pbbox, tilebbox);
+        PointType pointType = getPointTypeForDegreesPerPixel(resolution);
+
+        String[] boundingBoxFqs = new String[2];
+        boundingBoxFqs[0] = String.format(Locale.ROOT, "longitude:[%f TO %f]", bbox[0], bbox[2]);
+        boundingBoxFqs[1] = String.format(Locale.ROOT, "latitude:[%f TO %f]", bbox[1], bbox[3]);
+
+        String q = requestParams.getQ();
+
+        //the tile is identified by the query, colour mode, bbox and index version on all nodes
+        String tileHash = null;
+        Long indexVersion = searchDAO.getIndexVersion(false);
+        if (indexVersion != null) {
+            tileHash = WMSTileStore.hash("mvt\n" + getTileKey(requestParams, "colormode:" + colourMode, "EPSG:3857", "",
+                    bboxString, MVT_EXTENT, MVT_EXTENT, false, "", Collections.<Integer>emptySet(), 0, indexVersion));
+            String eTag = ETagUtils.getETag(tileHash);
+            response.setHeader("ETag", eTag);
+            if (ETagUtils.matches(request.getHeader("If-None-Match"), eTag)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            byte[] cachedTile = wmsTileStore.get(tileHash);
+            if (cachedTile != null) {
+                writeImage(response, cachedTile);
+                return;
+            }
+        } else {
+            response.setHeader("ETag", wmsETag.get());
+        }
+
+        VectorTileEncoder encoder = new VectorTileEncoder(MVT_LAYER, MVT_EXTENT);
+
+        //bounding box test (requestParams must be 'qid:' + number only)
+        boolean outside = false;
+        if (q != null && q.startsWith("qid:") && StringUtils.isEmpty(requestParams.getWkt()) &&
+                (requestParams.getFq().length == 0 ||
+                        (requestParams.getFq().length == 1 && StringUtils.isEmpty(requestParams.getFq()[0])))) {
+            double[] queryBBox = qidCacheDAO.get(q.substring(4)).getBbox();
+            outside = queryBBox != null && (queryBBox[0] > bbox[2] || queryBBox[2] < bbox[0]
+                    || queryBBox[1] > bbox[3] || queryBBox[3] < bbox[1]);
+        }
+
+        if (!outside) {
+            String[] originalFqs = qidCacheDAO.getFq(requestParams);
+
+            //legend item of each colour
+            Map<Integer, String> legend = new HashMap<Integer, String>();
+            if (!colourMode.equals("-1")) {
+                requestParams.setFlimit(-1);
+                requestParams.setFormattedQuery(null);
+                List<LegendItem> colours = searchDAO.getColours(requestParams, colourMode);
+                if (colours != null) {
+                    for (LegendItem li : colours) {
+                        legend.put(li.getColour() & 0xffffff, li.getName());
+                    }
+                }
+                requestParams.setFormattedQuery(null);
+            }
+
+            boolean canCache = wmsCache.isEnabled() && "on".equalsIgnoreCase(cache);
+            WMSTile wco = getWMSCacheObject(requestParams, vars, pointType, bbox, originalFqs, boundingBoxFqs, canCache);
+            if (wco.hasPoints()) {
+                addVectorTilePoints(encoder, wco.getColumns(), legend, bbox, tilebbox, transforms);
+            }
+        }
+
+        byte[] tile = encoder.encode();
+        if (tileHash != null && "on".equalsIgnoreCase(cache)) {
+            wmsTileStore.put(tileHash, tile);
+        }
+        writeImage(response, tile);
+    }
+
+    /**
+     * Add the points inside the bbox to a vector tile.
+     *
+     * @param legend   the legend item name of each colour, as rrggbb
+     * @param bbox     the bbox of the points in EPSG:4326, including a buffer
+     * @param tilebbox the extents of the tile in EPSG:3857
+     */
+    private void addVectorTilePoints(VectorTileEncoder encoder, WMSTileColumns columns, Map<Integer, String> legend,
+                                     double[] bbox, double[] tilebbox, CoordinateTransforms transforms) {
+        int countKey = encoder.key("count");
+        int colourKey = encoder.key("colour");
+        int valueKey = encoder.key("value");
+
+        double xScale = encoder.getExtent() / (tilebbox[2] - tilebbox[0]);
+        double yScale = encoder.getExtent() / (tilebbox[3] - tilebbox[1]);
+
+        for (int j = 0; j < columns.getGroupCount(); j++) {
+            int rgb = columns.getColour(j) & 0xffffff;
+            String name = legend.get(rgb);
+
+            //the count is set for each point
+            int[] tags = new int[(columns.hasCounts() ? 2 : 0) + (name == null ? 2 : 4)];
+            int t = 0;
+            if (columns.hasCounts()) {
+                tags[t++] = countKey;
+                t++;
+            }
+            tags[t++] = colourKey;
+            tags[t++] = encoder.value(String.format("%06x", rgb));
+            if (name != null) {
+                tags[t++] = valueKey;
+                tags[t] = encoder.value(name);
+            }
+
+            int[] ranges = columns.getRanges(j, bbox[0], bbox[1], bbox[2], bbox[3]);
+            int[] index = new int[countPoints(ranges)];
+            double[] targetCoords = transformGroup(columns, ranges, bbox, transforms, index);
+            for (int i = 0; i < targetCoords.length; i += 2) {
+                if (Double.isNaN(targetCoords[i]) || Double.isNaN(targetCoords[i + 1])) {
+                    continue;
+                }
+                int x = (int) Math.round((targetCoords[i] - tilebbox[0]) * xScale);
+                int y = (int) Math.round((tilebbox[3] - targetCoords[i + 1]) * yScale);
+                if (columns.hasCounts()) {
+                    tags[1] = encoder.value(columns.getCount(index[i / 2]));
+                }
+                encoder.addPoint(x, y, tags);
+            }
+        }
+    }
+
+    /**
+     * The key of a tile image from the query, with a qid replaced by its values, the style, the bbox and the
+     * index version.
+     */
+    private String getTileKey(SpatialSearchRequestParams requestParams, String env, String srs, String styles,
+                              String bboxString, int width, int height, boolean outlinePoints, String outlineColour,
+                              Set<Integer> hq, int gridDivisionCount, long indexVersion) {
+        StringBuilder sb = new StringBuilder();
+
+        String q = requestParams.getQ();
+        if (q != null && q.startsWith("qid:")) {
+            try {
+                Qid qid = qidCacheDAO.get(q.substring(4));
+                if (qid != null) {
+                    q = qid.getQ() + "\n" + qid.getWkt() + "\n" + (qid.getFqs() != null ? StringUtils.join(qid.getFqs(), "\n") : "");
+                }
+            } catch (Exception e) {
+            }
+        }
+        sb.append(q).append('\n');
+
+        //the order of the fqs does not change the points
+        if (requestParams.getFq() != null) {
+            String[] fqs = requestParams.getFq().clone();
+            Arrays.sort(fqs);
+            for (String fq : fqs) {
+                if (StringUtils.isNotEmpty(fq)) {
+                    sb.append(fq).append('\n');
+                }
+            }
+        }
+        sb.append(requestParams.getQc()).append('\n')
+                .append(requestParams.getWkt()).append('\n')
+                .append(requestParams.getRadius()).append(',').append(requestParams.getLat()).append(',')
+                .append(requestParams.getLon()).append('\n');
+
+        sb.append(env).append('\n').append(styles).append('\n').append(srs).append('\n');
+        for (String b : bboxString.split(",")) {
+            try {
+                sb.append(Double.parseDouble(b.trim())).append(',');
+            } catch (NumberFormatException e) {
+                sb.append(b).append(',');
+            }
+        }
+        sb.append('\n').append(width).append(',').append(height).append(',').append(outlinePoints).append(',')
+                .append(outlineColour).append(',').append(gridDivisionCount).append('\n')
+                .append(new TreeSet<Integer>(hq)).append('\n')
+                .append(indexVersion);
+        return sb.toString();
+    }
+
+    private void writeImage(HttpServletResponse response, byte[] bytes) {
+        try (ServletOutputStream outStream = response.getOutputStream()) {
+            outStream.write(bytes);
+            outStream.flush();
+        } catch (Exception e) {
+            logger.debug("Unable to write image", e);
+        }
+    }
+
     private ModelAndView sendWmsError(HttpServletResponse response, int status, String errorType, String errorDescription) {
         response.setStatus(status);
         Map<String,String> model = new HashMap<String,String>();
@@ -1595,11 +1867,9 @@ public class WMSController extends AbstractSecureController{
             HttpServletRequest request, HttpServletResponse response) throws Exception {
 
         // convert extents from EPSG:4326 into target SRS
-        CRSAuthorityFactory factory = CRS.getAuthorityFactory(true);
-        CoordinateReferenceSystem sourceCRS = factory.createCoordinateReferenceSystem(srs);
-        CoordinateReferenceSystem targetCRS = factory.createCoordinateReferenceSystem("EPSG:4326");
-        CoordinateOperation transformTo4326 = new DefaultCoordinateOperationFactory().createOperation(sourceCRS, targetCRS);
-        CoordinateOperation transformFrom4326 = new DefaultCoordinateOperationFactory().createOperation(targetCRS, sourceCRS);
+        CoordinateTransforms transforms = CoordinateTransforms.get(srs);
+        CoordinateOperation transformTo4326 = transforms.getTransformTo4326();
+        CoordinateOperation transformFrom4326 = transforms.getTransformFrom4326();
         double[] bbox4326 = new double[4];     // extents in EPSG:4326
         double[] bboxSRS = new double[4];      //extents in target SRS
         if (bboxString != null) {
@@ -1787,7 +2057,8 @@ public class WMSController extends AbstractSecureController{
                              String outlineColour,
                              HttpServletResponse response,
                              double[] tilebbox, int gridDivisionCount,
-                             CoordinateOperation transformFrom4326) throws Exception {
+                             CoordinateTransforms transforms) throws Exception {
+        CoordinateOperation transformFrom4326 = transforms.getTransformFrom4326();
 
         ImgObj imgObj = null;
 
@@ -1802,26 +2073,21 @@ public class WMSController extends AbstractSecureController{
 
         //if not transparent and zero size, render dots
         if (vars.alpha > 0 && vars.size > 0) {
-            List<float[]> points = wco.getPoints();
-            List<int[]> counts = wco.getCounts();
-            List<Integer> pColour = wco.getColours();
-            if (pColour.size() == 1 && vars.colourMode.equals("-1")) {
-                pColour.set(0, vars.colour | (vars.alpha << 24));
-            }
+            WMSTileColumns columns = wco.getColumns();
+            //one colour is drawn with the requested colour
+            boolean requestedColour = columns.getGroupCount() == 1 && vars.colourMode.equals("-1");
 
             //initialise the image object
             imgObj = ImgObj.create(width, height);
 
-            for (int j = 0; j < points.size(); j++) {
+            for (int j = 0; j < columns.getGroupCount(); j++) {
 
                 if (hq != null && hq.contains(j)) {
                     //dont render these points
                     continue;
                 }
 
-                float[] ps = points.get(j);
-
-                if (ps == null || ps.length == 0) {
+                if (columns.getPointCount(j) == 0) {
                     continue;
                 }
 
@@ -1833,31 +2099,26 @@ public class WMSController extends AbstractSecureController{
 
                 if (isGrid) {
                     //render grids
-                    int[] count = counts.get(j);
 
                     //populate grid
-                    for (int i = 0; i < ps.length; i += 2) {
-                        float lng = ps[i];
-                        float lat = ps[i + 1];
-                        if (lng >= bbox[0] && lng <= bbox[2]
-                                && lat >= bbox[1] && lat <= bbox[3]) {
-                            try {
-                                GeneralDirectPosition sourceCoords = new GeneralDirectPosition(lng, lat);
-                                DirectPosition targetCoords = transformFrom4326.getMathTransform().transform(sourceCoords, null);
-                                x = scaleLongitudeForImage(targetCoords.getOrdinate(0), left, right, divs);
-                                y = scaleLatitudeForImage(targetCoords.getOrdinate(1), top, bottom, divs);
+                    int[] ranges = columns.getRanges(j, bbox[0], bbox[1], bbox[2], bbox[3]);
+                    int[] index = new int[countPoints(ranges)];
+                    double[] targetCoords = transformGroup(columns, ranges, bbox, transforms, index);
+                    for (int i = 0; i < targetCoords.length; i += 2) {
+                        // failure to transform a coordinate will result in it not rendering
+                        if (Double.isNaN(targetCoords[i]) || Double.isNaN(targetCoords[i + 1])) {
+                            continue;
+                        }
+                        x = scaleLongitudeForImage(targetCoords[i], left, right, divs);
+                        y = scaleLatitudeForImage(targetCoords[i + 1], top, bottom, divs);
 
-                                if (x >= 0 && x < divs && y >= 0 && y < divs) {
-                                    gridCounts[x][y] += count[i / 2];
-                                }
-                            } catch (MismatchedDimensionException e) {
-                            } catch (TransformException e) {
-                                // failure to transform a coordinate will result in it not rendering
-                            }
+                        if (x >= 0 && x < divs && y >= 0 && y < divs) {
+                            gridCounts[x][y] += columns.getCount(index[i / 2]);
                         }
                     }
                 } else {
-                    renderPoints(vars, bbox, pbbox, width_mult, height_mult, pointWidth, outlinePoints, outlineColour, pColour, imgObj, j, ps, tilebbox, height, width, transformFrom4326);
+                    int colour = requestedColour ? vars.colour | (vars.alpha << 24) : columns.getColour(j);
+                    renderPoints(vars, bbox, pbbox, width_mult, height_mult, pointWidth, outlinePoints, outlineColour, colour, imgObj, columns, j, tilebbox, height, width, transforms);
                 }
             }
         }
@@ -1865,7 +2126,7 @@ public class WMSController extends AbstractSecureController{
         //no points
         if (imgObj == null || imgObj.img == null) {
             if (vars.highlight == null) {
-                displayBlankImage(response);
+                //the caller displays the blank image
                 return null;
             }
         } else if (isGrid) {
@@ -1965,10 +2226,11 @@ public class WMSController extends AbstractSecureController{
                         }
 
                         for (FacetPivotResultDTO point : r.getPivotResult()) {
-                            String[] lat_lng = point.getValue().split(",");
+                            String latLng = point.getValue();
+                            int p = latLng.indexOf(',');
 
-                            lng = Double.parseDouble(lat_lng[1]);
-                            lat = Double.parseDouble(lat_lng[0]);
+                            lng = PointParser.parseDouble(latLng, p + 1, latLng.length());
+                            lat = PointParser.parseDouble(latLng, 0, p);
 
                             try {
                                 GeneralDirectPosition sourceCoords = new GeneralDirectPosition(lng, lat);
@@ -2028,12 +2290,12 @@ public class WMSController extends AbstractSecureController{
             double left = tilebbox[0];
             double right = tilebbox[2];
 
+            float[] highlightPoint = new float[2];
             for (int i = 0; i < ps.getValueCount(); i++) {
                 //extract lat lng
-                if (ps.getValues().get(i).getName() != null) {
-                    String[] lat_lng = ps.getValues().get(i).getName().split(",");
-                    float lng = Float.parseFloat(lat_lng[1]);
-                    float lat = Float.parseFloat(lat_lng[0]);
+                if (PointParser.parseLatLng(ps.getValues().get(i).getName(), highlightPoint, 0)) {
+                    float lng = highlightPoint[0];
+                    float lat = highlightPoint[1];
 
                     try {
                         GeneralDirectPosition sourceCoords = new GeneralDirectPosition(lng, lat);
@@ -2187,15 +2449,17 @@ public class WMSController extends AbstractSecureController{
                 WMSTile equivalentTile = getWMSCacheObject(requestParams, vars, pointType, bbox, originalFqs, boundingBoxFqs, canCache);
                 vars.colourMode = prevColourMode;
 
-                //use the correct colour
-                List<Integer> pColour = new ArrayList<Integer>(1);
-                pColour.add(colours != null ? colours.get(0).getColour() | (vars.alpha << 24) : vars.colour);
-                wco.setColours(pColour);
+                //use the correct colour, sharing the points of the equivalent tile
+                int colour = colours != null ? colours.get(0).getColour() | (vars.alpha << 24) : vars.colour;
+                WMSTileColumns columns = equivalentTile.getColumns();
+                if (columns != null) {
+                    int[] pColour = new int[columns.getGroupCount()];
+                    Arrays.fill(pColour, colour);
+                    wco.setColumns(columns.withColours(pColour));
+                }
 
                 wco.setBbox(bbox);
                 wco.setColourmode(vars.colourMode);
-                wco.setCounts(equivalentTile.getCounts());
-                wco.setPoints(equivalentTile.getPoints());
                 wco.setQuery(q);
             } else {
                 //query with the bbox when it cannot be cached
@@ -2214,6 +2478,15 @@ public class WMSController extends AbstractSecureController{
                 if (cm.equals("-1")) wco.setCounts(countsArrays);
                 wco.setPoints(pointsArrays);
                 wco.setQuery(q);
+
+                //pack the points, outside the heap when configured for cached tiles
+                WMSTileColumns.Storage storage = canCache ? wmsCache.getStorage() : WMSTileColumns.Storage.HEAP;
+                try {
+                    wco.pack(storage, wmsCache.getStorageDirectory());
+                } catch (IOException e) {
+                    logger.warn("Unable to pack tile points with " + storage + " storage, using heap", e);
+                    wco.pack(WMSTileColumns.Storage.HEAP, null);
+                }
             }
 
             if (canCache) {
@@ -2224,41 +2497,39 @@ public class WMSController extends AbstractSecureController{
         }
     }
 
-    private Integer getCachedCount(boolean docCount, SpatialSearchRequestParams requestParams, String q, PointType pointType, boolean[] useBbox) throws Exception {
-
-        Integer count = null;
+    private Integer getCachedCount(final boolean docCount, final SpatialSearchRequestParams requestParams, String q, final PointType pointType, boolean[] useBbox) throws Exception {
 
         String tag = docCount ? "" : pointType.getLabel();
 
-        synchronized (countLock) {
-            count = (Integer) countsCache.get(q + tag);
-        }
-        if (count == null) {
-            requestParams.setPageSize(0);
-            requestParams.setFacet(true);
-            requestParams.setFlimit(0);
-            requestParams.setFacets(new String[]{pointType.getLabel()});
-            requestParams.setFormattedQuery(null);
-            if (docCount) {
-                requestParams.setFacet(false);
-                SolrDocumentList result = searchDAO.findByFulltext(requestParams);
-                if (result != null) {
-                    synchronized (countLock) {
-                        count = (int) result.getNumFound();
-                        countsCache.put(q + tag, count);
+        //concurrent requests for the same count wait for one query
+        final boolean[] queried = new boolean[1];
+        Integer count = wmsCountCache.get(q + tag, searchDAO.getIndexVersion(false), new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                queried[0] = true;
+                requestParams.setPageSize(0);
+                requestParams.setFacet(true);
+                requestParams.setFlimit(0);
+                requestParams.setFacets(new String[]{pointType.getLabel()});
+                requestParams.setFormattedQuery(null);
+                if (docCount) {
+                    requestParams.setFacet(false);
+                    SolrDocumentList result = searchDAO.findByFulltext(requestParams);
+                    if (result != null) {
+                        return (int) result.getNumFound();
                     }
-                }
-            } else {
-                List<FieldStatsItem> result = searchDAO.searchStat(requestParams, pointType.getLabel(), null,
-                        Arrays.asList("countDistinct"));
-                if (result != null && result.size() > 0) {
-                    synchronized (countLock) {
-                        count = result.get(0).getCountDistinct().intValue();
-                        countsCache.put(q + tag, count);
+                } else {
+                    List<FieldStatsItem> result = searchDAO.searchStat(requestParams, pointType.getLabel(), null,
+                            Arrays.asList("countDistinct"));
+                    if (result != null && result.size() > 0) {
+                        return result.get(0).getCountDistinct().intValue();
                     }
                 }
+                return null;
             }
-        } else {
+        });
+
+        if (!queried[0]) {
             queryFormatUtils.formatSearchQuery(requestParams, false);
         }
 
@@ -2293,6 +2564,20 @@ public class WMSController extends AbstractSecureController{
                 pointsArrays.add(null);
                 pColour.add(null);
 
+                //points of all colours from one query, in the order of the colours
+                List<FacetField> colourFacets = null;
+                if (wmsFacetSingleQuery) {
+                    List<String> colourFqs = new ArrayList<String>(colours.size());
+                    for (LegendItem li : colours) {
+                        colourFqs.add(li.getFq());
+                    }
+                    long ms = System.currentTimeMillis();
+                    requestParams.setFlimit(-1);
+                    requestParams.setFormattedQuery(null);
+                    colourFacets = searchDAO.getFacetPointsShort(requestParams, pointType.getLabel(), colourFqs);
+                    colrmaxtime = (System.currentTimeMillis() - ms);
+                }
+
                 for (int i = 0; i < colours.size(); i++) {
                     LegendItem li = colours.get(i);
 
@@ -2310,14 +2595,18 @@ public class WMSController extends AbstractSecureController{
                         }
                     }
 
-                    requestParams.setFq(fqs);
-                    long ms = System.currentTimeMillis();
-                    requestParams.setFlimit(-1);
+                    if (colourFacets != null) {
+                        makePointsFromFacet(colourFacets.get(i), pointsArrays, countsArrays);
+                    } else {
+                        requestParams.setFq(fqs);
+                        long ms = System.currentTimeMillis();
+                        requestParams.setFlimit(-1);
 
-                    requestParams.setFormattedQuery(null);
-                    makePointsFromFacet(searchDAO.getFacetPointsShort(requestParams, pointType.getLabel()), pointsArrays, countsArrays);
+                        requestParams.setFormattedQuery(null);
+                        makePointsFromFacet(searchDAO.getFacetPointsShort(requestParams, pointType.getLabel()), pointsArrays, countsArrays);
+                        colrmaxtime = (System.currentTimeMillis() - ms);
+                    }
                     pColour.add(li.getColour() | (vars.alpha << 24));
-                    colrmaxtime = (System.currentTimeMillis() - ms);
 
                     //in the last iteration check for more and batch.
                     if (i == ColorUtil.colourList.length - 2 && colours.size() == ColorUtil.colourList.length - 1) {
@@ -2336,8 +2625,9 @@ public class WMSController extends AbstractSecureController{
                         WMSTile equivalentTile = getWMSCacheObject(requestParams, vars, pointType, bbox, originalFqs, boundingBoxFqs, canCache);
                         vars.colourMode = prevColourMode;
 
-                        if (equivalentTile.getPoints() != null && equivalentTile.getPoints().size() > 0 && equivalentTile.getPoints().get(0).length > 0) {
-                            pointsArrays.set(0, equivalentTile.getPoints().get(0));
+                        WMSTileColumns equivalentColumns = equivalentTile.getColumns();
+                        if (equivalentColumns != null && equivalentColumns.getGroupCount() > 0 && equivalentColumns.getPointCount(0) > 0) {
+                            pointsArrays.set(0, equivalentColumns.getPoints(0));
                             //countsArrays.add(equivalentTile.getCounts().get(0));
                             pColour.set(0, ColorUtil.colourList[ColorUtil.colourList.length - 1] | (vars.alpha << 24));
                             otherPointsAdded = true;
@@ -2444,16 +2734,12 @@ public class WMSController extends AbstractSecureController{
         int j = 0;
         for (FacetPivotResultDTO fpr : pivotResult) {
             String v = fpr.getValue();
-            if (StringUtils.isNotEmpty(v)) {
-                int p = v.indexOf(',');
-                points[i++] = Float.parseFloat(v.substring(p + 1));
-                points[i++] = Float.parseFloat(v.substring(0, p));
+            if (PointParser.parseLatLng(v, points, i)) {
                 count[j++] = fpr.getCount();
             } else {
-                points[i++] = Float.NaN;
-                i++;
                 count[j++] = 0;
             }
+            i += 2;
         }
 
         gPoints.add(points);
@@ -2466,45 +2752,68 @@ public class WMSController extends AbstractSecureController{
         int i = 0;
         int j = 0;
         for (FacetField.Count s : facet.getValues()) {
-            try {
-                String v = s.getName();
-                if (v != null) {
-                    int p = v.indexOf(',');
-                    float lng = Float.parseFloat(v.substring(p + 1));
-                    float lat = Float.parseFloat(v.substring(0, p));
-                    int c = (int) s.getCount();
-                    points[i++] = lng;
-                    points[i++] = lat;
-                    count[j++] = c;
-                } else {
-                    points[i++] = Float.NaN;
-                    i++;
-                    count[j++] = 0;
-                }
-            } catch (Exception e) {
+            //a missing or invalid point is NaN and is not rendered
+            if (PointParser.parseLatLng(s.getName(), points, i)) {
+                count[j++] = (int) s.getCount();
+            } else {
+                count[j++] = 0;
             }
-        }
-
-        //duplicate the last point in case of errors above
-        while (i < points.length && i > 1) {
-            points[i] = points[i - 2];
-            i++;
-        }
-        while (j < count.length && j > 0) {
-            count[j] = 0;
-            j++;
+            i += 2;
         }
 
         gPoints.add(points);
         if (gCount != null) gCount.add(count);
     }
 
-    private void renderPoints(WmsEnv vars, double[] bbox, double[] pbbox, double width_mult, double height_mult, int pointWidth, boolean outlinePoints, String outlineColour, List<Integer> pColour, ImgObj imgObj, int j, float[] ps, double[] tilebbox, int height, int width, CoordinateOperation transformFrom4326) throws TransformException {
+    /**
+     * Transform the points of a colour group that are inside the bbox from EPSG:4326 to the SRS, with one call.
+     *
+     * @param ranges the ranges of points of the group that may be inside the bbox, from {@link WMSTileColumns#getRanges}
+     * @param index  the index of each transformed point in the columns, or null
+     * @return x,y of each point inside the bbox, NaN when a point cannot be transformed
+     */
+    private double[] transformGroup(WMSTileColumns columns, int[] ranges, double[] bbox, CoordinateTransforms transforms, int[] index) {
+        double[] sourceCoords = new double[countPoints(ranges) * 2];
+        int n = 0;
+        for (int r = 0; r < ranges.length; r += 2) {
+            for (int i = ranges[r]; i < ranges[r + 1]; i++) {
+                float lng = columns.getLongitude(i);
+                float lat = columns.getLatitude(i);
+
+                if (lng >= bbox[0] && lng <= bbox[2]
+                        && lat >= bbox[1] && lat <= bbox[3]) {
+                    if (index != null) {
+                        index[n] = i;
+                    }
+                    sourceCoords[n * 2] = lng;
+                    sourceCoords[n * 2 + 1] = lat;
+                    n++;
+                }
+            }
+        }
+
+        double[] targetCoords = new double[n * 2];
+        transforms.transformFrom4326(sourceCoords, targetCoords, n);
+        return targetCoords;
+    }
+
+    /**
+     * @return the number of points in the ranges
+     */
+    private int countPoints(int[] ranges) {
+        int n = 0;
+        for (int r = 0; r < ranges.length; r += 2) {
+            n += ranges[r + 1] - ranges[r];
+        }
+        return n;
+    }
+
+    private void renderPoints(WmsEnv vars, double[] bbox, double[] pbbox, double width_mult, double height_mult, int pointWidth, boolean outlinePoints, String outlineColour, int colour, ImgObj imgObj, WMSTileColumns columns, int j, double[] tilebbox, int height, int width, CoordinateTransforms transforms) {
         int x;
         int y;
-        Paint currentFill = new Color(pColour.get(j), true);
-        imgObj.g.setPaint(currentFill);
-        Color oColour = Color.decode(outlineColour);
+        //stamp the rasterised point instead of drawing each oval
+        PointSprite sprite = PointSprite.get(pointWidth, colour, outlinePoints ? Color.decode(outlineColour) : null);
+        int[] pixels = PointSprite.getPixels(imgObj.img);
 
         //for 4326
         double top = tilebbox[3];
@@ -2512,31 +2821,17 @@ public class WMSController extends AbstractSecureController{
         double left = tilebbox[0];
         double right = tilebbox[2];
 
-        for (int i = 0; i < ps.length; i += 2) {
-            float lng = ps[i];
-            float lat = ps[i + 1];
-
-            if (lng >= bbox[0] && lng <= bbox[2]
-                    && lat >= bbox[1] && lat <= bbox[3]) {
-
-                try {
-                    GeneralDirectPosition sourceCoords = new GeneralDirectPosition(lng, lat);
-                    DirectPosition targetCoords = transformFrom4326.getMathTransform().transform(sourceCoords, null);
-                    x = scaleLongitudeForImage(targetCoords.getOrdinate(0), left, right, width);
-                    y = scaleLatitudeForImage(targetCoords.getOrdinate(1), top, bottom, height);
-
-                    //System.out.println("Drawing an oval.....");
-                    imgObj.g.fillOval(x - vars.size, y - vars.size, pointWidth, pointWidth);
-                    if (outlinePoints) {
-                        imgObj.g.setPaint(oColour);
-                        imgObj.g.drawOval(x - vars.size, y - vars.size, pointWidth, pointWidth);
-                        imgObj.g.setPaint(currentFill);
-                    }
-                } catch (MismatchedDimensionException e) {
-                } catch (TransformException e) {
-                    // failure to transform a coordinate will result in it not rendering
-                }
+        int[] ranges = columns.getRanges(j, bbox[0], bbox[1], bbox[2], bbox[3]);
+        double[] targetCoords = transformGroup(columns, ranges, bbox, transforms, null);
+        for (int i = 0; i < targetCoords.length; i += 2) {
+            // failure to transform a coordinate will result in it not rendering
+            if (Double.isNaN(targetCoords[i]) || Double.isNaN(targetCoords[i + 1])) {
+                continue;
             }
+            x = scaleLongitudeForImage(targetCoords[i], left, right, width);
+            y = scaleLatitudeForImage(targetCoords[i + 1], top, bottom, height);
+
+            sprite.stamp(pixels, width, height, x - vars.size, y - vars.size);
         }
     }
 
@@ -6,12 +6,12 @@ import au.org.ala.biocache.util.*;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
-import org.geotools.geometry.GeneralDirectPosition;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.operation.DefaultCoordinateOperationFactory;
-import org.opengis.geometry.DirectPosition;
+import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.CoordinateOperation;
+import org.opengis.referencing.operation.MathTransform;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -29,6 +29,8 @@ import java.awt.image.BufferedImage;
 import java.text.MessageFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * WMS controller that supports OS grid rendering.
@@ -44,6 +46,42 @@ public class WMSOSGridController {
     @Inject
     protected WMSUtils wmsUtils;
 
+    /**
+     * Max number of grid cells with their corners projected to a target SRS to keep in memory.
+     */
+    @Value("${wms.osgrid.cache.size:100000}")
+    protected int gridCellCacheSize = 100000;
+
+    //transforms between two SRS, by source SRS and target SRS
+    private static final ConcurrentMap<String, MathTransform> transforms = new ConcurrentHashMap<String, MathTransform>();
+
+    //grid cells by grid reference and target SRS, least recently used first
+    private final Map<String, GridCell> gridCellCache = new LinkedHashMap<String, GridCell>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GridCell> eldest) {
+            return size() > gridCellCacheSize;
+        }
+    };
+
+    /**
+     * A grid reference with the corners of its cell in a target SRS.
+     */
+    static class GridCell {
+        final String datum;
+        final int easting;
+        final int northing;
+        final int gridSize;
+        //corners from the bottom left, anticlockwise
+        final double[][] polygon;
+
+        GridCell(String datum, int easting, int northing, int gridSize, double[][] polygon) {
+            this.datum = datum;
+            this.easting = easting;
+            this.northing = northing;
+            this.gridSize = gridSize;
+            this.polygon = polygon;
+        }
+    }
 
     @RequestMapping(value = {"/osgrid/lookup.json"}, method = RequestMethod.GET)
     public @ResponseBody Map<String, Object> parseGridReference(
@@ -434,12 +472,13 @@ public class WMSOSGridController {
             }
         });
 
-        Set<int[]> linesToRender = new HashSet<int[]>();
-        List<String> renderedLinesCache = new LinkedList<String>();
+        //lines shared by adjacent cells are drawn once
+        List<int[]> linesToRender = new ArrayList<int[]>();
+        Set<String> renderedLines = new HashSet<String>();
 
         for(String gridRef : gridRefsToRender){
 
-            Set<int[]> renderedLines = renderGrid(wmsImg,
+            renderGrid(wmsImg,
                     gridRef,
                     minx,
                     miny,
@@ -449,10 +488,9 @@ public class WMSOSGridController {
                     width,
                     height,
                     wmsEnv,
-                    renderedLinesCache
+                    renderedLines,
+                    linesToRender
             );
-
-            linesToRender.addAll(renderedLines);
         }
 
         if(outlineGrids) {
@@ -492,42 +530,22 @@ public class WMSOSGridController {
      * @param miny
      * @param oneUnitXInPixels
      * @param oneUnitYInPixels
+     * @param renderedLines keys of the lines already added to linesToRender
+     * @param linesToRender the lines of the grid cell that are not in renderedLines are added
      */
-    private Set<int[]> renderGrid(WMSImg wmsImg, String gridRef, double minx, double miny, double oneUnitXInPixels,
-                                  double oneUnitYInPixels, String targetSrs, int imageWidth, int imageHeight, WmsEnv wmsEnv, List<String> renderedLines){
-
-        if(StringUtils.isEmpty(gridRef)) return new HashSet<int[]>();
-
-        Option<au.org.ala.biocache.util.GridRef> gridRefOption = GridUtil.gridReferenceToEastingNorthing(gridRef);
-
-        if(gridRefOption.isEmpty()) return new HashSet<int[]>();
+    private void renderGrid(WMSImg wmsImg, String gridRef, double minx, double miny, double oneUnitXInPixels,
+                            double oneUnitYInPixels, String targetSrs, int imageWidth, int imageHeight, WmsEnv wmsEnv,
+                            Set<String> renderedLines, List<int[]> linesToRender){
 
-        Set<int[]> linesToRender = new HashSet<int[]>();
+        if(StringUtils.isEmpty(gridRef)) return;
 
-        au.org.ala.biocache.util.GridRef gr = gridRefOption.get();
+        GridCell cell = getGridCell(gridRef, targetSrs);
 
-        int easting = gr.easting();
-        int northing = gr.northing();
-        int gridSize = (Integer) gr.coordinateUncertainty().get();
+        if(cell == null) return;
 
-        //coordinates in easting / northing of the nearest 10km grid to the bottom,left of this tile
-        Integer minEastingOfGridCell  = easting; //may need to use the minimum of each
-        Integer minNorthingOfGridCell = northing;
-        Integer maxEastingOfGridCell  = minEastingOfGridCell + gridSize;
-        Integer maxNorthingOfGridCell = minNorthingOfGridCell + gridSize;
+        int gridSize = cell.gridSize;
 
-        double[][] polygonInMercator = convertEastingNorthingToTargetSRS(
-                new double[][]{
-                        new double[]{minEastingOfGridCell, minNorthingOfGridCell},
-                        new double[]{maxEastingOfGridCell, minNorthingOfGridCell},
-                        new double[]{maxEastingOfGridCell, maxNorthingOfGridCell},
-                        new double[]{minEastingOfGridCell, maxNorthingOfGridCell},
-                },
-                gr.datum(),
-                targetSrs
-        );
-
-        int[][] coordinatesForImages = convertUnitsToPixelOffset(polygonInMercator, minx, miny,
+        int[][] coordinatesForImages = convertUnitsToPixelOffset(cell.polygon, minx, miny,
                 oneUnitXInPixels, oneUnitYInPixels, imageWidth, imageHeight);
 
         int color;
@@ -577,29 +595,7 @@ public class WMSOSGridController {
         Paint polygonBorder = new Color(0xFF000000, true);
         wmsImg.g.setPaint(polygonBorder);
 
-        //line 1 -  bottom line
-        String key1 = getLineKey(minEastingOfGridCell,minNorthingOfGridCell,maxEastingOfGridCell,minNorthingOfGridCell);
-        if(!renderedLines.contains(key1)) {
-            linesToRender.add(new int[]{coordinatesForImages[0][0], coordinatesForImages[0][1], coordinatesForImages[1][0], coordinatesForImages[1][1]});
-        }
-
-        //line 2 - right line
-        String key2 = getLineKey(maxEastingOfGridCell,minNorthingOfGridCell,maxEastingOfGridCell,maxNorthingOfGridCell);
-        if(!renderedLines.contains(key2)) {
-            linesToRender.add(new int[]{coordinatesForImages[1][0], coordinatesForImages[1][1], coordinatesForImages[2][0], coordinatesForImages[2][1]});
-        }
-
-        //line 3 - top line
-        String key3 = getLineKey(maxEastingOfGridCell,maxNorthingOfGridCell,minEastingOfGridCell,maxNorthingOfGridCell);
-        if(!renderedLines.contains(key3)) {
-            linesToRender.add(new int[]{coordinatesForImages[2][0], coordinatesForImages[2][1], coordinatesForImages[3][0], coordinatesForImages[3][1]});
-        }
-
-        //line 4 - left line
-        String key4 = getLineKey(minEastingOfGridCell,maxNorthingOfGridCell,minEastingOfGridCell,minNorthingOfGridCell);
-        if(!renderedLines.contains(key4)) {
-            linesToRender.add(new int[]{coordinatesForImages[3][0], coordinatesForImages[3][1], coordinatesForImages[0][0], coordinatesForImages[0][1]});
-        }
+        addGridLines(cell, coordinatesForImages, renderedLines, linesToRender);
 
         if(wmsEnv.gridlabels) {
             Paint textColor = new Color(0xFF000000, true);
@@ -627,8 +623,94 @@ public class WMSOSGridController {
                 }
             }
         }
+    }
+
+    /**
+     * Add the lines of a grid cell that are not shared with a cell that was already added.
+     *
+     * Lines are identified by the datum and the eastings and northings of their ends, so that the line between
+     * two adjacent cells is drawn once.
+     *
+     * @param cell
+     * @param coordinatesForImages the corners of the cell in pixels
+     * @param renderedLines keys of the lines already added to linesToRender
+     * @param linesToRender the lines of the grid cell that are not in renderedLines are added
+     */
+    void addGridLines(GridCell cell, int[][] coordinatesForImages, Set<String> renderedLines, List<int[]> linesToRender){
+        int minEasting = cell.easting;
+        int minNorthing = cell.northing;
+        int maxEasting = minEasting + cell.gridSize;
+        int maxNorthing = minNorthing + cell.gridSize;
+
+        //line 1 -  bottom line
+        String key1 = cell.datum + " " + getLineKey(minEasting,minNorthing,maxEasting,minNorthing);
+        if(renderedLines.add(key1)) {
+            linesToRender.add(new int[]{coordinatesForImages[0][0], coordinatesForImages[0][1], coordinatesForImages[1][0], coordinatesForImages[1][1]});
+        }
 
-        return linesToRender;
+        //line 2 - right line
+        String key2 = cell.datum + " " + getLineKey(maxEasting,minNorthing,maxEasting,maxNorthing);
+        if(renderedLines.add(key2)) {
+            linesToRender.add(new int[]{coordinatesForImages[1][0], coordinatesForImages[1][1], coordinatesForImages[2][0], coordinatesForImages[2][1]});
+        }
+
+        //line 3 - top line
+        String key3 = cell.datum + " " + getLineKey(maxEasting,maxNorthing,minEasting,maxNorthing);
+        if(renderedLines.add(key3)) {
+            linesToRender.add(new int[]{coordinatesForImages[2][0], coordinatesForImages[2][1], coordinatesForImages[3][0], coordinatesForImages[3][1]});
+        }
+
+        //line 4 - left line
+        String key4 = cell.datum + " " + getLineKey(minEasting,maxNorthing,minEasting,minNorthing);
+        if(renderedLines.add(key4)) {
+            linesToRender.add(new int[]{coordinatesForImages[3][0], coordinatesForImages[3][1], coordinatesForImages[0][0], coordinatesForImages[0][1]});
+        }
+    }
+
+    /**
+     * Get the grid cell of a grid reference, with its corners projected to the target SRS.
+     *
+     * @param gridRef
+     * @param targetSrs
+     * @return the grid cell, or null when the grid reference is not valid or cannot be projected
+     */
+    GridCell getGridCell(String gridRef, String targetSrs){
+        String key = gridRef + "\n" + targetSrs;
+        synchronized (gridCellCache) {
+            GridCell cell = gridCellCache.get(key);
+            if (cell != null) {
+                return cell;
+            }
+        }
+
+        Option<au.org.ala.biocache.util.GridRef> gridRefOption = GridUtil.gridReferenceToEastingNorthing(gridRef);
+
+        if(gridRefOption.isEmpty()) return null;
+
+        au.org.ala.biocache.util.GridRef gr = gridRefOption.get();
+
+        int easting = gr.easting();
+        int northing = gr.northing();
+        int gridSize = (Integer) gr.coordinateUncertainty().get();
+
+        double[][] polygon = convertEastingNorthingToTargetSRS(
+                new double[][]{
+                        new double[]{easting, northing},
+                        new double[]{easting + gridSize, northing},
+                        new double[]{easting + gridSize, northing + gridSize},
+                        new double[]{easting, northing + gridSize},
+                },
+                gr.datum(),
+                targetSrs
+        );
+
+        if(polygon == null) return null;
+
+        GridCell cell = new GridCell(gr.datum(), easting, northing, gridSize, polygon);
+        synchronized (gridCellCache) {
+            gridCellCache.put(key, cell);
+        }
+        return cell;
     }
 
     public boolean overlapping(int[][] imageCoords){
@@ -698,28 +780,11 @@ public class WMSOSGridController {
     double[] reprojectPoint(Double x, Double y, String sourceCRSString, String targetCRSString){
 
         try {
-
-            CoordinateReferenceSystem sourceCRS = CRS.decode(sourceCRSString);
-            CoordinateReferenceSystem targetCRS = CRS.decode(targetCRSString);
-            CoordinateOperation transformOp = new DefaultCoordinateOperationFactory().createOperation(sourceCRS, targetCRS);
-            GeneralDirectPosition directPosition = new GeneralDirectPosition(x, y);
-            DirectPosition latLongInTargetCRS = transformOp.getMathTransform().transform(directPosition, null);
-
             //NOTE - returned coordinates are longitude, latitude, despite the fact that if
             //converting latitude and longitude values, they must be supplied as latitude, longitude.
             //No idea why this is the case.
-            Double longitude = latLongInTargetCRS.getOrdinate(0);
-            Double latitude = latLongInTargetCRS.getOrdinate(1);
-
-            double[] coords = new double[2];
-
-//            coords[0] = Precision.round(longitude, 10);
-//            coords[1] = Precision.round(latitude, 10);
-
-            coords[0] = longitude;
-            coords[1] = latitude;
-
-
+            double[] coords = new double[]{x, y};
+            getTransform(sourceCRSString, targetCRSString).transform(coords, 0, coords, 0, 1);
             return coords;
 
         } catch (Exception e) {
@@ -728,6 +793,29 @@ public class WMSOSGridController {
         return null;
     }
 
+    /**
+     * Get the transform between two SRS. The CRS are decoded once for each source and target.
+     *
+     * @param sourceCRSString
+     * @param targetCRSString
+     * @return
+     * @throws FactoryException when an SRS is not known
+     */
+    static MathTransform getTransform(String sourceCRSString, String targetCRSString) throws FactoryException {
+        String key = sourceCRSString + "\n" + targetCRSString;
+        MathTransform transform = transforms.get(key);
+        if (transform == null) {
+            CoordinateReferenceSystem sourceCRS = CRS.decode(sourceCRSString);
+            CoordinateReferenceSystem targetCRS = CRS.decode(targetCRSString);
+            transform = new DefaultCoordinateOperationFactory().createOperation(sourceCRS, targetCRS).getMathTransform();
+            MathTransform previous = transforms.putIfAbsent(key, transform);
+            if (previous != null) {
+                transform = previous;
+            }
+        }
+        return transform;
+    }
+
     double[] convertWGS84ToEastingNorthing(Double coordinate1, Double coordinate2){
         return reprojectPoint(coordinate1, coordinate2,  "EPSG:4326", "EPSG:27700");
     }
@@ -762,10 +850,32 @@ public class WMSOSGridController {
         return offsetXYWidthHeights;
     }
 
+    /**
+     * Reproject the points of a polygon into the target CRS with one transform.
+     *
+     * @param polygon
+     * @param sourceSrs
+     * @param targetSrs
+     * @return the reprojected points, or null when they cannot be reprojected
+     */
     double[][] convertEastingNorthingToTargetSRS(double[][] polygon, String sourceSrs, String targetSrs){
+        double[] coords = new double[polygon.length * 2];
+        for(int i = 0; i < polygon.length; i++){
+            coords[i * 2] = polygon[i][0];
+            coords[i * 2 + 1] = polygon[i][1];
+        }
+
+        try {
+            getTransform(sourceSrs, targetSrs).transform(coords, 0, coords, 0, polygon.length);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        }
+
         double[][] converted = new double[polygon.length][2];
         for(int i = 0; i < polygon.length; i++){
-            converted[i] = reprojectPoint(polygon[i][0], polygon[i][1], sourceSrs, targetSrs);
+            converted[i][0] = coords[i * 2];
+            converted[i][1] = coords[i * 2 + 1];
         }
         return converted;
     }
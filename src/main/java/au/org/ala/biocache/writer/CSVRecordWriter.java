@@ -15,6 +15,7 @@
 package au.org.ala.biocache.writer;
 
 import au.com.bytecode.opencsv.CSVWriter;
+import au.org.ala.biocache.stream.CountingUtf8Writer;
 import au.org.ala.biocache.stream.OptionalZipOutputStream;
 import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.slf4j.Logger;
@@ -22,8 +23,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -52,6 +51,7 @@ public class CSVRecordWriter implements RecordWriterError {
     
     // Resources that are created during initialise because their creation sequence may include Exception's
     private CSVWriter csvWriter;
+    private CountingUtf8Writer countingWriter;
     
     public CSVRecordWriter(OutputStream out, String[] header){
         outputStream = out;
@@ -80,15 +80,13 @@ public class CSVRecordWriter implements RecordWriterError {
         if (csvWriter == null) {
             throw new IllegalStateException("The initialise method did not create a CSVWriter instance.");
         }
+        long startBytes = countingWriter.getBytesWritten();
         csvWriter.writeNext(record);
 
         //mark the end of line
         if (outputStream instanceof OptionalZipOutputStream) {
             try {
-                // add record byte length, standard separator byte length and buffer (*2) for occasional record character encoding
-                long length = record.length * "\",\"".getBytes(StandardCharsets.UTF_8).length * 2;
-                for (String s : record) if (s != null) length += s.getBytes(StandardCharsets.UTF_8).length;
-                if (((OptionalZipOutputStream) outputStream).isNewFile(this, length)) {
+                if (((OptionalZipOutputStream) outputStream).isNewFile(this, countingWriter.getBytesWritten() - startBytes)) {
                     write(header);
                 }
             } catch (Exception e) {
@@ -97,6 +95,15 @@ public class CSVRecordWriter implements RecordWriterError {
         }
     }
 
+    /**
+     * @return the number of UTF-8 bytes written, including the header
+     */
+    @Override
+    public long getBytesWritten() {
+        CountingUtf8Writer toCountWriter = countingWriter;
+        return toCountWriter != null ? toCountWriter.getBytesWritten() : 0;
+    }
+
     @Override
     public boolean hasError() {
         CSVWriter toCheckCsvWriter = csvWriter;
@@ -124,8 +131,12 @@ public class CSVRecordWriter implements RecordWriterError {
     @Override
     public void initialise() {
         if (initialised.compareAndSet(false, true)) {
-            csvWriter = new CSVWriter(new OutputStreamWriter(new CloseShieldOutputStream(outputStream), StandardCharsets.UTF_8), separatorChar, quoteChar, escapeChar);
-            csvWriter.writeNext(header);
+            countingWriter = new CountingUtf8Writer(new CloseShieldOutputStream(outputStream));
+            csvWriter = new CSVWriter(countingWriter, separatorChar, quoteChar, escapeChar);
+            // a null header is used when encoding record chunks that are appended to an existing output
+            if (header != null) {
+                csvWriter.writeNext(header);
+            }
         }
     }
     
@@ -0,0 +1,186 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.writer;
+
+import au.org.ala.biocache.RecordWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Writes pages of records in order while the following pages are read on other threads.
+ *
+ * Each page is read into an in-memory buffer on the executor. Up to depth pages are read ahead of the page that
+ * is being written. With a depth of 0, or without an executor, each page is read directly into the writer
+ * on the calling thread.
+ *
+ * Not thread safe, pages must be added and written by one thread.
+ */
+public class ReadAheadPageWriter {
+    private final static Logger logger = LoggerFactory.getLogger(ReadAheadPageWriter.class);
+
+    /**
+     * A page of records.
+     */
+    public interface Page {
+        /**
+         * Read the records of this page into the writer. Called on an executor thread when reading ahead.
+         *
+         * @param writer the writer for the records of this page
+         * @return the result of the page
+         * @throws Exception
+         */
+        String[] read(RecordWriter writer) throws Exception;
+
+        /**
+         * Called on the writing thread after the records of this page are written, in page order.
+         *
+         * @param result the result of the page
+         * @throws Exception
+         */
+        void written(String[] result) throws Exception;
+    }
+
+    private final RecordWriter writer;
+    private final ExecutorService executor;
+    private final int depth;
+
+    private final Deque<PendingPage> pending = new ArrayDeque<>();
+
+    /**
+     * @param writer   where the records are written
+     * @param executor the executor that reads pages ahead
+     * @param depth    the number of pages that can be read ahead of the page being written
+     */
+    public ReadAheadPageWriter(RecordWriter writer, ExecutorService executor, int depth) {
+        this.writer = writer;
+        this.executor = executor;
+        this.depth = executor != null ? Math.max(0, depth) : 0;
+    }
+
+    /**
+     * Add the next page. Blocks while writing pages until no more than depth pages are waiting to be written.
+     *
+     * @param page the next page
+     * @throws Exception the failure reading an earlier page or this page
+     */
+    public void add(final Page page) throws Exception {
+        if (depth == 0) {
+            page.written(page.read(writer));
+            return;
+        }
+
+        final BufferedPage buffer = new BufferedPage();
+        Future<String[]> future = executor.submit(new Callable<String[]>() {
+            @Override
+            public String[] call() throws Exception {
+                return page.read(buffer);
+            }
+        });
+        pending.add(new PendingPage(page, buffer, future));
+
+        while (pending.size() > depth) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Write all of the remaining pages.
+     *
+     * @throws Exception the failure reading a page
+     */
+    public void finish() throws Exception {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Cancel the pages that have not been written.
+     */
+    public void cancel() {
+        for (PendingPage page : pending) {
+            page.future.cancel(true);
+        }
+        if (!pending.isEmpty() && logger.isDebugEnabled()) {
+            logger.debug("Cancelled " + pending.size() + " pages");
+        }
+        pending.clear();
+    }
+
+    private void writeNext() throws Exception {
+        PendingPage next = pending.poll();
+        String[] result;
+        try {
+            result = next.future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+        for (String[] record : next.buffer.records) {
+            writer.write(record);
+        }
+        next.page.written(result);
+    }
+
+    private static class PendingPage {
+        final Page page;
+        final BufferedPage buffer;
+        final Future<String[]> future;
+
+        PendingPage(Page page, BufferedPage buffer, Future<String[]> future) {
+            this.page = page;
+            this.buffer = buffer;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Holds the records of a page until it is written.
+     */
+    private static class BufferedPage implements RecordWriter {
+        final List<String[]> records = new ArrayList<>();
+
+        @Override
+        public void write(String[] record) {
+            records.add(record);
+        }
+
+        @Override
+        public void initialise() {
+            // No resources to create
+        }
+
+        @Override
+        public void finalise() {
+            // The records are written by the ReadAheadPageWriter
+        }
+
+        @Override
+        public boolean finalised() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.writer;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A reusable buffer of complete, already encoded records.
+ *
+ * Chunks only ever contain whole records so they can be appended to a download
+ * in any order and zip entries can be split between chunks.
+ */
+public class RecordChunk extends ByteArrayOutputStream {
+
+    private int records;
+
+    public RecordChunk(int initialSize) {
+        super(initialSize);
+    }
+
+    /**
+     * Mark the end of a record that has been written into this chunk.
+     */
+    public void recordWritten() {
+        records++;
+    }
+
+    /**
+     * @return the number of complete records in this chunk
+     */
+    public int getRecords() {
+        return records;
+    }
+
+    /**
+     * Clears the chunk for reuse, retaining the allocated buffer.
+     */
+    @Override
+    public synchronized void reset() {
+        super.reset();
+        records = 0;
+    }
+}
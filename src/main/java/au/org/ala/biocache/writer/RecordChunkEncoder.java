@@ -0,0 +1,134 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.writer;
+
+import au.org.ala.biocache.RecordWriter;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A RecordWriter that encodes records into {@link RecordChunk}s using a headerless
+ * {@link CSVRecordWriter} or {@link TSVRecordWriter}, handing full chunks to the owning
+ * {@link RecordChunkPipeline}.
+ *
+ * An encoder is used by one thread at a time, borrowed from the pipeline for each page of results.
+ */
+public class RecordChunkEncoder implements RecordWriter {
+
+    private final RecordChunkPipeline pipeline;
+    private final RecordWriterError writer;
+
+    private final AtomicBoolean finalised = new AtomicBoolean(false);
+    private final AtomicBoolean finalisedComplete = new AtomicBoolean(false);
+
+    private RecordChunk chunk;
+
+    RecordChunkEncoder(RecordChunkPipeline pipeline, String fileType, char sep, char esc) {
+        this.pipeline = pipeline;
+
+        // redirects the encoded output into the current chunk
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+                currentChunk().write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                currentChunk().write(b, off, len);
+            }
+        };
+
+        writer = "csv".equals(fileType) ? new CSVRecordWriter(sink, null, sep, esc) : new TSVRecordWriter(sink, null);
+        writer.initialise();
+    }
+
+    private RecordChunk currentChunk() {
+        if (chunk == null) {
+            chunk = pipeline.nextFreeChunk();
+        }
+        return chunk;
+    }
+
+    @Override
+    public void write(String[] record) {
+        if (finalised.get()) {
+            return;
+        }
+        writer.write(record);
+
+        RecordChunk current = currentChunk();
+        current.recordWritten();
+        if (current.size() >= pipeline.getChunkSize()) {
+            publish();
+        }
+    }
+
+    /**
+     * Pass the current chunk, including any output buffered by the writer, to the pipeline.
+     *
+     * An error of the writer is terminal. It is reported to the pipeline once, the current chunk is dropped
+     * and the encoder ignores all later records.
+     */
+    void publish() {
+        writer.flush();
+        if (writer.hasError()) {
+            List<Throwable> errors = new ArrayList<>(writer.getErrors());
+            if (errors.isEmpty()) {
+                // the CSVWriter error flag does not record a cause
+                errors.add(new RecordWriterException("Encoder failed"));
+            }
+            writer.getErrors().clear();
+            chunk = null;
+            finalised.set(true);
+            finalisedComplete.set(true);
+            pipeline.fail(errors);
+            return;
+        }
+
+        RecordChunk full = chunk;
+        chunk = null;
+        if (full != null && full.size() > 0) {
+            pipeline.offer(full);
+        }
+    }
+
+    @Override
+    public void initialise() {
+        // The underlying writer is initialised on construction
+    }
+
+    /**
+     * Publishes the remaining partial chunk.
+     */
+    @Override
+    public void finalise() {
+        if (finalised.compareAndSet(false, true)) {
+            try {
+                publish();
+            } finally {
+                finalisedComplete.set(true);
+            }
+        }
+    }
+
+    @Override
+    public boolean finalised() {
+        return finalisedComplete.get();
+    }
+}
@@ -0,0 +1,276 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.writer;
+
+import au.org.ala.biocache.dto.DownloadMetricsDTO;
+import au.org.ala.biocache.stream.OptionalZipOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Moves CSV and TSV encoding off the single download writer thread.
+ *
+ * Producer threads borrow a {@link RecordChunkEncoder}, encode their records into reusable
+ * {@link RecordChunk}s and offer full chunks to a bounded queue. The writer thread, running this
+ * Runnable, only appends finished chunks to the output stream and writes the header when an
+ * {@link OptionalZipOutputStream} starts a new _partN entry.
+ *
+ * The number of encoders bounds the number of threads encoding records at the same time.
+ */
+public class RecordChunkPipeline implements Runnable {
+    private final static Logger logger = LoggerFactory.getLogger(RecordChunkPipeline.class);
+
+    private final RecordWriterError rw;
+    private final OutputStream out;
+    private final String[] header;
+    private final int chunkSize;
+    private final long offerTimeoutMillis;
+    private final AtomicBoolean interruptFound;
+
+    private final BlockingQueue<RecordChunk> queue;
+    private final BlockingQueue<RecordChunk> freeChunks;
+    private final BlockingQueue<RecordChunkEncoder> encoders;
+    private final List<RecordChunkEncoder> allEncoders;
+
+    // Sentinel that we can check for reference equality to signal the end of the queue
+    private final RecordChunk sentinel = new RecordChunk(0);
+
+    private DownloadMetricsDTO metrics = new DownloadMetricsDTO();
+
+    /**
+     * @param rw                 the initialised writer for the output, used for the header and error reporting
+     * @param out                the output stream that rw writes to
+     * @param header             the header to write at the start of each new zip entry part
+     * @param fileType           csv or tsv
+     * @param sep                csv separator
+     * @param esc                csv escape character
+     * @param encoderCount       number of encoders that may be used concurrently
+     * @param chunkSize          the size in bytes at which a chunk is passed to the writer
+     * @param queueLength        the number of full chunks that can be waiting for the writer
+     * @param interruptFound     shared flag used to signal an interrupt or failure of any thread of this download
+     * @param offerTimeoutMillis time to wait for queue capacity between interrupt checks
+     */
+    public RecordChunkPipeline(RecordWriterError rw, OutputStream out, String[] header, String fileType,
+                               char sep, char esc, int encoderCount, int chunkSize, int queueLength,
+                               AtomicBoolean interruptFound, long offerTimeoutMillis) {
+        this.rw = rw;
+        this.out = out;
+        this.header = header;
+        this.chunkSize = chunkSize;
+        this.interruptFound = interruptFound;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+
+        queue = new ArrayBlockingQueue<>(queueLength);
+        freeChunks = new ArrayBlockingQueue<>(queueLength + encoderCount);
+        encoders = new ArrayBlockingQueue<>(encoderCount);
+        allEncoders = new ArrayList<>(encoderCount);
+        for (int i = 0; i < encoderCount; i++) {
+            RecordChunkEncoder encoder = new RecordChunkEncoder(this, fileType, sep, esc);
+            allEncoders.add(encoder);
+            encoders.add(encoder);
+        }
+    }
+
+    /**
+     * @param fileType requested download file type
+     * @return true when records of this file type can be encoded in chunks
+     */
+    public static boolean supports(String fileType) {
+        return "csv".equals(fileType) || "tsv".equals(fileType);
+    }
+
+    /**
+     * @param metrics the download metrics to update
+     */
+    public void setMetrics(DownloadMetricsDTO metrics) {
+        this.metrics = metrics;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Wait for an encoder to become available. It must be returned with {@link #releaseEncoder(RecordChunkEncoder)}.
+     *
+     * @return an encoder for exclusive use by the current thread
+     * @throws InterruptedException
+     */
+    public RecordChunkEncoder borrowEncoder() throws InterruptedException {
+        return encoders.take();
+    }
+
+    public void releaseEncoder(RecordChunkEncoder encoder) {
+        if (encoder != null) {
+            encoders.offer(encoder);
+        }
+    }
+
+    RecordChunk nextFreeChunk() {
+        RecordChunk chunk = freeChunks.poll();
+        if (chunk == null) {
+            // allow for the writer buffer and the record that crosses the chunk size
+            chunk = new RecordChunk(chunkSize + chunkSize / 8);
+        }
+        return chunk;
+    }
+
+    /**
+     * Report the errors of a failed encoder and stop the download.
+     */
+    void fail(List<Throwable> errors) {
+        synchronized (rw) {
+            rw.getErrors().addAll(errors);
+        }
+        logger.error("Download encoder failed: " + errors);
+        interruptFound.set(true);
+    }
+
+    /**
+     * Add a full chunk to the queue, dropping it when the download has been interrupted.
+     */
+    void offer(RecordChunk chunk) {
+        try {
+            if (!queue.offer(chunk)) {
+                // Time spent waiting here is time that the writer is the bottleneck
+                long stallStart = System.nanoTime();
+                try {
+                    while (!queue.offer(chunk, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                        if (Thread.currentThread().isInterrupted() || interruptFound.get()) {
+                            return;
+                        }
+                    }
+                } finally {
+                    metrics.addWriterStallNanos(System.nanoTime() - stallStart);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            interruptFound.set(true);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Queue failed to accept the next chunk due to a thread interrupt: ", e);
+            }
+        }
+    }
+
+    /**
+     * Soft shutdown. Publishes the partial chunks of all encoders and then the sentinel.
+     *
+     * All producers must have released their encoders before this is called.
+     */
+    public void finish() {
+        try {
+            if (!interruptFound.get()) {
+                for (RecordChunkEncoder encoder : allEncoders) {
+                    encoder.finalise();
+                }
+            }
+        } finally {
+            try {
+                // Offer the sentinel at least once, even when the thread is interrupted
+                while (!queue.offer(sentinel, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    // The hard shutdown phase will use abort to ensure that the sentinel gets onto the queue
+                    if (Thread.currentThread().isInterrupted() || interruptFound.get()) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                interruptFound.set(true);
+            }
+        }
+    }
+
+    /**
+     * Hard shutdown. Clears the queue until the sentinel is accepted.
+     */
+    public void abort() {
+        while (!queue.offer(sentinel)) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * The single writer. Consumes chunks until it sees the sentinel, finalising after the sentinel or an interrupt.
+     */
+    @Override
+    public void run() {
+        try {
+            // The header is buffered by rw during initialise, it must be written before any chunks
+            rw.flush();
+
+            while (true) {
+                if (Thread.currentThread().isInterrupted() || interruptFound.get()) {
+                    break;
+                }
+
+                RecordChunk take = queue.poll();
+                if (take == null) {
+                    // Time spent waiting here is time that the producers are the bottleneck
+                    long idleStart = System.nanoTime();
+                    take = queue.take();
+                    metrics.addWriterIdleNanos(System.nanoTime() - idleStart);
+                }
+                // Sentinel object equality check to see if we are done
+                if (take == sentinel || Thread.currentThread().isInterrupted() || interruptFound.get()) {
+                    break;
+                }
+
+                take.writeTo(out);
+                metrics.addRowsWritten(take.getRecords());
+                metrics.addBytesWritten(take.size());
+                metrics.setQueueDepth(queue.size());
+
+                if (out instanceof OptionalZipOutputStream && ((OptionalZipOutputStream) out).isNewFile(rw, take.size())) {
+                    rw.write(header);
+                    rw.flush();
+                }
+
+                take.reset();
+                freeChunks.offer(take);
+
+                if (rw.hasError()) {
+                    logger.error("Download writer failed: " + rw.getErrors());
+                    interruptFound.set(true);
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            interruptFound.set(true);
+        } catch (IOException e) {
+            synchronized (rw) {
+                rw.getErrors().add(e);
+            }
+            interruptFound.set(true);
+            logger.error("Download writer failed.", e);
+        } catch (Exception e) {
+            // Reuse interruptFound variable to signal that the writer had issues
+            interruptFound.set(true);
+            logger.error("Download writer failed.", e);
+        } finally {
+            rw.finalise();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.writer;
+
+import au.org.ala.biocache.RecordWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An append only file of records, used to keep the records of a download split until the split is complete.
+ *
+ * Each record is written as the number of values, then each value as its length in bytes, or -1 for null,
+ * followed by its UTF-8 bytes.
+ *
+ * Not thread safe, each instance must only be used by one thread at a time, other than {@link #sync()}.
+ */
+public class RecordSpool implements RecordWriter, Closeable {
+
+    private final File file;
+    private final FileOutputStream fileOut;
+    private final DataOutputStream out;
+    private long length;
+    private IOException error;
+    private boolean closed;
+
+    private RecordSpool(File file, long length) throws IOException {
+        this.file = file;
+        this.length = length;
+        this.fileOut = new FileOutputStream(file, true);
+        this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+    }
+
+    /**
+     * Open a spool, discarding anything after length.
+     *
+     * @param file   the spool file
+     * @param length the length of the records to keep, 0 to start a new spool
+     * @return the spool, open for appending records
+     * @throws IOException
+     */
+    public static RecordSpool open(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < length) {
+                throw new IOException("Spool " + file + " is shorter than the expected length " + length);
+            }
+            raf.setLength(length);
+        }
+        return new RecordSpool(file, length);
+    }
+
+    /**
+     * Write the first length bytes of records of a spool to a writer.
+     *
+     * @param file      the spool file
+     * @param length    the length of the records to write
+     * @param writer    where the records are written
+     * @param interrupt stops writing the records when set
+     * @return the number of records written
+     * @throws IOException
+     */
+    public static long replay(File file, long length, RecordWriter writer, AtomicBoolean interrupt) throws IOException {
+        long records = 0;
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            while (position < length && !interrupt.get()) {
+                String[] record = new String[in.readInt()];
+                position += 4;
+                for (int i = 0; i < record.length; i++) {
+                    int size = in.readInt();
+                    position += 4;
+                    if (size >= 0) {
+                        byte[] bytes = new byte[size];
+                        in.readFully(bytes);
+                        position += size;
+                        record[i] = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                }
+                writer.write(record);
+                records++;
+            }
+        } catch (EOFException e) {
+            throw new IOException("Spool " + file + " ended before " + length + " bytes", e);
+        }
+        return records;
+    }
+
+    /**
+     * @return the number of bytes of records written to this spool, including the records that have not been flushed
+     */
+    public long length() {
+        return length;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void write(String[] record) {
+        if (error != null) {
+            return;
+        }
+        try {
+            out.writeInt(record.length);
+            length += 4;
+            for (String value : record) {
+                if (value == null) {
+                    out.writeInt(-1);
+                    length += 4;
+                } else {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    length += 4 + bytes.length;
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Flush the records to the file so that length bytes of records can be replayed.
+     *
+     * @throws IOException the first error writing a record
+     */
+    public void flush() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        out.flush();
+    }
+
+    /**
+     * Force the flushed records to disk, so that a saved length is not longer than the spool after a crash.
+     * May be called from a thread other than the writer.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        if (!closed) {
+            fileOut.getFD().sync();
+        }
+    }
+
+    @Override
+    public void initialise() {
+        // The file is opened by open
+    }
+
+    @Override
+    public void finalise() {
+        try {
+            close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+    }
+
+    @Override
+    public boolean finalised() {
+        return closed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -35,4 +35,9 @@ public interface RecordWriterError extends RecordWriter, Closeable {
     List<Throwable> getErrors();
 
     void flush();
+
+    /**
+     * @return The number of bytes of output produced by this writer, counted as the output is encoded.
+     */
+    long getBytesWritten();
 }
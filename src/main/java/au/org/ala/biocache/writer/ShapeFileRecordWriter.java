@@ -90,6 +90,7 @@ public class ShapeFileRecordWriter implements RecordWriterError {
     private final AtomicBoolean finalisedComplete = new AtomicBoolean(false);
 
     private final AtomicBoolean writerError = new AtomicBoolean(false);
+    private long bytesWritten = 0;
     private final List<Throwable> errors = new ArrayList<>();
 
     private final int latIdx, longIdx;
@@ -193,7 +194,9 @@ public class ShapeFileRecordWriter implements RecordWriterError {
                 //lat,lng csv header
                 // FIXME: What relevant does OptionalZipOutputStream have to whether the CSV header line is written?
                 if (outputStream instanceof OptionalZipOutputStream) {
-                    outputStream.write(("latitude,longitude\n").getBytes(StandardCharsets.UTF_8));
+                    byte[] bytes = ("latitude,longitude\n").getBytes(StandardCharsets.UTF_8);
+                    outputStream.write(bytes);
+                    bytesWritten += bytes.length;
                 }
     
             } catch (java.io.IOException e) {
@@ -345,7 +348,9 @@ public class ShapeFileRecordWriter implements RecordWriterError {
 
                 //lat,lng csv entry
                 if (outputStream instanceof OptionalZipOutputStream) {
-                    outputStream.write((latitude + "," + longitude + "\n").getBytes("UTF-8"));
+                    byte[] bytes = (latitude + "," + longitude + "\n").getBytes(StandardCharsets.UTF_8);
+                    outputStream.write(bytes);
+                    bytesWritten += bytes.length;
                 }
                 // ArrayIndexOutOfBoundsException is sometimes thrown by AbstractFeatureStore.addFeatures, 
                 // so handle it as if it is a writer error
@@ -372,6 +377,14 @@ public class ShapeFileRecordWriter implements RecordWriterError {
         return finalisedComplete.get();
     }
 
+    /**
+     * @return the number of bytes of the latitude,longitude CSV written to the output
+     */
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
     @Override
     public boolean hasError() {
         return writerError.get();
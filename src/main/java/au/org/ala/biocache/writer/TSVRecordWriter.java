@@ -14,13 +14,13 @@
  ***************************************************************************/
 package au.org.ala.biocache.writer;
 
+import au.org.ala.biocache.stream.CountingUtf8Writer;
 import au.org.ala.biocache.stream.OptionalZipOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -35,6 +35,7 @@ public class TSVRecordWriter implements RecordWriterError {
     private final static Logger logger = LoggerFactory.getLogger(TSVRecordWriter.class);
 
     private final OutputStream outputStream;
+    private final CountingUtf8Writer writer;
     private final String[] header;
 
     private final AtomicBoolean initialised = new AtomicBoolean(false);
@@ -47,6 +48,7 @@ public class TSVRecordWriter implements RecordWriterError {
     
     public TSVRecordWriter(OutputStream out, String[] header){
         this.outputStream = out;
+        this.writer = new CountingUtf8Writer(out);
         this.header = header;
     }
     
@@ -58,25 +60,19 @@ public class TSVRecordWriter implements RecordWriterError {
         if (!initialised.get()) {
             throw new IllegalStateException("Must call initialise method before calling write.");
         }
-        StringBuilder line = new StringBuilder(256);
-
-        //assume correct column count
-        for (int i = 0; i < record.length; i++) {
-            if (i > 0) line.append('\t');
-            String value = (record[i] != null) ? record[i] : "";
-            line.append(value.replace("\r","").replace("\n","").replace("\t",""));
-        }
-
-        line.append("\n");
+        long startBytes = writer.getBytesWritten();
 
         try {
-            String str = line.toString();
-            byte [] bytes = str.getBytes(StandardCharsets.UTF_8);
-            outputStream.write(bytes);
+            //assume correct column count
+            for (int i = 0; i < record.length; i++) {
+                if (i > 0) writer.write('\t');
+                if (record[i] != null) writeValue(record[i]);
+            }
+            writer.write('\n');
 
             //mark the end of line
             if (outputStream instanceof OptionalZipOutputStream) {
-                if (((OptionalZipOutputStream) outputStream).isNewFile(this, bytes.length)) {
+                if (((OptionalZipOutputStream) outputStream).isNewFile(this, writer.getBytesWritten() - startBytes)) {
                     write(header);
                 }
             }
@@ -87,10 +83,36 @@ public class TSVRecordWriter implements RecordWriterError {
         }
     }
 
+    /**
+     * Write the value without the \r, \n and \t characters that would break the row.
+     */
+    private void writeValue(String value) throws IOException {
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == '\t') {
+                writer.write(value, start, i - start);
+                start = i + 1;
+            }
+        }
+        writer.write(value, start, value.length() - start);
+    }
+
+    /**
+     * @return the number of UTF-8 bytes written, including the header
+     */
+    @Override
+    public long getBytesWritten() {
+        return writer.getBytesWritten();
+    }
+
     @Override
     public void initialise() {
         if (initialised.compareAndSet(false, true)) {
-            write(header);
+            // a null header is used when encoding record chunks that are appended to an existing output
+            if (header != null) {
+                write(header);
+            }
         }
     }
 
@@ -123,7 +145,7 @@ public class TSVRecordWriter implements RecordWriterError {
     @Override
     public void flush() {
         try {
-            outputStream.flush();
+            writer.flush();
         } catch(java.io.IOException e) {
             errors.add(e);
             writerError.set(true);
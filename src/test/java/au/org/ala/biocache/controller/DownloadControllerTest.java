@@ -2,6 +2,8 @@ package au.org.ala.biocache.controller;
 
 import au.org.ala.biocache.dao.JsonPersistentQueueDAOImpl;
 import au.org.ala.biocache.dao.PersistentQueueDAO;
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadRequestParams;
 import au.org.ala.biocache.service.AuthService;
 import au.org.ala.biocache.service.DownloadService;
 import au.org.ala.biocache.service.LoggerService;
@@ -217,4 +219,71 @@ public class DownloadControllerTest extends TestCase {
 
         verify(authService).getUserDetails("test@test.com");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void downloadStatusMetricsTest() throws Exception {
+
+        DownloadRequestParams params = new DownloadRequestParams();
+        params.setEmail("test@test.com");
+        DownloadDetailsDTO dd = new DownloadDetailsDTO(params, "127.0.0.1", "", DownloadDetailsDTO.DownloadType.RECORDS_INDEX);
+        persistentQueueDao.addDownloadToQueue(dd);
+
+        // a queued download has no metrics
+        this.mockMvc.perform(get("/occurrences/offline/status/" + dd.getUniqueId()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.status").value("inQueue"))
+                .andExpect(jsonPath("$.metrics").doesNotExist());
+
+        // start the download
+        assertSame(dd, persistentQueueDao.getNextDownload());
+        dd.getMetrics().addRowsWritten(1000);
+        dd.getMetrics().addBytesWritten(100000);
+        dd.getMetrics().setQueueDepth(3);
+        dd.getMetrics().addSplitQuery("year:[* TO 2000]", 40, 500);
+        dd.getMetrics().addSplitQuery("year:[2000 TO *]", 20, 500);
+
+        this.mockMvc.perform(get("/occurrences/offline/status/" + dd.getUniqueId()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.status").value("running"))
+                .andExpect(jsonPath("$.metrics.rowsPerSecond").exists())
+                .andExpect(jsonPath("$.metrics.bytesPerSecond").exists())
+                .andExpect(jsonPath("$.metrics.queueDepth").value(3))
+                .andExpect(jsonPath("$.metrics.writerStallMillis").exists())
+                .andExpect(jsonPath("$.metrics.splitQueries").value(2))
+                .andExpect(jsonPath("$.metrics.splitAverageMillis").value(30))
+                .andExpect(jsonPath("$.metrics.splitMaxMillis").value(40));
+
+        this.mockMvc.perform(get("/occurrences/offline/status"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].status").value("running"))
+                .andExpect(jsonPath("$[0].metrics.queueDepth").value(3));
+
+        persistentQueueDao.removeDownloadFromQueue(dd);
+    }
+
+    @Test
+    public void downloadStatsCheckpointTest() throws Exception {
+
+        boolean apiKeyCheckedEnabled = (boolean) ReflectionTestUtils.getField(downloadController, "apiKeyCheckedEnabled");
+        ReflectionTestUtils.setField(downloadController, "apiKeyCheckedEnabled", false);
+
+        DownloadRequestParams params = new DownloadRequestParams();
+        params.setEmail("test@test.com");
+        DownloadDetailsDTO dd = new DownloadDetailsDTO(params, "127.0.0.1", "", DownloadDetailsDTO.DownloadType.RECORDS_INDEX);
+        persistentQueueDao.addDownloadToQueue(dd);
+
+        // a running download that is checkpointed, as when download.checkpoint.enabled=true
+        assertSame(dd, persistentQueueDao.getNextDownload());
+        dd.setCheckpointDirectory(persistentQueueDao.getCheckpointDirectory(dd).getPath());
+
+        this.mockMvc.perform(get("/occurrences/offline/download/stats")
+                .param("apiKey", "test"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].uniqueId").value(dd.getUniqueId()))
+                .andExpect(jsonPath("$[0].cancelURL").exists())
+                .andExpect(jsonPath("$[0].checkpointDirectory").doesNotExist());
+
+        persistentQueueDao.removeDownloadFromQueue(dd);
+        ReflectionTestUtils.setField(downloadController, "apiKeyCheckedEnabled", apiKeyCheckedEnabled);
+    }
+}
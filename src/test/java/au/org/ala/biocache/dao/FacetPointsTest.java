@@ -0,0 +1,101 @@
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.util.PointParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The points of all legend colours from one JSON facet query.
+ */
+public class FacetPointsTest {
+
+    /**
+     * The facets of a Solr response to the json.facet of two fqs. The second fq has no points.
+     */
+    private static final String RESPONSE = "{" +
+            "\"count\":3," +
+            "\"fq0\":{\"count\":3,\"points\":{\"buckets\":[" +
+            "{\"val\":\"-35.1,149.1\",\"count\":2}," +
+            "{\"val\":\"-12.5,130.8\",\"count\":1}]}}," +
+            "\"fq1\":{\"count\":0}" +
+            "}";
+
+    @Test
+    public void testQueryFacetForEachFq() throws Exception {
+        Map<String, Object> json = SearchDAOImpl.getFacetPointsJson("point-0.01",
+                Arrays.asList("species:\"Acacia dealbata\"", "-(species:*)", ""), -1);
+
+        assertEquals("[fq0, fq1, fq2]", json.keySet().toString());
+        assertEquals("{\"type\":\"query\",\"q\":\"species:\\\"Acacia dealbata\\\"\",\"facet\":{\"points\":" +
+                        "{\"type\":\"terms\",\"field\":\"point-0.01\",\"limit\":-1,\"mincount\":1,\"sort\":\"index\"}}}",
+                new ObjectMapper().writeValueAsString(json.get("fq0")));
+        // a nested query cannot be only negative
+        assertEquals("*:* -(species:*)", ((Map) json.get("fq1")).get("q"));
+        // an fq formatted to nothing does not filter the points
+        assertEquals("*:*", ((Map) json.get("fq2")).get("q"));
+    }
+
+    @Test
+    public void testParseFacetPoints() throws Exception {
+        NamedList response = (NamedList) toNamedList(new ObjectMapper().readValue(RESPONSE, Map.class));
+        List<FacetField> facets = SearchDAOImpl.parseFacetPoints(response, "point-0.01", 2);
+
+        assertEquals(2, facets.size());
+        assertEquals("point-0.01", facets.get(0).getName());
+        assertEquals(2, facets.get(0).getValueCount());
+        assertEquals(0, facets.get(1).getValueCount());
+
+        // the points of the first colour, as they are rendered
+        float[] points = new float[2 * facets.get(0).getValueCount()];
+        long[] counts = new long[facets.get(0).getValueCount()];
+        for (int i = 0; i < counts.length; i++) {
+            FacetField.Count point = facets.get(0).getValues().get(i);
+            PointParser.parseLatLng(point.getName(), points, 2 * i);
+            counts[i] = point.getCount();
+        }
+        assertArrayEquals(new float[]{149.1f, -35.1f, 130.8f, -12.5f}, points, 0f);
+        assertEquals(2, counts[0]);
+        assertEquals(1, counts[1]);
+    }
+
+    @Test
+    public void testParseMissingFacets() {
+        List<FacetField> facets = SearchDAOImpl.parseFacetPoints(null, "point-0.01", 3);
+        assertEquals(3, facets.size());
+        for (FacetField facet : facets) {
+            assertEquals(0, facet.getValueCount());
+        }
+    }
+
+    /**
+     * The JSON objects and arrays as SolrJ reads them from a response.
+     */
+    private static Object toNamedList(Object value) {
+        if (value instanceof Map) {
+            NamedList<Object> list = new SimpleOrderedMap<Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                list.add(String.valueOf(entry.getKey()), toNamedList(entry.getValue()));
+            }
+            return list;
+        }
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<Object>();
+            for (Object item : (List<?>) value) {
+                list.add(toNamedList(item));
+            }
+            return list;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,229 @@
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
+import au.org.ala.biocache.dto.DownloadRequestParams;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JournalPersistentQueueDAOImplTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private File cacheDir;
+    private File downloadDir;
+
+    private JournalPersistentQueueDAOImpl queueDAO;
+
+    private long startTime = 1000;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = Files.createTempDirectory("journalqueuetest-cache").toFile();
+        downloadDir = Files.createTempDirectory("journalqueuetest-destination").toFile();
+        queueDAO = newQueue(1000);
+    }
+
+    @After
+    public void tearDown() {
+        queueDAO.shutdown();
+        FileUtils.deleteQuietly(cacheDir);
+        FileUtils.deleteQuietly(downloadDir);
+    }
+
+    private JournalPersistentQueueDAOImpl newQueue(final int compactThreshold) {
+        JournalPersistentQueueDAOImpl queue = new JournalPersistentQueueDAOImpl() {
+            @Override
+            public void init() {
+                cacheDirectory = cacheDir.getAbsolutePath();
+                biocacheDownloadDir = downloadDir.getAbsolutePath();
+                journalCompactThreshold = compactThreshold;
+                super.init();
+            }
+        };
+        queue.init();
+        // wait for the queue to be loaded
+        queue.getTotalDownloads();
+        return queue;
+    }
+
+    private DownloadDetailsDTO getDownload(String query, DownloadType type, long totalRecords) {
+        DownloadRequestParams params = new DownloadRequestParams();
+        params.setQ(query);
+        params.setFile("Testing");
+        params.setEmail("test@example.org");
+
+        DownloadDetailsDTO dd = new DownloadDetailsDTO();
+        dd.setRequestParams(params);
+        dd.setEmail("test@example.org");
+        dd.setDownloadParams("q=" + query);
+        dd.setDownloadType(type);
+        dd.setTotalRecords(totalRecords);
+        dd.setStartDate(new Date(startTime++));
+        return dd;
+    }
+
+    @Test
+    public void testQueueIsPersisted() {
+        DownloadDetailsDTO first = getDownload("first", DownloadType.RECORDS_INDEX, 10);
+        DownloadDetailsDTO second = getDownload("second", DownloadType.RECORDS_INDEX, 10);
+        DownloadDetailsDTO third = getDownload("third", DownloadType.FACET, 10);
+        queueDAO.addDownloadToQueue(first);
+        queueDAO.addDownloadToQueue(second);
+        queueDAO.addDownloadToQueue(third);
+        queueDAO.removeDownloadFromQueue(second);
+        assertEquals(2, queueDAO.getTotalDownloads());
+        queueDAO.shutdown();
+
+        queueDAO = newQueue(1000);
+        List<DownloadDetailsDTO> downloads = queueDAO.getAllDownloads();
+        assertEquals(2, downloads.size());
+        assertEquals(first.getUniqueId(), downloads.get(0).getUniqueId());
+        assertEquals(third.getUniqueId(), downloads.get(1).getUniqueId());
+
+        // the started downloads are run again after a restart
+        assertNotNull(queueDAO.getNextDownload());
+        assertNotNull(queueDAO.getNextDownload());
+        assertNull(queueDAO.getNextDownload());
+        queueDAO.shutdown();
+
+        queueDAO = newQueue(1000);
+        assertNotNull(queueDAO.getNextDownload());
+        assertNotNull(queueDAO.getNextDownload());
+    }
+
+    @Test
+    public void testNextDownloadByTypeAndRecords() {
+        DownloadDetailsDTO large = getDownload("large", DownloadType.RECORDS_INDEX, 1000000);
+        DownloadDetailsDTO facet = getDownload("facet", DownloadType.FACET, 10);
+        DownloadDetailsDTO small = getDownload("small", DownloadType.RECORDS_INDEX, 100);
+        DownloadDetailsDTO limit = getDownload("limit", DownloadType.RECORDS_INDEX, 1000);
+        DownloadDetailsDTO over = getDownload("over", DownloadType.RECORDS_INDEX, 1001);
+        queueDAO.addDownloadToQueue(large);
+        queueDAO.addDownloadToQueue(facet);
+        queueDAO.addDownloadToQueue(small);
+        queueDAO.addDownloadToQueue(limit);
+        queueDAO.addDownloadToQueue(over);
+
+        assertSame(small, queueDAO.getNextDownload(1000, DownloadType.RECORDS_INDEX));
+        assertSame(limit, queueDAO.getNextDownload(1000, DownloadType.RECORDS_INDEX));
+        assertNull(queueDAO.getNextDownload(1000, DownloadType.RECORDS_INDEX));
+        assertSame(facet, queueDAO.getNextDownload(1000, null));
+        assertSame(large, queueDAO.getNextDownload(null, DownloadType.RECORDS_INDEX));
+        assertSame(over, queueDAO.getNextDownload());
+        assertNull(queueDAO.getNextDownload());
+
+        String expected = downloadDir.getAbsolutePath() + File.separator;
+        assertTrue(small.getFileLocation().startsWith(expected));
+        assertTrue(small.getFileLocation().endsWith(File.separator + small.getStartTime() + File.separator + "Testing.zip"));
+        assertEquals(5, queueDAO.getTotalDownloads());
+    }
+
+    @Test
+    public void testDuplicateIsNotAdded() {
+        DownloadDetailsDTO first = getDownload("same", DownloadType.RECORDS_INDEX, 10);
+        DownloadDetailsDTO duplicate = getDownload("same", DownloadType.RECORDS_INDEX, 10);
+        duplicate.setEmail("TEST@example.org");
+        queueDAO.addDownloadToQueue(first);
+        assertSame(first, queueDAO.isInQueue(duplicate));
+        queueDAO.addDownloadToQueue(duplicate);
+        assertEquals(1, queueDAO.getTotalDownloads());
+
+        DownloadDetailsDTO other = getDownload("same", DownloadType.RECORDS_INDEX, 10);
+        other.setEmail("other@example.org");
+        assertNull(queueDAO.isInQueue(other));
+
+        queueDAO.removeDownloadFromQueue(first);
+        assertNull(queueDAO.isInQueue(duplicate));
+    }
+
+    @Test
+    public void testJournalIsCompacted() throws Exception {
+        queueDAO.shutdown();
+        queueDAO = newQueue(2);
+        File journal = new File(cacheDir, "queue.journal");
+        DownloadDetailsDTO kept = getDownload("kept", DownloadType.RECORDS_INDEX, 10);
+        queueDAO.addDownloadToQueue(kept);
+        for (int i = 0; i < 2; i++) {
+            DownloadDetailsDTO dd = getDownload("removed" + i, DownloadType.RECORDS_INDEX, 10);
+            queueDAO.addDownloadToQueue(dd);
+            queueDAO.removeDownloadFromQueue(dd);
+        }
+        List<String> lines = Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains(kept.getUniqueId()));
+        // only the journal is in the cache directory
+        assertEquals(1, cacheDir.listFiles().length);
+    }
+
+    @Test
+    public void testLegacyDownloadsAreLoaded() throws Exception {
+        queueDAO.shutdown();
+        DownloadDetailsDTO legacy = getDownload("legacy", DownloadType.RECORDS_INDEX, 10);
+        File legacyFile = new File(cacheDir, "offline" + legacy.getStartTime() + ".json");
+        new ObjectMapper().writeValue(legacyFile, legacy);
+
+        queueDAO = newQueue(1000);
+        assertEquals(1, queueDAO.getTotalDownloads());
+        assertEquals(legacy.getUniqueId(), queueDAO.getNextDownload().getUniqueId());
+        assertFalse(legacyFile.exists());
+        queueDAO.shutdown();
+
+        queueDAO = newQueue(1000);
+        assertEquals(1, queueDAO.getTotalDownloads());
+    }
+
+    /**
+     * The downloads queued by the JSON file queue are adopted when the journal is enabled
+     */
+    @Test
+    public void testJsonQueueIsAdopted() throws Exception {
+        queueDAO.shutdown();
+        JsonPersistentQueueDAOImpl jsonQueue = new JsonPersistentQueueDAOImpl() {
+            @Override
+            public void init() {
+                cacheDirectory = cacheDir.getAbsolutePath();
+                biocacheDownloadDir = downloadDir.getAbsolutePath();
+                super.init();
+            }
+        };
+        jsonQueue.init();
+        DownloadDetailsDTO first = getDownload("first", DownloadType.RECORDS_INDEX, 10);
+        DownloadDetailsDTO second = getDownload("second", DownloadType.FACET, 10);
+        jsonQueue.addDownloadToQueue(first);
+        jsonQueue.addDownloadToQueue(second);
+        // started when the service stopped
+        assertNotNull(jsonQueue.getNextDownload());
+        jsonQueue.shutdown();
+
+        queueDAO = newQueue(1000);
+        List<DownloadDetailsDTO> downloads = queueDAO.getAllDownloads();
+        assertEquals(2, downloads.size());
+        assertNotNull(queueDAO.isInQueue(first));
+        assertNotNull(queueDAO.isInQueue(second));
+        assertNotNull(queueDAO.getNextDownload());
+        assertNotNull(queueDAO.getNextDownload());
+        // only the journal is in the cache directory
+        assertEquals(1, cacheDir.listFiles().length);
+    }
+}
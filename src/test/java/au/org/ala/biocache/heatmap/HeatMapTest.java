@@ -0,0 +1,82 @@
+package au.org.ala.biocache.heatmap;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.*;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+public class HeatMapTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("heatmap").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private double[] points(int n) {
+        Random random = new Random(1);
+        double[] points = new double[n * 2];
+        for (int i = 0; i < points.length; i += 2) {
+            points[i] = 112 + random.nextDouble() * 40;
+            points[i + 1] = -42 + random.nextDouble() * 30;
+        }
+        return points;
+    }
+
+    private byte[] drawClasses(double[] points, String name) throws Exception {
+        HeatMap hm = new HeatMap();
+        hm.generateClasses(points);
+        File file = new File(dir, name);
+        hm.drawOutput(file.getPath(), true);
+        return Files.readAllBytes(file.toPath());
+    }
+
+    /**
+     * the shared base images and intensity buffers do not carry over between heatmaps
+     */
+    @Test
+    public void testRendersIndependent() throws Exception {
+        double[] points = points(2000);
+        byte[] first = drawClasses(points, "first.png");
+
+        HeatMap other = new HeatMap();
+        other.setLegendImage(null);
+        other.generatePoints(points(50), Color.BLUE, "occurrence");
+        other.drawOutput(new File(dir, "points.png").getPath(), false);
+        byte[] empty = drawClasses(new double[0], "empty.png");
+
+        assertArrayEquals(first, drawClasses(points, "second.png"));
+        assertFalse(Arrays.equals(first, empty));
+        assertArrayEquals(empty, drawClasses(new double[0], "empty2.png"));
+    }
+
+    @Test
+    public void testLegend() throws Exception {
+        HeatMap hm = new HeatMap();
+        hm.generateClasses(points(2000));
+        File legend = new File(dir, "legend.png");
+        hm.drawLegend(legend.getPath());
+
+        HeatMap again = new HeatMap();
+        again.generateClasses(points(2000));
+        File legend2 = new File(dir, "legend2.png");
+        again.drawLegend(legend2.getPath());
+
+        assertArrayEquals(Files.readAllBytes(legend.toPath()), Files.readAllBytes(legend2.toPath()));
+    }
+}
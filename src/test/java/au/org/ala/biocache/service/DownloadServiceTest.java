@@ -10,6 +10,7 @@ import au.org.ala.biocache.dao.SearchDAOImpl;
 import au.org.ala.biocache.dto.*;
 import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
 import au.org.ala.biocache.util.thread.DownloadCreator;
+import au.org.ala.biocache.util.thread.SplitCompletion;
 import au.org.ala.doi.CreateDoiResponse;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.io.CharSource;
@@ -835,6 +836,121 @@ public class DownloadServiceTest {
                 "</ul>"));
     }
 
+    /**
+     * The download thread is released when the last split task completes.
+     */
+    @Test
+    public final void testSplitCompletionSignalledByLastTask() throws Exception {
+        final SplitCompletion completion = new SplitCompletion();
+        completion.start(3);
+        completion.taskComplete();
+        completion.taskComplete();
+        assertFalse(completion.await(50));
+
+        Thread last = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                completion.taskComplete();
+            }
+        });
+        last.start();
+        assertTrue(completion.await(10000));
+        last.join();
+
+        SplitCompletion none = new SplitCompletion();
+        none.start(0);
+        assertTrue(none.await(0));
+    }
+
+    /**
+     * An interrupt on the download releases the download thread before the split tasks complete.
+     */
+    @Test
+    public final void testSplitCompletionReleasedByInterrupt() throws Exception {
+        DownloadDetailsDTO dd = new DownloadDetailsDTO("q=*:*", "192.168.0.1", "", DownloadType.RECORDS_INDEX);
+        SplitCompletion completion = new SplitCompletion();
+        completion.attach(dd);
+        completion.start(2);
+        assertFalse(completion.await(10));
+
+        dd.interrupt();
+        assertTrue(completion.await(10000));
+        assertTrue(dd.getInterrupt().get());
+
+        // a detached completion is not released by a later interrupt
+        DownloadDetailsDTO other = new DownloadDetailsDTO("q=*:*", "192.168.0.1", "", DownloadType.RECORDS_INDEX);
+        SplitCompletion detached = new SplitCompletion();
+        detached.attach(other);
+        detached.detach(other);
+        detached.start(1);
+        other.interrupt();
+        assertFalse(detached.await(10));
+    }
+
+    @Test
+    public final void testDownloadMetrics() throws Exception {
+        DownloadMetricsDTO metrics = new DownloadMetricsDTO();
+        metrics.addRowsWritten(100);
+        metrics.addRowsWritten(50);
+        metrics.addBytesWritten(2000);
+        metrics.setQueueCapacity(10);
+        metrics.setQueueDepth(4);
+        metrics.addWriterStallNanos(TimeUnit.MILLISECONDS.toNanos(30));
+        metrics.addWriterIdleNanos(TimeUnit.MILLISECONDS.toNanos(20));
+        metrics.addSplitQuery("year:[* TO 2000]", 100, 10);
+        metrics.addSplitQuery("year:[* TO 2000]", 300, 20);
+        metrics.addSplitQuery("year:[2000 TO *]", 50, 5);
+        Thread.sleep(20);
+        metrics.finished();
+
+        assertEquals(150, metrics.getRowsWritten());
+        assertEquals(2000, metrics.getBytesWritten());
+        assertEquals(4, metrics.getQueueDepth());
+        assertEquals(10, metrics.getQueueCapacity());
+        assertEquals(30, metrics.getWriterStallMillis());
+        assertEquals(20, metrics.getWriterIdleMillis());
+
+        // the rates are over the elapsed time, which stops when the download has finished
+        long elapsed = metrics.getElapsedMillis();
+        assertTrue(elapsed > 0);
+        Thread.sleep(20);
+        assertEquals(elapsed, metrics.getElapsedMillis());
+        assertEquals(150 * 1000 / elapsed, metrics.getRowsPerSecond());
+        assertEquals(2000 * 1000 / elapsed, metrics.getBytesPerSecond());
+
+        DownloadMetricsDTO.SplitMetrics split = metrics.getSplits().get("year:[* TO 2000]");
+        assertEquals(2, split.getQueries());
+        assertEquals(30, split.getRecords());
+        assertEquals(400, split.getTotalMillis());
+        assertEquals(300, split.getMaxMillis());
+        assertEquals(200, split.getAverageMillis());
+        assertEquals(2, metrics.getSplits().size());
+
+        metrics.reset();
+        assertEquals(0, metrics.getRowsWritten());
+        assertTrue(metrics.getSplits().isEmpty());
+    }
+
+    /**
+     * The live metrics of a download are not written to the persisted queue.
+     */
+    @Test
+    public final void testDownloadMetricsNotPersisted() throws Exception {
+        DownloadRequestParams downloadRequestParams = new DownloadRequestParams();
+        downloadRequestParams.setEmail("test@example.org");
+        DownloadDetailsDTO dd = new DownloadDetailsDTO(downloadRequestParams, "192.168.0.1", "", DownloadType.RECORDS_INDEX);
+        dd.getMetrics().addRowsWritten(10);
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        String json = objectMapper.writeValueAsString(dd);
+        assertThat(json, not(containsString("metrics")));
+        assertThat(json, not(containsString("rowsWritten")));
+
+        DownloadDetailsDTO read = objectMapper.readValue(json, DownloadDetailsDTO.class);
+        assertEquals(dd.getUniqueId(), read.getUniqueId());
+        assertEquals(0, read.getMetrics().getRowsWritten());
+    }
+
     private DownloadService createDownloadServiceForOfflineTest() {
         DownloadService testService = new DownloadService() {
             {
@@ -40,4 +40,90 @@ class ListsServiceSpec extends Specification {
         30  | 31  || null
         40  | 40  || null
     }
+
+    @Unroll
+    def 'KvpIndex find(lft: #lft, rgt: #rgt)'() {
+
+        setup:
+        List<Kvp> kvps = [
+                new Kvp(1, 100),
+                new Kvp(10, 10),
+                new Kvp(20, 20),
+                new Kvp(24, 26),
+                new Kvp(24, 25),
+                new Kvp(30, 30)
+        ]
+        kvps.sort(Kvp.KvpComparator)
+
+        when:
+        Kvp result = new ListsService.KvpIndex(kvps).find(lft, rgt)
+        Kvp expected = listService.find(kvps, new Kvp(lft, rgt))
+
+        then:
+        result.lft == expectedKvp.lft
+        result.rgt == expectedKvp.rgt
+        result.is(expected)
+
+        where:
+        lft | rgt || expectedKvp
+        1   | 1   || new Kvp(1, 100)
+        10  | 10  || new Kvp(10, 10)
+        19  | 21  || new Kvp(1, 100)
+        24  | 26  || new Kvp(24, 26)
+        24  | 25  || new Kvp(24, 25)
+        25  | 25  || new Kvp(24, 25)
+        26  | 26  || new Kvp(24, 26)
+        30  | 30  || new Kvp(30, 30)
+        40  | 40  || new Kvp(1, 100)
+    }
+
+    def 'KvpIndex find outside of all items'() {
+
+        when:
+        ListsService.KvpIndex index = new ListsService.KvpIndex([new Kvp(10, 10), new Kvp(20, 30)])
+
+        then:
+        index.find(1, 1) == null
+        index.find(15, 15) == null
+        index.find(25, 31) == null
+        index.find(40, 40) == null
+        index.find(25, 25).lft == 20
+    }
+
+    def 'KvpColumns resolves the fields of each list'() {
+
+        setup:
+        ListsService.KvpIndex first = new ListsService.KvpIndex([new Kvp(1, 100, ['a', 'b'], ['a1', 'b1']), new Kvp(20, 30, ['a', 'b'], ['a2', 'b2'])])
+        ListsService.KvpIndex second = new ListsService.KvpIndex([new Kvp(25, 25, ['c'], ['c1'])])
+        ListsService.KvpColumns columns = new ListsService.KvpColumns([first, null, second] as ListsService.KvpIndex[], [0, 2, 3, 4] as int[])
+        String[] values = new String[6]
+
+        when:
+        columns.getValues(25, 25, values, 1)
+
+        then:
+        values == [null, 'a2', 'b2', '', 'c1', null] as String[]
+
+        when:
+        columns.getValues(5, 5, values, 1)
+
+        then:
+        values == [null, 'a1', 'b1', '', '', null] as String[]
+    }
+
+    def 'KvpIndex is rebuilt when the list is reloaded'() {
+
+        setup:
+        List<Kvp> loaded = [new Kvp(10, 10)]
+        List<Kvp> reloaded = [new Kvp(10, 20)]
+
+        when:
+        ListsService.KvpIndex index = listService.getKvpIndex('dr1', loaded)
+
+        then:
+        listService.getKvpIndex('dr1', loaded).is(index)
+        !listService.getKvpIndex('dr1', reloaded).is(index)
+        listService.getKvpIndex('dr1', reloaded).find(15, 15).rgt == 20
+        listService.getKvpIndex('dr1', null) == null
+    }
 }
@@ -0,0 +1,61 @@
+package au.org.ala.biocache.stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CountingUtf8WriterTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    /**
+     * Output and count must match String.getBytes for 1, 2, 3 and 4 byte characters and unpaired surrogates.
+     */
+    @Test
+    public void testEncodingMatchesGetBytes() throws Exception {
+        String[] values = new String[]{
+                "plain ascii",
+                "accents é à ü",
+                "CJK 中文 text",
+                "emoji 🐦 bird",
+                "unpaired high \uD83D then text",
+                "unpaired low \uDC26 text",
+                "trailing high \uD83D"
+        };
+        for (String value : values) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CountingUtf8Writer writer = new CountingUtf8Writer(out, 5);
+            writer.write(value);
+            writer.close();
+
+            byte[] expected = value.getBytes(StandardCharsets.UTF_8);
+            assertArrayEquals(value, expected, out.toByteArray());
+            assertEquals(value, expected.length, writer.getBytesWritten());
+        }
+    }
+
+    /**
+     * A surrogate pair split between writes is encoded as one character.
+     */
+    @Test
+    public void testSurrogatePairAcrossWrites() throws Exception {
+        String value = "a🐦b";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CountingUtf8Writer writer = new CountingUtf8Writer(out);
+        writer.write(value, 0, 2);
+        writer.write(value.charAt(2));
+        writer.write(value.toCharArray(), 3, 1);
+        writer.flush();
+
+        assertArrayEquals(value.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+        assertEquals(6, writer.getBytesWritten());
+    }
+}
@@ -0,0 +1,235 @@
+package au.org.ala.biocache.stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelZipOutputStreamTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCrc32Combine() {
+        byte[] data = data(100000);
+        CRC32 all = new CRC32();
+        all.update(data);
+        CRC32 first = new CRC32();
+        first.update(data, 0, 12345);
+        CRC32 second = new CRC32();
+        second.update(data, 12345, data.length - 12345);
+
+        assertEquals(all.getValue(), ParallelZipOutputStream.crc32Combine(first.getValue(), second.getValue(), data.length - 12345));
+        assertEquals(first.getValue(), ParallelZipOutputStream.crc32Combine(first.getValue(), 0, 0));
+        assertEquals(second.getValue(), ParallelZipOutputStream.crc32Combine(0, second.getValue(), data.length - 12345));
+    }
+
+    /**
+     * Entries must be readable by both the streaming reader, using the data descriptors, and the central directory.
+     */
+    @Test
+    public void testEntriesRoundTrip() throws Exception {
+        byte[] large = data(1000000);
+        byte[] small = "small entry é".getBytes(StandardCharsets.UTF_8);
+
+        File file = tempDir.newFile("test.zip");
+        try (ParallelZipOutputStream zos = new ParallelZipOutputStream(Files.newOutputStream(file.toPath()), executor, 6, 4, 16 * 1024, false)) {
+            zos.putNextEntry("large.csv");
+            // mix of small and large writes that cross block boundaries
+            int off = 0;
+            Random random = new Random(1);
+            while (off < large.length) {
+                int len = Math.min(large.length - off, random.nextInt(40000));
+                if (len == 1) {
+                    zos.write(large[off]);
+                } else {
+                    zos.write(large, off, len);
+                }
+                off += len;
+            }
+            zos.putNextEntry("empty.txt");
+            zos.putNextEntry("small.txt");
+            zos.write(small, 0, small.length);
+            zos.closeEntry();
+        }
+
+        byte[] zip = Files.readAllBytes(file.toPath());
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            assertEquals("large.csv", zis.getNextEntry().getName());
+            assertArrayEquals(large, read(zis));
+            assertEquals("empty.txt", zis.getNextEntry().getName());
+            assertEquals(0, read(zis).length);
+            assertEquals("small.txt", zis.getNextEntry().getName());
+            assertArrayEquals(small, read(zis));
+        }
+
+        try (ZipFile zipFile = new ZipFile(file)) {
+            assertEquals(3, zipFile.size());
+            ZipEntry entry = zipFile.getEntry("large.csv");
+            assertEquals(large.length, entry.getSize());
+            try (InputStream is = zipFile.getInputStream(entry)) {
+                assertArrayEquals(large, read(is));
+            }
+        }
+    }
+
+    /**
+     * Entries that may exceed 4GB have a Zip64 extra field in the local header to match the 8 byte data descriptor.
+     */
+    @Test
+    public void testZip64LocalHeader() throws Exception {
+        byte[] data = data(100000);
+
+        File file = tempDir.newFile("zip64.zip");
+        try (ParallelZipOutputStream zos = new ParallelZipOutputStream(Files.newOutputStream(file.toPath()), executor, 6, 4, 16 * 1024, true)) {
+            zos.putNextEntry("data.csv");
+            zos.write(data, 0, data.length);
+            zos.closeEntry();
+        }
+
+        ByteBuffer zip = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x04034b50, zip.getInt(0));
+        assertEquals(45, zip.getShort(4));
+        assertEquals(0xFFFFFFFF, zip.getInt(18));
+        assertEquals(0xFFFFFFFF, zip.getInt(22));
+        assertEquals("data.csv".length(), zip.getShort(26));
+        assertEquals(20, zip.getShort(28));
+        assertEquals(0x0001, zip.getShort(30 + 8));
+        assertEquals(16, zip.getShort(32 + 8));
+
+        try (ZipFile zipFile = new ZipFile(file)) {
+            ZipEntry entry = zipFile.getEntry("data.csv");
+            assertEquals(data.length, entry.getSize());
+            // the data descriptor has 8 byte sizes
+            int descriptor = 30 + 8 + 20 + (int) entry.getCompressedSize();
+            assertEquals(0x08074b50, zip.getInt(descriptor));
+            assertEquals(entry.getCompressedSize(), zip.getLong(descriptor + 8));
+            assertEquals(data.length, zip.getLong(descriptor + 16));
+            try (InputStream is = zipFile.getInputStream(entry)) {
+                assertArrayEquals(data, read(is));
+            }
+        }
+    }
+
+    /**
+     * The deflaters of the blocks are reused while the stream is open and ended when it is closed.
+     */
+    @Test
+    public void testDeflatersEndedOnClose() throws Exception {
+        ParallelZipOutputStream zos = new ParallelZipOutputStream(new ByteArrayOutputStream(), executor, 6, 4, 16 * 1024, false);
+        zos.putNextEntry("data.csv");
+        zos.write(data(200000));
+        zos.closeEntry();
+        assertTrue(zos.getIdleDeflaters() > 0);
+        assertTrue(zos.getIdleDeflaters() <= 4);
+
+        zos.close();
+        assertEquals(0, zos.getIdleDeflaters());
+    }
+
+    @Test(expected = IOException.class)
+    public void testStoppedExecutor() throws Exception {
+        executor.shutdownNow();
+        try (ParallelZipOutputStream zos = new ParallelZipOutputStream(new ByteArrayOutputStream(), executor, 6, 4)) {
+            zos.putNextEntry("data.csv");
+            zos.write(1);
+            zos.closeEntry();
+        }
+    }
+
+    /**
+     * The _partN entries of OptionalZipOutputStream are preserved with parallel compression.
+     */
+    @Test
+    public void testOptionalZipOutputStreamParts() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        List<String> lines = new ArrayList<>();
+        try (OptionalZipOutputStream out = new OptionalZipOutputStream(OptionalZipOutputStream.Type.zipped, bytes, 1, 1, executor, 4)) {
+            out.putNextEntry("data.csv");
+            for (int i = 0; i < 50000; i++) {
+                String line = "record " + i + ",some text for the record\n";
+                byte[] b = line.getBytes(StandardCharsets.UTF_8);
+                out.write(b, 0, b.length);
+                lines.add(line);
+                out.isNewFile(null, b.length);
+            }
+            out.closeEntry();
+        }
+
+        List<String> names = new ArrayList<>();
+        StringBuilder content = new StringBuilder();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                names.add(entry.getName());
+                content.append(new String(read(zis), StandardCharsets.UTF_8));
+            }
+        }
+        assertTrue(names.size() > 1);
+        assertEquals("data.csv", names.get(0));
+        assertEquals("data_part2.csv", names.get(1));
+        assertEquals(String.join("", lines), content.toString());
+    }
+
+    private byte[] data(int length) {
+        // compressible but not trivially repetitive
+        byte[] data = new byte[length];
+        Random random = new Random(42);
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return data;
+    }
+
+    private byte[] read(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = is.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
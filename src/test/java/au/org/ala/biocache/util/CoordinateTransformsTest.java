@@ -0,0 +1,43 @@
+package au.org.ala.biocache.util;
+
+import org.geotools.geometry.GeneralDirectPosition;
+import org.junit.Test;
+import org.opengis.geometry.DirectPosition;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class CoordinateTransformsTest {
+
+    private static final double[] POINTS = {
+            149.1, -35.3,
+            -0.1, 51.5,
+            0, 0,
+            -179.9, 85,
+            179.9, -85
+    };
+
+    @Test
+    public void testSameTransformsForSrs() throws Exception {
+        assertSame(CoordinateTransforms.get("EPSG:3857"), CoordinateTransforms.get("EPSG:3857"));
+    }
+
+    /**
+     * the transforms calculated directly and by array match the transform of each point
+     */
+    @Test
+    public void testTransformFrom4326() throws Exception {
+        for (String srs : new String[]{"EPSG:4326", "EPSG:3857", "EPSG:3577"}) {
+            CoordinateTransforms transforms = CoordinateTransforms.get(srs);
+            double[] target = new double[POINTS.length];
+            transforms.transformFrom4326(POINTS, target, POINTS.length / 2);
+
+            for (int i = 0; i < POINTS.length; i += 2) {
+                DirectPosition expected = transforms.getTransformFrom4326().getMathTransform()
+                        .transform(new GeneralDirectPosition(POINTS[i], POINTS[i + 1]), null);
+                assertEquals(srs, expected.getOrdinate(0), target[i], 0.01);
+                assertEquals(srs, expected.getOrdinate(1), target[i + 1], 0.01);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package au.org.ala.biocache.util;
+
+import au.org.ala.biocache.RecordWriter;
+import au.org.ala.biocache.writer.RecordSpool;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadCheckpointTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(Files.createTempDirectory("checkpoint").toFile(), "offline1.checkpoint");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory.getParentFile());
+    }
+
+    /**
+     * A download stopped part way through resumes with the same plan, the complete splits and the checkpointed
+     * progress of the other splits.
+     */
+    @Test
+    public void testResume() throws Exception {
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.open(directory, "key", 0);
+        assertFalse(checkpoint.isResumed());
+        assertNull(checkpoint.getPlan());
+        List<List<String>> plan = Arrays.asList(Arrays.asList("month:01"), Arrays.asList("month:02", "year:2001"));
+        checkpoint.setPlan(plan);
+        checkpoint.setSplits(2);
+
+        List<String> miscFields = new ArrayList<>(Collections.singletonList("_misc"));
+
+        // split 0 is complete
+        RecordSpool spool = checkpoint.openSpool(0);
+        ConcurrentMap<String, AtomicInteger> stats = checkpoint.getUidStats(0);
+        spool.write(new String[]{"0a"});
+        spool.write(new String[]{"0b"});
+        stats.put("dr1", new AtomicInteger(2));
+        spool.flush();
+        checkpoint.page(0, "cursor0", spool, 2, stats, miscFields);
+        spool.close();
+        checkpoint.complete(0);
+
+        // split 1 has one checkpointed page, then a page that is lost
+        spool = checkpoint.openSpool(1);
+        stats = checkpoint.getUidStats(1);
+        spool.write(new String[]{"1a"});
+        stats.put("dr2", new AtomicInteger(1));
+        spool.flush();
+        checkpoint.page(1, "cursor1", spool, 1, stats, miscFields);
+        spool.write(new String[]{"1b"});
+        spool.close();
+
+        // restart
+        checkpoint = DownloadCheckpoint.open(directory, "key", 0);
+        assertTrue(checkpoint.isResumed());
+        assertEquals(plan, checkpoint.getPlan());
+        checkpoint.setSplits(2);
+        assertEquals(Collections.singletonList("_misc"), checkpoint.getMiscFields());
+
+        DownloadCheckpoint.SplitState split0 = checkpoint.getSplit(0);
+        assertTrue(split0.isComplete());
+        assertEquals(2, split0.getRecords());
+        assertEquals(2, checkpoint.getUidStats(0).get("dr1").get());
+        ListWriter writer = new ListWriter();
+        assertEquals(2, checkpoint.replay(0, writer, new AtomicBoolean(false)));
+        assertEquals("0b", writer.records.get(1)[0]);
+
+        DownloadCheckpoint.SplitState split1 = checkpoint.getSplit(1);
+        assertFalse(split1.isComplete());
+        assertEquals("cursor1", split1.getCursorMark());
+        assertEquals(1, split1.getRecords());
+        spool = checkpoint.openSpool(1);
+        spool.write(new String[]{"1c"});
+        spool.flush();
+        checkpoint.page(1, "cursor2", spool, 2, checkpoint.getUidStats(1), miscFields);
+        spool.close();
+        checkpoint.complete(1);
+
+        writer = new ListWriter();
+        assertEquals(2, checkpoint.replay(1, writer, new AtomicBoolean(false)));
+        assertEquals("1a", writer.records.get(0)[0]);
+        assertEquals("1c", writer.records.get(1)[0]);
+    }
+
+    /**
+     * The checkpoint of a changed download is discarded.
+     */
+    @Test
+    public void testChangedKey() throws Exception {
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.open(directory, "key", 0);
+        checkpoint.setPlan(Collections.singletonList(Collections.singletonList("month:01")));
+        checkpoint.setSplits(1);
+        RecordSpool spool = checkpoint.openSpool(0);
+        spool.write(new String[]{"a"});
+        spool.flush();
+        checkpoint.page(0, "cursor", spool, 1, new ConcurrentHashMap<String, AtomicInteger>(), new ArrayList<String>());
+        spool.close();
+
+        checkpoint = DownloadCheckpoint.open(directory, "changed", 0);
+        assertFalse(checkpoint.isResumed());
+        assertNull(checkpoint.getPlan());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    /**
+     * Progress is only saved when the interval has elapsed, a restart continues from the last save.
+     */
+    @Test
+    public void testSaveInterval() throws Exception {
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.open(directory, "key", TimeUnit.HOURS.toMillis(1));
+        checkpoint.setPlan(Collections.singletonList(Collections.<String>emptyList()));
+        checkpoint.setSplits(1);
+        RecordSpool spool = checkpoint.openSpool(0);
+        spool.write(new String[]{"a"});
+        spool.flush();
+        checkpoint.page(0, "cursor", spool, 1, new ConcurrentHashMap<String, AtomicInteger>(), new ArrayList<String>());
+        spool.close();
+
+        checkpoint = DownloadCheckpoint.open(directory, "key", 0);
+        assertTrue(checkpoint.isResumed());
+        checkpoint.setSplits(1);
+        assertNull(checkpoint.getSplit(0).getCursorMark());
+        spool = checkpoint.openSpool(0);
+        assertEquals(0, spool.length());
+        spool.close();
+    }
+
+    /**
+     * A checkpoint that was saved with more records than the spool has, after a crash, is discarded.
+     */
+    @Test
+    public void testShortSpool() throws Exception {
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.open(directory, "key", 0);
+        checkpoint.setPlan(Collections.singletonList(Collections.singletonList("month:01")));
+        checkpoint.setSplits(1);
+        RecordSpool spool = checkpoint.openSpool(0);
+        spool.write(new String[]{"a"});
+        spool.write(new String[]{"b"});
+        spool.flush();
+        checkpoint.page(0, "cursor", spool, 2, new ConcurrentHashMap<String, AtomicInteger>(), new ArrayList<String>());
+        spool.close();
+
+        // lose the end of the spool
+        try (RandomAccessFile raf = new RandomAccessFile(spool.getFile(), "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        checkpoint = DownloadCheckpoint.open(directory, "key", 0);
+        assertFalse(checkpoint.isResumed());
+        assertNull(checkpoint.getPlan());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    private static class ListWriter implements RecordWriter {
+        final List<String[]> records = new ArrayList<>();
+
+        @Override
+        public void write(String[] record) {
+            records.add(record);
+        }
+
+        @Override
+        public void initialise() {
+        }
+
+        @Override
+        public void finalise() {
+        }
+
+        @Override
+        public boolean finalised() {
+            return false;
+        }
+    }
+}
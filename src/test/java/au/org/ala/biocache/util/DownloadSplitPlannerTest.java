@@ -0,0 +1,259 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadSplitPlannerTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private List<Map<String, String>> records;
+
+    /**
+     * 20000 records. Half are in March 2015, 2000 have no month and 1000 have no month, year or lft.
+     */
+    @Before
+    public void setUp() {
+        Random random = new Random(1);
+        records = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            Map<String, String> record = new HashMap<>();
+            record.put("id", UUID.nameUUIDFromBytes(String.valueOf(i).getBytes()).toString());
+            if (i < 10000) {
+                record.put("month", "03");
+                record.put("year", "2015");
+                record.put("lft", String.valueOf(random.nextInt(5000)));
+            } else if (i < 17000) {
+                record.put("month", String.format("%02d", 1 + random.nextInt(12)));
+                record.put("year", String.valueOf(1990 + random.nextInt(30)));
+                record.put("lft", String.valueOf(random.nextInt(5000)));
+            } else if (i < 19000) {
+                record.put("year", String.valueOf(1990 + random.nextInt(30)));
+                record.put("lft", String.valueOf(random.nextInt(5000)));
+            }
+            records.add(record);
+        }
+    }
+
+    @Test
+    public void testSplitsAreBalancedAndCoverAllRecords() throws Exception {
+        DownloadSplitPlanner planner = new DownloadSplitPlanner(new RecordCounts(), 1000, 256);
+        List<DownloadSplitPlanner.Split> splits = planner.plan("month", facet("month", new ArrayList<String>()), records.size());
+
+        assertPartition(splits);
+        long previous = Long.MAX_VALUE;
+        for (DownloadSplitPlanner.Split split : splits) {
+            assertTrue(split + " is larger than the target", split.getCount() <= 1000);
+            assertTrue("largest first", split.getCount() <= previous);
+            previous = split.getCount();
+        }
+        assertTrue(splits.size() < 60);
+    }
+
+    @Test
+    public void testOneSplitForEachMonthWithoutTarget() throws Exception {
+        DownloadSplitPlanner planner = new DownloadSplitPlanner(new RecordCounts(), 0, 256);
+        List<DownloadSplitPlanner.Split> splits = planner.plan("month", facet("month", new ArrayList<String>()), records.size());
+
+        assertPartition(splits);
+        assertEquals(13, splits.size());
+        assertEquals("month:03", splits.get(0).getFilterQueries().get(0));
+    }
+
+    @Test
+    public void testMaxSplits() throws Exception {
+        DownloadSplitPlanner planner = new DownloadSplitPlanner(new RecordCounts(), 100, 20);
+        List<DownloadSplitPlanner.Split> splits = planner.plan("month", facet("month", new ArrayList<String>()), records.size());
+
+        assertPartition(splits);
+        assertTrue(splits.size() <= 20);
+    }
+
+    @Test
+    public void testWithoutFacet() throws Exception {
+        DownloadSplitPlanner planner = new DownloadSplitPlanner(new RecordCounts(), 5000, 256);
+        List<DownloadSplitPlanner.Split> splits = planner.plan("month", new HashMap<String, Long>(), records.size());
+
+        assertPartition(splits);
+        assertTrue(splits.size() > 4);
+    }
+
+    /**
+     * Records indexed after the download was planned, including records with new values of the split fields,
+     * are still in exactly one split.
+     */
+    @Test
+    public void testRecordsAddedAfterPlanningAreCovered() throws Exception {
+        DownloadSplitPlanner planner = new DownloadSplitPlanner(new RecordCounts(), 1000, 256);
+        List<DownloadSplitPlanner.Split> splits = planner.plan("month", facet("month", new ArrayList<String>()), records.size());
+
+        Map<String, String> newYear = new HashMap<>();
+        newYear.put("id", UUID.randomUUID().toString());
+        newYear.put("month", "03");
+        newYear.put("year", "2030");
+        newYear.put("lft", "100");
+        records.add(newYear);
+
+        Map<String, String> newMonth = new HashMap<>();
+        newMonth.put("id", "zz-not-a-uuid");
+        newMonth.put("month", "13");
+        records.add(newMonth);
+
+        Map<String, String> noValues = new HashMap<>();
+        noValues.put("id", UUID.randomUUID().toString());
+        records.add(noValues);
+
+        assertCovered(splits);
+    }
+
+    /**
+     * Each record is in exactly one split and the split counts are the number of records in each split.
+     */
+    private void assertPartition(List<DownloadSplitPlanner.Split> splits) {
+        long total = 0;
+        for (DownloadSplitPlanner.Split split : splits) {
+            assertEquals(split.toString(), split.getCount(), matching(split.getFilterQueries()).size());
+            total += split.getCount();
+        }
+        assertEquals(records.size(), total);
+        assertCovered(splits);
+    }
+
+    /**
+     * Each record is in exactly one split.
+     */
+    private void assertCovered(List<DownloadSplitPlanner.Split> splits) {
+        for (Map<String, String> record : records) {
+            int found = 0;
+            for (DownloadSplitPlanner.Split split : splits) {
+                if (matches(record, split.getFilterQueries())) {
+                    found++;
+                }
+            }
+            assertEquals(record.toString(), 1, found);
+        }
+    }
+
+    private Map<String, Long> facet(String field, List<String> fqs) {
+        Map<String, Long> counts = new TreeMap<>();
+        long missing = 0;
+        for (Map<String, String> record : matching(fqs)) {
+            String value = record.get(field);
+            if (value == null) {
+                missing++;
+            } else {
+                counts.put(value, counts.containsKey(value) ? counts.get(value) + 1 : 1L);
+            }
+        }
+        Map<String, Long> facet = new LinkedHashMap<>(counts);
+        facet.put(null, missing);
+        return facet;
+    }
+
+    private List<Map<String, String>> matching(List<String> fqs) {
+        List<Map<String, String>> matching = new ArrayList<>();
+        for (Map<String, String> record : records) {
+            if (matches(record, fqs)) {
+                matching.add(record);
+            }
+        }
+        return matching;
+    }
+
+    private boolean matches(Map<String, String> record, List<String> fqs) {
+        for (String fq : fqs) {
+            if (!matches(record, fq)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluates the filter queries created by the planner.
+     */
+    private boolean matches(Map<String, String> record, String query) {
+        if ("*:*".equals(query)) {
+            return true;
+        }
+        if (query.startsWith("-(") && query.endsWith(")")) {
+            return !matches(record, query.substring(2, query.length() - 1));
+        }
+        if (query.startsWith("-")) {
+            return !matches(record, query.substring(1));
+        }
+        if (query.contains(" OR ")) {
+            for (String term : query.split(" OR ")) {
+                if (matches(record, term)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String field = query.substring(0, query.indexOf(':'));
+        String term = query.substring(query.indexOf(':') + 1);
+        String value = record.get(field);
+        if (value == null) {
+            return false;
+        }
+        if (term.startsWith("[")) {
+            String[] bounds = term.substring(1, term.length() - 1).split(" TO ");
+            long v = Long.parseLong(value);
+            boolean inclusive = term.endsWith("]");
+            return ("*".equals(bounds[0]) || v >= Long.parseLong(bounds[0]))
+                    && ("*".equals(bounds[1]) || (inclusive ? v <= Long.parseLong(bounds[1]) : v < Long.parseLong(bounds[1])));
+        }
+        if (term.endsWith("*")) {
+            return value.startsWith(term.substring(0, term.length() - 1));
+        }
+        return value.equals(term);
+    }
+
+    private class RecordCounts implements DownloadSplitPlanner.SplitCounts {
+        @Override
+        public Map<String, Long> facet(String field, List<String> fqs) {
+            return DownloadSplitPlannerTest.this.facet(field, fqs);
+        }
+
+        @Override
+        public long[] count(List<String> queries, List<String> fqs) {
+            long[] counts = new long[queries.size()];
+            for (Map<String, String> record : matching(fqs)) {
+                for (int i = 0; i < counts.length; i++) {
+                    if (matches(record, queries.get(i))) {
+                        counts[i]++;
+                    }
+                }
+            }
+            return counts;
+        }
+
+        @Override
+        public long[] range(String field, List<String> fqs) {
+            long[] range = null;
+            for (Map<String, String> record : matching(fqs)) {
+                if (record.get(field) != null) {
+                    long value = Long.parseLong(record.get(field));
+                    range = range == null ? new long[]{value, value} : new long[]{Math.min(range[0], value), Math.max(range[1], value)};
+                }
+            }
+            return range;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ETagUtilsTest {
+
+    @Test
+    public void testMatches() {
+        String eTag = ETagUtils.getETag("abc");
+        assertEquals("\"abc\"", eTag);
+
+        assertTrue(ETagUtils.matches("\"abc\"", eTag));
+        assertTrue(ETagUtils.matches("W/\"abc\"", eTag));
+        assertTrue(ETagUtils.matches("\"xyz\", \"abc\"", eTag));
+        assertTrue(ETagUtils.matches("*", eTag));
+
+        assertFalse(ETagUtils.matches(null, eTag));
+        assertFalse(ETagUtils.matches("\"xyz\"", eTag));
+        assertFalse(ETagUtils.matches("abc", eTag));
+    }
+}
@@ -0,0 +1,119 @@
+package au.org.ala.biocache.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HeatmapStoreTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("heatmapstoretest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    private HeatmapStore newStore(long maxSize) {
+        HeatmapStore store = new HeatmapStore();
+        store.setDirectory(directory.getAbsolutePath());
+        store.setMaxSize(maxSize);
+        store.init();
+        return store;
+    }
+
+    private void put(HeatmapStore store, String name, byte[] bytes) throws IOException {
+        File tmp = store.createTempFile(name);
+        Files.write(tmp.toPath(), bytes);
+        assertTrue(store.put(name, tmp));
+        assertFalse(tmp.exists());
+    }
+
+    private byte[] read(HeatmapStore store, String name) throws IOException {
+        File file = store.get(name);
+        return file == null ? null : Files.readAllBytes(file.toPath());
+    }
+
+    /**
+     * the least recently used images are evicted to keep the size below the max
+     */
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        HeatmapStore store = newStore(300);
+        put(store, "a_hm.png", new byte[100]);
+        put(store, "b_hm.png", new byte[100]);
+        put(store, "legend_a_hm.png", new byte[100]);
+        store.get("a_hm.png");
+        put(store, "c_hm.png", new byte[100]);
+
+        assertNull(store.get("b_hm.png"));
+        assertFalse(new File(directory, "b_hm.png").exists());
+        assertEquals(100, read(store, "a_hm.png").length);
+        assertEquals(100, read(store, "legend_a_hm.png").length);
+        assertEquals(100, read(store, "c_hm.png").length);
+        assertEquals(300, store.getSize());
+
+        // larger than the max, kept until the next image is added
+        put(store, "d_hm.png", new byte[301]);
+        assertEquals(301, read(store, "d_hm.png").length);
+        put(store, "e_hm.png", new byte[10]);
+        assertNull(store.get("d_hm.png"));
+        assertEquals(10, store.getSize());
+    }
+
+    @Test
+    public void testIndexVersion() throws Exception {
+        HeatmapStore store = newStore(1000);
+        store.setIndexVersion(1L);
+        put(store, "a_hm.png", new byte[10]);
+        store.setIndexVersion(null);
+        store.setIndexVersion(1L);
+        assertEquals(10, read(store, "a_hm.png").length);
+
+        store.setIndexVersion(2L);
+        assertNull(store.get("a_hm.png"));
+        assertFalse(new File(directory, "a_hm.png").exists());
+        assertEquals(0, store.getSize());
+    }
+
+    /**
+     * the images are kept after a restart, and incomplete images are deleted
+     */
+    @Test
+    public void testRestart() throws Exception {
+        HeatmapStore store = newStore(1000);
+        byte[] image = {1, 2, 3};
+        put(store, "a_hm.png", image);
+        File incomplete = store.createTempFile("b_hm.png");
+
+        store = newStore(1000);
+        assertArrayEquals(image, read(store, "a_hm.png"));
+        assertEquals(3, store.getSize());
+        assertFalse(incomplete.exists());
+
+        store.empty();
+        assertNull(store.get("a_hm.png"));
+        assertEquals(0, newStore(1000).getSize());
+    }
+}
@@ -0,0 +1,121 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LayerSamplerTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private static final String URL = "http://localhost/layers";
+
+    /**
+     * Responds with value layer:longitude:latitude and records the requests.
+     */
+    private static class StubSampleSource implements LayerSampler.SampleSource {
+        final List<String[]> layerRequests = new ArrayList<>();
+        final List<double[][]> pointRequests = new ArrayList<>();
+
+        @Override
+        public Reader sample(String layersServiceUrl, String[] layers, double[][] points) throws IOException {
+            layerRequests.add(layers);
+            pointRequests.add(points);
+            StringBuilder csv = new StringBuilder("longitude,latitude");
+            for (String layer : layers) {
+                csv.append(',').append(layer);
+            }
+            csv.append('\n');
+            for (double[] point : points) {
+                csv.append(point[0]).append(',').append(point[1]);
+                for (String layer : layers) {
+                    csv.append(",\"").append(layer).append(':').append(point[0]).append(':').append(point[1]).append('"');
+                }
+                csv.append('\n');
+            }
+            return new StringReader(csv.toString());
+        }
+    }
+
+    @Test
+    public void testRepeatedCoordinatesAreSampledOnce() throws Exception {
+        StubSampleSource source = new StubSampleSource();
+        LayerSampler sampler = new LayerSampler(source, 1000, 2);
+
+        double[][] points = new double[][]{{149.111, -35.221}, {0, 0}, {149.112, -35.219}, {150.5, -33.25}};
+        boolean[] valid = new boolean[]{true, false, true, true};
+        String[] layers = new String[]{"el1", "cl2"};
+
+        List<String[]> intersection = sampler.sample(URL, layers, points, valid);
+        assertEquals(5, intersection.size());
+        assertArrayEquals(new String[]{"longitude", "latitude", "el1", "cl2"}, intersection.get(0));
+        assertArrayEquals(new String[]{"149.111", "-35.221", "el1:149.11:-35.22", "cl2:149.11:-35.22"}, intersection.get(1));
+        assertArrayEquals(new String[]{"", "", "", ""}, intersection.get(2));
+        assertArrayEquals(new String[]{"149.112", "-35.219", "el1:149.11:-35.22", "cl2:149.11:-35.22"}, intersection.get(3));
+        assertArrayEquals(new String[]{"150.5", "-33.25", "el1:150.5:-33.25", "cl2:150.5:-33.25"}, intersection.get(4));
+
+        // the two records in the same rounded cell are sampled once, the record without a coordinate is not sampled
+        assertEquals(1, source.pointRequests.size());
+        assertEquals(2, source.pointRequests.get(0).length);
+        assertEquals(4, sampler.size());
+
+        // a later page only samples the new coordinate and the new layer
+        intersection = sampler.sample(URL, new String[]{"el1", "el3"}, new double[][]{{150.5, -33.25}, {151, -34}}, new boolean[]{true, true});
+        assertArrayEquals(new String[]{"150.5", "-33.25", "el1:150.5:-33.25", "el3:150.5:-33.25"}, intersection.get(1));
+        assertArrayEquals(new String[]{"151.0", "-34.0", "el1:151.0:-34.0", "el3:151.0:-34.0"}, intersection.get(2));
+        assertEquals(2, source.pointRequests.size());
+        assertArrayEquals(new String[]{"el1", "el3"}, source.layerRequests.get(1));
+        assertEquals(2, source.pointRequests.get(1).length);
+
+        // everything cached
+        sampler.sample(URL, layers, points, valid);
+        assertEquals(2, source.pointRequests.size());
+    }
+
+    @Test
+    public void testCacheIsBounded() throws Exception {
+        StubSampleSource source = new StubSampleSource();
+        LayerSampler sampler = new LayerSampler(source, 160, 4);
+
+        double[][] points = new double[1000][2];
+        boolean[] valid = new boolean[points.length];
+        for (int i = 0; i < points.length; i++) {
+            points[i][0] = 140 + i * 0.001;
+            points[i][1] = -30 - i * 0.001;
+            valid[i] = true;
+        }
+        List<String[]> intersection = sampler.sample(URL, new String[]{"el1"}, points, valid);
+        assertEquals(points.length + 1, intersection.size());
+        assertEquals("el1:140.999:-30.999", intersection.get(points.length)[2]);
+        assertTrue(sampler.size() <= 160);
+    }
+
+    /**
+     * A pooled client is only reused after its response has been read and closed.
+     */
+    @Test
+    public void testReleasedOnClose() throws Exception {
+        Queue<String> pool = new ArrayBlockingQueue<>(2);
+        Reader reader = LayerSampler.releaseOnClose(new StringReader("longitude,latitude\n"), pool, "client");
+        assertTrue(pool.isEmpty());
+        assertEquals('l', reader.read());
+        reader.close();
+        assertEquals(1, pool.size());
+        reader.close();
+        assertEquals(1, pool.size());
+    }
+}
@@ -0,0 +1,68 @@
+package au.org.ala.biocache.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LruFileCacheTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("lrufilecachetest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void testSubdirectories() throws Exception {
+        LruFileCache cache = new LruFileCache(directory, 2, 1000);
+        assertTrue(cache.put("abcdef.png", new byte[10]));
+
+        assertEquals(new File(new File(directory, "ab"), "abcdef.png"), cache.getFile("abcdef.png"));
+        assertTrue(cache.getFile("abcdef.png").isFile());
+        assertTrue(cache.contains("abcdef.png"));
+        assertEquals(10, cache.getSize());
+    }
+
+    /**
+     * the files found on startup are evicted in the order in which they were last modified
+     */
+    @Test
+    public void testLoad() throws Exception {
+        LruFileCache cache = new LruFileCache(directory, 0, 1000);
+        cache.put("a.png", new byte[100]);
+        cache.put("b.png", new byte[100]);
+        assertTrue(cache.getFile("a.png").setLastModified(System.currentTimeMillis() + 60000));
+        File incomplete = cache.createTempFile("c.png");
+
+        cache = new LruFileCache(directory, 0, 200);
+        assertEquals(2, cache.load());
+        assertFalse(incomplete.exists());
+        assertEquals(200, cache.getSize());
+
+        cache.put("d.png", new byte[100]);
+        assertFalse(cache.contains("b.png"));
+        assertFalse(cache.getFile("b.png").exists());
+        assertTrue(cache.contains("a.png"));
+        assertEquals(200, cache.getSize());
+    }
+}
@@ -0,0 +1,71 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PointParserTest {
+
+    private void assertSame(String s) {
+        float expectedFloat;
+        double expectedDouble;
+        try {
+            expectedFloat = Float.parseFloat(s);
+            expectedDouble = Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            expectedFloat = Float.NaN;
+            expectedDouble = Double.NaN;
+        }
+        String padded = "x" + s + "y";
+        assertEquals(s, Float.floatToIntBits(expectedFloat), Float.floatToIntBits(PointParser.parseFloat(padded, 1, s.length() + 1)));
+        assertEquals(s, Double.doubleToLongBits(expectedDouble), Double.doubleToLongBits(PointParser.parseDouble(padded, 1, s.length() + 1)));
+    }
+
+    @Test
+    public void testParseFloat() {
+        String[] values = {"0", "-0", "1", "-35.12", "149.04", "180", "-180.0", ".5", "5.", "+2.25", "1e3", "-1.5E-2",
+                " 1.5", "0.0000001234", "-35.12345678901234567890", "123456789012345678", "", "-", ".", "1.2.3",
+                "abc", "NaN", "1,2", "0.1000000000000000055511151231257827"};
+        for (String value : values) {
+            assertSame(value);
+        }
+    }
+
+    /**
+     * the values are the same as Float.parseFloat for random coordinates, including the decimals
+     * halfway between two floats
+     */
+    @Test
+    public void testParseRandom() {
+        Random random = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            double d = (random.nextDouble() - 0.5) * 360;
+            assertSame(new BigDecimal(d).setScale(random.nextInt(16), BigDecimal.ROUND_HALF_UP).toPlainString());
+        }
+        for (int i = 0; i < 10000; i++) {
+            //halfway between two floats
+            float f = random.nextFloat() * 180;
+            BigDecimal half = new BigDecimal(f).add(new BigDecimal(Math.ulp(f)).divide(BigDecimal.valueOf(2)));
+            assertSame(half.toPlainString());
+            assertSame(half.round(new java.math.MathContext(15)).toPlainString());
+        }
+    }
+
+    @Test
+    public void testParseLatLng() {
+        float[] points = new float[4];
+        assertTrue(PointParser.parseLatLng("-35.12,149.04", points, 2));
+        assertEquals(149.04f, points[2], 0);
+        assertEquals(-35.12f, points[3], 0);
+
+        assertFalse(PointParser.parseLatLng("-35.12", points, 0));
+        assertTrue(Float.isNaN(points[0]));
+        assertFalse(PointParser.parseLatLng(null, points, 0));
+        assertFalse(PointParser.parseLatLng("a,b", points, 0));
+    }
+}
@@ -0,0 +1,96 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compare points stamped with sprites to points drawn with Graphics2D.
+ */
+public class PointSpriteTest {
+
+    private static final int WIDTH = 256;
+    private static final int HEIGHT = 256;
+
+    private void drawGraphics(BufferedImage img, int[][] points, int[] colours, int size, Color outline) {
+        Graphics2D g = (Graphics2D) img.getGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        int pointWidth = size * 2 + 1;
+        for (int i = 0; i < points.length; i++) {
+            Paint fill = new Color(colours[i], true);
+            g.setPaint(fill);
+            g.fillOval(points[i][0] - size, points[i][1] - size, pointWidth, pointWidth);
+            if (outline != null) {
+                g.setPaint(outline);
+                g.drawOval(points[i][0] - size, points[i][1] - size, pointWidth, pointWidth);
+            }
+        }
+        g.dispose();
+    }
+
+    private void drawSprites(BufferedImage img, int[][] points, int[] colours, int size, Color outline) {
+        int[] pixels = PointSprite.getPixels(img);
+        int pointWidth = size * 2 + 1;
+        for (int i = 0; i < points.length; i++) {
+            PointSprite.get(pointWidth, colours[i], outline)
+                    .stamp(pixels, WIDTH, HEIGHT, points[i][0] - size, points[i][1] - size);
+        }
+    }
+
+    /**
+     * @return the largest difference of a channel of a pixel
+     */
+    private int compare(int size, Color outline, int alpha) {
+        Random random = new Random(size);
+        int[][] points = new int[2000][];
+        int[] colours = new int[points.length];
+        int[] palette = {0xff0000, 0x00ff00, 0x3366cc, 0xffff00};
+        for (int i = 0; i < points.length; i++) {
+            //include points off the edges of the image
+            points[i] = new int[]{random.nextInt(WIDTH + 20) - 10, random.nextInt(HEIGHT + 20) - 10};
+            colours[i] = palette[random.nextInt(palette.length)] | (alpha << 24);
+        }
+
+        BufferedImage expected = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage actual = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        drawGraphics(expected, points, colours, size, outline);
+        drawSprites(actual, points, colours, size, outline);
+
+        int max = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                for (int shift = 0; shift < 32; shift += 8) {
+                    max = Math.max(max, Math.abs(((e >> shift) & 0xff) - ((a >> shift) & 0xff)));
+                }
+            }
+        }
+        return max;
+    }
+
+    /**
+     * the pixels differ by the rounding of the alpha blending
+     */
+    @Test
+    public void testSameAsGraphics() {
+        for (int size : new int[]{1, 4, 10}) {
+            assertTrue("size " + size, compare(size, null, 204) <= 8);
+            assertTrue("size " + size + " outline", compare(size, Color.BLACK, 204) <= 8);
+            assertTrue("size " + size + " opaque", compare(size, Color.BLACK, 255) <= 8);
+        }
+    }
+
+    @Test
+    public void testStampOpaque() {
+        BufferedImage img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        PointSprite.get(9, 0xffff0000, null).stamp(PointSprite.getPixels(img), WIDTH, HEIGHT, 10, 10);
+        assertEquals(0xffff0000, img.getRGB(14, 14));
+        assertEquals(0, img.getRGB(30, 30));
+    }
+}
@@ -0,0 +1,230 @@
+package au.org.ala.biocache.util;
+
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.stream.OptionalZipOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SharedDownloadExecutionsTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private SharedDownloadExecutions sharedDownloads;
+    private ExecutorService executor;
+
+    private final AtomicInteger queries = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        sharedDownloads = new SharedDownloadExecutions();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A download that starts before an identical download writes its records is written with them instead of querying.
+     */
+    @Test
+    public void testIdenticalDownloadsShareOneQuery() throws Exception {
+        DownloadDetailsDTO first = new DownloadDetailsDTO();
+        DownloadDetailsDTO second = new DownloadDetailsDTO();
+
+        Future<Map<String, byte[]>> firstOutput = download("key", first, "first.csv", new WaitingRecords(second, false));
+        waitForQuery(first);
+        Future<Map<String, byte[]>> secondOutput = download("key", second, "second.csv", new WaitingRecords(null, false));
+
+        Map<String, byte[]> firstEntries = firstOutput.get();
+        Map<String, byte[]> secondEntries = secondOutput.get();
+        assertEquals(1, queries.get());
+
+        // the records are renamed for each download, including the _partN entries
+        assertEquals("[first.csv, first_part2.csv]", firstEntries.keySet().toString());
+        assertEquals("[second.csv, second_part2.csv]", secondEntries.keySet().toString());
+        assertArrayEquals(firstEntries.get("first.csv"), secondEntries.get("second.csv"));
+        assertArrayEquals("part2\n".getBytes(StandardCharsets.UTF_8), secondEntries.get("second_part2.csv"));
+
+        assertEquals(2, second.getTotalRecords());
+        assertEquals(2, second.getRecordsDownloaded().get());
+        assertEquals(0, sharedDownloads.getRunning());
+    }
+
+    /**
+     * A download that starts after an identical download has written records runs its own query.
+     */
+    @Test
+    public void testDownloadAfterRecordsAreWrittenRunsItsOwnQuery() throws Exception {
+        DownloadDetailsDTO first = new DownloadDetailsDTO();
+        final CountDownLatch written = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+
+        Future<Map<String, byte[]>> firstOutput = download("key", first, "first.csv", new SharedDownloadExecutions.Records() {
+            @Override
+            public ConcurrentMap<String, AtomicInteger> write(OptionalZipOutputStream out, DownloadDetailsDTO dd) throws Exception {
+                queries.incrementAndGet();
+                out.write("part1\n".getBytes(StandardCharsets.UTF_8));
+                written.countDown();
+                finish.await();
+                ConcurrentMap<String, AtomicInteger> uidStats = new ConcurrentHashMap<>();
+                uidStats.put("dr1", new AtomicInteger(1));
+                return uidStats;
+            }
+        });
+        written.await();
+        Map<String, byte[]> secondEntries = download("key", new DownloadDetailsDTO(), "second.csv", new WaitingRecords(null, false)).get();
+        finish.countDown();
+
+        assertEquals("[first.csv]", firstOutput.get().keySet().toString());
+        assertEquals("[second.csv, second_part2.csv]", secondEntries.keySet().toString());
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    public void testDifferentDownloadsDoNotShare() throws Exception {
+        DownloadDetailsDTO first = new DownloadDetailsDTO();
+        Future<Map<String, byte[]>> firstOutput = download("key", first, "first.csv", new WaitingRecords(null, false));
+        Future<Map<String, byte[]>> secondOutput = download("other", new DownloadDetailsDTO(), "second.csv", new WaitingRecords(null, false));
+        firstOutput.get();
+        secondOutput.get();
+        assertEquals(2, queries.get());
+    }
+
+    /**
+     * When the query fails, the waiting download runs it again and the failure is thrown by the download that ran it.
+     */
+    @Test
+    public void testFailedQueryIsRunAgain() throws Exception {
+        DownloadDetailsDTO first = new DownloadDetailsDTO();
+        DownloadDetailsDTO second = new DownloadDetailsDTO();
+
+        Future<Map<String, byte[]>> firstOutput = download("key", first, "first.csv", new WaitingRecords(second, true));
+        waitForQuery(first);
+        Future<Map<String, byte[]>> secondOutput = download("key", second, "second.csv", new WaitingRecords(null, false));
+
+        try {
+            firstOutput.get();
+            fail("expected the query failure");
+        } catch (Exception e) {
+            assertEquals("solr unavailable", e.getCause().getMessage());
+        }
+        assertTrue(secondOutput.get().containsKey("second.csv"));
+        assertEquals(2, queries.get());
+    }
+
+    /**
+     * A cancelled download that is waiting for an identical download returns without records.
+     */
+    @Test
+    public void testCancelledWhileWaiting() throws Exception {
+        DownloadDetailsDTO first = new DownloadDetailsDTO();
+        DownloadDetailsDTO second = new DownloadDetailsDTO();
+
+        Future<Map<String, byte[]>> firstOutput = download("key", first, "first.csv", new WaitingRecords(second, false));
+        waitForQuery(first);
+        second.interrupt();
+        assertNull(sharedDownloads.write("key", second, zip(new ByteArrayOutputStream()), "second.csv", new WaitingRecords(null, false)));
+        // let the first download finish
+        second.setTotalRecords(2);
+        firstOutput.get();
+        assertEquals(1, queries.get());
+    }
+
+    private void waitForQuery(DownloadDetailsDTO dd) throws InterruptedException {
+        while (dd.getTotalRecords() == 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    private Future<Map<String, byte[]>> download(final String key, final DownloadDetailsDTO dd, final String entry,
+                                                 final SharedDownloadExecutions.Records records) {
+        return executor.submit(new Callable<Map<String, byte[]>>() {
+            @Override
+            public Map<String, byte[]> call() throws Exception {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (OptionalZipOutputStream out = zip(bytes)) {
+                    assertTrue(sharedDownloads.write(key, dd, out, entry, records).containsKey("dr1"));
+                }
+                Map<String, byte[]> entries = new LinkedHashMap<>();
+                try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                    ZipEntry zipEntry;
+                    while ((zipEntry = zis.getNextEntry()) != null) {
+                        entries.put(zipEntry.getName(), IOUtils.toByteArray(zis));
+                    }
+                }
+                return entries;
+            }
+        });
+    }
+
+    private static OptionalZipOutputStream zip(ByteArrayOutputStream bytes) {
+        return new OptionalZipOutputStream(OptionalZipOutputStream.Type.zipped, bytes, 1);
+    }
+
+    /**
+     * Writes two records, in two entries, after an identical download has started waiting for them.
+     */
+    private class WaitingRecords implements SharedDownloadExecutions.Records {
+        final DownloadDetailsDTO waiting;
+        final boolean fail;
+
+        WaitingRecords(DownloadDetailsDTO waiting, boolean fail) {
+            this.waiting = waiting;
+            this.fail = fail;
+        }
+
+        @Override
+        public ConcurrentMap<String, AtomicInteger> write(OptionalZipOutputStream out, DownloadDetailsDTO dd) throws Exception {
+            queries.incrementAndGet();
+            dd.setTotalRecords(2);
+            // the waiting download reports the progress of this download once it is attached
+            while (waiting != null && waiting.getTotalRecords() == 0) {
+                Thread.sleep(10);
+            }
+            if (fail) {
+                throw new IOException("solr unavailable");
+            }
+            out.write("part1\n".getBytes(StandardCharsets.UTF_8));
+            dd.updateCounts(1);
+            // start the next part
+            out.isNewFile(null, 2 * 1024 * 1024);
+            out.write("part2\n".getBytes(StandardCharsets.UTF_8));
+            dd.updateCounts(1);
+
+            ConcurrentMap<String, AtomicInteger> uidStats = new ConcurrentHashMap<>();
+            uidStats.put("dr1", new AtomicInteger(2));
+            return uidStats;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Decode the protobuf of encoded tiles.
+ */
+public class VectorTileEncoderTest {
+
+    private static class Reader {
+        final byte[] bytes;
+        int position;
+        final int end;
+
+        Reader(byte[] bytes, int start, int end) {
+            this.bytes = bytes;
+            this.position = start;
+            this.end = end;
+        }
+
+        boolean hasNext() {
+            return position < end;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        Reader message() {
+            int length = (int) varint();
+            Reader reader = new Reader(bytes, position, position + length);
+            position += length;
+            return reader;
+        }
+
+        String string() {
+            Reader reader = message();
+            return new String(bytes, reader.position, reader.end - reader.position, StandardCharsets.UTF_8);
+        }
+
+        int[] packed() {
+            Reader reader = message();
+            List<Integer> values = new ArrayList<Integer>();
+            while (reader.hasNext()) {
+                values.add((int) reader.varint());
+            }
+            int[] result = new int[values.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = values.get(i);
+            }
+            return result;
+        }
+    }
+
+    @Test
+    public void testEncode() {
+        VectorTileEncoder encoder = new VectorTileEncoder("occurrences", 4096);
+        int count = encoder.key("count");
+        int colour = encoder.key("colour");
+        encoder.addPoint(10, 20, count, encoder.value(3), colour, encoder.value("ff0000"));
+        encoder.addPoint(-5, 4100, count, encoder.value(3));
+        encoder.addPoint(0, 0);
+        assertEquals(3, encoder.getFeatureCount());
+
+        byte[] tile = encoder.encode();
+        Reader reader = new Reader(tile, 0, tile.length);
+        assertEquals((3 << 3) | 2, reader.varint());
+        Reader layer = reader.message();
+        assertFalse(reader.hasNext());
+
+        String name = null;
+        long version = 0;
+        long extent = 0;
+        List<String> keys = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        List<int[]> tags = new ArrayList<int[]>();
+        List<int[]> geometries = new ArrayList<int[]>();
+        while (layer.hasNext()) {
+            long tag = layer.varint();
+            switch ((int) (tag >> 3)) {
+                case 1:
+                    name = layer.string();
+                    break;
+                case 2:
+                    Reader feature = layer.message();
+                    int[] featureTags = new int[0];
+                    while (feature.hasNext()) {
+                        long field = feature.varint() >> 3;
+                        if (field == 2) {
+                            featureTags = feature.packed();
+                        } else if (field == 3) {
+                            assertEquals(1, feature.varint());
+                        } else if (field == 4) {
+                            geometries.add(feature.packed());
+                        }
+                    }
+                    tags.add(featureTags);
+                    break;
+                case 3:
+                    keys.add(layer.string());
+                    break;
+                case 4:
+                    Reader value = layer.message();
+                    long valueTag = value.varint();
+                    values.add((valueTag >> 3) == 1 ? value.string() : String.valueOf(value.varint()));
+                    break;
+                case 5:
+                    extent = layer.varint();
+                    break;
+                case 15:
+                    version = layer.varint();
+                    break;
+                default:
+                    throw new AssertionError("unexpected field " + tag);
+            }
+        }
+
+        assertEquals("occurrences", name);
+        assertEquals(2, version);
+        assertEquals(4096, extent);
+        assertEquals(2, keys.size());
+        assertEquals("count", keys.get(0));
+        assertEquals("colour", keys.get(1));
+        assertEquals(2, values.size());
+        assertEquals("3", values.get(0));
+        assertEquals("ff0000", values.get(1));
+
+        assertArrayEquals(new int[]{0, 0, 1, 1}, tags.get(0));
+        assertArrayEquals(new int[]{0, 0}, tags.get(1));
+        assertArrayEquals(new int[0], tags.get(2));
+
+        //MoveTo with zig-zag coordinates
+        assertArrayEquals(new int[]{9, 20, 40}, geometries.get(0));
+        assertArrayEquals(new int[]{9, 9, 8200}, geometries.get(1));
+        assertArrayEquals(new int[]{9, 0, 0}, geometries.get(2));
+    }
+}
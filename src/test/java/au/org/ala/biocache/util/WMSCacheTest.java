@@ -14,7 +14,10 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -179,6 +182,101 @@ public class WMSCacheTest {
         assertTrue(invalid == 0);
     }
 
+    /**
+     * test a scan of tiles used once does not evict the tiles that are used often
+     */
+    @Test
+    public void testEvictionKeepsFrequentTiles() {
+        wmsCache.setMaxCacheSize(16 * 20000);
+        wmsCache.setMaxCacheAge(Integer.MAX_VALUE);
+
+        WMSTile hot = getDefaultWMSCacheObject("hot", 50, true);
+        assertTrue(wmsCache.put(hot.getQuery(), hot.getColourmode(), PointType.POINT_1, hot));
+        for (int i = 0; i < 100; i++) {
+            assertSame(hot, wmsCache.get(hot.getQuery(), hot.getColourmode(), PointType.POINT_1));
+        }
+
+        for (int i = 0; i < 5000; i++) {
+            WMSTile wco = getDefaultWMSCacheObject("scan" + i, 50, true);
+            wmsCache.put(wco.getQuery(), wco.getColourmode(), PointType.POINT_1, wco);
+            assertTrue(wmsCache.getSize() <= wmsCache.getMaxCacheSize());
+        }
+
+        assertSame(hot, wmsCache.getTest(hot.getQuery(), hot.getColourmode(), PointType.POINT_1));
+        assertTrue(wmsCache.getEvictionCount() > 4000);
+        assertEquals(100, wmsCache.getHitCount());
+    }
+
+    /**
+     * test the size of the cache is the sum of the sizes of the cached tiles, and a tile that is too large is not cached
+     */
+    @Test
+    public void testSize() {
+        initCache();
+
+        WMSTile small = getDefaultWMSCacheObject("small", 100, false);
+        WMSTile large = getDefaultWMSCacheObject("large", 200, false);
+        assertEquals(WMSTile.arraySize(200, 4) - WMSTile.arraySize(100, 4), large.getSize() - small.getSize());
+
+        wmsCache.put(small.getQuery(), small.getColourmode(), PointType.POINT_1, small);
+        wmsCache.put(large.getQuery(), large.getColourmode(), PointType.POINT_1, large);
+        assertEquals(small.getSize() + large.getSize(), wmsCache.getSize());
+
+        WMSTile tooLarge = getDefaultWMSCacheObject("tooLarge", 200000, false);
+        assertTrue(tooLarge.getSize() > wmsCache.getMaxCacheSize());
+        assertFalse(wmsCache.put(tooLarge.getQuery(), tooLarge.getColourmode(), PointType.POINT_1, tooLarge));
+
+        wmsCache.remove(small.getQuery(), small.getColourmode(), PointType.POINT_1);
+        assertEquals(large.getSize(), wmsCache.getSize());
+        wmsCache.empty();
+        assertEquals(0, wmsCache.getSize());
+    }
+
+    /**
+     * test a tile larger than the share of its segment, but smaller than the cache, is cached and evicts other tiles
+     */
+    @Test
+    public void testTileLargerThanSegment() {
+        initCache();
+
+        List<WMSTile> small = new ArrayList<WMSTile>();
+        for (int i = 0; i < 2000; i++) {
+            WMSTile wco = getDefaultWMSCacheObject("small" + i, 50, true);
+            wmsCache.put(wco.getQuery(), wco.getColourmode(), PointType.POINT_1, wco);
+            small.add(wco);
+        }
+
+        WMSTile large = getDefaultWMSCacheObject("large", 50000, true);
+        assertTrue(large.getSize() > wmsCache.getMaxCacheSize() / 16);
+        assertTrue(large.getSize() < wmsCache.getMaxCacheSize());
+
+        assertTrue(wmsCache.put(large.getQuery(), large.getColourmode(), PointType.POINT_1, large));
+        assertTrue(large.getCached());
+        assertSame(large, wmsCache.getTest(large.getQuery(), large.getColourmode(), PointType.POINT_1));
+        assertTrue(wmsCache.getSize() <= wmsCache.getMaxCacheSize());
+
+        // the cache stays within the max size as the other segments fill again
+        for (WMSTile wco : small) {
+            wmsCache.put(wco.getQuery(), wco.getColourmode(), PointType.POINT_1, wco);
+            assertTrue(wmsCache.getSize() <= wmsCache.getMaxCacheSize());
+        }
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        initCache();
+
+        WMSTile placeholder = wmsCache.get("q", "colourmode", PointType.POINT_1);
+        assertFalse(placeholder.getCached());
+        assertSame(placeholder, wmsCache.get("q", "colourmode", PointType.POINT_1));
+        assertEquals(2, wmsCache.getMissCount());
+
+        WMSTile wco = getDefaultWMSCacheObject("q", 50, true);
+        wmsCache.put("q", "colourmode", PointType.POINT_1, wco);
+        assertSame(wco, wmsCache.get("q", "colourmode", PointType.POINT_1));
+        assertEquals(1, wmsCache.getHitCount());
+    }
+
     WMSTile getDefaultWMSCacheObject(String name, int points, boolean counts) {
         double[] defaultBbox = {1, 2, 3, 4};
 
@@ -0,0 +1,139 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class WMSCountCacheTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private Callable<Integer> loader(final AtomicInteger loads, final Integer count) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                loads.incrementAndGet();
+                return count;
+            }
+        };
+    }
+
+    /**
+     * concurrent requests for the same count load it once
+     */
+    @Test
+    public void testSingleLoad() throws Exception {
+        final WMSCountCache cache = new WMSCountCache();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Integer> slowLoader = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                loads.incrementAndGet();
+                started.countDown();
+                release.await();
+                return 42;
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return cache.get("q", 1L, slowLoader);
+                    }
+                }));
+            }
+            started.await();
+            //let the other requests reach the cache
+            Thread.sleep(200);
+            release.countDown();
+
+            for (Future<Integer> result : results) {
+                assertEquals(Integer.valueOf(42), result.get());
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testIndexVersion() throws Exception {
+        WMSCountCache cache = new WMSCountCache();
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("q", 1L, loader(loads, 1));
+        assertEquals(Integer.valueOf(1), cache.get("q", 1L, loader(loads, 2)));
+        assertEquals(Integer.valueOf(1), cache.get("q", null, loader(loads, 2)));
+        assertEquals(1, loads.get());
+
+        //a new index version removes the counts
+        assertEquals(Integer.valueOf(3), cache.get("q", 2L, loader(loads, 3)));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testEvictAndExpire() throws Exception {
+        WMSCountCache cache = new WMSCountCache();
+        cache.setMaxSize(2);
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("a", 1L, loader(loads, 1));
+        cache.get("b", 1L, loader(loads, 2));
+        cache.get("a", 1L, loader(loads, 1));
+        cache.get("c", 1L, loader(loads, 3));
+        assertEquals(2, cache.size());
+        assertEquals(3, loads.get());
+
+        //b was least recently used
+        cache.get("a", 1L, loader(loads, 1));
+        assertEquals(3, loads.get());
+        cache.get("b", 1L, loader(loads, 2));
+        assertEquals(4, loads.get());
+
+        cache.setMaxAge(1);
+        Thread.sleep(5);
+        cache.get("b", 1L, loader(loads, 2));
+        assertEquals(5, loads.get());
+    }
+
+    @Test
+    public void testFailuresNotCached() throws Exception {
+        WMSCountCache cache = new WMSCountCache();
+        AtomicInteger loads = new AtomicInteger();
+        assertNull(cache.get("q", 1L, loader(loads, null)));
+        assertEquals(0, cache.size());
+
+        try {
+            cache.get("q", 1L, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    throw new IllegalStateException("solr");
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("solr", e.getMessage());
+        }
+        assertEquals(0, cache.size());
+        assertEquals(Integer.valueOf(5), cache.get("q", 1L, loader(loads, 5)));
+    }
+}
@@ -0,0 +1,168 @@
+package au.org.ala.biocache.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WMSTileColumnsTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("wmstilecolumnstest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    private WMSTile newTile() {
+        ArrayList<float[]> points = new ArrayList<float[]>();
+        points.add(new float[]{1, 2, 3, 4});
+        points.add(null);
+        points.add(new float[]{5, 6});
+        ArrayList<int[]> counts = new ArrayList<int[]>();
+        counts.add(new int[]{10, 20});
+        counts.add(null);
+        counts.add(new int[]{30});
+        List<Integer> colours = Arrays.asList(0xff000001, 0xff000002, 0xff000003);
+        return new WMSTile("q", "-1", points, counts, colours, new double[]{0, 0, 10, 10});
+    }
+
+    @Test
+    public void testPack() throws Exception {
+        for (WMSTileColumns.Storage storage : WMSTileColumns.Storage.values()) {
+            WMSTile tile = newTile();
+            long listSize = tile.getSize();
+            tile.pack(storage, directory);
+            assertTrue(tile.hasPoints());
+
+            WMSTileColumns columns = tile.getColumns();
+            assertEquals(storage, columns.getStorage());
+            assertEquals(3, columns.getGroupCount());
+            assertEquals(0, columns.getPointCount(1));
+            assertEquals(2, columns.getStart(2));
+            assertEquals(3, columns.getEnd(2));
+            assertEquals(5f, columns.getLongitude(2), 0);
+            assertEquals(6f, columns.getLatitude(2), 0);
+            assertEquals(30, columns.getCount(2));
+            assertEquals(0xff000002, columns.getColour(1));
+
+            // the lists are copied from the columns
+            assertArrayEquals(new float[]{1, 2, 3, 4}, tile.getPoints().get(0), 0);
+            assertArrayEquals(new int[]{10, 20}, tile.getCounts().get(0));
+            assertEquals(Integer.valueOf(0xff000003), tile.getColours().get(2));
+
+            if (storage == WMSTileColumns.Storage.HEAP) {
+                assertEquals(0, columns.getOffHeapSize());
+                assertTrue(tile.getSize() < listSize);
+            } else {
+                assertEquals(3 * 2 * 4 + 3 * 4, columns.getOffHeapSize());
+            }
+        }
+
+        // mapped files are deleted once mapped
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void testWithoutCounts() throws Exception {
+        ArrayList<float[]> points = new ArrayList<float[]>();
+        points.add(new float[]{1, 2});
+        WMSTile tile = new WMSTile("q", "year", points, null, Arrays.asList(1), null);
+        tile.pack(WMSTileColumns.Storage.DIRECT, null);
+        assertFalse(tile.getColumns().hasCounts());
+        assertNull(tile.getCounts());
+    }
+
+    @Test
+    public void testWithColours() throws Exception {
+        WMSTile tile = newTile();
+        tile.pack(WMSTileColumns.Storage.HEAP, null);
+        WMSTileColumns other = tile.getColumns().withColours(new int[]{7, 7, 7});
+        assertEquals(7, other.getColour(0));
+        assertEquals(0xff000001, tile.getColumns().getColour(0));
+        assertArrayEquals(tile.getColumns().getPoints(2), other.getPoints(2), 0);
+    }
+
+    /**
+     * the ranges of the grid index include every point inside a bbox
+     */
+    @Test
+    public void testRanges() throws Exception {
+        Random random = new Random(1);
+        float[] ps = new float[20000];
+        int[] cs = new int[ps.length / 2];
+        for (int i = 0; i < ps.length; i += 2) {
+            ps[i] = 110 + random.nextFloat() * 45;
+            ps[i + 1] = -45 + random.nextFloat() * 35;
+            cs[i / 2] = i / 2;
+        }
+        ps[0] = Float.NaN;
+        ArrayList<float[]> points = new ArrayList<float[]>();
+        points.add(new float[]{1, 1});
+        points.add(ps);
+        ArrayList<int[]> counts = new ArrayList<int[]>();
+        counts.add(new int[]{0});
+        counts.add(cs);
+        WMSTile tile = new WMSTile("q", "-1", points, counts, Arrays.asList(1, 2), null);
+        tile.pack(WMSTileColumns.Storage.HEAP, null);
+        WMSTileColumns columns = tile.getColumns();
+
+        for (int b = 0; b < 100; b++) {
+            double minLng = 100 + random.nextDouble() * 60;
+            double minLat = -50 + random.nextDouble() * 45;
+            double[] bbox = {minLng, minLat, minLng + random.nextDouble() * 20, minLat + random.nextDouble() * 20};
+
+            int expected = 0;
+            for (int i = 0; i < ps.length; i += 2) {
+                if (ps[i] >= bbox[0] && ps[i] <= bbox[2] && ps[i + 1] >= bbox[1] && ps[i + 1] <= bbox[3]) {
+                    expected++;
+                }
+            }
+
+            int found = 0;
+            int candidates = 0;
+            int[] ranges = columns.getRanges(1, bbox[0], bbox[1], bbox[2], bbox[3]);
+            for (int r = 0; r < ranges.length; r += 2) {
+                assertTrue(ranges[r] >= columns.getStart(1) && ranges[r + 1] <= columns.getEnd(1));
+                for (int i = ranges[r]; i < ranges[r + 1]; i++) {
+                    float lng = columns.getLongitude(i);
+                    float lat = columns.getLatitude(i);
+                    candidates++;
+                    if (lng >= bbox[0] && lng <= bbox[2] && lat >= bbox[1] && lat <= bbox[3]) {
+                        found++;
+                        // the counts are sorted with the points
+                        int k = columns.getCount(i) * 2;
+                        assertEquals(ps[k], lng, 0);
+                        assertEquals(ps[k + 1], lat, 0);
+                    }
+                }
+            }
+            assertEquals(expected, found);
+            assertTrue(candidates <= expected + ps.length / 4);
+        }
+    }
+}
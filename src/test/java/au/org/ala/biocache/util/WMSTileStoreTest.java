@@ -0,0 +1,92 @@
+package au.org.ala.biocache.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class WMSTileStoreTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("wmstilestoretest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    private WMSTileStore newStore(long maxSize) {
+        WMSTileStore store = new WMSTileStore();
+        store.setEnabled(true);
+        store.setDirectory(directory.getAbsolutePath());
+        store.setMaxSize(maxSize);
+        store.init();
+        return store;
+    }
+
+    @Test
+    public void testHash() {
+        assertEquals(64, WMSTileStore.hash("q=*:*").length());
+        assertEquals(WMSTileStore.hash("q=*:*"), WMSTileStore.hash("q=*:*"));
+        assertFalse(WMSTileStore.hash("q=*:*").equals(WMSTileStore.hash("q=*:*1")));
+    }
+
+    /**
+     * the least recently used tiles are evicted to keep the size below the max
+     */
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        WMSTileStore store = newStore(300);
+        store.put(WMSTileStore.hash("a"), new byte[100]);
+        store.put(WMSTileStore.hash("b"), new byte[100]);
+        store.put(WMSTileStore.hash("c"), new byte[100]);
+        store.get(WMSTileStore.hash("a"));
+        store.put(WMSTileStore.hash("d"), new byte[100]);
+
+        assertNull(store.get(WMSTileStore.hash("b")));
+        assertEquals(100, store.get(WMSTileStore.hash("a")).length);
+        assertEquals(100, store.get(WMSTileStore.hash("c")).length);
+        assertEquals(100, store.get(WMSTileStore.hash("d")).length);
+        assertEquals(300, store.getSize());
+
+        // too large to cache
+        store.put(WMSTileStore.hash("e"), new byte[301]);
+        assertNull(store.get(WMSTileStore.hash("e")));
+    }
+
+    /**
+     * the tiles are kept after a restart
+     */
+    @Test
+    public void testRestart() {
+        WMSTileStore store = newStore(1000);
+        byte[] tile = {1, 2, 3};
+        store.put(WMSTileStore.hash("tile"), tile);
+
+        store = newStore(1000);
+        assertArrayEquals(tile, store.get(WMSTileStore.hash("tile")));
+        assertEquals(3, store.getSize());
+
+        store.empty();
+        assertNull(store.get(WMSTileStore.hash("tile")));
+        assertEquals(0, newStore(1000).getSize());
+    }
+}
@@ -0,0 +1,183 @@
+package au.org.ala.biocache.util.thread;
+
+import au.org.ala.biocache.dao.JournalPersistentQueueDAOImpl;
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
+import au.org.ala.biocache.dto.DownloadRequestParams;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadSchedulerTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private File cacheDir;
+    private JournalPersistentQueueDAOImpl queueDAO;
+
+    private long startTime = 1000;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = Files.createTempDirectory("downloadschedulertest").toFile();
+        queueDAO = new JournalPersistentQueueDAOImpl() {
+            @Override
+            public void init() {
+                cacheDirectory = cacheDir.getAbsolutePath();
+                biocacheDownloadDir = cacheDir.getAbsolutePath();
+                super.init();
+            }
+        };
+        queueDAO.init();
+    }
+
+    @After
+    public void tearDown() {
+        queueDAO.shutdown();
+        FileUtils.deleteQuietly(cacheDir);
+    }
+
+    private DownloadDetailsDTO queue(String email, long totalRecords) {
+        DownloadRequestParams params = new DownloadRequestParams();
+        params.setFile("Testing");
+        params.setEmail(email);
+        params.setFields("id,scientificName");
+
+        DownloadDetailsDTO dd = new DownloadDetailsDTO();
+        dd.setRequestParams(params);
+        dd.setEmail(email);
+        dd.setDownloadParams("q=" + startTime);
+        dd.setDownloadType(DownloadType.RECORDS_INDEX);
+        dd.setTotalRecords(totalRecords);
+        dd.setStartDate(new Date(startTime++));
+        queueDAO.addDownloadToQueue(dd);
+        return dd;
+    }
+
+    /**
+     * The downloads of a requester with running downloads wait for the downloads of other requesters.
+     */
+    @Test
+    public void testFairShare() {
+        DownloadScheduler scheduler = new DownloadScheduler(queueDAO, true, false);
+        DownloadScheduler.Pool largeSolr = scheduler.register("largeSolr", 100000000, DownloadType.RECORDS_INDEX, 2);
+
+        DownloadDetailsDTO[] bulk = new DownloadDetailsDTO[5];
+        for (int i = 0; i < bulk.length; i++) {
+            bulk[i] = queue("bulk@example.org", 1000000);
+        }
+        DownloadDetailsDTO other = queue("other@example.org", 1000000);
+
+        assertSame(bulk[0], scheduler.next(largeSolr));
+        assertSame(other, scheduler.next(largeSolr));
+        assertEquals(2, largeSolr.getRunning());
+
+        // the requester with the cheaper running downloads goes first
+        scheduler.finished(other);
+        DownloadDetailsDTO small = queue("other@example.org", 10);
+        scheduler.finished(bulk[0]);
+        assertSame(bulk[1], scheduler.next(largeSolr));
+        assertSame(small, scheduler.next(largeSolr));
+        assertEquals(DownloadScheduler.getCost(small), scheduler.getRunningCost("other@example.org"));
+    }
+
+    @Test
+    public void testFirstComeFirstServedWithoutFairShare() {
+        DownloadScheduler scheduler = new DownloadScheduler(queueDAO, false, false);
+        DownloadScheduler.Pool largeSolr = scheduler.register("largeSolr", 100000000, DownloadType.RECORDS_INDEX, 2);
+        DownloadDetailsDTO first = queue("bulk@example.org", 1000000);
+        DownloadDetailsDTO second = queue("bulk@example.org", 1000000);
+        queue("other@example.org", 1000000);
+        assertSame(first, scheduler.next(largeSolr));
+        assertSame(second, scheduler.next(largeSolr));
+    }
+
+    /**
+     * An idle pool runs the downloads of a busy pool, keeping one thread for its own downloads.
+     */
+    @Test
+    public void testLendCapacity() {
+        DownloadScheduler scheduler = new DownloadScheduler(queueDAO, true, true);
+        DownloadScheduler.Pool smallSolr = scheduler.register("smallSolr", 50000, DownloadType.RECORDS_INDEX, 3);
+        DownloadScheduler.Pool largeSolr = scheduler.register("largeSolr", 100000000, DownloadType.RECORDS_INDEX, 1);
+        DownloadScheduler.Pool smallCassandra = scheduler.register("smallCassandra", 50000, DownloadType.RECORDS_DB, 4);
+
+        DownloadDetailsDTO[] large = new DownloadDetailsDTO[4];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = queue("user" + i + "@example.org", 1000000);
+        }
+
+        // largeSolr is not busy yet
+        assertNull(scheduler.next(smallSolr));
+        assertSame(large[0], scheduler.next(largeSolr));
+
+        // the cassandra pool does not run index downloads
+        assertNull(scheduler.next(smallCassandra));
+        assertSame(large[1], scheduler.next(smallSolr));
+        assertSame(large[2], scheduler.next(smallSolr));
+        assertNull(scheduler.next(smallSolr));
+        assertEquals(2, smallSolr.getRunning());
+
+        // the thread kept free runs the small downloads
+        DownloadDetailsDTO small = queue("user0@example.org", 10);
+        assertSame(small, scheduler.next(smallSolr));
+
+        scheduler.finished(large[1]);
+        scheduler.finished(large[2]);
+        scheduler.finished(small);
+        assertEquals(0, smallSolr.getRunning());
+    }
+
+    /**
+     * A pool waiting for a download is woken when a download is added instead of waiting for the poll delay.
+     */
+    @Test
+    public void testSignalWakesWaitingPool() throws Exception {
+        final DownloadScheduler scheduler = new DownloadScheduler(queueDAO);
+        long version = scheduler.getVersion();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                scheduler.signal();
+            }
+        }.start();
+        long start = System.currentTimeMillis();
+        scheduler.await(version, 1, TimeUnit.MINUTES);
+        assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(20));
+
+        // a signal before waiting is not lost
+        version = scheduler.getVersion();
+        scheduler.signal();
+        scheduler.await(version, 1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void testCost() {
+        DownloadDetailsDTO dd = new DownloadDetailsDTO();
+        DownloadRequestParams params = new DownloadRequestParams();
+        params.setFields("id, scientificName");
+        params.setExtra("cl22,el874");
+        dd.setRequestParams(params);
+        dd.setTotalRecords(10);
+        assertEquals(10 * 4 * 3, DownloadScheduler.getCost(dd));
+    }
+}
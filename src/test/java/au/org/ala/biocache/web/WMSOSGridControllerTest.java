@@ -0,0 +1,88 @@
+package au.org.ala.biocache.web;
+
+import org.geotools.geometry.GeneralDirectPosition;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.operation.DefaultCoordinateOperationFactory;
+import org.junit.Test;
+import org.opengis.geometry.DirectPosition;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.CoordinateOperation;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class WMSOSGridControllerTest {
+
+    private WMSOSGridController controller = new WMSOSGridController();
+
+    /**
+     * The corners of a grid cell projected with one cached transform are the same as the corners projected one by
+     * one, decoding the CRS for each point.
+     */
+    @Test
+    public void testConvertEastingNorthingToTargetSRS() throws Exception {
+        // TQ3080, a 1km cell in central London
+        double[][] corners = {{530000, 180000}, {531000, 180000}, {531000, 181000}, {530000, 181000}};
+
+        for (String targetSrs : new String[]{"EPSG:3857", "EPSG:4326"}) {
+            double[][] projected = controller.convertEastingNorthingToTargetSRS(corners, "EPSG:27700", targetSrs);
+            assertEquals(corners.length, projected.length);
+            for (int i = 0; i < corners.length; i++) {
+                double[] expected = reprojectPoint(corners[i][0], corners[i][1], "EPSG:27700", targetSrs);
+                assertEquals(targetSrs, expected[0], projected[i][0], 1e-9);
+                assertEquals(targetSrs, expected[1], projected[i][1], 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testConvertUnknownSRS() {
+        assertNull(controller.convertEastingNorthingToTargetSRS(new double[][]{{530000, 180000}}, "EPSG:27700", "EPSG:unknown"));
+    }
+
+    @Test
+    public void testGridCellIsCached() {
+        WMSOSGridController.GridCell cell = controller.getGridCell("TQ3080", "EPSG:3857");
+        assertNotNull(cell);
+        assertEquals(530000, cell.easting);
+        assertEquals(180000, cell.northing);
+        assertEquals(1000, cell.gridSize);
+        assertSame(cell, controller.getGridCell("TQ3080", "EPSG:3857"));
+    }
+
+    /**
+     * The line between two adjacent cells is drawn once.
+     */
+    @Test
+    public void testAdjacentCellsShareOneLine() {
+        Set<String> renderedLines = new HashSet<String>();
+        List<int[]> linesToRender = new ArrayList<int[]>();
+
+        for (String gridRef : new String[]{"TQ3080", "TQ3180"}) {
+            WMSOSGridController.GridCell cell = controller.getGridCell(gridRef, "EPSG:3857");
+            int[][] pixels = controller.convertUnitsToPixelOffset(cell.polygon, -20000, 6700000, 0.1, 0.1, 256, 256);
+            controller.addGridLines(cell, pixels, renderedLines, linesToRender);
+        }
+
+        assertEquals(7, linesToRender.size());
+        assertEquals(7, renderedLines.size());
+    }
+
+    /**
+     * The reprojection of one point as it was before the transforms were cached.
+     */
+    private static double[] reprojectPoint(double x, double y, String sourceCRSString, String targetCRSString) throws Exception {
+        CoordinateReferenceSystem sourceCRS = CRS.decode(sourceCRSString);
+        CoordinateReferenceSystem targetCRS = CRS.decode(targetCRSString);
+        CoordinateOperation transformOp = new DefaultCoordinateOperationFactory().createOperation(sourceCRS, targetCRS);
+        DirectPosition position = transformOp.getMathTransform().transform(new GeneralDirectPosition(x, y), null);
+        return new double[]{position.getOrdinate(0), position.getOrdinate(1)};
+    }
+}
@@ -0,0 +1,181 @@
+package au.org.ala.biocache.writer;
+
+import au.org.ala.biocache.RecordWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReadAheadPageWriterTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private ExecutorService executor;
+
+    private final AtomicInteger reading = new AtomicInteger();
+    private final AtomicInteger maxReading = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Pages are written in order while the following pages are read concurrently.
+     */
+    @Test
+    public void testPagesAreWrittenInOrder() throws Exception {
+        ListWriter writer = new ListWriter();
+        List<String> written = new ArrayList<>();
+        ReadAheadPageWriter pageWriter = new ReadAheadPageWriter(writer, executor, 3);
+        for (int page = 0; page < 20; page++) {
+            pageWriter.add(new StorePage(page, 50, written, null));
+        }
+        pageWriter.finish();
+
+        assertEquals(20 * 50, writer.records.size());
+        for (int i = 0; i < writer.records.size(); i++) {
+            assertEquals(String.valueOf(i), writer.records.get(i)[0]);
+        }
+        assertEquals(20, written.size());
+        for (int page = 0; page < 20; page++) {
+            assertEquals("misc" + page, written.get(page));
+        }
+        assertTrue("pages read concurrently " + maxReading.get(), maxReading.get() > 1);
+        assertTrue(maxReading.get() <= 4);
+    }
+
+    @Test
+    public void testWithoutReadAhead() throws Exception {
+        ListWriter writer = new ListWriter();
+        List<String> written = new ArrayList<>();
+        ReadAheadPageWriter pageWriter = new ReadAheadPageWriter(writer, executor, 0);
+        for (int page = 0; page < 5; page++) {
+            pageWriter.add(new StorePage(page, 10, written, Thread.currentThread()));
+        }
+        pageWriter.finish();
+
+        assertEquals(50, writer.records.size());
+        assertEquals(5, written.size());
+        assertEquals(1, maxReading.get());
+    }
+
+    /**
+     * A failure reading a page is thrown when the page is written, the pages after it are not written.
+     */
+    @Test
+    public void testReadFailure() throws Exception {
+        ListWriter writer = new ListWriter();
+        List<String> written = new ArrayList<>();
+        ReadAheadPageWriter pageWriter = new ReadAheadPageWriter(writer, executor, 2);
+        try {
+            for (int page = 0; page < 10; page++) {
+                pageWriter.add(page == 4 ? new FailingPage() : new StorePage(page, 10, written, null));
+            }
+            pageWriter.finish();
+            fail("expected the read failure");
+        } catch (IOException e) {
+            assertEquals("cassandra unavailable", e.getMessage());
+        } finally {
+            pageWriter.cancel();
+        }
+        assertEquals(4, written.size());
+        assertEquals(40, writer.records.size());
+    }
+
+    /**
+     * An in-memory stand-in for Store.writeToWriter that writes the records of a page and returns misc fields.
+     */
+    private class StorePage implements ReadAheadPageWriter.Page {
+        final int page;
+        final int size;
+        final List<String> written;
+        final Thread expectedThread;
+
+        StorePage(int page, int size, List<String> written, Thread expectedThread) {
+            this.page = page;
+            this.size = size;
+            this.written = written;
+            this.expectedThread = expectedThread;
+        }
+
+        @Override
+        public String[] read(RecordWriter writer) throws Exception {
+            int concurrent = reading.incrementAndGet();
+            try {
+                int max;
+                while ((max = maxReading.get()) < concurrent && !maxReading.compareAndSet(max, concurrent)) {
+                }
+                if (expectedThread != null) {
+                    assertTrue(expectedThread == Thread.currentThread());
+                }
+                // the latency of a cassandra read
+                Thread.sleep(5 + (page % 3) * 5);
+                for (int i = 0; i < size; i++) {
+                    writer.write(new String[]{String.valueOf(page * size + i)});
+                }
+                return new String[]{"misc" + page};
+            } finally {
+                reading.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void written(String[] result) {
+            written.add(result[0]);
+        }
+    }
+
+    private static class FailingPage implements ReadAheadPageWriter.Page {
+        @Override
+        public String[] read(RecordWriter writer) throws Exception {
+            throw new IOException("cassandra unavailable");
+        }
+
+        @Override
+        public void written(String[] result) {
+            fail("a failed page is not written");
+        }
+    }
+
+    private static class ListWriter implements RecordWriter {
+        final List<String[]> records = new ArrayList<>();
+
+        @Override
+        public void write(String[] record) {
+            records.add(record);
+        }
+
+        @Override
+        public void initialise() {
+        }
+
+        @Override
+        public void finalise() {
+        }
+
+        @Override
+        public boolean finalised() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package au.org.ala.biocache.writer;
+
+import au.org.ala.biocache.stream.OptionalZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordChunkPipelineTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private static final String[] HEADER = new String[]{"id", "name", "notes"};
+
+    /**
+     * Records encoded in chunks by several threads must produce the same lines as the single writer.
+     */
+    @Test
+    public void testCsvChunksMatchSingleWriter() throws Exception {
+        List<String[]> records = records(2000);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        CSVRecordWriter single = new CSVRecordWriter(expected, HEADER, ',', '"');
+        single.initialise();
+        for (String[] record : records) {
+            single.write(record);
+        }
+        single.finalise();
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        CSVRecordWriter rw = new CSVRecordWriter(actual, HEADER, ',', '"');
+        runPipeline(rw, actual, "csv", records, 4);
+
+        assertFalse(rw.hasError());
+        List<String> expectedLines = lines(expected.toByteArray());
+        List<String> actualLines = lines(actual.toByteArray());
+        assertEquals(expectedLines.get(0), actualLines.get(0));
+        Collections.sort(expectedLines);
+        Collections.sort(actualLines);
+        assertEquals(expectedLines, actualLines);
+    }
+
+    /**
+     * Each zip entry part starts with the header and no record is split between parts.
+     */
+    @Test
+    public void testTsvChunksSplitZipEntries() throws Exception {
+        List<String[]> records = records(60000);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OptionalZipOutputStream out = new OptionalZipOutputStream(OptionalZipOutputStream.Type.zipped, bytes, 1);
+        out.putNextEntry("data.tsv");
+        TSVRecordWriter rw = new TSVRecordWriter(out, HEADER);
+        runPipeline(rw, out, "tsv", records, 3);
+        out.close();
+
+        int entries = 0;
+        int recordCount = 0;
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                entries++;
+                ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = zis.read(buffer)) > 0) {
+                    entryBytes.write(buffer, 0, n);
+                }
+                List<String> lines = lines(entryBytes.toByteArray());
+                assertEquals("id\tname\tnotes", lines.get(0));
+                for (String line : lines.subList(1, lines.size())) {
+                    assertEquals(3, line.split("\t", -1).length);
+                    recordCount++;
+                }
+            }
+        }
+        assertTrue(entries > 1);
+        assertEquals(records.size(), recordCount);
+    }
+
+    /**
+     * An encoder error is reported once and stops the encoder and the download.
+     */
+    @Test
+    public void testEncoderErrorIsTerminal() throws Exception {
+        AtomicBoolean interrupt = new AtomicBoolean(false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CSVRecordWriter rw = new CSVRecordWriter(out, HEADER, ',', '"');
+        rw.initialise();
+        RecordChunkPipeline pipeline = new RecordChunkPipeline(rw, out, HEADER, "csv", ',', '"', 1, 1024, 10, interrupt, 100);
+
+        RecordChunkEncoder encoder = pipeline.borrowEncoder();
+        encoder.write(new String[]{"1", "a", "b"});
+
+        Field field = RecordChunkEncoder.class.getDeclaredField("writer");
+        field.setAccessible(true);
+        ((RecordWriterError) field.get(encoder)).getErrors().add(new IOException("encoding failed"));
+
+        for (String[] record : records(200)) {
+            encoder.write(record);
+        }
+        encoder.finalise();
+        pipeline.releaseEncoder(encoder);
+
+        assertTrue(interrupt.get());
+        assertTrue(encoder.finalised());
+        assertEquals(1, rw.getErrors().size());
+        assertEquals("encoding failed", rw.getErrors().get(0).getMessage());
+    }
+
+    private void runPipeline(RecordWriterError rw, OutputStream out, String fileType, List<String[]> records, int threads) throws Exception {
+        AtomicBoolean interrupt = new AtomicBoolean(false);
+        rw.initialise();
+        final RecordChunkPipeline pipeline = new RecordChunkPipeline(rw, out, HEADER, fileType, ',', '"', 2, 1024, 10, interrupt, 100);
+        Thread writerThread = new Thread(pipeline);
+        writerThread.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            int pageSize = records.size() / threads / 10;
+            for (int t = 0; t < threads; t++) {
+                final List<String[]> split = records.subList(t * records.size() / threads, (t + 1) * records.size() / threads);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int start = 0; start < split.size(); start += pageSize) {
+                            RecordChunkEncoder encoder = pipeline.borrowEncoder();
+                            try {
+                                for (String[] record : split.subList(start, Math.min(split.size(), start + pageSize))) {
+                                    encoder.write(record);
+                                }
+                            } finally {
+                                pipeline.releaseEncoder(encoder);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        pipeline.finish();
+        writerThread.join();
+        rw.finalise();
+        assertFalse(interrupt.get());
+    }
+
+    private List<String[]> records(int count) {
+        List<String[]> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(new String[]{"id" + i, "name, \"quoted\" " + i, i % 7 == 0 ? "" : "notes é " + i});
+        }
+        return records;
+    }
+
+    private List<String> lines(byte[] bytes) throws IOException {
+        return new ArrayList<>(Arrays.asList(new String(bytes, StandardCharsets.UTF_8).split("\n")));
+    }
+}
@@ -0,0 +1,133 @@
+package au.org.ala.biocache.writer;
+
+import au.org.ala.biocache.RecordWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RecordSpoolTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("recordspool", ".spool");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        RecordSpool spool = RecordSpool.open(file, 0);
+        spool.write(new String[]{"a", "", null, "ünïcödé, \"quoted\"\nline"});
+        spool.write(new String[0]);
+        spool.write(new String[]{"b"});
+        spool.close();
+
+        ListWriter writer = new ListWriter();
+        assertEquals(3, RecordSpool.replay(file, spool.length(), writer, new AtomicBoolean(false)));
+        assertArrayEquals(new String[]{"a", "", null, "ünïcödé, \"quoted\"\nline"}, writer.records.get(0));
+        assertArrayEquals(new String[0], writer.records.get(1));
+        assertArrayEquals(new String[]{"b"}, writer.records.get(2));
+    }
+
+    /**
+     * Records written after the checkpointed length are discarded when the spool is opened again.
+     */
+    @Test
+    public void testOpenDiscardsRecordsAfterLength() throws Exception {
+        RecordSpool spool = RecordSpool.open(file, 0);
+        spool.write(new String[]{"1"});
+        spool.write(new String[]{"2"});
+        spool.flush();
+        long checkpoint = spool.length();
+        spool.write(new String[]{"lost"});
+        spool.close();
+
+        spool = RecordSpool.open(file, checkpoint);
+        assertEquals(checkpoint, spool.length());
+        spool.write(new String[]{"3"});
+        spool.close();
+
+        ListWriter writer = new ListWriter();
+        assertEquals(3, RecordSpool.replay(file, spool.length(), writer, new AtomicBoolean(false)));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(String.valueOf(i + 1), writer.records.get(i)[0]);
+        }
+    }
+
+    @Test
+    public void testOpenShorterThanLength() throws Exception {
+        RecordSpool spool = RecordSpool.open(file, 0);
+        spool.write(new String[]{"1"});
+        spool.close();
+        try {
+            RecordSpool.open(file, spool.length() + 1);
+            fail("expected the spool to be too short");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReplayStopsOnInterrupt() throws Exception {
+        RecordSpool spool = RecordSpool.open(file, 0);
+        for (int i = 0; i < 10; i++) {
+            spool.write(new String[]{String.valueOf(i)});
+        }
+        spool.close();
+
+        final AtomicBoolean interrupt = new AtomicBoolean(false);
+        ListWriter writer = new ListWriter() {
+            @Override
+            public void write(String[] record) {
+                super.write(record);
+                if (records.size() == 4) {
+                    interrupt.set(true);
+                }
+            }
+        };
+        assertEquals(4, RecordSpool.replay(file, spool.length(), writer, interrupt));
+    }
+
+    private static class ListWriter implements RecordWriter {
+        final List<String[]> records = new ArrayList<>();
+
+        @Override
+        public void write(String[] record) {
+            records.add(record);
+        }
+
+        @Override
+        public void initialise() {
+        }
+
+        @Override
+        public void finalise() {
+        }
+
+        @Override
+        public boolean finalised() {
+            return false;
+        }
+    }
+}
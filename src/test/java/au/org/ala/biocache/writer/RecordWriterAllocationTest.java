@@ -0,0 +1,139 @@
+package au.org.ala.biocache.writer;
+
+import au.com.bytecode.opencsv.CSVWriter;
+import au.org.ala.biocache.stream.OptionalZipOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the allocation of the writers with the previous approach of encoding each record a second time
+ * to estimate its length for zip splitting.
+ */
+public class RecordWriterAllocationTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(60, TimeUnit.SECONDS);
+
+    private static final int RECORDS = 200000;
+
+    private static final String[] HEADER = new String[]{"id", "scientificName", "locality", "eventDate", "notes"};
+
+    private static final String[] RECORD = new String[]{"3f2a9c1e-0d4b-4e8a-9c1f-2b7d5e6a8c90", "Eucalyptus globulus",
+            "Mount Wellington, Hobart", "2019-03-14", "observed near the track é"};
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+
+    @Before
+    public void setUp() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void testCsvCountsExactBytesWithLessAllocation() throws Exception {
+        OptionalZipOutputStream out = new OptionalZipOutputStream(OptionalZipOutputStream.Type.unzipped, new NullOutputStream(), 4000);
+        CSVRecordWriter writer = new CSVRecordWriter(out, HEADER);
+        writer.initialise();
+
+        // the same record encoded twice, with and without the separate length estimate
+        for (int i = 0; i < RECORDS; i++) {
+            writer.write(RECORD);
+        }
+        long start = allocatedBytes();
+        for (int i = 0; i < RECORDS; i++) {
+            writer.write(RECORD);
+        }
+        long counting = allocatedBytes() - start;
+        writer.finalise();
+
+        CSVWriter previous = new CSVWriter(new OutputStreamWriter(new NullOutputStream(), StandardCharsets.UTF_8), ',', '"', '"');
+        long length = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            length += writePrevious(previous, RECORD);
+        }
+        start = allocatedBytes();
+        for (int i = 0; i < RECORDS; i++) {
+            length += writePrevious(previous, RECORD);
+        }
+        long estimating = allocatedBytes() - start;
+        previous.close();
+
+        assertTrue(length > 0);
+        assertTrue("counting " + counting + " bytes, estimating " + estimating + " bytes", counting < estimating);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CSVRecordWriter exact = new CSVRecordWriter(bytes, HEADER);
+        exact.initialise();
+        exact.write(RECORD);
+        exact.finalise();
+        assertEquals(bytes.size(), exact.getBytesWritten());
+    }
+
+    @Test
+    public void testTsvDoesNotAllocatePerRecord() throws Exception {
+        OptionalZipOutputStream out = new OptionalZipOutputStream(OptionalZipOutputStream.Type.unzipped, new NullOutputStream(), 4000);
+        TSVRecordWriter writer = new TSVRecordWriter(out, HEADER);
+        writer.initialise();
+
+        for (int i = 0; i < RECORDS; i++) {
+            writer.write(RECORD);
+        }
+        long start = allocatedBytes();
+        for (int i = 0; i < RECORDS; i++) {
+            writer.write(RECORD);
+        }
+        long counting = allocatedBytes() - start;
+        writer.finalise();
+
+        // the previous implementation built, copied and encoded a String for every record
+        assertTrue("allocated " + counting + " bytes for " + RECORDS + " records", counting < RECORDS);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TSVRecordWriter exact = new TSVRecordWriter(bytes, HEADER);
+        exact.initialise();
+        exact.write(new String[]{"a\tb", "line\r\nbreak", null, "é"});
+        exact.finalise();
+        assertEquals(bytes.size(), exact.getBytesWritten());
+        assertEquals("id\tscientificName\tlocality\teventDate\tnotes\nab\tlinebreak\t\té\n", new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The previous CSVRecordWriter length estimate.
+     */
+    private long writePrevious(CSVWriter csvWriter, String[] record) {
+        csvWriter.writeNext(record);
+        long length = record.length * "\",\"".getBytes(StandardCharsets.UTF_8).length * 2;
+        for (String s : record) if (s != null) length += s.getBytes(StandardCharsets.UTF_8).length;
+        return length;
+    }
+
+    private long allocatedBytes() {
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+        }
+    }
+}